@@ -0,0 +1,105 @@
+package uk.ac.ucl.rits.inform.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import uk.ac.ucl.rits.inform.datasources.waveform.hl7parse.Hl7Cursor;
+import uk.ac.ucl.rits.inform.datasources.waveform.hl7parse.Hl7Message;
+import uk.ac.ucl.rits.inform.datasources.waveform.hl7parse.Hl7ParseException;
+import uk.ac.ucl.rits.inform.datasources.waveform.hl7parse.Hl7Segment;
+import uk.ac.ucl.rits.inform.datasources.waveform_generator.Hl7Generator;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compare the string splitting HL7 parser with the byte cursor parser, extracting the same fields as the
+ * waveform reader does. Run with {@code -prof gc} to see the allocation rate as well as the time.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class Hl7ParserBenchmark {
+    private List<byte[]> messages;
+    private int nextMessage;
+    private final Hl7Cursor cursor = new Hl7Cursor();
+
+    /**
+     * Generate one second of synthetic data for 30 beds, as it would arrive over TCP.
+     */
+    @Setup
+    public void generateMessages() {
+        Hl7Generator generator = new Hl7Generator(null);
+        messages = generator.makeSyntheticWaveformMsgsAllPatients(Instant.parse("2024-01-01T12:00:00Z"), 30, 1000)
+                .stream()
+                .map(m -> m.getBytes(StandardCharsets.UTF_8))
+                .toList();
+    }
+
+    private byte[] nextMessage() {
+        byte[] message = messages.get(nextMessage);
+        nextMessage = (nextMessage + 1) % messages.size();
+        return message;
+    }
+
+    /**
+     * Decode to a string, split into segments and fields, then split OBX-5 and box every value.
+     * @param blackhole consumes the parsed fields
+     * @throws Hl7ParseException if the message can't be parsed
+     */
+    @Benchmark
+    public void stringSplitParser(Blackhole blackhole) throws Hl7ParseException {
+        Hl7Message message = new Hl7Message(new String(nextMessage(), StandardCharsets.UTF_8).strip());
+        blackhole.consume(message.getField("MSH", 10));
+        blackhole.consume(message.getField("PV1", 3));
+        blackhole.consume(message.getField("MSH", 9));
+        for (Hl7Segment obr : message.getSegments("OBR")) {
+            blackhole.consume(obr.getField(10));
+            for (Hl7Segment obx : obr.getChildSegments("OBX")) {
+                blackhole.consume(obx.getField(14));
+                blackhole.consume(obx.getField(3));
+                blackhole.consume(obx.getField(2));
+                blackhole.consume(Arrays.stream(obx.getField(5).split("\\^")).map(Double::parseDouble).toList());
+            }
+        }
+    }
+
+    /**
+     * Find fields by offset in the received bytes and parse OBX-5 straight into a primitive array.
+     * @param blackhole consumes the parsed fields
+     * @throws Hl7ParseException if the message can't be parsed
+     */
+    @Benchmark
+    public void cursorParser(Blackhole blackhole) throws Hl7ParseException {
+        byte[] bytes = nextMessage();
+        cursor.reset(bytes, 0, bytes.length);
+        int msh = cursor.getSingleSegment("MSH");
+        blackhole.consume(cursor.getField(msh, 10));
+        blackhole.consume(cursor.getField(cursor.getSingleSegment("PV1"), 3));
+        blackhole.consume(cursor.fieldEquals(msh, 9, "ORU^R01"));
+        for (int seg = 0; seg < cursor.getSegmentCount(); seg++) {
+            if (cursor.isSegment(seg, "OBR")) {
+                blackhole.consume(cursor.getField(seg, 10));
+            } else if (cursor.isSegment(seg, "OBX")) {
+                blackhole.consume(cursor.getField(seg, 14));
+                blackhole.consume(cursor.getField(seg, 3));
+                blackhole.consume(cursor.fieldEquals(seg, 2, "NA"));
+                blackhole.consume(cursor.getFieldAsDoubles(seg, 5));
+            }
+        }
+    }
+}
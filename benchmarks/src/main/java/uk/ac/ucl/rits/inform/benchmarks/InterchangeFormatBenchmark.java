@@ -0,0 +1,126 @@
+package uk.ac.ucl.rits.inform.benchmarks;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import uk.ac.ucl.rits.inform.interchange.EmapOperationMessage;
+import uk.ac.ucl.rits.inform.interchange.messaging.InterchangeFormat;
+import uk.ac.ucl.rits.inform.interchange.messaging.InterchangeMessageConverter;
+import uk.ac.ucl.rits.inform.interchange.test.helpers.InterchangeMessageFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Convert the sample interchange messages (as used by the tests) to and from each queue format, to compare
+ * the formats for speed. The total size of the messages in each format is reported as the {@code bytes} secondary
+ * result of each benchmark.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@SuppressWarnings("checkstyle:VisibilityModifier")
+public class InterchangeFormatBenchmark {
+    /**
+     * Format to convert to. JMH sets parameters directly, so they must be public.
+     */
+    @Param({"JSON", "SMILE", "CBOR"})
+    public InterchangeFormat format;
+
+    /**
+     * Which sample messages to use.
+     */
+    @Param({"adt", "lab", "flowsheet"})
+    public String messageType;
+
+    private InterchangeMessageConverter converter;
+    private List<EmapOperationMessage> messages;
+    private List<Message> converted;
+    private long totalBytes;
+
+    /**
+     * Reports the size of the messages alongside the timings.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class MessageSize {
+        /**
+         * Total size of the converted messages. JMH reads counters directly, so they must be public.
+         */
+        public long bytes;
+    }
+
+    /**
+     * Load the sample messages and convert them once, for the deserialisation benchmark.
+     * @throws IOException              if the sample messages can't be loaded
+     * @throws IllegalArgumentException if the message type is unknown
+     */
+    @Setup
+    public void setUp() throws IOException {
+        InterchangeMessageFactory messageFactory = new InterchangeMessageFactory();
+        messages = new ArrayList<>();
+        switch (messageType) {
+            case "adt" -> {
+                for (String file : List.of("A01.yaml", "A02.yaml", "A03.yaml", "A08_v1.yaml", "A40.yaml")) {
+                    messages.add(messageFactory.getAdtMessage("generic/" + file));
+                }
+            }
+            case "lab" -> {
+                messages.addAll(messageFactory.getLabOrders("winpath/ORU_R01.yaml"));
+                messages.addAll(messageFactory.getLabOrders("winpath/isolate_inc_1.yaml"));
+            }
+            case "flowsheet" -> messages.addAll(messageFactory.getFlowsheets("hl7.yaml"));
+            default -> throw new IllegalArgumentException(String.format("Unknown message type %s", messageType));
+        }
+        converter = new InterchangeMessageConverter(format);
+        converted = convertAll();
+        totalBytes = converted.stream().mapToLong(message -> message.getBody().length).sum();
+    }
+
+    private List<Message> convertAll() {
+        List<Message> result = new ArrayList<>(messages.size());
+        for (EmapOperationMessage message : messages) {
+            result.add(converter.toMessage(message, new MessageProperties()));
+        }
+        return result;
+    }
+
+    /**
+     * @param size reports the size of the messages
+     * @return the converted messages
+     */
+    @Benchmark
+    public List<Message> serialise(MessageSize size) {
+        size.bytes = totalBytes;
+        return convertAll();
+    }
+
+    /**
+     * @param blackhole consumes the messages
+     * @param size      reports the size of the messages
+     */
+    @Benchmark
+    public void deserialise(Blackhole blackhole, MessageSize size) {
+        size.bytes = totalBytes;
+        for (Message message : converted) {
+            blackhole.consume(converter.fromMessage(message));
+        }
+    }
+}
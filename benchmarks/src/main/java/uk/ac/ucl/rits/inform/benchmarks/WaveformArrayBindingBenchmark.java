@@ -0,0 +1,100 @@
+package uk.ac.ucl.rits.inform.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import uk.ac.ucl.rits.inform.informdb.visit_recordings.WaveformArray;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bind waveform values to an insert statement with the Hibernate type used for the values column.
+ * Uses an in-memory H2 database by default; pass eg. {@code -p jdbcUrl=jdbc:postgresql://localhost/emap -p user=...}
+ * to measure the postgres driver, which is what production uses.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@SuppressWarnings("checkstyle:VisibilityModifier")
+public class WaveformArrayBindingBenchmark {
+    /**
+     * Samples in the row. JMH sets parameters directly, so they must be public.
+     */
+    @Param({"300", "3000"})
+    public int numSamples;
+    /**
+     * Database to bind against.
+     */
+    @Param("jdbc:h2:mem:waveform")
+    public String jdbcUrl;
+    /**
+     * Database user.
+     */
+    @Param("sa")
+    public String user;
+    /**
+     * Database password.
+     */
+    @Param("")
+    public String password;
+
+    private final WaveformArray waveformArray = new WaveformArray();
+    private Connection connection;
+    private PreparedStatement insert;
+    private double[] values;
+
+    /**
+     * Create a temporary table to prepare the insert against.
+     * @throws SQLException if the database can't be used
+     */
+    @Setup
+    public void setUp() throws SQLException {
+        connection = DriverManager.getConnection(jdbcUrl, user, password);
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TEMPORARY TABLE waveform_binding (values_array DOUBLE PRECISION ARRAY)");
+        }
+        insert = connection.prepareStatement("INSERT INTO waveform_binding (values_array) VALUES (?)");
+        values = new double[numSamples];
+        for (int i = 0; i < numSamples; i++) {
+            values[i] = Math.round(1000 * Math.sin(i / 10.0)) / 1000.0;
+        }
+    }
+
+    /**
+     * @throws SQLException if the connection can't be closed
+     */
+    @TearDown
+    public void tearDown() throws SQLException {
+        insert.close();
+        connection.close();
+    }
+
+    /**
+     * Bind without executing, so only the conversion of the values is measured.
+     * @return the statement
+     * @throws SQLException if binding fails
+     */
+    @Benchmark
+    public PreparedStatement bind() throws SQLException {
+        waveformArray.nullSafeSet(insert, values, 1, null);
+        insert.clearParameters();
+        return insert;
+    }
+}
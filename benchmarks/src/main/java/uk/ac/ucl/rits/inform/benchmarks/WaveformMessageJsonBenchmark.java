@@ -0,0 +1,78 @@
+package uk.ac.ucl.rits.inform.benchmarks;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import uk.ac.ucl.rits.inform.datasources.waveform.SyntheticWaveformData;
+import uk.ac.ucl.rits.inform.datasources.waveform.hl7parse.Hl7ParseException;
+import uk.ac.ucl.rits.inform.interchange.InterchangeValue;
+import uk.ac.ucl.rits.inform.interchange.visit_observations.WaveformMessage;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serialise and deserialise a collated waveform message with the same Jackson setup as the message queue.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@SuppressWarnings("checkstyle:VisibilityModifier")
+public class WaveformMessageJsonBenchmark {
+    /**
+     * Samples in the message. JMH sets parameters directly, so they must be public.
+     */
+    @Param({"300", "3000"})
+    public int numSamples;
+
+    private final ObjectMapper mapper = new ObjectMapper().findAndRegisterModules();
+    private WaveformMessage message;
+    private byte[] json;
+
+    /**
+     * Make a message of the required size from generated data.
+     * @throws IOException       if the stream metadata can't be loaded or serialisation fails
+     * @throws Hl7ParseException if the generated HL7 can't be parsed
+     */
+    @Setup
+    public void setUp() throws IOException, Hl7ParseException {
+        message = SyntheticWaveformData.waveformMessages(1, 10, 1000).get(0);
+        double[] values = new double[numSamples];
+        for (int i = 0; i < numSamples; i++) {
+            values[i] = Math.round(1000 * Math.sin(i / 10.0)) / 1000.0;
+        }
+        message.setNumericValues(new InterchangeValue<>(values));
+        json = mapper.writeValueAsBytes(message);
+    }
+
+    /**
+     * @return the JSON
+     * @throws JsonProcessingException if serialisation fails
+     */
+    @Benchmark
+    public byte[] serialise() throws JsonProcessingException {
+        return mapper.writeValueAsBytes(message);
+    }
+
+    /**
+     * @return the message
+     * @throws IOException if deserialisation fails
+     */
+    @Benchmark
+    public WaveformMessage deserialise() throws IOException {
+        return mapper.readValue(json, WaveformMessage.class);
+    }
+}
@@ -0,0 +1,4 @@
+/**
+ * JMH benchmarks for performance sensitive code in the other modules.
+ */
+package uk.ac.ucl.rits.inform.benchmarks;
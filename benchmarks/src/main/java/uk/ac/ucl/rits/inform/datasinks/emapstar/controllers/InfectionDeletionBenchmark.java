@@ -0,0 +1,232 @@
+package uk.ac.ucl.rits.inform.datasinks.emapstar.controllers;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.boot.Banner;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.autoconfigure.ImportAutoConfiguration;
+import org.springframework.boot.autoconfigure.domain.EntityScan;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceAutoConfiguration;
+import org.springframework.boot.autoconfigure.orm.jpa.HibernateJpaAutoConfiguration;
+import org.springframework.boot.autoconfigure.transaction.TransactionAutoConfiguration;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Import;
+import org.springframework.data.jpa.repository.config.EnableJpaRepositories;
+import org.springframework.orm.jpa.SharedEntityManagerCreator;
+import org.springframework.transaction.support.TransactionTemplate;
+import uk.ac.ucl.rits.inform.informdb.conditions.ConditionType;
+import uk.ac.ucl.rits.inform.informdb.conditions.PatientCondition;
+import uk.ac.ucl.rits.inform.informdb.conditions.PatientConditionAudit;
+import uk.ac.ucl.rits.inform.informdb.identity.Mrn;
+import uk.ac.ucl.rits.inform.interchange.InterchangeValue;
+import uk.ac.ucl.rits.inform.interchange.PatientInfection;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Delete a patient's earlier HL7 infections when an infection with an ID arrives for them, for patient_condition
+ * tables holding different numbers of patients.
+ * <p>
+ * Every patient has infections with IDs, and later HL7 infections which mustn't be deleted. Each invocation adds an
+ * earlier HL7 infection for the next patient and deletes it in one transaction: {@code scopedDelete} by calling
+ * {@link PatientConditionController#deletePreviousHl7Infections} (which goes through {@link BulkDeleter}),
+ * {@code unscopedDelete} by finding the HL7 infections of every patient and auditing and deleting each entity,
+ * as the controller used to. Only the scoped time should stay flat as the number of patients grows.
+ * <p>
+ * The controller runs in a Spring context with only JPA, the emap-star entities and core's repositories.
+ * The tables are created by Hibernate, dropping any that exist, so uses an in-memory H2 database by default;
+ * pass eg. {@code -p jdbcUrl=jdbc:postgresql://localhost/scratch -p user=...} to use a scratch postgres database.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@SuppressWarnings("checkstyle:VisibilityModifier")
+public class InfectionDeletionBenchmark {
+    private static final int INFECTION_TYPES = 20;
+    private static final int INFECTIONS_WITH_ID_PER_PATIENT = 5;
+    private static final int LATER_HL7_INFECTIONS_PER_PATIENT = 2;
+    private static final int PATIENTS_PER_TRANSACTION = 1000;
+    private static final Instant DELETE_UNTIL = Instant.parse("2024-01-01T00:00:00Z");
+    private static final String INFECTION = PatientConditionController.PatientConditionType.PATIENT_INFECTION.toString();
+
+    /**
+     * Patients with infections in the table. JMH sets parameters directly, so they must be public.
+     */
+    @Param({"1000", "10000", "100000"})
+    public int numPatients;
+    /**
+     * Database to delete from.
+     */
+    @Param("jdbc:h2:mem:infections")
+    public String jdbcUrl;
+    /**
+     * Database user.
+     */
+    @Param("sa")
+    public String user;
+    /**
+     * Database password.
+     */
+    @Param("")
+    public String password;
+
+    private ConfigurableApplicationContext context;
+    private EntityManager entityManager;
+    private TransactionTemplate transaction;
+    private PatientConditionController controller;
+    private final List<Long> mrnIds = new ArrayList<>();
+    private final List<Long> infectionTypeIds = new ArrayList<>();
+    private int nextPatient;
+
+    /**
+     * Just enough of core to run the patient condition controller.
+     */
+    @Configuration
+    @ImportAutoConfiguration({
+            DataSourceAutoConfiguration.class, HibernateJpaAutoConfiguration.class, TransactionAutoConfiguration.class})
+    @EntityScan(basePackages = {"uk.ac.ucl.rits.inform.informdb", "uk.ac.ucl.rits.inform.datasinks.emapstar.repos"})
+    @EnableJpaRepositories(basePackages = "uk.ac.ucl.rits.inform.datasinks.emapstar.repos")
+    @Import({PatientConditionController.class, PatientConditionCache.class, BulkDeleter.class})
+    static class ControllerContext {
+    }
+
+    /**
+     * Start the controller and fill the tables.
+     */
+    @Setup
+    public void setUp() {
+        context = new SpringApplicationBuilder(ControllerContext.class)
+                .web(WebApplicationType.NONE)
+                .bannerMode(Banner.Mode.OFF)
+                .logStartupInfo(false)
+                // command line properties, so that they aren't overridden by core's application.properties
+                .run("--spring.config.name=infection-deletion-benchmark",
+                        "--spring.datasource.url=" + jdbcUrl,
+                        "--spring.datasource.username=" + user,
+                        "--spring.datasource.password=" + password,
+                        "--spring.jpa.hibernate.ddl-auto=create-drop",
+                        "--spring.jpa.properties.hibernate.jdbc.batch_size=" + PATIENTS_PER_TRANSACTION);
+        entityManager = SharedEntityManagerCreator.createSharedEntityManager(context.getBean(EntityManagerFactory.class));
+        transaction = context.getBean(TransactionTemplate.class);
+        controller = context.getBean(PatientConditionController.class);
+        fillTables();
+    }
+
+    private void fillTables() {
+        Instant earlier = DELETE_UNTIL.minus(30, ChronoUnit.DAYS);
+        Instant later = DELETE_UNTIL.plus(1, ChronoUnit.DAYS);
+        transaction.executeWithoutResult(status -> {
+            for (int type = 0; type < INFECTION_TYPES; type++) {
+                ConditionType infectionType = new ConditionType(INFECTION, "type-" + type, earlier, earlier);
+                entityManager.persist(infectionType);
+                infectionTypeIds.add(infectionType.getConditionTypeId());
+            }
+        });
+        long nextInternalId = 0;
+        for (int first = 0; first < numPatients; first += PATIENTS_PER_TRANSACTION) {
+            int firstPatient = first;
+            long firstInternalId = nextInternalId;
+            nextInternalId += (long) PATIENTS_PER_TRANSACTION * INFECTIONS_WITH_ID_PER_PATIENT;
+            transaction.executeWithoutResult(status -> {
+                long internalId = firstInternalId;
+                for (int patient = firstPatient; patient < Math.min(firstPatient + PATIENTS_PER_TRANSACTION, numPatients); patient++) {
+                    Mrn mrn = new Mrn();
+                    mrn.setMrn(String.valueOf(patient));
+                    mrn.setStoredFrom(earlier);
+                    entityManager.persist(mrn);
+                    mrnIds.add(mrn.getMrnId());
+                    for (int i = 0; i < INFECTIONS_WITH_ID_PER_PATIENT + LATER_HL7_INFECTIONS_PER_PATIENT; i++) {
+                        boolean hasId = i < INFECTIONS_WITH_ID_PER_PATIENT;
+                        ConditionType type = entityManager.getReference(ConditionType.class, infectionTypeIds.get(i % INFECTION_TYPES));
+                        PatientCondition infection = new PatientCondition(type, mrn, hasId ? internalId++ : null);
+                        infection.setValidFrom(hasId ? earlier : later);
+                        infection.setStoredFrom(hasId ? earlier : later);
+                        entityManager.persist(infection);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Stop the controller, dropping the tables.
+     */
+    @TearDown
+    public void tearDown() {
+        context.close();
+    }
+
+    /**
+     * Add an HL7 infection from before the delete until time for the next patient.
+     * Must be called in a transaction.
+     * @return the patient
+     */
+    private Mrn addEarlierHl7Infection() {
+        Mrn mrn = entityManager.getReference(Mrn.class, mrnIds.get(nextPatient));
+        ConditionType type = entityManager.getReference(ConditionType.class, infectionTypeIds.get(nextPatient % INFECTION_TYPES));
+        nextPatient = (nextPatient + 1) % numPatients;
+        PatientCondition infection = new PatientCondition(type, mrn, null);
+        Instant validFrom = DELETE_UNTIL.minus(1, ChronoUnit.HOURS);
+        infection.setValidFrom(validFrom);
+        infection.setStoredFrom(validFrom);
+        entityManager.persist(infection);
+        return mrn;
+    }
+
+    /**
+     * Audit and delete the patient's HL7 infections as the controller does for an infection with an ID.
+     */
+    @Benchmark
+    public void scopedDelete() {
+        PatientInfection msg = new PatientInfection();
+        msg.setEpicConditionId(new InterchangeValue<>(1L));
+        msg.setUpdatedDateTime(DELETE_UNTIL);
+        transaction.executeWithoutResult(status -> controller.deletePreviousHl7Infections(msg, addEarlierHl7Infection(), Instant.now()));
+    }
+
+    /**
+     * Find every patient's HL7 infections, then audit and delete each one.
+     * @return number of infections deleted
+     */
+    @Benchmark
+    public int unscopedDelete() {
+        return transaction.execute(status -> {
+            addEarlierHl7Infection();
+            Instant storedUntil = Instant.now();
+            List<PatientCondition> hl7Infections = entityManager.createQuery(
+                            "select e from PatientCondition e where e.validFrom <= :deleteUntil and e.internalId is null"
+                                    + " and e.conditionTypeId in (select t from ConditionType t where t.dataType = :dataType)",
+                            PatientCondition.class)
+                    .setParameter("deleteUntil", DELETE_UNTIL)
+                    .setParameter("dataType", INFECTION)
+                    .getResultList();
+            for (PatientCondition hl7Infection : hl7Infections) {
+                PatientConditionAudit audit = hl7Infection.createAuditEntity(DELETE_UNTIL, storedUntil);
+                entityManager.persist(audit);
+                entityManager.remove(hl7Infection);
+            }
+            return hl7Infections.size();
+        });
+    }
+}
@@ -0,0 +1,4 @@
+/**
+ * Benchmarks for core's controllers, in the same package so that they can use their package-private methods.
+ */
+package uk.ac.ucl.rits.inform.datasinks.emapstar.controllers;
@@ -0,0 +1,62 @@
+package uk.ac.ucl.rits.inform.datasources.waveform;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import uk.ac.ucl.rits.inform.datasources.waveform.hl7parse.Hl7ParseException;
+import uk.ac.ucl.rits.inform.interchange.visit_observations.WaveformMessage;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to turn one HL7 message into interchange messages, including the metadata and location lookups.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@SuppressWarnings("checkstyle:VisibilityModifier")
+public class Hl7ParseAndQueueBenchmark {
+    /**
+     * Max samples in each HL7 message. JMH sets parameters directly, so they must be public.
+     */
+    @Param({"5", "50", "500"})
+    public int samplesPerMessage;
+
+    private Hl7ParseAndQueue parser;
+    private List<byte[]> messages;
+    private int nextMessage;
+
+    /**
+     * Generate ten seconds of data for ten beds.
+     * @throws IOException if the stream metadata can't be loaded
+     */
+    @Setup
+    public void setUp() throws IOException {
+        parser = SyntheticWaveformData.parser();
+        messages = SyntheticWaveformData.hl7Messages(10, samplesPerMessage, 10_000);
+    }
+
+    /**
+     * @return the interchange messages
+     * @throws Hl7ParseException if the message can't be parsed
+     */
+    @Benchmark
+    public List<WaveformMessage> parseHl7() throws Hl7ParseException {
+        byte[] message = messages.get(nextMessage);
+        nextMessage = (nextMessage + 1) % messages.size();
+        return parser.parseHl7(message);
+    }
+}
@@ -0,0 +1,88 @@
+package uk.ac.ucl.rits.inform.datasources.waveform;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import uk.ac.ucl.rits.inform.datasources.waveform.hl7parse.Hl7ParseException;
+import uk.ac.ucl.rits.inform.datasources.waveform_generator.Hl7Generator;
+import uk.ac.ucl.rits.inform.interchange.InterchangeValue;
+import uk.ac.ucl.rits.inform.interchange.visit_observations.WaveformMessage;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Synthetic benchmark inputs, made by the waveform generator and parsed by the waveform reader as in production.
+ */
+public final class SyntheticWaveformData {
+    /**
+     * Observation time of the first generated sample.
+     */
+    public static final Instant START_TIME = Instant.parse("2024-01-01T12:00:00Z");
+
+    private SyntheticWaveformData() {
+    }
+
+    /**
+     * @param numPatients       number of beds to generate data for, each has one or two streams
+     * @param samplesPerMessage max samples in each HL7 message
+     * @param numMillis         length of observation period to generate data for
+     * @return HL7 messages as they would arrive over TCP
+     */
+    public static List<byte[]> hl7Messages(int numPatients, int samplesPerMessage, long numMillis) {
+        List<Hl7Generator.SyntheticStream> streams = List.of(
+                new Hl7Generator.SyntheticStream("52912", 50, 0.3, samplesPerMessage),
+                new Hl7Generator.SyntheticStream("27", 300, 1.2, samplesPerMessage));
+        return new Hl7Generator(null).makeSyntheticWaveformMsgsAllPatients(START_TIME, numPatients, numMillis, streams)
+                .stream()
+                .map(m -> m.getBytes(StandardCharsets.UTF_8))
+                .toList();
+    }
+
+    /**
+     * @return a parser which isn't connected to a collator or publisher
+     * @throws IOException if the stream metadata can't be loaded
+     */
+    public static Hl7ParseAndQueue parser() throws IOException {
+        return new Hl7ParseAndQueue(null, null, new StreamDescriptorCache(new SourceMetadata(), new LocationMapping()),
+                new SimpleMeterRegistry());
+    }
+
+    /**
+     * @param numPatients       number of beds to generate data for, each has one or two streams
+     * @param samplesPerMessage max samples in each HL7 message
+     * @param numMillis         length of observation period to generate data for
+     * @return uncollated interchange messages
+     * @throws IOException       if the stream metadata can't be loaded
+     * @throws Hl7ParseException if the generated HL7 can't be parsed
+     */
+    public static List<WaveformMessage> waveformMessages(int numPatients, int samplesPerMessage, long numMillis)
+            throws IOException, Hl7ParseException {
+        Hl7ParseAndQueue parser = parser();
+        List<WaveformMessage> messages = new ArrayList<>();
+        for (byte[] hl7 : hl7Messages(numPatients, samplesPerMessage, numMillis)) {
+            messages.addAll(parser.parseHl7(hl7));
+        }
+        return messages;
+    }
+
+    /**
+     * The collator modifies the messages it is given, so each benchmark invocation needs fresh copies.
+     * @param msg message to copy
+     * @return a copy with its own values array
+     */
+    public static WaveformMessage copy(WaveformMessage msg) {
+        WaveformMessage copy = new WaveformMessage();
+        copy.setSourceMessageId(msg.getSourceMessageId());
+        copy.setObservationTime(msg.getObservationTime());
+        copy.setSourceLocationString(msg.getSourceLocationString());
+        copy.setMappedLocationString(msg.getMappedLocationString());
+        copy.setSourceStreamId(msg.getSourceStreamId());
+        copy.setMappedStreamDescription(msg.getMappedStreamDescription());
+        copy.setSamplingRate(msg.getSamplingRate());
+        copy.setUnit(msg.getUnit());
+        copy.setNumericValues(new InterchangeValue<>(msg.getNumericValues().get().clone()));
+        return copy;
+    }
+}
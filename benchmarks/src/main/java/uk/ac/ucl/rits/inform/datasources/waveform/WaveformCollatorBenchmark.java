@@ -0,0 +1,120 @@
+package uk.ac.ucl.rits.inform.datasources.waveform;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import uk.ac.ucl.rits.inform.datasources.waveform.hl7parse.Hl7ParseException;
+import uk.ac.ucl.rits.inform.interchange.visit_observations.WaveformMessage;
+
+import java.io.IOException;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to add and collate ten seconds of data, with varying numbers of streams, message sizes and arrival order.
+ * Each invocation starts with an empty collator and fresh copies of the messages, because collation modifies them.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@SuppressWarnings("checkstyle:VisibilityModifier")
+public class WaveformCollatorBenchmark {
+    /**
+     * Beds with data, each has one or two streams. JMH sets parameters directly, so they must be public.
+     */
+    @Param({"1", "30"})
+    public int numPatients;
+    /**
+     * Max samples in each uncollated message.
+     */
+    @Param({"5", "50"})
+    public int samplesPerMessage;
+    /**
+     * Whether messages arrive in a random order, rather than time order for each stream.
+     */
+    @Param({"false", "true"})
+    public boolean outOfOrder;
+
+    private List<WaveformMessage> sourceMessages;
+    private List<WaveformMessage> messages;
+    private WaveformCollator filledCollator;
+
+    /**
+     * Generate the messages once.
+     * @throws IOException       if the stream metadata can't be loaded
+     * @throws Hl7ParseException if the generated HL7 can't be parsed
+     */
+    @Setup(Level.Trial)
+    public void generateMessages() throws IOException, Hl7ParseException {
+        sourceMessages = new ArrayList<>(SyntheticWaveformData.waveformMessages(numPatients, samplesPerMessage, 10_000));
+        if (outOfOrder) {
+            Collections.shuffle(sourceMessages, new Random(1));
+        }
+    }
+
+    /**
+     * Fresh copies of the messages, and a collator which already has them, for each invocation.
+     * @throws WaveformCollator.CollationException if messages are duplicated
+     */
+    @Setup(Level.Invocation)
+    public void copyMessages() throws WaveformCollator.CollationException {
+        messages = sourceMessages.stream().map(SyntheticWaveformData::copy).toList();
+        filledCollator = new WaveformCollator(new SimpleMeterRegistry());
+        filledCollator.addMessages(sourceMessages.stream().map(SyntheticWaveformData::copy).toList());
+    }
+
+    /**
+     * @return the collator with all messages added
+     * @throws WaveformCollator.CollationException if messages are duplicated
+     */
+    @Benchmark
+    public WaveformCollator addMessages() throws WaveformCollator.CollationException {
+        WaveformCollator collator = new WaveformCollator(new SimpleMeterRegistry());
+        collator.addMessages(messages);
+        return collator;
+    }
+
+    /**
+     * Add the messages one HL7 message's worth at a time, collating each stream as soon as it reaches the target,
+     * as the parse workers do.
+     * @return the collated messages
+     * @throws WaveformCollator.CollationException if messages are duplicated
+     */
+    @Benchmark
+    public List<WaveformMessage> addMessagesAndCollate() throws WaveformCollator.CollationException {
+        WaveformCollator collator = new WaveformCollator(new SimpleMeterRegistry());
+        List<WaveformMessage> collated = new ArrayList<>();
+        for (WaveformMessage message : messages) {
+            collated.addAll(collator.addMessagesAndCollate(List.of(message), 3000, ChronoUnit.MILLIS));
+        }
+        return collated;
+    }
+
+    /**
+     * Collate everything, as if the data was old enough to not wait for any more.
+     * @return the collated messages
+     * @throws WaveformCollator.CollationException if the data can't be collated
+     */
+    @Benchmark
+    public List<WaveformMessage> getReadyMessages() throws WaveformCollator.CollationException {
+        return filledCollator.getReadyMessages(
+                SyntheticWaveformData.START_TIME.plus(1, ChronoUnit.HOURS), 3000, 15_000, ChronoUnit.MILLIS);
+    }
+}
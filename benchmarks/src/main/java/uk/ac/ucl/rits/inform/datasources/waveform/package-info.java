@@ -0,0 +1,4 @@
+/**
+ * Benchmarks for the waveform reader, in the same package so that they can use its package-private methods.
+ */
+package uk.ac.ucl.rits.inform.datasources.waveform;
@@ -1,31 +1,45 @@
 package uk.ac.ucl.rits.inform.datasinks.emapstar;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.rabbitmq.client.Channel;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.amqp.core.Message;
 import org.springframework.amqp.rabbit.annotation.RabbitListener;
+import org.springframework.amqp.rabbit.config.SimpleRabbitListenerContainerFactory;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
 import org.springframework.amqp.support.AmqpHeaders;
-import org.springframework.amqp.support.converter.Jackson2JsonMessageConverter;
+import org.springframework.amqp.support.converter.MessageConversionException;
 import org.springframework.amqp.support.converter.MessageConverter;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
+import org.springframework.boot.autoconfigure.amqp.SimpleRabbitListenerContainerFactoryConfigurer;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.cache.annotation.EnableCaching;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Profile;
+import org.springframework.dao.ConcurrencyFailureException;
+import org.springframework.dao.DataIntegrityViolationException;
 import org.springframework.messaging.handler.annotation.Header;
 import org.springframework.scheduling.annotation.EnableScheduling;
+import uk.ac.ucl.rits.inform.datasinks.emapstar.concurrent.MrnPartitionedExecutor;
 import uk.ac.ucl.rits.inform.datasinks.emapstar.exceptions.MessageIgnoredException;
 import uk.ac.ucl.rits.inform.datasinks.emapstar.repos.IdsEffectLogging;
-import uk.ac.ucl.rits.inform.datasinks.emapstar.repos.IdsEffectLoggingRepository;
 import uk.ac.ucl.rits.inform.interchange.EmapOperationMessage;
 import uk.ac.ucl.rits.inform.interchange.EmapOperationMessageProcessingException;
 import uk.ac.ucl.rits.inform.interchange.adt.AdtMessage;
+import uk.ac.ucl.rits.inform.interchange.messaging.InterchangeFormat;
+import uk.ac.ucl.rits.inform.interchange.messaging.InterchangeMessageConverter;
+import uk.ac.ucl.rits.inform.interchange.messaging.WaveformMessageConverter;
+import uk.ac.ucl.rits.inform.interchange.messaging.WaveformWireEncoding;
 
 import java.io.IOException;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Entry point class for the HL7 pipeline.
@@ -43,16 +57,39 @@ public class App {
     private InformDbOperations dbOps;
 
     @Autowired
-    private IdsEffectLoggingRepository idsEffectLoggingRepository;
+    private IdsEffectLoggingWriter idsEffectLoggingWriter;
+
+    @Autowired
+    private MrnPartitionedExecutor mrnPartitionedExecutor;
+
+    @Autowired
+    private MessageBatchProcessor messageBatchProcessor;
+
+    @Autowired
+    private MessageConverter messageConverter;
+
+    @Value("${core.rabbitmq.consumer_threads:1}")
+    private int consumerThreads;
+
+    /**
+     * Number of times a message is tried when it conflicts with a transaction for another patient.
+     */
+    private static final int MAX_CONCURRENT_ATTEMPTS = 3;
+
+    /**
+     * First unexpected error from a worker thread, which is thrown by the listener as it would be with one consumer thread.
+     */
+    private final AtomicReference<Throwable> workerFailure = new AtomicReference<>();
 
     /**
      * Added this to get Instant objects (de)serialising properly.
+     * Messages may also arrive as Smile or CBOR, and waveform messages in their own binary form, which are
+     * recognised by the content type.
      * @return our message converter
      */
     @Bean
     public static MessageConverter jsonReaderMessageConverter() {
-        ObjectMapper mapper = new ObjectMapper().findAndRegisterModules();
-        return new Jackson2JsonMessageConverter(mapper);
+        return new WaveformMessageConverter(new InterchangeMessageConverter(InterchangeFormat.JSON), WaveformWireEncoding.JSON);
     }
 
     /**
@@ -63,19 +100,143 @@ public class App {
     }
 
 
+    /**
+     * Runs messages for different patients in parallel when there is more than one consumer thread.
+     * @param consumerThreads number of threads processing messages
+     * @return executor for processing messages
+     */
+    @Bean(destroyMethod = "shutdown")
+    public static MrnPartitionedExecutor mrnPartitionedExecutor(@Value("${core.rabbitmq.consumer_threads:1}") int consumerThreads) {
+        return new MrnPartitionedExecutor(consumerThreads);
+    }
+
+    /**
+     * Listener container that delivers messages in batches, only used if batches of more than one message are configured.
+     * @param configurer        applies the spring.rabbitmq.listener.simple properties
+     * @param connectionFactory rabbitmq connection factory
+     * @param batchSize         maximum number of messages in a batch
+     * @param batchTimeoutMs    time to wait for another message before processing a partial batch
+     * @param consumerThreads   number of threads processing messages, can't be used with batches
+     * @return container factory for batch listeners
+     * @throws IllegalStateException if both batches and more than one consumer thread have been configured
+     */
+    @Bean
+    public static SimpleRabbitListenerContainerFactory batchListenerContainerFactory(
+            SimpleRabbitListenerContainerFactoryConfigurer configurer, ConnectionFactory connectionFactory,
+            @Value("${core.rabbitmq.batch_size:1}") int batchSize,
+            @Value("${core.rabbitmq.batch_timeout_ms:500}") long batchTimeoutMs,
+            @Value("${core.rabbitmq.consumer_threads:1}") int consumerThreads) {
+        if (batchSize > 1 && consumerThreads > 1) {
+            throw new IllegalStateException("core.rabbitmq.batch_size and core.rabbitmq.consumer_threads can't both be more than 1");
+        }
+        SimpleRabbitListenerContainerFactory factory = new SimpleRabbitListenerContainerFactory();
+        configurer.configure(factory, connectionFactory);
+        factory.setBatchListener(true);
+        factory.setConsumerBatchEnabled(true);
+        factory.setBatchSize(batchSize);
+        factory.setReceiveTimeout(batchTimeoutMs);
+        return factory;
+    }
+
     /**
      * The listener for processing messages and writing to Emap-Star. The ordering
      * of queue names in the `queues` parameter actually matters - we want HL7
      * messages to be processed in preference to caboodle messages.
+     * <p>
+     * If configured with more than one consumer thread, the message is handed to a worker thread once it holds the
+     * locks for all MRNs that the message could change, so messages for the same patient are still processed in order.
+     * The worker acknowledges the message once it has been processed. If a worker fails with an unexpected error,
+     * it is thrown by the listener once the next message has been handed to a worker.
      * @param msg     the message
      * @param channel the rabbitmq channel
      * @param tag     the message tag
-     * @throws IOException if rabbitmq channel has a problem
+     * @throws IOException          if rabbitmq channel has a problem
+     * @throws InterruptedException if interrupted while waiting for a worker thread
      */
     @Profile("default")
-    @RabbitListener(queues = "#{'${core.rabbitmq.listen_queues}'.split(',')}")
+    @RabbitListener(queues = "#{'${core.rabbitmq.listen_queues}'.split(',')}",
+            autoStartup = "#{${spring.rabbitmq.listener.simple.auto-startup:true} and ${core.rabbitmq.batch_size:1} <= 1}")
     public void receiveMessage(EmapOperationMessage msg, Channel channel, @Header(AmqpHeaders.DELIVERY_TAG) long tag)
-            throws IOException {
+            throws IOException, InterruptedException {
+        if (consumerThreads <= 1) {
+            processAndAcknowledge(msg, channel, tag, 1);
+            return;
+        }
+        Collection<String> mrns = msg.getAffectedMrns();
+        logger.debug("Dispatching interchange message {} for MRNs {}", msg.getSourceMessageId(), mrns);
+        mrnPartitionedExecutor.execute(mrns, () -> {
+            try {
+                processAndAcknowledge(msg, channel, tag, MAX_CONCURRENT_ATTEMPTS);
+            } catch (IOException e) {
+                logger.error("Could not acknowledge interchange message {}", msg.getSourceMessageId(), e);
+            } catch (RuntimeException | Error e) {
+                workerFailure.compareAndSet(null, e);
+            }
+        });
+        throwWorkerFailure();
+    }
+
+    /**
+     * Throw an unexpected error from a worker thread, if there has been one since this was last called.
+     */
+    private void throwWorkerFailure() {
+        Throwable failure = workerFailure.getAndSet(null);
+        if (failure instanceof Error error) {
+            throw error;
+        }
+        if (failure != null) {
+            throw (RuntimeException) failure;
+        }
+    }
+
+    /**
+     * The listener for processing batches of messages in a single transaction, used instead of
+     * {@link #receiveMessage} when batches of more than one message are configured.
+     * <p>
+     * Messages which couldn't be processed are rejected, then all other messages in the batch are acknowledged at once.
+     * @param messages the batch of messages, in the order they were delivered
+     * @param channel  the rabbitmq channel
+     * @throws IOException if rabbitmq channel has a problem
+     */
+    @Profile("default")
+    @RabbitListener(queues = "#{'${core.rabbitmq.listen_queues}'.split(',')}", containerFactory = "batchListenerContainerFactory",
+            autoStartup = "#{${spring.rabbitmq.listener.simple.auto-startup:true} and ${core.rabbitmq.batch_size:1} > 1}")
+    public void receiveMessageBatch(List<Message> messages, Channel channel) throws IOException {
+        List<EmapOperationMessage> batch = new ArrayList<>(messages.size());
+        List<Long> batchTags = new ArrayList<>(messages.size());
+        for (Message message : messages) {
+            long tag = message.getMessageProperties().getDeliveryTag();
+            try {
+                batch.add((EmapOperationMessage) messageConverter.fromMessage(message));
+                batchTags.add(tag);
+            } catch (MessageConversionException | ClassCastException e) {
+                logger.error("Sending NACK no requeue for message that couldn't be converted", e);
+                channel.basicNack(tag, false, false);
+            }
+        }
+        logger.info("Starting processing of batch of {} interchange messages", batch.size());
+        List<Boolean> processed = messageBatchProcessor.processBatch(batch);
+        for (int i = 0; i < batch.size(); i++) {
+            if (!processed.get(i)) {
+                logger.info("Sending NACK no requeue for {}", batch.get(i).getSourceMessageId());
+                channel.basicNack(batchTags.get(i), false, false);
+            }
+        }
+        if (!batchTags.isEmpty()) {
+            logger.info("Sending ACK for batch up to {}", batch.get(batch.size() - 1).getSourceMessageId());
+            channel.basicAck(batchTags.get(batchTags.size() - 1), true);
+        }
+    }
+
+    /**
+     * Process a message, log its effect and acknowledge it.
+     * @param msg         the message
+     * @param channel     the rabbitmq channel
+     * @param tag         the message tag
+     * @param maxAttempts number of times to try processing a message that conflicts with a concurrent transaction
+     * @throws IOException if rabbitmq channel has a problem
+     */
+    private void processAndAcknowledge(EmapOperationMessage msg, Channel channel, long tag, int maxAttempts) throws IOException {
         IdsEffectLogging idsEffectLogging = new IdsEffectLogging();
         Instant startTime = Instant.now();
         idsEffectLogging.setProcessingStartTime(startTime);
@@ -87,13 +248,15 @@ public class App {
         try {
             logger.info("Starting processing of interchange message {}", msg.getSourceMessageId());
             logger.trace("{}", msg);
-            msg.processMessage(dbOps);
+            processWithRetries(msg, maxAttempts);
             Instant doneProcessMessageTime = Instant.now();
             Duration processMessageDuration = Duration.between(startTime, doneProcessMessageTime);
             idsEffectLogging.setProcessMessageDuration(processMessageDuration.toNanos());
             idsEffectLogging.setError(false);
             logger.info("Sending ACK for {}", msg.getSourceMessageId());
-            channel.basicAck(tag, false);
+            synchronized (channel) {
+                channel.basicAck(tag, false);
+            }
         } catch (EmapOperationMessageProcessingException e) {
             // All errors that allow the message to be skipped should be logged
             // using the return code from processMessage.
@@ -102,19 +265,46 @@ public class App {
             idsEffectLogging.setMessage(e.getMessage());
             idsEffectLogging.setStackTrace(e);
             logger.info("Sending NACK no requeue then NOT throwing for {}", msg.getSourceMessageId());
-            channel.basicNack(tag, false, false);
+            synchronized (channel) {
+                channel.basicNack(tag, false, false);
+            }
         } catch (Throwable th) {
             // For anything else, at least log it before exiting.
             idsEffectLogging.setError(true);
             idsEffectLogging.setMessage(th.getMessage());
             idsEffectLogging.setStackTrace(th);
             logger.info("Sending NACK no requeue then throwing for {}", msg.getSourceMessageId());
-            channel.basicNack(tag, false, false);
+            synchronized (channel) {
+                channel.basicNack(tag, false, false);
+            }
             throw th;
         } finally {
             idsEffectLogging.setProcessingEndTime(Instant.now());
-            idsEffectLoggingRepository.save(idsEffectLogging);
+            idsEffectLoggingWriter.write(idsEffectLogging);
         }
     }
 
+    /**
+     * Process a message, retrying if the transaction conflicted with a transaction for another patient.
+     * <p>
+     * Messages for different patients can both try to create the same shared row (e.g. a new location),
+     * in which case one of them will fail and should find the row on the next attempt.
+     * @param msg         the message
+     * @param maxAttempts maximum number of times to try processing the message
+     * @throws EmapOperationMessageProcessingException if the message could not be processed
+     */
+    private void processWithRetries(EmapOperationMessage msg, int maxAttempts) throws EmapOperationMessageProcessingException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                msg.processMessage(dbOps);
+                return;
+            } catch (ConcurrencyFailureException | DataIntegrityViolationException e) {
+                if (attempt >= maxAttempts) {
+                    throw e;
+                }
+                logger.warn("Attempt {} of interchange message {} conflicted with another transaction, retrying: {}",
+                        attempt, msg.getSourceMessageId(), e.getMessage());
+            }
+        }
+    }
 }
@@ -0,0 +1,75 @@
+package uk.ac.ucl.rits.inform.datasinks.emapstar;
+
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.boot.autoconfigure.cache.CacheManagerCustomizer;
+import org.springframework.cache.CacheManager;
+import org.springframework.cache.caffeine.CaffeineCacheManager;
+import org.springframework.cache.transaction.TransactionAwareCacheManagerProxy;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
+
+import java.util.List;
+
+/**
+ * Caffeine settings for each of the caches used by {@code @Cacheable} methods, so that each can be sized for its table.
+ * <p>
+ * The spec of a cache is read from {@code core.cache.<cache name>.spec}, falling back to {@code spring.cache.caffeine.spec}.
+ * Statistics are always recorded, so that they can be reported by {@link CacheMetrics}.
+ * <p>
+ * Entries are only added to (or evicted from) the caches once the transaction that found or created them commits,
+ * so that messages for other patients being processed in parallel can't be given entities that are then rolled back.
+ */
+@Configuration
+public class CacheConfiguration {
+    /**
+     * Caches of reference data, which are created at startup rather than on first use.
+     */
+    static final List<String> REFERENCE_CACHES = List.of(
+            "location", "visitObservationType", "labTestDefinition", "labBattery", "labBatteryElement",
+            "conditionType", "consultationType", "question", "advanceDecisionType");
+
+    /**
+     * Only applied if the cache manager is caffeine (e.g. not when caching is disabled in tests).
+     * @param environment environment to read the cache specs from
+     * @return customizer registering each reference cache with its own spec
+     */
+    @Bean
+    public CacheManagerCustomizer<CaffeineCacheManager> referenceCacheCustomizer(Environment environment) {
+        String defaultSpec = environment.getProperty("spring.cache.caffeine.spec", "");
+        return cacheManager -> {
+            cacheManager.setCaffeine(caffeineWithStats(defaultSpec));
+            for (String cacheName : REFERENCE_CACHES) {
+                String spec = environment.getProperty(String.format("core.cache.%s.spec", cacheName), defaultSpec);
+                cacheManager.registerCustomCache(cacheName, caffeineWithStats(spec).build());
+            }
+        };
+    }
+
+    /**
+     * Wraps the cache manager, whichever type it is, so that its caches are transaction aware.
+     * @return post processor for the cache manager
+     */
+    @Bean
+    public static BeanPostProcessor transactionAwareCacheManager() {
+        return new BeanPostProcessor() {
+            @Override
+            public Object postProcessAfterInitialization(Object bean, String beanName) {
+                if (bean instanceof CacheManager cacheManager && !(bean instanceof TransactionAwareCacheManagerProxy)) {
+                    return new TransactionAwareCacheManagerProxy(cacheManager);
+                }
+                return bean;
+            }
+        };
+    }
+
+    /**
+     * @param spec caffeine spec, which may already record statistics
+     * @return caffeine builder for the spec, recording statistics
+     */
+    static Caffeine<Object, Object> caffeineWithStats(String spec) {
+        Caffeine<Object, Object> caffeine = Caffeine.from(spec);
+        return spec.contains("recordStats") ? caffeine : caffeine.recordStats();
+    }
+}
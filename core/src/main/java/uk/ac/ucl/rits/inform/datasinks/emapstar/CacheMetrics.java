@@ -0,0 +1,94 @@
+package uk.ac.ucl.rits.inform.datasinks.emapstar;
+
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.TimeGauge;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+import org.springframework.stereotype.Component;
+import uk.ac.ucl.rits.inform.datasinks.emapstar.controllers.IdentityCache;
+import uk.ac.ucl.rits.inform.datasinks.emapstar.controllers.ReferenceCacheWarmUp;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Metrics for core's caches, tagged by cache name, so that each cache's size can be tuned (see {@link CacheConfiguration}).
+ * <p>
+ * These are read from the caffeine statistics of the reference caches and the {@link IdentityCache} when the registry
+ * is scraped. Actuator also reports its own {@code cache.*} meters for the reference caches.
+ * <p>
+ * The warm up is only looked up when scraped, as it needs the transaction manager which may not exist yet when the
+ * meter registry is created.
+ */
+@Component
+public class CacheMetrics implements MeterBinder {
+    private final CacheManager cacheManager;
+    private final ObjectProvider<ReferenceCacheWarmUp> referenceCacheWarmUp;
+    private final IdentityCache identityCache;
+
+    /**
+     * @param cacheManager         cache manager holding the reference caches
+     * @param referenceCacheWarmUp warm up, for the time taken to load each cache at startup
+     * @param identityCache        cache of MRNs and visits
+     */
+    CacheMetrics(CacheManager cacheManager, ObjectProvider<ReferenceCacheWarmUp> referenceCacheWarmUp, IdentityCache identityCache) {
+        this.cacheManager = cacheManager;
+        this.referenceCacheWarmUp = referenceCacheWarmUp;
+        this.identityCache = identityCache;
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        for (String cacheName : CacheConfiguration.REFERENCE_CACHES) {
+            Cache cache = cacheManager.getCache(cacheName);
+            if (cache == null || !(cache.getNativeCache() instanceof com.github.benmanes.caffeine.cache.Cache<?, ?> nativeCache)) {
+                continue;
+            }
+            bindStats(registry, "core.cache", cacheName, nativeCache, com.github.benmanes.caffeine.cache.Cache::stats);
+            FunctionCounter.builder("core.cache.evictions", nativeCache, c -> c.stats().evictionCount())
+                    .description("Entries evicted because of the cache's size or expiry")
+                    .tag("cache", cacheName)
+                    .register(registry);
+            TimeGauge.builder("core.cache.warm_up.duration", referenceCacheWarmUp, TimeUnit.MILLISECONDS,
+                            warmUp -> warmUp.getObject().getLoadTime(cacheName).toMillis())
+                    .description("Time taken to load the cache at startup")
+                    .tag("cache", cacheName)
+                    .register(registry);
+            Gauge.builder("core.cache.warm_up.entries", referenceCacheWarmUp, warmUp -> warmUp.getObject().getLoadedCount(cacheName))
+                    .description("Entries loaded into the cache at startup")
+                    .tag("cache", cacheName)
+                    .register(registry);
+        }
+        bindStats(registry, "core.identity_cache", "mrn", identityCache, IdentityCache::getMrnStats);
+        bindStats(registry, "core.identity_cache", "visit", identityCache, IdentityCache::getVisitStats);
+    }
+
+    /**
+     * Meters hold their source weakly, so it must be the cache itself rather than a function of it.
+     * @param registry  registry to add the meters to
+     * @param prefix    prefix of the meter names
+     * @param cacheName cache tag
+     * @param source    object that the statistics are read from
+     * @param stats     reads the current statistics
+     * @param <T>       source type
+     */
+    private static <T> void bindStats(MeterRegistry registry, String prefix, String cacheName, T source, Function<T, CacheStats> stats) {
+        Gauge.builder(prefix + ".hit.ratio", source, s -> stats.apply(s).hitRate())
+                .description("Proportion of lookups found in the cache")
+                .tag("cache", cacheName)
+                .register(registry);
+        FunctionCounter.builder(prefix + ".hits", source, s -> stats.apply(s).hitCount())
+                .description("Lookups found in the cache")
+                .tag("cache", cacheName)
+                .register(registry);
+        FunctionCounter.builder(prefix + ".misses", source, s -> stats.apply(s).missCount())
+                .description("Lookups not found in the cache")
+                .tag("cache", cacheName)
+                .register(registry);
+    }
+}
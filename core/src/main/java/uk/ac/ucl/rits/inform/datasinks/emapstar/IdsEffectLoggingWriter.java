@@ -0,0 +1,207 @@
+package uk.ac.ucl.rits.inform.datasinks.emapstar;
+
+import org.hibernate.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+import uk.ac.ucl.rits.inform.datasinks.emapstar.repos.IdsEffectLogging;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes the effect logging for each message in the background, so that logging doesn't add a database round trip
+ * to the processing of every message.
+ * <p>
+ * Logging is held in a bounded buffer, which blocks message processing when full, and is written with JDBC batch inserts
+ * by a background thread as soon as logging arrives, or otherwise once the flush interval has passed.
+ * Logging is only taken from the buffer while holding the write lock, so that once {@link #flush()} finds the buffer
+ * empty, everything buffered before it was called has been written.
+ * <p>
+ * Successful messages of high volume types can be sampled, so that only one in every N is logged. Errors are always logged.
+ */
+@Component
+public class IdsEffectLoggingWriter {
+    private static final Logger logger = LoggerFactory.getLogger(IdsEffectLoggingWriter.class);
+
+    private final BlockingQueue<IdsEffectLogging> buffer;
+    private final int batchSize;
+    private final long flushIntervalMs;
+    private final Set<String> sampledMessageTypes;
+    private final int sampleEvery;
+    private final Map<String, AtomicLong> sampledMessageCounts = new ConcurrentHashMap<>();
+    private final TransactionTemplate writeTransaction;
+    private final Object writeLock = new Object();
+    /**
+     * Released for each record buffered, so the writer can wait for logging without taking it from the buffer.
+     */
+    private final Semaphore buffered = new Semaphore(0);
+    private Thread writerThread;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    /**
+     * @param transactionManager  transaction manager for emap-star
+     * @param bufferSize          maximum number of logging records waiting to be written
+     * @param batchSize           maximum number of logging records written in a transaction,
+     *                            more than {@link IdsEffectLogging#ID_ALLOCATION_SIZE} needs more than one sequence call
+     * @param flushIntervalMs     maximum time a logging record waits before being written
+     * @param sampledMessageTypes simple class names of messages where only a sample of successes are logged
+     * @param sampleEvery         log one in this many successes of the sampled message types
+     * @throws IllegalArgumentException if the buffer size, batch size or sample rate is less than 1
+     */
+    public IdsEffectLoggingWriter(
+            PlatformTransactionManager transactionManager,
+            @Value("${core.effect_logging.buffer_size:10000}") int bufferSize,
+            @Value("${core.effect_logging.batch_size:500}") int batchSize,
+            @Value("${core.effect_logging.flush_interval_ms:1000}") long flushIntervalMs,
+            @Value("${core.effect_logging.sampled_message_types:}") Set<String> sampledMessageTypes,
+            @Value("${core.effect_logging.sample_every:1}") int sampleEvery) {
+        if (bufferSize < 1 || batchSize < 1 || sampleEvery < 1) {
+            throw new IllegalArgumentException("Effect logging buffer size, batch size and sample rate must be at least 1");
+        }
+        if (batchSize > IdsEffectLogging.ID_ALLOCATION_SIZE) {
+            logger.warn("Effect logging batch size {} is more than the {} IDs allocated at once", batchSize, IdsEffectLogging.ID_ALLOCATION_SIZE);
+        }
+        buffer = new ArrayBlockingQueue<>(bufferSize);
+        this.batchSize = batchSize;
+        this.flushIntervalMs = flushIntervalMs;
+        this.sampledMessageTypes = sampledMessageTypes;
+        this.sampleEvery = sampleEvery;
+        writeTransaction = new TransactionTemplate(transactionManager);
+        writeTransaction.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+    }
+
+    /**
+     * Start the background writer.
+     */
+    @PostConstruct
+    void start() {
+        writerThread = new Thread(this::writeUntilInterrupted, "effect-logging-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Stop the background writer and write any remaining logging.
+     */
+    @PreDestroy
+    void stop() {
+        writerThread.interrupt();
+        try {
+            writerThread.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+
+    /**
+     * Add logging for a message to the buffer, blocking if the buffer is full.
+     * @param effectLogging logging for a message that has finished processing
+     */
+    public void write(IdsEffectLogging effectLogging) {
+        if (isSampledOut(effectLogging)) {
+            return;
+        }
+        try {
+            buffer.put(effectLogging);
+            buffered.release();
+        } catch (InterruptedException e) {
+            logger.warn("Interrupted while buffering effect logging for {}, not logged", effectLogging.getSourceId());
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Add logging for messages to the buffer, blocking if the buffer is full.
+     * @param effectLogs logging for messages that have finished processing
+     */
+    public void writeAll(Iterable<IdsEffectLogging> effectLogs) {
+        for (IdsEffectLogging effectLogging : effectLogs) {
+            write(effectLogging);
+        }
+    }
+
+    /**
+     * Write all logging that has been buffered, blocking until it has been written.
+     */
+    public void flush() {
+        synchronized (writeLock) {
+            List<IdsEffectLogging> batch = new ArrayList<>(batchSize);
+            while (buffer.drainTo(batch, batchSize) > 0) {
+                writeBatch(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * @param effectLogging logging for a message
+     * @return true if the logging should be dropped because its message type is sampled
+     */
+    private boolean isSampledOut(IdsEffectLogging effectLogging) {
+        if (sampleEvery == 1 || Boolean.TRUE.equals(effectLogging.getError())) {
+            return false;
+        }
+        String messageType = effectLogging.getMessageType();
+        String simpleName = messageType.substring(messageType.lastIndexOf('.') + 1);
+        if (!sampledMessageTypes.contains(simpleName)) {
+            return false;
+        }
+        long count = sampledMessageCounts.computeIfAbsent(simpleName, type -> new AtomicLong()).getAndIncrement();
+        return count % sampleEvery != 0;
+    }
+
+    private void writeUntilInterrupted() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                // wait for logging to arrive, a permit may be left over from logging that has already been written
+                buffered.tryAcquire(flushIntervalMs, TimeUnit.MILLISECONDS);
+                buffered.drainPermits();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            flush();
+        }
+    }
+
+    /**
+     * Write logging in a single transaction, with inserts sent as JDBC batches.
+     * Failures are logged rather than thrown, as effect logging shouldn't stop messages from being processed.
+     * @param batch logging to write
+     */
+    private void writeBatch(List<IdsEffectLogging> batch) {
+        try {
+            writeTransaction.executeWithoutResult(status -> {
+                entityManager.unwrap(Session.class).setJdbcBatchSize(batchSize);
+                for (IdsEffectLogging effectLogging : batch) {
+                    entityManager.persist(effectLogging);
+                }
+                entityManager.flush();
+                entityManager.clear();
+            });
+            logger.debug("Wrote {} effect logging records", batch.size());
+        } catch (RuntimeException e) {
+            logger.error("Could not write {} effect logging records", batch.size(), e);
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package uk.ac.ucl.rits.inform.datasinks.emapstar;
+
+import org.hibernate.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+import uk.ac.ucl.rits.inform.datasinks.emapstar.controllers.IdentityCache;
+import uk.ac.ucl.rits.inform.datasinks.emapstar.exceptions.MessageIgnoredException;
+import uk.ac.ucl.rits.inform.datasinks.emapstar.repos.IdsEffectLogging;
+import uk.ac.ucl.rits.inform.interchange.EmapOperationMessage;
+import uk.ac.ucl.rits.inform.interchange.EmapOperationMessageProcessingException;
+import uk.ac.ucl.rits.inform.interchange.adt.AdtMessage;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import java.sql.Connection;
+import java.sql.Savepoint;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Processes a batch of interchange messages in a single database transaction.
+ * <p>
+ * Each message is processed within a JDBC savepoint, so that a message which fails unexpectedly is rolled back on its own
+ * while the rest of the batch is committed together. Messages that fail with an {@link EmapOperationMessageProcessingException}
+ * keep any changes they made, in the same way as when they are processed in their own transaction.
+ * <p>
+ * Some failures (e.g. a database constraint violation, or an unexpected exception thrown by a {@code @Transactional} method)
+ * mark the whole transaction as rollback only, in which case the batch is rolled back and each message is processed
+ * again in its own transaction.
+ */
+@Component
+public class MessageBatchProcessor {
+    private static final Logger logger = LoggerFactory.getLogger(MessageBatchProcessor.class);
+
+    private final InformDbOperations dbOps;
+    private final IdsEffectLoggingWriter idsEffectLoggingWriter;
+    private final CacheManager cacheManager;
+    private final IdentityCache identityCache;
+    private final TransactionTemplate batchTransaction;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    /**
+     * @param dbOps                  operations to process each message
+     * @param idsEffectLoggingWriter writes the effect of each message
+     * @param cacheManager           caches to clear if any changes are rolled back
+     * @param identityCache          cached identities to clear if any changes are rolled back
+     * @param transactionManager     transaction manager for emap-star
+     */
+    public MessageBatchProcessor(InformDbOperations dbOps, IdsEffectLoggingWriter idsEffectLoggingWriter,
+                                 CacheManager cacheManager, IdentityCache identityCache,
+                                 PlatformTransactionManager transactionManager) {
+        this.dbOps = dbOps;
+        this.idsEffectLoggingWriter = idsEffectLoggingWriter;
+        this.cacheManager = cacheManager;
+        this.identityCache = identityCache;
+        batchTransaction = new TransactionTemplate(transactionManager);
+        batchTransaction.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+    }
+
+    /**
+     * Process a batch of messages, committing all successful messages in one transaction.
+     * @param messages messages to process, in the order they were received
+     * @return for each message, true if it was processed and should be acknowledged
+     */
+    public List<Boolean> processBatch(List<? extends EmapOperationMessage> messages) {
+        List<Boolean> processed = new ArrayList<>(messages.size());
+        List<IdsEffectLogging> effectLogs = new ArrayList<>(messages.size());
+        Boolean committed;
+        try {
+            committed = batchTransaction.execute(status -> {
+                for (EmapOperationMessage msg : messages) {
+                    IdsEffectLogging effectLogging = startEffectLogging(msg);
+                    processed.add(processInSavepoint(msg, effectLogging));
+                    effectLogs.add(effectLogging);
+                    if (status.isRollbackOnly()) {
+                        logger.warn("Batch transaction can't be committed after {}", msg.getSourceMessageId());
+                        status.setRollbackOnly();
+                        return false;
+                    }
+                }
+                return true;
+            });
+        } catch (RuntimeException e) {
+            logger.error("Batch of {} messages could not be committed", messages.size(), e);
+            committed = false;
+        }
+        if (Boolean.TRUE.equals(committed)) {
+            idsEffectLoggingWriter.writeAll(effectLogs);
+            return processed;
+        }
+        clearCaches();
+        logger.info("Processing {} messages in individual transactions", messages.size());
+        List<Boolean> individuallyProcessed = new ArrayList<>(messages.size());
+        for (EmapOperationMessage msg : messages) {
+            individuallyProcessed.add(processIndividually(msg));
+        }
+        return individuallyProcessed;
+    }
+
+    /**
+     * Process a message within a savepoint of the batch transaction.
+     * @param msg           message to process
+     * @param effectLogging logging for the message, updated with the outcome
+     * @return true if the message was processed
+     */
+    private boolean processInSavepoint(EmapOperationMessage msg, IdsEffectLogging effectLogging) {
+        Session session = entityManager.unwrap(Session.class);
+        Savepoint savepoint = session.doReturningWork(Connection::setSavepoint);
+        EmapOperationMessageProcessingException processingException = null;
+        try {
+            try {
+                msg.processMessage(dbOps);
+            } catch (EmapOperationMessageProcessingException e) {
+                processingException = e;
+            }
+            // write changes before the savepoint is released, so that a later rollback can't lose them
+            entityManager.flush();
+        } catch (RuntimeException e) {
+            logger.error("Rolling back interchange message {}", msg.getSourceMessageId(), e);
+            recordFailure(effectLogging, e);
+            // entities changed by the rolled back message must not be written by a later flush
+            entityManager.clear();
+            session.doWork(connection -> connection.rollback(savepoint));
+            clearCaches();
+            return false;
+        }
+        session.doWork(connection -> connection.releaseSavepoint(savepoint));
+        if (processingException != null) {
+            recordFailure(effectLogging, processingException);
+            return false;
+        }
+        recordSuccess(effectLogging);
+        return true;
+    }
+
+    /**
+     * Process a message in its own transaction.
+     * @param msg message to process
+     * @return true if the message was processed
+     */
+    private boolean processIndividually(EmapOperationMessage msg) {
+        IdsEffectLogging effectLogging = startEffectLogging(msg);
+        try {
+            msg.processMessage(dbOps);
+            recordSuccess(effectLogging);
+            return true;
+        } catch (EmapOperationMessageProcessingException | RuntimeException e) {
+            recordFailure(effectLogging, e);
+            return false;
+        } finally {
+            idsEffectLoggingWriter.write(effectLogging);
+        }
+    }
+
+    /**
+     * Start logging the effect of a message.
+     * @param msg message about to be processed
+     * @return logging with the message details and start time
+     */
+    static IdsEffectLogging startEffectLogging(EmapOperationMessage msg) {
+        IdsEffectLogging effectLogging = new IdsEffectLogging();
+        effectLogging.setProcessingStartTime(Instant.now());
+        effectLogging.setMessageType(msg.getMessageType());
+        if (msg instanceof AdtMessage) {
+            effectLogging.setMessageDatetime(((AdtMessage) msg).getRecordedDateTime());
+        }
+        effectLogging.setSourceId(msg.getSourceMessageId());
+        return effectLogging;
+    }
+
+    private static void recordSuccess(IdsEffectLogging effectLogging) {
+        Instant endTime = Instant.now();
+        effectLogging.setProcessMessageDuration(Duration.between(effectLogging.getProcessingStartTime(), endTime).toNanos());
+        effectLogging.setError(false);
+        effectLogging.setProcessingEndTime(endTime);
+    }
+
+    private static void recordFailure(IdsEffectLogging effectLogging, Throwable th) {
+        // MessageIgnoredException is not an error, all others are
+        effectLogging.setError(!(th instanceof MessageIgnoredException));
+        effectLogging.setMessage(th.getMessage());
+        effectLogging.setStackTrace(th);
+        effectLogging.setProcessingEndTime(Instant.now());
+    }
+
+    /**
+     * Cached entities may have been created by changes that were rolled back.
+     * Within the batch transaction, the caches are cleared once it commits, after any entries added by the rolled back message.
+     */
+    private void clearCaches() {
+        for (String cacheName : cacheManager.getCacheNames()) {
+            Cache cache = cacheManager.getCache(cacheName);
+            if (cache != null) {
+                cache.clear();
+            }
+        }
+        identityCache.clear();
+    }
+}
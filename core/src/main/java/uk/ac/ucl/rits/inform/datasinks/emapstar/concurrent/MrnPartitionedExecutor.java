@@ -0,0 +1,123 @@
+package uk.ac.ucl.rits.inform.datasinks.emapstar.concurrent;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs tasks on a pool of worker threads, where tasks for the same MRN are run one at a time in the order they were submitted.
+ * <p>
+ * Tasks must be submitted from a single thread. The submitting thread takes the {@link MrnLock} for every MRN of a task
+ * before handing it to a worker, which releases them once the task has finished. As only one thread ever waits for the
+ * locks, tasks sharing an MRN run in submission order while tasks for other patients run in parallel.
+ * <p>
+ * Tasks that can't be assigned to MRNs are run exclusively: the submitting thread waits for all running tasks to finish
+ * and then runs the task itself.
+ */
+public class MrnPartitionedExecutor {
+    private static final Logger logger = LoggerFactory.getLogger(MrnPartitionedExecutor.class);
+
+    private final MrnLock mrnLock = new MrnLock();
+    private final ExecutorService workers;
+    private final Semaphore workerPermits;
+    private final int threads;
+
+    /**
+     * Create a new executor.
+     * @param threads number of worker threads
+     * @throws IllegalArgumentException if threads is less than 1
+     */
+    public MrnPartitionedExecutor(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Must have at least one worker thread");
+        }
+        this.threads = threads;
+        workers = Executors.newFixedThreadPool(threads);
+        workerPermits = new Semaphore(threads);
+    }
+
+    /**
+     * Run a task once it holds all of its MRN locks and a worker is free, blocking until the task has been started.
+     * @param mrns unique MRNs the task could change, empty if it changes no patient data, or null to run the task exclusively
+     * @param task the task to run, should handle its own exceptions
+     * @throws InterruptedException If the thread is interrupted while waiting for locks or a free worker
+     * @throws IllegalArgumentException If MRNS are not unique
+     */
+    public void execute(Collection<String> mrns, Runnable task) throws InterruptedException {
+        if (mrns == null) {
+            runExclusively(task);
+            return;
+        }
+        List<String> lockedMrns = new ArrayList<>(mrns);
+        if (!lockedMrns.isEmpty()) {
+            mrnLock.acquire(lockedMrns);
+        }
+        try {
+            workerPermits.acquire();
+        } catch (InterruptedException e) {
+            releaseMrns(lockedMrns);
+            throw e;
+        }
+        workers.execute(() -> {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                logger.error("Unhandled exception in task for MRNs {}", lockedMrns, e);
+            } finally {
+                releaseMrns(lockedMrns);
+                workerPermits.release();
+            }
+        });
+    }
+
+    /**
+     * Wait for all running tasks to finish, then run the task on the current thread.
+     * @param task the task to run
+     * @throws InterruptedException If the thread is interrupted while waiting for running tasks
+     */
+    private void runExclusively(Runnable task) throws InterruptedException {
+        workerPermits.acquire(threads);
+        try {
+            task.run();
+        } finally {
+            workerPermits.release(threads);
+        }
+    }
+
+    private void releaseMrns(List<String> lockedMrns) {
+        if (!lockedMrns.isEmpty()) {
+            mrnLock.release(lockedMrns);
+        }
+    }
+
+    /**
+     * Block until all submitted tasks have finished.
+     * @throws InterruptedException If the thread is interrupted while waiting
+     */
+    public void awaitIdle() throws InterruptedException {
+        workerPermits.acquire(threads);
+        workerPermits.release(threads);
+    }
+
+    /**
+     * Stop accepting tasks and wait a short time for running tasks to finish.
+     */
+    public void shutdown() {
+        workers.shutdown();
+        try {
+            if (!workers.awaitTermination(30, TimeUnit.SECONDS)) {
+                logger.warn("Worker threads did not finish within 30 seconds");
+            }
+        } catch (InterruptedException e) {
+            logger.warn("Interrupted while waiting for worker threads to finish");
+            Thread.currentThread().interrupt();
+        }
+    }
+}
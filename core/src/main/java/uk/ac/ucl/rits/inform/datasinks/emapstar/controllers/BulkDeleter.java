@@ -0,0 +1,147 @@
+package uk.ac.ucl.rits.inform.datasinks.emapstar.controllers;
+
+import org.hibernate.engine.spi.EntityEntry;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+import uk.ac.ucl.rits.inform.informdb.AuditCore;
+import uk.ac.ucl.rits.inform.informdb.TemporalCore;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.Query;
+import javax.persistence.metamodel.EntityType;
+import javax.persistence.metamodel.Metamodel;
+import javax.persistence.metamodel.SingularAttribute;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Audits and deletes all rows of a table that match a condition, using one statement to copy them to the audit table
+ * and one to delete them, rather than loading and deleting each entity.
+ * <p>
+ * The audit columns are found from the entity metamodel, matching each field of the audit entity to the field of the
+ * same name in the entity (as generated by {@code @AuditTable}), so new fields are audited without changes here.
+ * <p>
+ * Bulk statements bypass the persistence context, so it is flushed before each deletion, and any of the deleted rows
+ * which are managed are detached afterwards (cascading to their detachable associations). Everything else stays
+ * managed, so entities the caller (or an earlier message in the same transaction) loaded can still be used.
+ */
+@Component
+public class BulkDeleter {
+    private static final String VALID_UNTIL = "validUntil";
+    private static final String STORED_UNTIL = "storedUntil";
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    private final Map<Class<?>, String> insertAuditByEntity = new ConcurrentHashMap<>();
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    /**
+     * Copy every row matching the condition to the audit table, then delete them.
+     * Managed instances of the deleted rows are detached, the rest of the persistence context is left alone.
+     * @param entityClass      entity to delete
+     * @param auditClass       audit entity of the entity
+     * @param condition        JPQL condition on the entity, which has the alias {@code e}
+     * @param parameters       values of the named parameters in the condition
+     * @param invalidationTime valid until time of the audit rows
+     * @param deletionTime     stored until time of the audit rows
+     * @param <A>              audit entity type
+     * @return number of rows deleted
+     * @throws IllegalStateException if the number of rows audited and deleted differ
+     */
+    public <A extends AuditCore<A>> int auditAndDelete(
+            Class<? extends TemporalCore<?, A>> entityClass, Class<A> auditClass, String condition, Map<String, ?> parameters,
+            Instant invalidationTime, Instant deletionTime) {
+        String insertAudit = insertAuditByEntity.computeIfAbsent(entityClass, entity -> buildInsertAudit(entity, auditClass));
+        String entityName = entityManager.getMetamodel().entity(entityClass).getName();
+
+        entityManager.flush();
+        List<?> managedDeleted = findManaged(entityClass, entityName, condition, parameters);
+        Query auditQuery = entityManager.createQuery(String.format("%s where %s", insertAudit, condition))
+                .setParameter(VALID_UNTIL, invalidationTime)
+                .setParameter(STORED_UNTIL, deletionTime);
+        int audited = setParameters(auditQuery, parameters).executeUpdate();
+        Query deleteQuery = entityManager.createQuery(String.format("delete from %s e where %s", entityName, condition));
+        int deleted = setParameters(deleteQuery, parameters).executeUpdate();
+        managedDeleted.forEach(entityManager::detach);
+
+        if (audited != deleted) {
+            throw new IllegalStateException(String.format("Audited %d but deleted %d %s rows", audited, deleted, entityName));
+        }
+        logger.debug("Audited and deleted {} {} rows", deleted, entityName);
+        return deleted;
+    }
+
+    /**
+     * Find the managed instances of an entity which match the condition, so that they can be detached once their rows
+     * have been deleted. This only queries the database if there are managed instances of the entity.
+     * @param entityClass entity to delete
+     * @param entityName  JPQL name of the entity
+     * @param condition   JPQL condition on the entity, which has the alias {@code e}
+     * @param parameters  values of the named parameters in the condition
+     * @return managed entities which will be deleted
+     */
+    private List<?> findManaged(Class<?> entityClass, String entityName, String condition, Map<String, ?> parameters) {
+        List<Object> managed = new ArrayList<>();
+        SessionImplementor session = entityManager.unwrap(SessionImplementor.class);
+        for (Map.Entry<Object, EntityEntry> entry : session.getPersistenceContextInternal().reentrantSafeEntityEntries()) {
+            if (entityClass.isInstance(entry.getKey())) {
+                managed.add(entry.getKey());
+            }
+        }
+        if (managed.isEmpty()) {
+            return managed;
+        }
+        Query managedQuery = entityManager.createQuery(String.format("select e from %s e where e in :managed and (%s)", entityName, condition))
+                .setParameter("managed", managed);
+        return setParameters(managedQuery, parameters).getResultList();
+    }
+
+    private static Query setParameters(Query query, Map<String, ?> parameters) {
+        parameters.forEach(query::setParameter);
+        return query;
+    }
+
+    /**
+     * Build the JPQL to copy an entity into its audit table, without the condition.
+     * Temporal foreign keys are stored as IDs in audit tables, others are kept as associations.
+     * The ID of the audit row is generated by the insert.
+     * @param entityClass entity to audit
+     * @param auditClass  audit entity of the entity
+     * @return insert statement selecting from the entity with the alias {@code e}
+     */
+    private String buildInsertAudit(Class<?> entityClass, Class<?> auditClass) {
+        Metamodel metamodel = entityManager.getMetamodel();
+        EntityType<?> entity = metamodel.entity(entityClass);
+        EntityType<?> audit = metamodel.entity(auditClass);
+        List<String> auditFields = new ArrayList<>();
+        List<String> selectedValues = new ArrayList<>();
+        for (SingularAttribute<?, ?> auditAttribute : audit.getSingularAttributes()) {
+            if (auditAttribute.isId()) {
+                continue;
+            }
+            String name = auditAttribute.getName();
+            auditFields.add(name);
+            if (VALID_UNTIL.equals(name) || STORED_UNTIL.equals(name)) {
+                selectedValues.add(":" + name);
+                continue;
+            }
+            SingularAttribute<?, ?> attribute = entity.getSingularAttribute(name);
+            if (attribute.isAssociation() && !auditAttribute.isAssociation()) {
+                EntityType<?> referenced = (EntityType<?>) attribute.getType();
+                String referencedId = referenced.getId(referenced.getIdType().getJavaType()).getName();
+                selectedValues.add(String.format("e.%s.%s", name, referencedId));
+            } else {
+                selectedValues.add("e." + name);
+            }
+        }
+        return String.format("insert into %s (%s) select %s from %s e",
+                audit.getName(), String.join(", ", auditFields), String.join(", ", selectedValues), entity.getName());
+    }
+}
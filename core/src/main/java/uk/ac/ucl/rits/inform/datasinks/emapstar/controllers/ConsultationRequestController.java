@@ -21,7 +21,6 @@ import uk.ac.ucl.rits.inform.interchange.ConsultRequest;
 
 import javax.annotation.Resource;
 import java.time.Instant;
-import java.util.List;
 
 /**
  * Functionality to create consultation requests for patients.
@@ -202,21 +201,6 @@ public class ConsultationRequestController {
             requestState.assignIfDifferent(msg.getStatusChangeDatetime(), request.getStatusChangeDatetime(), request::setStatusChangeDatetime);
         }
     }
-
-    /**
-     * Deletes consult requests that are older than the current message.
-     * @param visit             Hospital Visit Entity
-     * @param invalidationTime  Lab Battery
-     * @param deletionTime      Lab Sample entity
-     */
-    public void deleteConsultRequestsForVisit(HospitalVisit visit, Instant invalidationTime, Instant deletionTime) {
-        List<ConsultationRequest> consultationRequests = consultationRequestRepo.findAllByHospitalVisitId(visit);
-        for (var cr : consultationRequests) {
-            ConsultationRequestAudit auditEntity = cr.createAuditEntity(invalidationTime, deletionTime);
-            consultationRequestAuditRepo.save(auditEntity);
-            consultationRequestRepo.delete(cr);
-        }
-    }
 }
 
 /**
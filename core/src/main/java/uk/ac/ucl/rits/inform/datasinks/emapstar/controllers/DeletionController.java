@@ -1,10 +1,26 @@
 package uk.ac.ucl.rits.inform.datasinks.emapstar.controllers;
 
 import org.springframework.stereotype.Component;
+import uk.ac.ucl.rits.inform.datasinks.emapstar.repos.visit_observations.VisitObservationRepository;
+import uk.ac.ucl.rits.inform.informdb.consults.ConsultationRequest;
+import uk.ac.ucl.rits.inform.informdb.consults.ConsultationRequestAudit;
+import uk.ac.ucl.rits.inform.informdb.forms.Form;
+import uk.ac.ucl.rits.inform.informdb.forms.FormAnswer;
+import uk.ac.ucl.rits.inform.informdb.forms.FormAnswerAudit;
+import uk.ac.ucl.rits.inform.informdb.forms.FormAudit;
 import uk.ac.ucl.rits.inform.informdb.identity.HospitalVisit;
+import uk.ac.ucl.rits.inform.informdb.identity.HospitalVisitAudit;
 import uk.ac.ucl.rits.inform.informdb.identity.Mrn;
+import uk.ac.ucl.rits.inform.informdb.labs.LabOrder;
+import uk.ac.ucl.rits.inform.informdb.labs.LabOrderAudit;
+import uk.ac.ucl.rits.inform.informdb.labs.LabResult;
+import uk.ac.ucl.rits.inform.informdb.labs.LabResultAudit;
+import uk.ac.ucl.rits.inform.informdb.movement.PlannedMovement;
+import uk.ac.ucl.rits.inform.informdb.movement.PlannedMovementAudit;
 
 import java.time.Instant;
+import java.util.Collection;
+import java.util.Map;
 
 /**
  * @author Jeremy Stein
@@ -13,31 +29,27 @@ import java.time.Instant;
  * This was written with performing unfiltered, cascading deletes in mind
  * eg. delete an entire person's record.
  * It could be adapted to be more selective (but still be cascading).
+ * <p>
+ * Each table is audited and deleted with one statement for all the visits (see {@link BulkDeleter}),
+ * so tables must be deleted from before the tables they depend on.
  */
 @Component
 public class DeletionController {
-    private final PendingAdtController pendingAdtController;
-    private final LabController labController;
-    private final ConsultationRequestController consultationRequestController;
-    private final VisitController hospitalVisitController;
-    private final FormController formController;
+    private static final String VISITS_CONDITION = "e.hospitalVisitId in :visits";
+
+    private final BulkDeleter bulkDeleter;
+    private final VisitObservationRepository visitObservationRepo;
+    private final IdentityCache identityCache;
 
     /**
-     * Deletion controller needs access to other multiple controllers which each have their own delete methods.
-     * @param pendingAdtController          controller for pending adt tables
-     * @param labController                 controller for Lab tables
-     * @param consultationRequestController controller for consultation request tables
-     * @param hospitalVisitController       controller for visit tables
-     * @param formController                controller for form tables
+     * @param bulkDeleter          audits and deletes rows of each table
+     * @param visitObservationRepo repository for visit observations, which are deleted without auditing
+     * @param identityCache        cache of visits by encounter, which may include the deleted visits
      */
-    public DeletionController(
-            PendingAdtController pendingAdtController, LabController labController,
-            ConsultationRequestController consultationRequestController, VisitController hospitalVisitController, FormController formController) {
-        this.pendingAdtController = pendingAdtController;
-        this.labController = labController;
-        this.consultationRequestController = consultationRequestController;
-        this.hospitalVisitController = hospitalVisitController;
-        this.formController = formController;
+    public DeletionController(BulkDeleter bulkDeleter, VisitObservationRepository visitObservationRepo, IdentityCache identityCache) {
+        this.bulkDeleter = bulkDeleter;
+        this.visitObservationRepo = visitObservationRepo;
+        this.identityCache = identityCache;
     }
 
     /**
@@ -46,14 +58,30 @@ public class DeletionController {
      * @param invalidationTime Time of the delete information message
      * @param deletionTime     time that emap-core started processing the message.
      */
-    public void deleteVisitsAndDependentEntities(Iterable<HospitalVisit> visits, Instant invalidationTime, Instant deletionTime) {
-        for (HospitalVisit visit : visits) {
-            pendingAdtController.deletePlannedMovements(visit, invalidationTime, deletionTime);
-            labController.deleteLabOrdersForVisit(visit, invalidationTime, deletionTime);
-            consultationRequestController.deleteConsultRequestsForVisit(visit, invalidationTime, deletionTime);
-            formController.deleteFormsForVisit(visit, invalidationTime, deletionTime);
-            hospitalVisitController.deleteVisit(visit, invalidationTime, deletionTime);
+    public void deleteVisitsAndDependentEntities(Collection<HospitalVisit> visits, Instant invalidationTime, Instant deletionTime) {
+        if (visits.isEmpty()) {
+            return;
         }
+        identityCache.identitiesChanged();
+        Map<String, Collection<HospitalVisit>> visitParameter = Map.of("visits", visits);
+        bulkDeleter.auditAndDelete(
+                PlannedMovement.class, PlannedMovementAudit.class, VISITS_CONDITION, visitParameter, invalidationTime, deletionTime);
+        bulkDeleter.auditAndDelete(
+                LabResult.class, LabResultAudit.class, "e.labOrderId in (select o from LabOrder o where o.hospitalVisitId in :visits)",
+                visitParameter, invalidationTime, deletionTime);
+        bulkDeleter.auditAndDelete(
+                LabOrder.class, LabOrderAudit.class, VISITS_CONDITION, visitParameter, invalidationTime, deletionTime);
+        bulkDeleter.auditAndDelete(
+                ConsultationRequest.class, ConsultationRequestAudit.class, VISITS_CONDITION, visitParameter, invalidationTime, deletionTime);
+        bulkDeleter.auditAndDelete(
+                FormAnswer.class, FormAnswerAudit.class, "e.formId in (select f from Form f where f.hospitalVisitId in :visits)",
+                visitParameter, invalidationTime, deletionTime);
+        bulkDeleter.auditAndDelete(
+                Form.class, FormAudit.class, VISITS_CONDITION, visitParameter, invalidationTime, deletionTime);
+        // bulk deletes don't cascade, so remove the observations that deleting each visit would have removed (without auditing)
+        visitObservationRepo.deleteAllInBatchByHospitalVisitIdIn(visits);
+        bulkDeleter.auditAndDelete(
+                HospitalVisit.class, HospitalVisitAudit.class, "e in :visits", visitParameter, invalidationTime, deletionTime);
     }
 
     /**
@@ -63,6 +91,13 @@ public class DeletionController {
      * @param deletionTime     time that emap-core started processing the message.
      */
     public void deleteMrnDependentEntities(Mrn mrn, Instant invalidationTime, Instant deletionTime) {
-        formController.deleteFormsForMrn(mrn, invalidationTime, deletionTime);
+        Map<String, Object> mrnParameters = Map.of("mrn", mrn, "invalidationTime", invalidationTime);
+        bulkDeleter.auditAndDelete(
+                FormAnswer.class, FormAnswerAudit.class,
+                "e.formId in (select f from Form f where f.mrnId = :mrn and f.validFrom < :invalidationTime)",
+                mrnParameters, invalidationTime, deletionTime);
+        bulkDeleter.auditAndDelete(
+                Form.class, FormAudit.class, "e.mrnId = :mrn and e.validFrom < :invalidationTime",
+                mrnParameters, invalidationTime, deletionTime);
     }
 }
@@ -5,7 +5,6 @@ import org.springframework.transaction.annotation.Transactional;
 import uk.ac.ucl.rits.inform.datasinks.emapstar.RowState;
 import uk.ac.ucl.rits.inform.datasinks.emapstar.repos.forms.FormAnswerAuditRepository;
 import uk.ac.ucl.rits.inform.datasinks.emapstar.repos.forms.FormAnswerRepository;
-import uk.ac.ucl.rits.inform.datasinks.emapstar.repos.forms.FormAuditRepository;
 import uk.ac.ucl.rits.inform.datasinks.emapstar.repos.forms.FormDefinitionAuditRepository;
 import uk.ac.ucl.rits.inform.datasinks.emapstar.repos.forms.FormDefinitionRepository;
 import uk.ac.ucl.rits.inform.datasinks.emapstar.repos.forms.FormQuestionAuditRepository;
@@ -20,14 +19,12 @@ import uk.ac.ucl.rits.inform.informdb.forms.FormDefinitionAudit;
 import uk.ac.ucl.rits.inform.informdb.forms.FormQuestion;
 import uk.ac.ucl.rits.inform.informdb.forms.FormQuestionAudit;
 import uk.ac.ucl.rits.inform.informdb.identity.HospitalVisit;
-import uk.ac.ucl.rits.inform.informdb.identity.Mrn;
 import uk.ac.ucl.rits.inform.interchange.form.FormAnswerMsg;
 import uk.ac.ucl.rits.inform.interchange.form.FormMetadataMsg;
 import uk.ac.ucl.rits.inform.interchange.form.FormMsg;
 import uk.ac.ucl.rits.inform.interchange.form.FormQuestionMetadataMsg;
 
 import java.time.Instant;
-import java.util.List;
 import java.util.Map;
 import java.util.function.Function;
 import java.util.stream.Collectors;
@@ -43,64 +40,25 @@ import java.util.stream.Collectors;
 @Transactional
 public class FormController {
     private final FormRepository formRepository;
-    private final FormAuditRepository formAuditRepository;
     private final FormAnswerRepository formAnswerRepository;
     private final FormAnswerAuditRepository formAnswerAuditRepository;
     private final FormDefinitionController formDefinitionController;
 
     /**
      * @param formRepository            to store the instance of a form
-     * @param formAuditRepository       to store deletions of forms
      * @param formAnswerRepository      to store the answers from a form
      * @param formAnswerAuditRepository to audit changes to form answers
      * @param formDefinitionController  to process form and question definitions
      */
     public FormController(
-            FormRepository formRepository,
-            FormAuditRepository formAuditRepository, FormAnswerRepository formAnswerRepository,
+            FormRepository formRepository, FormAnswerRepository formAnswerRepository,
             FormAnswerAuditRepository formAnswerAuditRepository, FormDefinitionController formDefinitionController) {
         this.formRepository = formRepository;
-        this.formAuditRepository = formAuditRepository;
         this.formAnswerRepository = formAnswerRepository;
         this.formAnswerAuditRepository = formAnswerAuditRepository;
         this.formDefinitionController = formDefinitionController;
     }
 
-    /**
-     * Delete all form data for a given hospital visit.
-     * @param visit            hospital visit to query on
-     * @param invalidationTime Time of the delete information message
-     * @param deletionTime     time that emap-core started processing the message.
-     */
-    public void deleteFormsForVisit(HospitalVisit visit, Instant invalidationTime, Instant deletionTime) {
-        List<Form> allFormsForVisit = formRepository.findAllByHospitalVisitId(visit);
-        deleteForms(allFormsForVisit, invalidationTime, deletionTime);
-    }
-
-    /**
-     * Delete all forms and form answers directly attached to an MRN.
-     * @param mrn              mrn to delete from
-     * @param invalidationTime Time of the delete information message
-     * @param deletionTime     time that emap-core started processing the message.
-     */
-    public void deleteFormsForMrn(Mrn mrn, Instant invalidationTime, Instant deletionTime) {
-        List<Form> allFormsForMrn = formRepository.findAllByMrnIdAndValidFromBefore(mrn, invalidationTime);
-        deleteForms(allFormsForMrn, invalidationTime, deletionTime);
-    }
-
-
-    private void deleteForms(Iterable<Form> allFormsForVisit, Instant invalidationTime, Instant deletionTime) {
-        for (Form form : allFormsForVisit) {
-            List<FormAnswer> formAnswers = form.getFormAnswers();
-            for (FormAnswer ans : formAnswers) {
-                formAnswerAuditRepository.save(ans.createAuditEntity(invalidationTime, deletionTime));
-            }
-            formAnswerRepository.deleteAll(formAnswers);
-            formAuditRepository.save(form.createAuditEntity(invalidationTime, deletionTime));
-        }
-        formRepository.deleteAll(allFormsForVisit);
-    }
-
     /**
      * A new (instance of a) form has been completed.
      * @param formMsg       the form message, containing all answers
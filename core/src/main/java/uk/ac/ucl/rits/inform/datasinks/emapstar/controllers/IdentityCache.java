@@ -0,0 +1,303 @@
+package uk.ac.ucl.rits.inform.datasinks.emapstar.controllers;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.github.benmanes.caffeine.cache.stats.ConcurrentStatsCounter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import uk.ac.ucl.rits.inform.informdb.identity.HospitalVisit;
+import uk.ac.ucl.rits.inform.informdb.identity.Mrn;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of the live MRN for each MRN string or NHS number, and the hospital visit for each encounter, so that the
+ * messages for a patient don't each need to query for them.
+ * <p>
+ * Identities found or created in a transaction are only used by that transaction until it commits, then they are
+ * added to caches shared by all transactions. If a transaction changes identities (e.g. merging MRNs, moving a visit
+ * or deleting a person's visits), it stops using the shared caches and they are cleared once it has finished.
+ * Only IDs are cached, the entities are references which are loaded if they're used.
+ */
+@Component
+public class IdentityCache {
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final boolean enabled;
+    private final Cache<String, CachedMrn> mrnsByMrnString;
+    private final Cache<String, CachedMrn> mrnsByNhsNumber;
+    private final Cache<String, Long> visitIdsByEncounter;
+    private final ConcurrentStatsCounter mrnStats = new ConcurrentStatsCounter();
+    private final ConcurrentStatsCounter visitStats = new ConcurrentStatsCounter();
+    /**
+     * Incremented whenever the shared caches are cleared, so that identities found before then aren't added to them.
+     */
+    private final AtomicLong generation = new AtomicLong();
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    /**
+     * @param enabled     if false, always query the database
+     * @param maximumSize maximum number of entries in each of the shared caches
+     */
+    IdentityCache(
+            @Value("${core.identity_cache.enabled:true}") boolean enabled,
+            @Value("${core.identity_cache.maximum_size:100000}") long maximumSize) {
+        this.enabled = enabled;
+        mrnsByMrnString = Caffeine.newBuilder().maximumSize(maximumSize).build();
+        mrnsByNhsNumber = Caffeine.newBuilder().maximumSize(maximumSize).build();
+        visitIdsByEncounter = Caffeine.newBuilder().maximumSize(maximumSize).build();
+    }
+
+    /**
+     * Find the live MRN for an MRN string, or for an NHS number if the MRN string is null, in the same way as
+     * {@link uk.ac.ucl.rits.inform.datasinks.emapstar.repos.MrnRepository#findByMrnOrNhsNumber}.
+     * @param mrnString      MRN string
+     * @param nhsNumber      NHS number
+     * @param updatesAllowed true if the message can update the identifiers of an existing MRN, in which case an MRN with
+     *                       a different NHS number isn't returned, so that it can be updated
+     * @return the live MRN (which may not be loaded yet), if it's cached
+     */
+    public Optional<Mrn> findLiveMrn(String mrnString, String nhsNumber, boolean updatesAllowed) {
+        TransactionIdentities identities = currentIdentities();
+        if (identities == null) {
+            return Optional.empty();
+        }
+        CachedMrn cached = null;
+        if (mrnString != null) {
+            cached = identities.find(identities.mrnsByMrnString, mrnsByMrnString, mrnString);
+        } else if (nhsNumber != null) {
+            cached = identities.find(identities.mrnsByNhsNumber, mrnsByNhsNumber, nhsNumber);
+        }
+        if (cached == null || (updatesAllowed && nhsNumber != null && !nhsNumber.equals(cached.nhsNumber()))) {
+            mrnStats.recordMisses(1);
+            return Optional.empty();
+        }
+        mrnStats.recordHits(1);
+        return Optional.of(entityManager.getReference(Mrn.class, cached.liveMrnId()));
+    }
+
+    /**
+     * Find a hospital visit by its encounter.
+     * @param encounter encounter
+     * @return the hospital visit (which may not be loaded yet), if it's cached
+     */
+    public Optional<HospitalVisit> findVisit(String encounter) {
+        TransactionIdentities identities = currentIdentities();
+        if (identities == null) {
+            return Optional.empty();
+        }
+        Long visitId = identities.find(identities.visitIdsByEncounter, visitIdsByEncounter, encounter);
+        if (visitId == null) {
+            visitStats.recordMisses(1);
+            return Optional.empty();
+        }
+        visitStats.recordHits(1);
+        return Optional.of(entityManager.getReference(HospitalVisit.class, visitId));
+    }
+
+    /**
+     * Add an MRN which was found or created using the given identifiers.
+     * @param mrnString MRN string used to find the MRN
+     * @param nhsNumber NHS number used to find the MRN
+     * @param mrn       MRN that was found, with any updates to its identifiers made
+     * @param liveMrn   live MRN of the MRN
+     */
+    public void putMrn(String mrnString, String nhsNumber, Mrn mrn, Mrn liveMrn) {
+        TransactionIdentities identities = currentIdentities();
+        if (identities == null) {
+            return;
+        }
+        CachedMrn cached = new CachedMrn(mrn.getNhsNumber(), liveMrn.getMrnId());
+        if (mrnString != null) {
+            // MRNs found by their NHS number and not updated with the MRN string can't be found by it in the database
+            if (mrnString.equals(mrn.getMrn())) {
+                identities.mrnsByMrnString.put(mrnString, cached);
+            }
+        } else if (nhsNumber != null) {
+            identities.mrnsByNhsNumber.put(nhsNumber, cached);
+        }
+    }
+
+    /**
+     * Add a hospital visit which has been found or saved.
+     * @param visit hospital visit
+     */
+    public void putVisit(HospitalVisit visit) {
+        TransactionIdentities identities = currentIdentities();
+        if (identities != null && visit.getHospitalVisitId() != null) {
+            identities.visitIdsByEncounter.put(visit.getEncounter(), visit.getHospitalVisitId());
+        }
+    }
+
+    /**
+     * Record that the current transaction has changed which MRN or visit identifiers refer to.
+     * The shared caches aren't used for the rest of the transaction, and are cleared when it finishes.
+     */
+    public void identitiesChanged() {
+        TransactionIdentities identities = currentIdentities();
+        if (identities == null) {
+            clearSharedCaches();
+            return;
+        }
+        identities.clear();
+        identities.changed = true;
+    }
+
+    /**
+     * Clear all cached identities, including those only used by the current transaction.
+     * Used when changes have been rolled back to a savepoint, which doesn't finish the transaction.
+     */
+    public void clear() {
+        TransactionIdentities identities = currentTransactionIdentities();
+        if (identities != null) {
+            identities.clear();
+        }
+        clearSharedCaches();
+    }
+
+    /**
+     * @return hits and misses when finding MRNs
+     */
+    public CacheStats getMrnStats() {
+        return mrnStats.snapshot();
+    }
+
+    /**
+     * @return hits and misses when finding hospital visits
+     */
+    public CacheStats getVisitStats() {
+        return visitStats.snapshot();
+    }
+
+    /**
+     * Log the hits and misses since startup.
+     */
+    @Scheduled(fixedRateString = "${core.identity_cache.stats_log_interval_ms:600000}")
+    public void logStats() {
+        if (!enabled) {
+            return;
+        }
+        CacheStats mrn = getMrnStats();
+        CacheStats visit = getVisitStats();
+        logger.info("Identity cache: MRN {} hits, {} misses ({} cached); visit {} hits, {} misses ({} cached)",
+                mrn.hitCount(), mrn.missCount(), mrnsByMrnString.estimatedSize() + mrnsByNhsNumber.estimatedSize(),
+                visit.hitCount(), visit.missCount(), visitIdsByEncounter.estimatedSize());
+    }
+
+    private void clearSharedCaches() {
+        generation.incrementAndGet();
+        mrnsByMrnString.invalidateAll();
+        mrnsByNhsNumber.invalidateAll();
+        visitIdsByEncounter.invalidateAll();
+    }
+
+    private TransactionIdentities currentTransactionIdentities() {
+        return (TransactionIdentities) TransactionSynchronizationManager.getResource(this);
+    }
+
+    /**
+     * @return identities for the current transaction, creating them if this is the transaction's first use of the cache,
+     * or null if the cache is disabled or there's no transaction
+     */
+    private TransactionIdentities currentIdentities() {
+        if (!enabled || !TransactionSynchronizationManager.isSynchronizationActive()) {
+            return null;
+        }
+        TransactionIdentities identities = currentTransactionIdentities();
+        if (identities == null) {
+            TransactionIdentities newIdentities = new TransactionIdentities(generation.get());
+            TransactionSynchronizationManager.bindResource(this, newIdentities);
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    TransactionSynchronizationManager.unbindResourceIfPossible(IdentityCache.this);
+                    finish(newIdentities, status == STATUS_COMMITTED);
+                }
+            });
+            identities = newIdentities;
+        }
+        return identities;
+    }
+
+    /**
+     * Share the identities from a committed transaction, unless it changed identities or the shared caches
+     * have been cleared since it started using them.
+     * @param identities identities from the transaction
+     * @param committed  true if the transaction committed
+     */
+    private void finish(TransactionIdentities identities, boolean committed) {
+        if (identities.changed) {
+            clearSharedCaches();
+            logger.trace("Identity cache cleared after identities were changed");
+            return;
+        }
+        if (!committed || generation.get() != identities.startGeneration) {
+            return;
+        }
+        mrnsByMrnString.putAll(identities.mrnsByMrnString);
+        mrnsByNhsNumber.putAll(identities.mrnsByNhsNumber);
+        visitIdsByEncounter.putAll(identities.visitIdsByEncounter);
+        if (generation.get() != identities.startGeneration) {
+            // cleared while adding, so some of these could be out of date
+            clearSharedCaches();
+        }
+    }
+
+    /**
+     * @param nhsNumber NHS number of the MRN that was found
+     * @param liveMrnId ID of its live MRN
+     */
+    private record CachedMrn(String nhsNumber, long liveMrnId) {}
+
+    /**
+     * Identities found or created by one transaction.
+     */
+    private static final class TransactionIdentities {
+        private final long startGeneration;
+        private final Map<String, CachedMrn> mrnsByMrnString = new HashMap<>();
+        private final Map<String, CachedMrn> mrnsByNhsNumber = new HashMap<>();
+        private final Map<String, Long> visitIdsByEncounter = new HashMap<>();
+        /**
+         * True if the transaction has changed identities, so the shared caches may be out of date for it.
+         */
+        private boolean changed;
+
+        TransactionIdentities(long startGeneration) {
+            this.startGeneration = startGeneration;
+        }
+
+        /**
+         * @param local  entries from this transaction
+         * @param shared entries shared by all transactions
+         * @param key    key to find
+         * @param <V>    value type
+         * @return the entry from this transaction, or the shared entry if identities haven't been changed, or null
+         */
+        <V> V find(Map<String, V> local, Cache<String, V> shared, String key) {
+            V value = local.get(key);
+            if (value == null && !changed) {
+                value = shared.getIfPresent(key);
+            }
+            return value;
+        }
+
+        void clear() {
+            mrnsByMrnString.clear();
+            mrnsByNhsNumber.clear();
+            visitIdsByEncounter.clear();
+        }
+    }
+}
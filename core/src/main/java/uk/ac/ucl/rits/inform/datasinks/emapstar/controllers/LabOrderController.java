@@ -25,7 +25,6 @@ import uk.ac.ucl.rits.inform.informdb.labs.LabSampleAudit;
 import uk.ac.ucl.rits.inform.interchange.lab.LabOrderMsg;
 
 import java.time.Instant;
-import java.util.List;
 import java.util.Optional;
 
 /**
@@ -282,25 +281,4 @@ public class LabOrderController {
         logger.debug("Deleting LabOrder {}", labOrder);
         labOrderRepo.delete(labOrder);
     }
-
-    /**
-     * Returns all lab orders associated with a specific hospital visit.
-     * @param visit                 Hospital Visit Entity
-     * @return List of Lab Orders
-     */
-    public List<LabOrder> getLabOrdersForVisit(HospitalVisit visit) {
-        return labOrderRepo.findAllByHospitalVisitId(visit);
-    }
-
-    /**
-     * Deletes a single lab order.
-     * @param labOrder          Lab Order
-     * @param invalidationTime  Lab Battery
-     * @param deletionTime      Lab Sample entity
-     */
-    public void deleteLabOrder(LabOrder labOrder, Instant invalidationTime, Instant deletionTime) {
-        LabOrderAudit labOrderAudit = labOrder.createAuditEntity(invalidationTime, deletionTime);
-        labOrderAuditRepo.save(labOrderAudit);
-        labOrderRepo.delete(labOrder);
-    }
 }
@@ -24,7 +24,6 @@ import uk.ac.ucl.rits.inform.interchange.lab.LabIsolateMsg;
 import uk.ac.ucl.rits.inform.interchange.lab.LabResultMsg;
 
 import java.time.Instant;
-import java.util.List;
 
 /**
  * Controller for LabResult specific information.
@@ -212,13 +211,4 @@ class LabResultController {
         return new RowState<>(sensitivity, validFrom, storedFrom, true);
     }
 
-    public void deleteLabResultsForLabOrder(LabOrder labOrder, Instant invalidationTime, Instant deletionTime) {
-        List<LabResult> labResults = labResultRepo.findAllByLabOrderId(labOrder);
-        for (var lr : labResults) {
-            LabResultAudit resultAudit = lr.createAuditEntity(invalidationTime, deletionTime);
-            labResultAuditRepo.save(resultAudit);
-            labResultRepo.delete(lr);
-        }
-    }
-
 }
@@ -0,0 +1,280 @@
+package uk.ac.ucl.rits.inform.datasinks.emapstar.controllers;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import uk.ac.ucl.rits.inform.datasinks.emapstar.repos.LocationVisitInterval;
+import uk.ac.ucl.rits.inform.datasinks.emapstar.repos.LocationVisitRepository;
+import uk.ac.ucl.rits.inform.informdb.movement.LocationVisit;
+
+import javax.annotation.PostConstruct;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * In-memory index of the times that each location was occupied, so that the location visit for waveform data
+ * can be found without a query per message.
+ * <p>
+ * Each location's visits are loaded the first time it's looked up, or at startup for locations occupied in the last
+ * {@code core.waveform.location_visit_index.preload_days}, and kept sorted by admission time.
+ * When {@link PatientLocationController} changes the visits at a location, the location is dropped from the index
+ * once the transaction has finished (committed or not) and is reloaded the next time it's looked up.
+ * Lookups for a location that has been changed by the current transaction go to the database.
+ */
+@Component
+public class LocationVisitIndex {
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final LocationVisitRepository locationVisitRepo;
+    private final boolean enabled;
+    private final int preloadDays;
+    private final Map<String, LocationIntervals> intervalsByLocation = new ConcurrentHashMap<>();
+    /**
+     * Incremented whenever locations are dropped, so that a location which changed while it was being loaded isn't kept.
+     */
+    private final AtomicLong changeCount = new AtomicLong();
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    /**
+     * @param locationVisitRepo location visit repo
+     * @param enabled           if false, always query the database
+     * @param preloadDays       at startup, load visits to every location which have been open in this many days
+     */
+    LocationVisitIndex(
+            LocationVisitRepository locationVisitRepo,
+            @Value("${core.waveform.location_visit_index.enabled:true}") boolean enabled,
+            @Value("${core.waveform.location_visit_index.preload_days:2}") int preloadDays) {
+        this.locationVisitRepo = locationVisitRepo;
+        this.enabled = enabled;
+        this.preloadDays = preloadDays;
+    }
+
+    /**
+     * Load recent visits for every location, so that the first waveform messages after startup don't each need a query.
+     * Visits that ended before the preload period are loaded on demand if data for that time arrives.
+     */
+    @PostConstruct
+    public void preload() {
+        if (!enabled || preloadDays <= 0) {
+            return;
+        }
+        Instant loadedFrom = Instant.now().minus(preloadDays, ChronoUnit.DAYS);
+        List<LocationVisitInterval> visits = locationVisitRepo.findAllIntervalsDischargedFrom(loadedFrom);
+        Map<String, List<LocationVisitInterval>> visitsByLocation = visits.stream()
+                .collect(Collectors.groupingBy(LocationVisitInterval::getLocationString));
+        visitsByLocation.forEach((location, locationVisits) ->
+                intervalsByLocation.put(location, new LocationIntervals(locationVisits, loadedFrom)));
+        logger.info("Location visit index preloaded with {} visits at {} locations", visits.size(), visitsByLocation.size());
+    }
+
+    /**
+     * Find a current or closed location visit by any time during that visit and its location.
+     * If more than one visit to the location includes the time, the one with the latest admission is used.
+     * @param locationString location string
+     * @param time           any time when the patient was at that location
+     * @return the location visit (which may not be loaded yet), if it exists
+     */
+    public Optional<LocationVisit> findLocationVisit(String locationString, Instant time) {
+        if (locationString == null) {
+            return Optional.empty();
+        }
+        if (!enabled || changedInCurrentTransaction(locationString)) {
+            return locationVisitRepo.findLocationVisitByLocationAndTime(time, locationString);
+        }
+        LocationIntervals intervals = intervalsByLocation.get(locationString);
+        if (intervals == null) {
+            intervals = load(locationString);
+        }
+        if (!intervals.covers(time)) {
+            return locationVisitRepo.findLocationVisitByLocationAndTime(time, locationString);
+        }
+        Long locationVisitId = intervals.find(time);
+        if (locationVisitId == null) {
+            return Optional.empty();
+        }
+        return Optional.of(entityManager.getReference(LocationVisit.class, locationVisitId));
+    }
+
+    /**
+     * Load every visit for a location, keeping them unless the location changes while loading.
+     * @param locationString location string
+     * @return the location's visits
+     */
+    private LocationIntervals load(String locationString) {
+        long changesBeforeLoad = changeCount.get();
+        LocationIntervals intervals = new LocationIntervals(locationVisitRepo.findAllIntervalsByLocationString(locationString), null);
+        intervalsByLocation.putIfAbsent(locationString, intervals);
+        if (changeCount.get() != changesBeforeLoad) {
+            intervalsByLocation.remove(locationString, intervals);
+        }
+        return intervals;
+    }
+
+    /**
+     * Record that visits to a location have been created, changed or deleted.
+     * The location is dropped from the index when the current transaction finishes.
+     * @param locationString location string
+     */
+    void locationChanged(String locationString) {
+        if (!enabled) {
+            return;
+        }
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            drop(List.of(locationString));
+            return;
+        }
+        Set<String> changedLocations = changedLocationsInCurrentTransaction();
+        if (changedLocations == null) {
+            Set<String> newChangedLocations = new HashSet<>();
+            TransactionSynchronizationManager.bindResource(this, newChangedLocations);
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    TransactionSynchronizationManager.unbindResourceIfPossible(LocationVisitIndex.this);
+                    drop(newChangedLocations);
+                }
+            });
+            changedLocations = newChangedLocations;
+        }
+        changedLocations.add(locationString);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Set<String> changedLocationsInCurrentTransaction() {
+        return (Set<String>) TransactionSynchronizationManager.getResource(this);
+    }
+
+    private boolean changedInCurrentTransaction(String locationString) {
+        Set<String> changedLocations = changedLocationsInCurrentTransaction();
+        return changedLocations != null && changedLocations.contains(locationString);
+    }
+
+    private void drop(Collection<String> locationStrings) {
+        changeCount.incrementAndGet();
+        locationStrings.forEach(intervalsByLocation::remove);
+        logger.trace("Dropped locations {} from the location visit index", locationStrings);
+    }
+
+    /**
+     * Visits to one location, sorted by admission time. Open visits are kept separately so that a visit that was
+     * never closed doesn't make every lookup after it check all the closed visits in between.
+     */
+    private static final class LocationIntervals {
+        /**
+         * Time from which all visits are loaded, or null if all visits are loaded.
+         */
+        private final Instant loadedFrom;
+        private final long[] closedIds;
+        private final Instant[] closedAdmissions;
+        private final Instant[] closedDischarges;
+        /**
+         * Latest discharge of the closed visits up to and including each index.
+         */
+        private final Instant[] latestClosedDischarges;
+        private final long[] openIds;
+        private final Instant[] openAdmissions;
+
+        LocationIntervals(List<LocationVisitInterval> visits, Instant loadedFrom) {
+            this.loadedFrom = loadedFrom;
+            List<LocationVisitInterval> closed = new ArrayList<>();
+            List<LocationVisitInterval> open = new ArrayList<>();
+            for (LocationVisitInterval visit : visits) {
+                if (visit.getDischargeDatetime() == null) {
+                    open.add(visit);
+                } else {
+                    closed.add(visit);
+                }
+            }
+            closed.sort(Comparator.comparing(LocationVisitInterval::getAdmissionDatetime));
+            open.sort(Comparator.comparing(LocationVisitInterval::getAdmissionDatetime));
+
+            closedIds = new long[closed.size()];
+            closedAdmissions = new Instant[closed.size()];
+            closedDischarges = new Instant[closed.size()];
+            latestClosedDischarges = new Instant[closed.size()];
+            Instant latestDischarge = Instant.MIN;
+            for (int i = 0; i < closed.size(); i++) {
+                LocationVisitInterval visit = closed.get(i);
+                closedIds[i] = visit.getLocationVisitId();
+                closedAdmissions[i] = visit.getAdmissionDatetime();
+                closedDischarges[i] = visit.getDischargeDatetime();
+                if (closedDischarges[i].isAfter(latestDischarge)) {
+                    latestDischarge = closedDischarges[i];
+                }
+                latestClosedDischarges[i] = latestDischarge;
+            }
+            openIds = new long[open.size()];
+            openAdmissions = new Instant[open.size()];
+            for (int i = 0; i < open.size(); i++) {
+                openIds[i] = open.get(i).getLocationVisitId();
+                openAdmissions[i] = open.get(i).getAdmissionDatetime();
+            }
+        }
+
+        /**
+         * @param time time to look up
+         * @return true if every visit which includes the time has been loaded
+         */
+        boolean covers(Instant time) {
+            return loadedFrom == null || !time.isBefore(loadedFrom);
+        }
+
+        /**
+         * @param time time to look up
+         * @return ID of the visit with the latest admission which includes the time, or null if there isn't one
+         */
+        Long find(Instant time) {
+            int closedIndex = countAdmittedBy(closedAdmissions, time) - 1;
+            // stop once no earlier visit could have been discharged after the time
+            while (closedIndex >= 0 && !latestClosedDischarges[closedIndex].isBefore(time)
+                    && time.isAfter(closedDischarges[closedIndex])) {
+                closedIndex--;
+            }
+            if (closedIndex >= 0 && latestClosedDischarges[closedIndex].isBefore(time)) {
+                closedIndex = -1;
+            }
+            int openIndex = countAdmittedBy(openAdmissions, time) - 1;
+            if (openIndex >= 0 && (closedIndex < 0 || !openAdmissions[openIndex].isBefore(closedAdmissions[closedIndex]))) {
+                return openIds[openIndex];
+            }
+            return closedIndex >= 0 ? closedIds[closedIndex] : null;
+        }
+
+        /**
+         * @param admissions admission times in ascending order
+         * @param time       time to look up
+         * @return number of admissions at or before the time
+         */
+        private static int countAdmittedBy(Instant[] admissions, Instant time) {
+            int low = 0;
+            int high = admissions.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (admissions[mid].isAfter(time)) {
+                    high = mid;
+                } else {
+                    low = mid + 1;
+                }
+            }
+            return low;
+        }
+    }
+}
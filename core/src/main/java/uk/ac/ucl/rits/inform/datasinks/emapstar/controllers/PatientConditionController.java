@@ -31,7 +31,7 @@ import uk.ac.ucl.rits.inform.interchange.ConditionAction;
 
 import javax.annotation.Resource;
 import java.time.Instant;
-import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 
 
@@ -45,12 +45,19 @@ import java.util.Optional;
  */
 @Component
 public class PatientConditionController {
+    /**
+     * Infections of a patient from HL7, which have no internal ID, and which are valid from before a time.
+     */
+    private static final String HL7_INFECTIONS_CONDITION = "e.mrnId = :mrn and e.internalId is null and e.validFrom <= :deleteUntil"
+            + " and e.conditionTypeId in (select t from ConditionType t where t.dataType = :dataType)";
+
     private final Logger logger = LoggerFactory.getLogger(getClass());
     private final PatientConditionRepository patientConditionRepo;
     private final PatientConditionAuditRepository patientConditionAuditRepo;
     private final ConditionVisitLinkRepository conditionVisitLinkRepository;
     private final AllergenReactionRepository allergenReactionRepo;
     private final AllergenReactionAuditRepository allergenReactionAuditRepo;
+    private final BulkDeleter bulkDeleter;
 
     @Resource
     private PatientConditionCache cache;
@@ -72,15 +79,18 @@ public class PatientConditionController {
      * @param conditionVisitLinkRepository autowired ConditionVisitLinkRepository
      * @param allergenReactionRepo autowired allergenReactionRepo
      * @param allergenReactionAuditRepo autowired allergenReactionAuditRepo
+     * @param bulkDeleter audits and deletes a patient's HL7 infections
      */
     public PatientConditionController(PatientConditionRepository patientConditionRepo, PatientConditionAuditRepository
             patientConditionAuditRepo, ConditionVisitLinkRepository conditionVisitLinkRepository,
-            AllergenReactionRepository allergenReactionRepo, AllergenReactionAuditRepository allergenReactionAuditRepo) {
+            AllergenReactionRepository allergenReactionRepo, AllergenReactionAuditRepository allergenReactionAuditRepo,
+            BulkDeleter bulkDeleter) {
         this.patientConditionRepo = patientConditionRepo;
         this.patientConditionAuditRepo = patientConditionAuditRepo;
         this.conditionVisitLinkRepository = conditionVisitLinkRepository;
         this.allergenReactionRepo = allergenReactionRepo;
         this.allergenReactionAuditRepo = allergenReactionAuditRepo;
+        this.bulkDeleter = bulkDeleter;
     }
 
     /**
@@ -302,7 +312,7 @@ public class PatientConditionController {
 
         cache.updateAndClearFromCache(conditionType, msg, PatientConditionType.PATIENT_ALLERGY, msg.getConditionCode(),
                 msg.getUpdatedDateTime());
-        deletePreviousInfectionOrClearInfectionTypesCache(msg, storedFrom);
+        deletePreviousHl7Infections(msg, mrn, storedFrom);
 
         var patientCondition = getOrCreatePatientInfection(msg, mrn, conditionType.getEntity(), storedFrom);
 
@@ -366,36 +376,24 @@ public class PatientConditionController {
     }
 
     /**
-     * We can't trust patient infections from HL7 as no ID, so delete these if the infection ID is known.
-     * If processing HL7 then clear the cache of infection types so that new types will be updated if added from hl7.
-     * @param msg         patient infection message
-     * @param deleteUntil time to delete messages up until (inclusive)
-     */
-    private void deletePreviousInfectionOrClearInfectionTypesCache(PatientConditionMessage msg, Instant deleteUntil) {
-        if (msg.getEpicConditionId().isSave()) {
-            logger.debug("Deleting all infections up to {}", msg.getUpdatedDateTime());
-            List<ConditionType> hl7InfectionTypes = cache.getAllInfectionTypesAndCacheResults();
-            auditAndDeletePatientConditionsUntil(hl7InfectionTypes, msg.getUpdatedDateTime(), deleteUntil);
-        } else {
-            cache.clearCacheOfInfectionTypes();
-        }
-    }
-
-    /**
-     * Audit and delete all patient conditions that are of the condition types and are valid until the delete until date.
-     * @param hl7InfectionTypes patient infection condition types to delete
-     * @param deleteUntil       instant to delete until
-     * @param storedFrom        time that star started processing the message
+     * We can't trust patient infections from HL7 as no ID, so delete the patient's HL7 infections if the infection ID is known.
+     * <p>
+     * These are audited and deleted with one statement each (see {@link BulkDeleter}), using the index on the MRN,
+     * so the cost doesn't grow with the number of other patients' infections.
+     * @param msg        patient infection message, infections are deleted up until its updated time (inclusive)
+     * @param mrn        patient whose HL7 infections are deleted
+     * @param storedFrom time that star started processing the message
      */
-    private void auditAndDeletePatientConditionsUntil(List<ConditionType> hl7InfectionTypes, Instant deleteUntil, Instant storedFrom) {
-        List<PatientCondition> hl7Infections = patientConditionRepo
-                .findAllByValidFromLessThanEqualAndInternalIdIsNullAndConditionTypeIdIn(deleteUntil, hl7InfectionTypes);
-        for (PatientCondition hl7Infection : hl7Infections) {
-            logger.debug("Deleting {}", hl7Infection);
-            PatientConditionAudit hl7InfectionAudit = hl7Infection.createAuditEntity(deleteUntil, storedFrom);
-            patientConditionAuditRepo.save(hl7InfectionAudit);
-            patientConditionRepo.delete(hl7Infection);
+    void deletePreviousHl7Infections(PatientConditionMessage msg, Mrn mrn, Instant storedFrom) {
+        if (!msg.getEpicConditionId().isSave()) {
+            return;
         }
+        Instant deleteUntil = msg.getUpdatedDateTime();
+        Map<String, Object> parameters = Map.of(
+                "mrn", mrn, "deleteUntil", deleteUntil, "dataType", PatientConditionType.PATIENT_INFECTION.toString());
+        int deleted = bulkDeleter.auditAndDelete(
+                PatientCondition.class, PatientConditionAudit.class, HL7_INFECTIONS_CONDITION, parameters, deleteUntil, storedFrom);
+        logger.debug("Deleted {} HL7 infections up to {}", deleted, deleteUntil);
     }
 
     /**
@@ -520,23 +518,6 @@ class PatientConditionCache {
         return conditionType;
     }
 
-    /**
-     * Get all patient infection condition types or get form cache if it hasn't been cleared.
-     * @return all patient infection condition types
-     */
-    @Cacheable(value = "infectionTypes")
-    public List<ConditionType> getAllInfectionTypesAndCacheResults() {
-        return conditionTypeRepo.findAllByDataType(PatientConditionController.PatientConditionType.PATIENT_INFECTION.toString());
-    }
-
-    /**
-     * Clear cache of patient infection condition types.
-     */
-    @CacheEvict(value = "infectionTypes", allEntries = true)
-    public void clearCacheOfInfectionTypes() {
-        logger.trace("** Clearing cache of all infection types");
-    }
-
     /**
      * Persist condition type with new name and remove this entry from the cache.
      * @param typeState     condition type entity to updated
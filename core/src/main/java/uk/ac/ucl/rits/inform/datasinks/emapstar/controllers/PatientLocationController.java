@@ -51,18 +51,22 @@ public class PatientLocationController {
     private final LocationVisitRepository locationVisitRepo;
     private final LocationVisitAuditRepository locationVisitAuditRepo;
     private final LocationController locationController;
+    private final LocationVisitIndex locationVisitIndex;
 
     /**
      * Constructor implicitly autowiring beans.
      * @param locationVisitRepo      location visit repo
      * @param locationVisitAuditRepo audit location repo
      * @param locationController     to get or create cached location from location string
+     * @param locationVisitIndex     index of location visits by time, to be told about changes
      */
     public PatientLocationController(LocationVisitRepository locationVisitRepo,
-                                     LocationVisitAuditRepository locationVisitAuditRepo, LocationController locationController) {
+                                     LocationVisitAuditRepository locationVisitAuditRepo, LocationController locationController,
+                                     LocationVisitIndex locationVisitIndex) {
         this.locationVisitRepo = locationVisitRepo;
         this.locationVisitAuditRepo = locationVisitAuditRepo;
         this.locationController = locationController;
+        this.locationVisitIndex = locationVisitIndex;
     }
 
     /**
@@ -128,8 +132,10 @@ public class PatientLocationController {
         visitStateB.assignInterchangeValue(
                 InterchangeValue.buildFromHl7(locationB), visitStateB.getEntity().getLocationId(), visitStateB.getEntity()::setLocationId);
         // save newly created or audit
-        visitStateA.saveEntityOrAuditLogIfRequired(locationVisitRepo, locationVisitAuditRepo);
-        visitStateB.saveEntityOrAuditLogIfRequired(locationVisitRepo, locationVisitAuditRepo);
+        saveIfRequired(visitStateA);
+        saveIfRequired(visitStateB);
+        locationVisitIndex.locationChanged(locationA.getLocationString());
+        locationVisitIndex.locationChanged(locationB.getLocationString());
     }
 
     /**
@@ -169,7 +175,7 @@ public class PatientLocationController {
 
         try {
             updateOrCreatePreviousMoveLocations(visit, msg, storedFrom, validFrom, visitLocations, indexCurrentOrPrevious);
-            currentLocation.saveEntityOrAuditLogIfRequired(locationVisitRepo, locationVisitAuditRepo);
+            saveIfRequired(currentLocation);
         } catch (MessageIgnoredException e) {
             logger.debug(e.getMessage());
         }
@@ -353,7 +359,7 @@ public class PatientLocationController {
                         RowState<LocationVisit, LocationVisitAudit> existingPrevious = new RowState<>(existingLocation, validFrom, storedFrom, false);
                         Instant inferredDischargeTime = validFrom.minus(1, ChronoUnit.SECONDS);
                         setInferredDischargeAndTime(true, inferredDischargeTime, existingPrevious);
-                        existingPrevious.saveEntityOrAuditLogIfRequired(locationVisitRepo, locationVisitAuditRepo);
+                        saveIfRequired(existingPrevious);
                     }
                 }
             } else {
@@ -364,7 +370,7 @@ public class PatientLocationController {
                     logger.debug("No previous hl7 location, but found existing previous location. Inferring existing location discharge.");
                     RowState<LocationVisit, LocationVisitAudit> existingPrevious = new RowState<>(existingLocation, validFrom, storedFrom, false);
                     setInferredDischargeAndTime(true, validFrom, existingPrevious);
-                    existingPrevious.saveEntityOrAuditLogIfRequired(locationVisitRepo, locationVisitAuditRepo);
+                    saveIfRequired(existingPrevious);
                 }
             }
         } else if (previousLocationId.isPresent()) {
@@ -377,7 +383,7 @@ public class PatientLocationController {
 
         // Always save previous hl7 location if it exists
         if (previousHl7Location != null) {
-            previousHl7Location.saveEntityOrAuditLogIfRequired(locationVisitRepo, locationVisitAuditRepo);
+            saveIfRequired(previousHl7Location);
         }
     }
 
@@ -463,7 +469,7 @@ public class PatientLocationController {
             savingVisits.addAll(previousLocations);
         }
 
-        savingVisits.forEach(rowState -> rowState.saveEntityOrAuditLogIfRequired(locationVisitRepo, locationVisitAuditRepo));
+        savingVisits.forEach(this::saveIfRequired);
     }
 
     /**
@@ -704,7 +710,7 @@ public class PatientLocationController {
         RowState<LocationVisit, LocationVisitAudit> previousLocationState = new RowState<>(
                 visitLocations.get(previousIndex.intValue()), cancellationTime, storedFrom, false);
         setInferredDischargeAndTime(true, previousDischargeTime, previousLocationState);
-        previousLocationState.saveEntityOrAuditLogIfRequired(locationVisitRepo, locationVisitAuditRepo);
+        saveIfRequired(previousLocationState);
 
     }
 
@@ -729,6 +735,7 @@ public class PatientLocationController {
         logger.debug("CancelDischarge, no locations after discharge for visit so rolling back discharge time to {}", previousDischargeTime);
 
         setInferredDischargeAndTime(false, previousDischargeTime, rollbackDischarge);
+        locationVisitIndex.locationChanged(incorrectVisit.getLocationId().getLocationString());
     }
 
     /**
@@ -819,6 +826,18 @@ public class PatientLocationController {
         locationVisitAuditRepo.save(new LocationVisitAudit(locationVisit, validFrom, storedFrom));
         logger.debug("Deleting LocationVisit: {}", locationVisit);
         locationVisitRepo.delete(locationVisit);
+        locationVisitIndex.locationChanged(locationVisit.getLocationId().getLocationString());
+    }
+
+    /**
+     * Save a location visit if it was created, or its audit log if it was updated, and tell the index about the change.
+     * @param locationState location visit wrapped in row state
+     */
+    private void saveIfRequired(RowState<LocationVisit, LocationVisitAudit> locationState) {
+        locationState.saveEntityOrAuditLogIfRequired(locationVisitRepo, locationVisitAuditRepo);
+        if (locationState.isEntityCreated() || locationState.isEntityUpdated()) {
+            locationVisitIndex.locationChanged(locationState.getEntity().getLocationId().getLocationString());
+        }
     }
 
     /**
@@ -27,6 +27,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Optional;
 import java.util.stream.Collectors;
 
 /**
@@ -42,6 +43,7 @@ public class PersonController {
     private final MrnToLiveAuditRepository mrnToLiveAuditRepo;
     private final CoreDemographicRepository coreDemographicRepo;
     private final CoreDemographicAuditRepository coreDemographicAuditRepo;
+    private final IdentityCache identityCache;
 
     /**
      * Constructor implicitly autowiring beans.
@@ -50,14 +52,17 @@ public class PersonController {
      * @param mrnToLiveAuditRepo       auditMrnToLiveRepo
      * @param coreDemographicRepo      coreDemographicRepo
      * @param coreDemographicAuditRepo auditCoreDemographicRepo
+     * @param identityCache            cache of live MRNs
      */
     public PersonController(MrnRepository mrnRepo, MrnToLiveRepository mrnToLiveRepo, MrnToLiveAuditRepository mrnToLiveAuditRepo,
-                            CoreDemographicRepository coreDemographicRepo, CoreDemographicAuditRepository coreDemographicAuditRepo) {
+                            CoreDemographicRepository coreDemographicRepo, CoreDemographicAuditRepository coreDemographicAuditRepo,
+                            IdentityCache identityCache) {
         this.mrnRepo = mrnRepo;
         this.mrnToLiveRepo = mrnToLiveRepo;
         this.mrnToLiveAuditRepo = mrnToLiveAuditRepo;
         this.coreDemographicRepo = coreDemographicRepo;
         this.coreDemographicAuditRepo = coreDemographicAuditRepo;
+        this.identityCache = identityCache;
     }
 
     /**
@@ -111,6 +116,7 @@ public class PersonController {
     }
 
     private void mergeMrns(Collection<Mrn> originalMrns, Mrn survivingMrn, Instant validFrom, Instant storedFrom) {
+        identityCache.identitiesChanged();
         // change all live mrns from original mrn to surviving mrn
         originalMrns.stream()
                 .flatMap(mrn -> mrnToLiveRepo.getAllByLiveMrnIdEquals(mrn).stream())
@@ -174,6 +180,10 @@ public class PersonController {
     public Mrn getOrCreateMrn(final String mrnString, final String nhsNumber, final String sourceSystem, final Instant messageDateTime,
                               final Instant storedFrom) throws RequiredDataMissingException {
         logger.debug("Getting or creating MRN: mrn {}, nhsNumber {}", mrnString, nhsNumber);
+        Optional<Mrn> cachedMrn = identityCache.findLiveMrn(mrnString, nhsNumber, DataSources.isTrusted(sourceSystem));
+        if (cachedMrn.isPresent()) {
+            return cachedMrn.get();
+        }
         return mrnRepo
                 .findByMrnOrNhsNumber(mrnString, nhsNumber)
                 .map(mrn -> updateIdentifiersAndGetMrn(sourceSystem, mrnString, nhsNumber, mrn))
@@ -193,16 +203,20 @@ public class PersonController {
         if (DataSources.isTrusted(sourceSystem)) {
             if (nhsNumber != null && !nhsNumber.equals(mrn.getNhsNumber())) {
                 logger.debug("Updating NHS number to {} for MRN {}", nhsNumber, mrn);
+                identityCache.identitiesChanged();
                 mrn.setNhsNumber(nhsNumber);
             }
             // Only update the MRN if we have an orphan NHS number with no MRN
             if (mrnString != null && mrn.getMrn() == null && mrn.getNhsNumber() != null) {
                 logger.debug("Updating mrn to {} for MRN {}", mrnString, mrn);
+                identityCache.identitiesChanged();
                 mrn.setMrn(mrnString);
             }
         }
 
-        return mrnToLiveRepo.getByMrnIdEquals(mrn).getLiveMrnId();
+        Mrn liveMrn = mrnToLiveRepo.getByMrnIdEquals(mrn).getLiveMrnId();
+        identityCache.putMrn(mrnString, nhsNumber, mrn, liveMrn);
+        return liveMrn;
     }
 
 
@@ -223,6 +237,10 @@ public class PersonController {
             throw new RequiredDataMissingException("No MRN found");
         }
         logger.debug("Getting or creating MRN: mrn {} only", mrnString);
+        Optional<Mrn> cachedMrn = identityCache.findLiveMrn(mrnString, nhsNumber, DataSources.isTrusted(sourceSystem));
+        if (cachedMrn.isPresent()) {
+            return cachedMrn.get();
+        }
         return mrnRepo
                 .findByMrnEquals(mrnString)
                 // mrn exists, update NHS number if message source is trusted, then get the live mrn
@@ -335,6 +353,7 @@ public class PersonController {
         mrnToLive.setStoredFrom(storedFrom);
         mrnToLive.setValidFrom(messageDateTime);
         mrnToLiveRepo.save(mrnToLive);
+        identityCache.putMrn(mrnString, nhsNumber, mrn, mrn);
         return mrn;
     }
 
@@ -381,6 +400,7 @@ public class PersonController {
     @Transactional
     public void updatePatientIdentifiersOrMerge(ChangePatientIdentifiers msg, Instant messageDateTime, Instant storedFrom)
             throws RequiredDataMissingException {
+        identityCache.identitiesChanged();
         List<Mrn> survivingMrns = mrnRepo.findAllByMrnOrNhsNumber(msg.getMrn(), msg.getNhsNumber());
         List<Mrn> previousMrns = getMrnsOrCreateOne(
                 msg.getPreviousMrn(), msg.getPreviousNhsNumber(), msg.getSourceSystem(), messageDateTime, storedFrom
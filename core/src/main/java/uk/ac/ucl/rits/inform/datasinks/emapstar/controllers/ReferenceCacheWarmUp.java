@@ -0,0 +1,172 @@
+package uk.ac.ucl.rits.inform.datasinks.emapstar.controllers;
+
+import com.github.benmanes.caffeine.cache.Policy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import uk.ac.ucl.rits.inform.informdb.conditions.ConditionType;
+import uk.ac.ucl.rits.inform.informdb.consults.ConsultationType;
+import uk.ac.ucl.rits.inform.informdb.decisions.AdvanceDecisionType;
+import uk.ac.ucl.rits.inform.informdb.labs.LabBattery;
+import uk.ac.ucl.rits.inform.informdb.labs.LabBatteryElement;
+import uk.ac.ucl.rits.inform.informdb.labs.LabTestDefinition;
+import uk.ac.ucl.rits.inform.informdb.movement.Location;
+import uk.ac.ucl.rits.inform.informdb.questions.Question;
+import uk.ac.ucl.rits.inform.informdb.visit_recordings.VisitObservationType;
+
+import javax.annotation.PostConstruct;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.TypedQuery;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Loads each reference table into the cache used by its {@code @Cacheable} get or create method at startup, so that
+ * messages processed after a restart don't each query for the same reference data.
+ * <p>
+ * Entries are stored under the same keys as the {@code @Cacheable} annotations' key expressions, so these must be
+ * kept in step. Only caffeine caches are loaded, no more rows are read than a cache can hold, and entries already
+ * cached aren't replaced.
+ */
+@Component
+public class ReferenceCacheWarmUp {
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final CacheManager cacheManager;
+    private final TransactionTemplate readOnlyTransaction;
+    private final boolean enabled;
+    private final Map<String, Duration> loadTimes = new ConcurrentHashMap<>();
+    private final Map<String, Integer> loadedCounts = new ConcurrentHashMap<>();
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    /**
+     * @param cacheManager       cache manager holding the caches to load
+     * @param transactionManager transaction manager for emap-star
+     * @param enabled            if false, caches are only filled as messages are processed
+     */
+    ReferenceCacheWarmUp(
+            CacheManager cacheManager, PlatformTransactionManager transactionManager,
+            @Value("${core.cache.warm_up.enabled:true}") boolean enabled) {
+        this.cacheManager = cacheManager;
+        this.enabled = enabled;
+        readOnlyTransaction = new TransactionTemplate(transactionManager);
+        readOnlyTransaction.setReadOnly(true);
+    }
+
+    /**
+     * Load every reference cache, in one transaction so that entities referenced by more than one table are only read once.
+     */
+    @PostConstruct
+    public void warmUp() {
+        if (!enabled) {
+            return;
+        }
+        readOnlyTransaction.executeWithoutResult(status -> {
+            load("location", Location.class,
+                    "select l from Location l left join fetch l.departmentId left join fetch l.roomId left join fetch l.bedId",
+                    location -> key(location.getLocationString()), Function.identity());
+            load("visitObservationType", VisitObservationType.class, "select t from VisitObservationType t",
+                    type -> key(type.getInterfaceId(), type.getIdInApplication(), type.getSourceObservationType()), Function.identity());
+            load("labTestDefinition", LabTestDefinition.class, "select d from LabTestDefinition d",
+                    definition -> key(definition.getLabProvider(), definition.getTestLabCode()), Function.identity());
+            load("labBattery", LabBattery.class, "select b from LabBattery b",
+                    battery -> key(battery.getBatteryCode(), battery.getLabProvider()), Function.identity());
+            load("labBatteryElement", LabBatteryElement.class,
+                    "select e from LabBatteryElement e join fetch e.labTestDefinitionId join fetch e.labBatteryId",
+                    element -> key(element.getLabTestDefinitionId().getLabTestDefinitionId(), element.getLabBatteryId().getLabBatteryId()),
+                    Function.identity());
+            load("conditionType", ConditionType.class, "select c from ConditionType c",
+                    ReferenceCacheWarmUp::conditionTypeKey, Function.identity());
+            load("consultationType", ConsultationType.class, "select c from ConsultationType c",
+                    ConsultationType::getCode, Function.identity());
+            load("question", Question.class, "select q from Question q",
+                    question -> key(question.getQuestion()), Function.identity());
+            load("advanceDecisionType", AdvanceDecisionType.class, "select a from AdvanceDecisionType a",
+                    AdvanceDecisionType::getCareCode, Function.identity());
+        });
+    }
+
+    /**
+     * @param cacheName name of the cache
+     * @return time taken to load the cache at startup, or zero if it wasn't loaded
+     */
+    public Duration getLoadTime(String cacheName) {
+        return loadTimes.getOrDefault(cacheName, Duration.ZERO);
+    }
+
+    /**
+     * @param cacheName name of the cache
+     * @return number of entries loaded into the cache at startup
+     */
+    public int getLoadedCount(String cacheName) {
+        return loadedCounts.getOrDefault(cacheName, 0);
+    }
+
+    /**
+     * Read rows of a table and add them to a cache.
+     * @param cacheName   name of the cache
+     * @param entityClass entity of the table
+     * @param jpql        query for the rows to cache
+     * @param key         key of the entity in the cache, or null if it can't be cached
+     * @param value       value cached for the entity
+     * @param <T>         entity type
+     */
+    private <T> void load(String cacheName, Class<T> entityClass, String jpql, Function<? super T, ?> key, Function<? super T, ?> value) {
+        Cache cache = cacheManager.getCache(cacheName);
+        if (cache == null || !(cache.getNativeCache() instanceof com.github.benmanes.caffeine.cache.Cache<?, ?> nativeCache)) {
+            return;
+        }
+        long start = System.nanoTime();
+        TypedQuery<T> query = entityManager.createQuery(jpql, entityClass);
+        nativeCache.policy().eviction().map(Policy.Eviction::getMaximum)
+                .ifPresent(maximum -> query.setMaxResults((int) Math.min(maximum, Integer.MAX_VALUE)));
+        int loaded = 0;
+        for (T entity : query.getResultList()) {
+            Object entityKey = key.apply(entity);
+            if (entityKey != null) {
+                cache.putIfAbsent(entityKey, value.apply(entity));
+                loaded++;
+            }
+        }
+        Duration loadTime = Duration.ofNanos(System.nanoTime() - start);
+        loadTimes.put(cacheName, loadTime);
+        loadedCounts.put(cacheName, loaded);
+        logger.info("Loaded {} entries into the {} cache in {} ms", loaded, cacheName, loadTime.toMillis());
+    }
+
+    /**
+     * Key matching a {@code @Cacheable} key expression which is a list, e.g. {@code "{ #labProvider , #testLabCode }"}.
+     * @param parts values of the list, which may be null
+     * @return key
+     */
+    private static List<Object> key(Object... parts) {
+        return Collections.unmodifiableList(Arrays.asList(parts));
+    }
+
+    /**
+     * Optional return values are unwrapped by the cache, so condition types are cached as themselves.
+     * @param conditionType condition type
+     * @return key, or null if the data type isn't a known {@link PatientConditionController.PatientConditionType}
+     */
+    private static Object conditionTypeKey(ConditionType conditionType) {
+        for (PatientConditionController.PatientConditionType type : PatientConditionController.PatientConditionType.values()) {
+            if (type.toString().equals(conditionType.getDataType())) {
+                return key(type, conditionType.getInternalCode());
+            }
+        }
+        return null;
+    }
+}
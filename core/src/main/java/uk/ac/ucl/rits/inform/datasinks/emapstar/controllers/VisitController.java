@@ -27,6 +27,7 @@ import uk.ac.ucl.rits.inform.interchange.adt.UpdatePatientInfo;
 
 import java.time.Instant;
 import java.util.List;
+import java.util.Optional;
 
 /**
  * Interactions with visits.
@@ -37,14 +38,18 @@ public class VisitController {
     private final Logger logger = LoggerFactory.getLogger(getClass());
     private final HospitalVisitRepository hospitalVisitRepo;
     private final HospitalVisitAuditRepository hospitalVisitAuditRepo;
+    private final IdentityCache identityCache;
 
     /**
      * @param hospitalVisitRepo      repository for HospitalVisit
      * @param hospitalVisitAuditRepo repository for HospitalVisitAudit
+     * @param identityCache          cache of visits by encounter
      */
-    public VisitController(HospitalVisitRepository hospitalVisitRepo, HospitalVisitAuditRepository hospitalVisitAuditRepo) {
+    public VisitController(HospitalVisitRepository hospitalVisitRepo, HospitalVisitAuditRepository hospitalVisitAuditRepo,
+                           IdentityCache identityCache) {
         this.hospitalVisitRepo = hospitalVisitRepo;
         this.hospitalVisitAuditRepo = hospitalVisitAuditRepo;
+        this.identityCache = identityCache;
     }
 
     /**
@@ -65,6 +70,7 @@ public class VisitController {
         if (visit.isEntityCreated()) {
             logger.debug("Minimal encounter created. encounter: {}, mrn: {}", encounter, mrn);
             hospitalVisitRepo.save(visit.getEntity());
+            identityCache.putVisit(visit.getEntity());
         }
         return visit.getEntity();
     }
@@ -86,8 +92,15 @@ public class VisitController {
             throw new RequiredDataMissingException("No encounter in message");
         }
         logger.debug("Getting or create Hospital Visit: mrn {}, encounter {}", mrn, encounter);
+        Optional<HospitalVisit> cachedVisit = identityCache.findVisit(encounter);
+        if (cachedVisit.isPresent()) {
+            return new RowState<>(cachedVisit.get(), messageDateTime, storedFrom, false);
+        }
         return hospitalVisitRepo.findByEncounter(encounter)
-                .map(visit -> new RowState<>(visit, messageDateTime, storedFrom, false))
+                .map(visit -> {
+                    identityCache.putVisit(visit);
+                    return new RowState<>(visit, messageDateTime, storedFrom, false);
+                })
                 .orElseGet(() -> createHospitalVisit(encounter, mrn, sourceSystem, messageDateTime, storedFrom));
     }
 
@@ -151,6 +164,7 @@ public class VisitController {
         }
         addPresentationAdmissionOrDischargeTime(msg, visitState);
         visitState.saveEntityOrAuditLogIfRequired(hospitalVisitRepo, hospitalVisitAuditRepo);
+        identityCache.putVisit(visitState.getEntity());
         return visitState.getEntity();
     }
 
@@ -295,6 +309,7 @@ public class VisitController {
             throw new IncompatibleDatabaseStateException(String.format("MoveVisitInformation where new encounter already exists : %s", msg));
         }
 
+        identityCache.identitiesChanged();
         Instant validFrom = msg.bestGuessAtValidFrom();
         RowState<HospitalVisit, HospitalVisitAudit> visitState = getOrCreateHospitalVisit(
                 msg.getPreviousVisitNumber(), previousMrn, msg.getSourceSystem(), validFrom, storedFrom);
@@ -318,15 +333,4 @@ public class VisitController {
         return !msg.getPreviousVisitNumber().equals(msg.getVisitNumber()) && hospitalVisitRepo.findByEncounter(msg.getVisitNumber()).isPresent();
     }
 
-    /**
-     * Deletes visit and updates corresponding audit table.
-     * @param visit             List of hospital visits
-     * @param invalidationTime  Time of the delete information message
-     * @param deletionTime      time that emap-core started processing the message.
-     */
-    public void deleteVisit(HospitalVisit visit, Instant invalidationTime, Instant deletionTime) {
-        hospitalVisitAuditRepo.save(visit.createAuditEntity(invalidationTime, deletionTime));
-        hospitalVisitRepo.delete(visit);
-    }
-
 }
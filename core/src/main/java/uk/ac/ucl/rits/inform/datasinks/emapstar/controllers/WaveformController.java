@@ -2,19 +2,20 @@ package uk.ac.ucl.rits.inform.datasinks.emapstar.controllers;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 import org.springframework.transaction.annotation.Transactional;
 import uk.ac.ucl.rits.inform.datasinks.emapstar.exceptions.MessageIgnoredException;
-import uk.ac.ucl.rits.inform.datasinks.emapstar.repos.LocationVisitRepository;
 import uk.ac.ucl.rits.inform.datasinks.emapstar.repos.visit_observations.WaveformRepository;
 import uk.ac.ucl.rits.inform.informdb.movement.LocationVisit;
 import uk.ac.ucl.rits.inform.informdb.visit_recordings.VisitObservationType;
 import uk.ac.ucl.rits.inform.informdb.visit_recordings.Waveform;
+import uk.ac.ucl.rits.inform.informdb.visit_recordings.WaveformEncoding;
+import uk.ac.ucl.rits.inform.informdb.visit_recordings.WaveformValuesCodec;
 import uk.ac.ucl.rits.inform.interchange.InterchangeValue;
 import uk.ac.ucl.rits.inform.interchange.visit_observations.WaveformMessage;
 
 import java.time.Instant;
-import java.util.List;
 import java.util.Optional;
 
 /**
@@ -26,14 +27,17 @@ public class WaveformController {
     private final Logger logger = LoggerFactory.getLogger(getClass());
 
     private final WaveformRepository waveformRepository;
-    private final LocationVisitRepository locationVisitRepository;
+    private final LocationVisitIndex locationVisitIndex;
+    private final WaveformEncoding defaultEncoding;
 
     WaveformController(
             WaveformRepository waveformRepository,
-            LocationVisitRepository locationVisitRepository
+            LocationVisitIndex locationVisitIndex,
+            @Value("${core.waveform.default_encoding:FLOAT8_ARRAY}") WaveformEncoding defaultEncoding
     ) {
         this.waveformRepository = waveformRepository;
-        this.locationVisitRepository = locationVisitRepository;
+        this.locationVisitIndex = locationVisitIndex;
+        this.defaultEncoding = defaultEncoding;
     }
 
     /**
@@ -48,17 +52,17 @@ public class WaveformController {
             WaveformMessage msg,
             VisitObservationType visitObservationType,
             Instant storedFrom) throws MessageIgnoredException {
-        InterchangeValue<List<Double>> interchangeValue = msg.getNumericValues();
+        InterchangeValue<double[]> interchangeValue = msg.getNumericValues();
         if (!interchangeValue.isSave()) {
             throw new MessageIgnoredException("Updating/deleting waveform data is not supported");
         }
         // All given values are put into one new row. It's the responsibility of whoever is
         // generating the message to choose an appropriate size of array.
-        List<Double> numericValues = interchangeValue.get();
+        double[] numericValues = interchangeValue.get();
         Instant observationTime = msg.getObservationTime();
         // Try to find the visit. We don't have enough information to create the visit if it doesn't already exist.
         Optional<LocationVisit> inferredLocationVisit =
-                locationVisitRepository.findLocationVisitByLocationAndTime(observationTime, msg.getMappedLocationString());
+                locationVisitIndex.findLocationVisit(msg.getMappedLocationString(), observationTime);
         // XXX: will have to do some sanity checks here to be sure that the HL7 feed hasn't gone down.
         // See issue #36, and here for discussion:
         // https://github.com/SAFEHR-data/emap/blob/develop/docs/dev/features/waveform_hf_data.md#core-processor-logic-orphan-data-problem
@@ -67,15 +71,33 @@ public class WaveformController {
                 observationTime,
                 storedFrom);
         inferredLocationVisit.ifPresent(dataRow::setLocationVisitId);
-        Double[] valuesAsArray = numericValues.toArray(new Double[0]);
         dataRow.setSamplingRate(msg.getSamplingRate());
         dataRow.setSourceLocation(msg.getSourceLocationString());
         dataRow.setVisitObservationTypeId(visitObservationType);
         dataRow.setUnit(msg.getUnit());
-        dataRow.setValuesArray(valuesAsArray);
+        WaveformEncoding encoding = encodingFor(visitObservationType);
+        if (encoding == WaveformEncoding.FLOAT8_ARRAY) {
+            dataRow.setValuesArray(numericValues);
+        } else {
+            dataRow.setValuesBytes(WaveformValuesCodec.encode(
+                    encoding, numericValues, visitObservationType.getWaveformQuantisationStep()));
+        }
         waveformRepository.save(dataRow);
     }
 
+    /**
+     * @param visitObservationType waveform type
+     * @return the encoding declared by the waveform type, or the default if it doesn't declare one
+     * @throws IllegalArgumentException if the declared encoding isn't known
+     */
+    private WaveformEncoding encodingFor(VisitObservationType visitObservationType) {
+        String declaredEncoding = visitObservationType.getWaveformEncoding();
+        if (declaredEncoding == null) {
+            return defaultEncoding;
+        }
+        return WaveformEncoding.valueOf(declaredEncoding);
+    }
+
     /**
      * Delete waveform data before the cutoff date.
      * @param olderThanCutoff cutoff date
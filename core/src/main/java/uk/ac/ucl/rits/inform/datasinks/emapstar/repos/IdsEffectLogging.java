@@ -6,6 +6,7 @@ import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
 import javax.persistence.Index;
+import javax.persistence.SequenceGenerator;
 import javax.persistence.Table;
 import java.io.PrintWriter;
 import java.io.StringWriter;
@@ -22,8 +23,18 @@ import java.time.Instant;
 @Table(name = "etl_per_message_logging",
         indexes = {@Index(columnList = "sourceId", unique = false)})
 public class IdsEffectLogging {
+    /**
+     * Number of IDs taken from the sequence at once, which should be at least the size of a batch of logging records.
+     */
+    public static final int ID_ALLOCATION_SIZE = 500;
+
+    /**
+     * Allocated in blocks, so that writing a batch of logging records doesn't need a sequence call per row.
+     */
     @Id
-    @GeneratedValue(strategy = GenerationType.AUTO)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "etl_per_message_logging_id_seq")
+    @SequenceGenerator(name = "etl_per_message_logging_id_seq", sequenceName = "etl_per_message_logging_id_seq",
+            allocationSize = ID_ALLOCATION_SIZE)
     private Long id;
     private String sourceId;
     private Instant messageDatetime;
@@ -54,6 +65,13 @@ public class IdsEffectLogging {
         this.processingStartTime = processingStartTime;
     }
 
+    /**
+     * @return when did processing this message start
+     */
+    public Instant getProcessingStartTime() {
+        return processingStartTime;
+    }
+
     /**
      * @param processingEndTime when did processing this message finish
      */
@@ -68,6 +86,27 @@ public class IdsEffectLogging {
         this.message = message;
     }
 
+    /**
+     * @return the unique ID from the source system (eg. IDS unid)
+     */
+    public String getSourceId() {
+        return sourceId;
+    }
+
+    /**
+     * @return message type from IDS (aka trigger event)
+     */
+    public String getMessageType() {
+        return messageType;
+    }
+
+    /**
+     * @return true if an error was encountered
+     */
+    public Boolean getError() {
+        return error;
+    }
+
     /**
      * @param messageType message type from IDS (aka trigger event)
      */
@@ -0,0 +1,28 @@
+package uk.ac.ucl.rits.inform.datasinks.emapstar.repos;
+
+import java.time.Instant;
+
+/**
+ * Just the time and place of a location visit.
+ */
+public interface LocationVisitInterval {
+    /**
+     * @return location visit ID
+     */
+    Long getLocationVisitId();
+
+    /**
+     * @return location string of the visit's location
+     */
+    String getLocationString();
+
+    /**
+     * @return admission time
+     */
+    Instant getAdmissionDatetime();
+
+    /**
+     * @return discharge time, or null if still open
+     */
+    Instant getDischargeDatetime();
+}
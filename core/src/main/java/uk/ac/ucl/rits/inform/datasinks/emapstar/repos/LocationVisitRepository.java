@@ -87,6 +87,32 @@ public interface LocationVisitRepository extends CrudRepository<LocationVisit, L
     )
     Optional<LocationVisit> findLocationVisitByLocationAndTime(Instant observationDatetime, String locationString);
 
+    /**
+     * @param locationString location string
+     * @return the time and place of every visit to the location
+     */
+    @Query("select lv.locationVisitId as locationVisitId, loc.locationString as locationString, "
+            + "lv.admissionDatetime as admissionDatetime, lv.dischargeDatetime as dischargeDatetime "
+            + "from LocationVisit lv "
+            + "inner join lv.locationId as loc "
+            + "where loc.locationString = :locationString "
+            + "and lv.admissionDatetime is not null"
+    )
+    List<LocationVisitInterval> findAllIntervalsByLocationString(String locationString);
+
+    /**
+     * @param dischargedFrom earliest discharge time to include
+     * @return the time and place of every visit which is open or was discharged after the given time
+     */
+    @Query("select lv.locationVisitId as locationVisitId, loc.locationString as locationString, "
+            + "lv.admissionDatetime as admissionDatetime, lv.dischargeDatetime as dischargeDatetime "
+            + "from LocationVisit lv "
+            + "inner join lv.locationId as loc "
+            + "where lv.admissionDatetime is not null "
+            + "and (lv.dischargeDatetime is null or lv.dischargeDatetime >= :dischargedFrom)"
+    )
+    List<LocationVisitInterval> findAllIntervalsDischargedFrom(Instant dischargedFrom);
+
     /**
      * For testing: find by location string.
      * @param location full location string
@@ -7,7 +7,6 @@ import uk.ac.ucl.rits.inform.informdb.identity.Mrn;
 
 import java.time.Instant;
 import java.time.LocalDate;
-import java.util.List;
 import java.util.Optional;
 
 /**
@@ -52,16 +51,6 @@ public interface PatientConditionRepository extends CrudRepository<PatientCondit
             Mrn mrn, ConditionType conditionType, LocalDate addedDate
     );
 
-    /**
-     * Delete all that is valid before an instant for types.
-     *
-     * @param untilDateTime instant to delete all messages before
-     * @param conditionType data types to delete
-     * @return List of patient conditions
-     */
-    List<PatientCondition> findAllByValidFromLessThanEqualAndInternalIdIsNullAndConditionTypeIdIn(
-            Instant untilDateTime, List<ConditionType> conditionType);
-
 
     /**
      * For testing, shortcut without requiring entities to be passed.
@@ -1,11 +1,14 @@
 package uk.ac.ucl.rits.inform.datasinks.emapstar.repos.visit_observations;
 
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.CrudRepository;
 import uk.ac.ucl.rits.inform.informdb.identity.HospitalVisit;
 import uk.ac.ucl.rits.inform.informdb.visit_recordings.VisitObservation;
 import uk.ac.ucl.rits.inform.informdb.visit_recordings.VisitObservationType;
 
 import java.time.Instant;
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 
@@ -48,4 +51,13 @@ public interface VisitObservationRepository extends CrudRepository<VisitObservat
      */
     Optional<VisitObservation> findByHospitalVisitIdEncounterAndVisitObservationTypeIdInterfaceId(
             String visit, String interfaceId);
+
+    /**
+     * Delete the observations for visits that are being deleted, without auditing them.
+     * @param visits hospital visits
+     * @return number of observations deleted
+     */
+    @Modifying
+    @Query("delete from VisitObservation where hospitalVisitId in :visits")
+    int deleteAllInBatchByHospitalVisitIdIn(Collection<HospitalVisit> visits);
 }
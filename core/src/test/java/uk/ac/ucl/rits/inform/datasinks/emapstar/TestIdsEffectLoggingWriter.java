@@ -0,0 +1,53 @@
+package uk.ac.ucl.rits.inform.datasinks.emapstar;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.TestPropertySource;
+import uk.ac.ucl.rits.inform.datasinks.emapstar.repos.IdsEffectLogging;
+import uk.ac.ucl.rits.inform.datasinks.emapstar.repos.IdsEffectLoggingRepository;
+import uk.ac.ucl.rits.inform.interchange.adt.AdmitPatient;
+import uk.ac.ucl.rits.inform.interchange.visit_observations.WaveformMessage;
+
+import java.time.Instant;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Test that effect logging is written in the background, with sampling of high volume message types.
+ */
+@TestPropertySource(properties = {
+        "core.effect_logging.sampled_message_types=WaveformMessage",
+        "core.effect_logging.sample_every=10"})
+class TestIdsEffectLoggingWriter extends MessageProcessingBase {
+    @Autowired
+    private IdsEffectLoggingWriter idsEffectLoggingWriter;
+    @Autowired
+    private IdsEffectLoggingRepository idsEffectLoggingRepository;
+
+    private IdsEffectLogging effectLogging(Class<?> messageType, boolean error) {
+        IdsEffectLogging effectLogging = new IdsEffectLogging();
+        effectLogging.setMessageType(messageType.getName());
+        effectLogging.setSourceId("0000000001");
+        effectLogging.setProcessingStartTime(Instant.now());
+        effectLogging.setError(error);
+        return effectLogging;
+    }
+
+    /**
+     * Given waveform messages are sampled one in ten
+     * When 20 successful waveform messages, a failed waveform message and a successful ADT message are logged
+     * Then two of the successful waveform messages, the failed waveform message and the ADT message should be written.
+     */
+    @Test
+    void testSampledMessageTypes() {
+        for (int i = 0; i < 20; i++) {
+            idsEffectLoggingWriter.write(effectLogging(WaveformMessage.class, false));
+        }
+        idsEffectLoggingWriter.write(effectLogging(WaveformMessage.class, true));
+        idsEffectLoggingWriter.write(effectLogging(AdmitPatient.class, false));
+
+        idsEffectLoggingWriter.flush();
+
+        assertEquals(4, idsEffectLoggingRepository.count());
+    }
+}
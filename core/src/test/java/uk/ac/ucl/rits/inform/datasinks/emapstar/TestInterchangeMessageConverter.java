@@ -0,0 +1,70 @@
+package uk.ac.ucl.rits.inform.datasinks.emapstar;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.support.converter.MessageConverter;
+import uk.ac.ucl.rits.inform.interchange.EmapOperationMessage;
+import uk.ac.ucl.rits.inform.interchange.messaging.InterchangeFormat;
+import uk.ac.ucl.rits.inform.interchange.messaging.InterchangeMessageConverter;
+import uk.ac.ucl.rits.inform.interchange.test.helpers.InterchangeMessageFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Test that core can read interchange messages in any of the formats that a data source could send.
+ */
+class TestInterchangeMessageConverter {
+    private final InterchangeMessageFactory messageFactory = new InterchangeMessageFactory();
+    private final MessageConverter receiver = App.jsonReaderMessageConverter();
+
+    private List<EmapOperationMessage> sampleMessages() throws IOException {
+        List<EmapOperationMessage> messages = new ArrayList<>();
+        messages.add(messageFactory.getAdtMessage("generic/A01.yaml"));
+        messages.addAll(messageFactory.getLabOrders("winpath/ORU_R01.yaml"));
+        messages.addAll(messageFactory.getFlowsheets("hl7.yaml"));
+        return messages;
+    }
+
+    /**
+     * Given sample messages sent in each format
+     * When core receives them
+     * Then they should be the same as the messages that were sent.
+     */
+    @ParameterizedTest
+    @EnumSource(InterchangeFormat.class)
+    void receiveEachFormat(InterchangeFormat format) throws IOException {
+        InterchangeMessageConverter sender = new InterchangeMessageConverter(format);
+        for (EmapOperationMessage sent : sampleMessages()) {
+            Message message = sender.toMessage(sent, new MessageProperties());
+            assertEquals(format.getContentType(), message.getMessageProperties().getContentType());
+            assertEquals(sent, receiver.fromMessage(message));
+        }
+    }
+
+    /**
+     * Given sample messages sent in a binary format
+     * When compared to the same messages as JSON
+     * Then they should be smaller, and use registered type IDs rather than class names.
+     */
+    @ParameterizedTest
+    @EnumSource(value = InterchangeFormat.class, names = {"SMILE", "CBOR"})
+    void binaryFormatsAreSmaller(InterchangeFormat format) throws IOException {
+        InterchangeMessageConverter jsonSender = new InterchangeMessageConverter(InterchangeFormat.JSON);
+        InterchangeMessageConverter binarySender = new InterchangeMessageConverter(format);
+        for (EmapOperationMessage sent : sampleMessages()) {
+            byte[] json = jsonSender.toMessage(sent, new MessageProperties()).getBody();
+            byte[] binary = binarySender.toMessage(sent, new MessageProperties()).getBody();
+            assertTrue(binary.length < json.length);
+            assertFalse(new String(binary, StandardCharsets.ISO_8859_1).contains("uk.ac.ucl.rits"));
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package uk.ac.ucl.rits.inform.datasinks.emapstar;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.TestPropertySource;
+import uk.ac.ucl.rits.inform.datasinks.emapstar.repos.IdsEffectLoggingRepository;
+import uk.ac.ucl.rits.inform.interchange.EmapOperationMessage;
+import uk.ac.ucl.rits.inform.interchange.EmapOperationMessageProcessingException;
+import uk.ac.ucl.rits.inform.interchange.EmapOperationMessageProcessor;
+import uk.ac.ucl.rits.inform.interchange.ResearchOptOut;
+
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Test that batches of messages are committed together, with failing messages rolled back on their own.
+ */
+@TestPropertySource(properties = "core.rabbitmq.batch_size=3")
+class TestMessageBatchProcessor extends MessageProcessingBase {
+    @Autowired
+    private MessageBatchProcessor messageBatchProcessor;
+    @Autowired
+    private IdsEffectLoggingWriter idsEffectLoggingWriter;
+    @Autowired
+    private IdsEffectLoggingRepository idsEffectLoggingRepository;
+
+    private List<ResearchOptOut> optOutMessages;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        optOutMessages = messageFactory.getResearchOptOuts("all_opt_out.yaml");
+    }
+
+    /**
+     * Message which makes changes to the database and then fails unexpectedly.
+     */
+    private static final class FailsAfterProcessing extends EmapOperationMessage {
+        private final EmapOperationMessage wrapped;
+
+        FailsAfterProcessing(EmapOperationMessage wrapped) {
+            this.wrapped = wrapped;
+        }
+
+        @Override
+        public void processMessage(EmapOperationMessageProcessor processor) throws EmapOperationMessageProcessingException {
+            wrapped.processMessage(processor);
+            throw new IllegalStateException("Failed after processing");
+        }
+    }
+
+    /**
+     * Opt out message which fails unexpectedly within a transactional method, after its patient has been created.
+     */
+    private static final class FailsInsideTransaction extends ResearchOptOut {
+        FailsInsideTransaction(ResearchOptOut optOut) {
+            super(optOut.getNhsNumber(), optOut.getMrn(), optOut.getLastUpdated(), optOut.isActive());
+            setSourceSystem(optOut.getSourceSystem());
+            setSourceMessageId(optOut.getSourceMessageId());
+        }
+
+        @Override
+        public boolean isActive() {
+            throw new IllegalStateException("Failed inside a transactional method");
+        }
+    }
+
+    /**
+     * Given no patients exist in the database
+     * When a batch of three opt out messages is processed, where the second fails after creating its patient
+     * Then the first and third patients should be created, the second rolled back and every message logged.
+     */
+    @Test
+    void testFailingMessageRolledBackAlone() {
+        List<EmapOperationMessage> batch = List.of(
+                optOutMessages.get(0), new FailsAfterProcessing(optOutMessages.get(1)), optOutMessages.get(2));
+
+        List<Boolean> processed = messageBatchProcessor.processBatch(batch);
+
+        assertEquals(List.of(true, false, true), processed);
+        assertTrue(mrnRepo.findByMrnEquals(optOutMessages.get(0).getMrn()).isPresent());
+        assertFalse(mrnRepo.findByMrnEquals(optOutMessages.get(1).getMrn()).isPresent());
+        assertTrue(mrnRepo.findByMrnEquals(optOutMessages.get(2).getMrn()).isPresent());
+        idsEffectLoggingWriter.flush();
+        assertEquals(3, idsEffectLoggingRepository.count());
+    }
+
+    /**
+     * Given no patients exist in the database
+     * When a batch of opt out messages is processed
+     * Then all patients should be created.
+     */
+    @Test
+    void testAllMessagesCommitted() {
+        List<Boolean> processed = messageBatchProcessor.processBatch(optOutMessages);
+
+        assertTrue(processed.stream().allMatch(p -> p));
+        assertEquals(optOutMessages.size(), getAllMrns().size());
+    }
+
+    /**
+     * Given no patients exist in the database
+     * When a batch of three opt out messages is processed, where the second fails within a transactional method
+     * Then only the second message should be rolled back, and the rest of the batch committed.
+     */
+    @Test
+    void testMessageFailingInTransactionalMethodRolledBackAlone() {
+        List<EmapOperationMessage> batch = List.of(
+                optOutMessages.get(0), new FailsInsideTransaction(optOutMessages.get(1)), optOutMessages.get(2));
+
+        List<Boolean> processed = messageBatchProcessor.processBatch(batch);
+
+        assertEquals(List.of(true, false, true), processed);
+        assertTrue(mrnRepo.findByMrnEquals(optOutMessages.get(0).getMrn()).isPresent());
+        assertFalse(mrnRepo.findByMrnEquals(optOutMessages.get(1).getMrn()).isPresent());
+        assertTrue(mrnRepo.findByMrnEquals(optOutMessages.get(2).getMrn()).isPresent());
+        idsEffectLoggingWriter.flush();
+        assertEquals(3, idsEffectLoggingRepository.count());
+    }
+}
@@ -0,0 +1,107 @@
+package uk.ac.ucl.rits.inform.datasinks.emapstar;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import uk.ac.ucl.rits.inform.datasinks.emapstar.concurrent.MrnPartitionedExecutor;
+import uk.ac.ucl.rits.inform.datasinks.emapstar.controllers.LocationController;
+import uk.ac.ucl.rits.inform.datasinks.emapstar.repos.locations.LocationRepository;
+import uk.ac.ucl.rits.inform.informdb.movement.Location;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Test that entities cached by the transaction for one patient can't be used by a transaction for another patient
+ * running in parallel, until the first transaction has committed.
+ */
+@TestPropertySource(properties = "spring.cache.type=caffeine")
+class TestParallelTransactionCaches extends MessageProcessingBase {
+    private static final String LOCATION_STRING = "T42E^T42E BY03^BY03-99";
+
+    @Autowired
+    private CacheManager cacheManager;
+    @Autowired
+    private LocationController locationController;
+    @Autowired
+    private LocationRepository locationRepository;
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    private final MrnPartitionedExecutor executor = new MrnPartitionedExecutor(2);
+
+    @AfterEach
+    void tearDown() {
+        executor.shutdown();
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            if (!latch.await(10, TimeUnit.SECONDS)) {
+                throw new IllegalStateException("Timed out waiting for the other transaction");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Given a transaction for one MRN which creates a location and then rolls back
+     * When a transaction for another MRN looks up the location while the first is still running, and again after it has rolled back
+     * Then the second transaction should not be given the rolled back location, and should create its own
+     * @throws InterruptedException shouldn't happen
+     */
+    @Test
+    void testRolledBackLocationNotCachedForOtherPatient() throws InterruptedException {
+        TransactionTemplate transaction = new TransactionTemplate(transactionManager);
+        Cache locationCache = cacheManager.getCache("location");
+        CountDownLatch created = new CountDownLatch(1);
+        CountDownLatch checked = new CountDownLatch(1);
+        CountDownLatch rolledBack = new CountDownLatch(1);
+        AtomicReference<Cache.ValueWrapper> cachedWhileOpen = new AtomicReference<>();
+        AtomicLong rolledBackLocationId = new AtomicLong();
+        AtomicLong locationId = new AtomicLong();
+
+        executor.execute(List.of("40800001"), () -> {
+            try {
+                transaction.executeWithoutResult(status -> {
+                    rolledBackLocationId.set(locationController.getOrCreateLocation(LOCATION_STRING).getLocationId());
+                    created.countDown();
+                    await(checked);
+                    status.setRollbackOnly();
+                });
+            } finally {
+                rolledBack.countDown();
+            }
+        });
+        executor.execute(List.of("40800002"), () -> {
+            await(created);
+            cachedWhileOpen.set(transaction.execute(status -> locationCache.get(List.of(LOCATION_STRING))));
+            checked.countDown();
+            await(rolledBack);
+            locationId.set(transaction.execute(status -> locationController.getOrCreateLocation(LOCATION_STRING)).getLocationId());
+        });
+        executor.awaitIdle();
+
+        assertNull(cachedWhileOpen.get());
+        assertTrue(locationRepository.findById(locationId.get()).isPresent());
+        assertTrue(locationRepository.findById(rolledBackLocationId.get()).isEmpty());
+        Cache.ValueWrapper cached = locationCache.get(List.of(LOCATION_STRING));
+        assertNotNull(cached);
+        assertEquals(locationId.get(), ((Location) cached.get()).getLocationId());
+    }
+}
@@ -3,6 +3,7 @@ package uk.ac.ucl.rits.inform.datasinks.emapstar;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.annotation.Transactional;
 import uk.ac.ucl.rits.inform.datasinks.emapstar.exceptions.RequiredDataMissingException;
 import uk.ac.ucl.rits.inform.datasinks.emapstar.repos.conditions.ConditionTypeRepository;
 import uk.ac.ucl.rits.inform.datasinks.emapstar.repos.HospitalVisitRepository;
@@ -16,6 +17,8 @@ import uk.ac.ucl.rits.inform.interchange.EmapOperationMessageProcessingException
 import uk.ac.ucl.rits.inform.interchange.InterchangeValue;
 import uk.ac.ucl.rits.inform.interchange.PatientInfection;
 
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
 import java.io.IOException;
 import java.time.Instant;
 import java.time.LocalDate;
@@ -24,6 +27,7 @@ import java.util.List;
 import java.util.Optional;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertNull;
@@ -44,6 +48,8 @@ public class TestPatientInfectionProcessing extends MessageProcessingBase {
     ConditionTypeRepository conditionTypeRepository;
     @Autowired
     HospitalVisitRepository hospitalVisitRepository;
+    @PersistenceContext
+    EntityManager entityManager;
 
     private List<PatientInfection> hooverMessages;
     private PatientInfection hl7Mumps;
@@ -309,6 +315,48 @@ public class TestPatientInfectionProcessing extends MessageProcessingBase {
         assertEquals(MUMPS_ADD_TIME, audit.getAddedDatetime());
     }
 
+    /**
+     * Given Hl7 message for another patient has been processed
+     * When a later hoover message is parsed
+     * Then the other patient's hl7 infection should not be deleted
+     * @throws EmapOperationMessageProcessingException shouldn't happen
+     */
+    @Test
+    void testOtherPatientsHl7InfectionNotDeleted() throws EmapOperationMessageProcessingException {
+        String otherMrn = "40800000";
+        hl7Mumps.setMrn(otherMrn);
+        processSingleMessage(hl7Mumps);
+
+        processSingleMessage(hooverMumps);
+
+        PatientCondition otherInfection = patientConditionRepository
+                .findByMrnIdMrnAndConditionTypeIdInternalCodeAndAddedDatetime(otherMrn, MUMPS_INFECTION, MUMPS_ADD_TIME)
+                .orElseThrow();
+        assertNull(otherInfection.getInternalId());
+        assertTrue(patientConditionAuditRepository.findByPatientConditionId(otherInfection.getPatientConditionId()).isEmpty());
+    }
+
+    /**
+     * Given Hl7 message has been processed, and its infection loaded, in the current transaction
+     * When a later hoover message is parsed in the same transaction
+     * Then only the deleted hl7 infection should be detached, the MRN and condition type should still be managed
+     * @throws EmapOperationMessageProcessingException shouldn't happen
+     */
+    @Test
+    @Transactional
+    void testHl7InfectionDeletionOnlyDetachesDeletedInfection() throws EmapOperationMessageProcessingException {
+        processSingleMessage(hl7Mumps);
+        PatientCondition hl7Infection = patientConditionRepository
+                .findByMrnIdMrnAndConditionTypeIdInternalCodeAndAddedDatetime(MUMPS_MRN, MUMPS_INFECTION, MUMPS_ADD_TIME)
+                .orElseThrow();
+
+        processSingleMessage(hooverMumps);
+
+        assertFalse(entityManager.contains(hl7Infection));
+        assertTrue(entityManager.contains(hl7Infection.getMrnId()));
+        assertTrue(entityManager.contains(hl7Infection.getConditionTypeId()));
+    }
+
     /**
      * Database fields shouldn't update from an older message if they aren't null.
      * @throws EmapOperationMessageProcessingException shouldn't happen
@@ -0,0 +1,62 @@
+package uk.ac.ucl.rits.inform.datasinks.emapstar;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.cache.CacheManager;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.jdbc.Sql;
+import uk.ac.ucl.rits.inform.datasinks.emapstar.controllers.LocationController;
+import uk.ac.ucl.rits.inform.datasinks.emapstar.controllers.ReferenceCacheWarmUp;
+import uk.ac.ucl.rits.inform.informdb.movement.Location;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Test that reference tables are loaded into their caches, under the keys used by the cached get or create methods.
+ */
+@TestPropertySource(properties = {
+        "spring.cache.type=caffeine",
+        "core.cache.visitObservationType.spec=maximumSize=2"})
+class TestReferenceCacheWarmUp extends MessageProcessingBase {
+    @Autowired
+    private CacheManager cacheManager;
+    @Autowired
+    private ReferenceCacheWarmUp referenceCacheWarmUp;
+    @Autowired
+    private LocationController locationController;
+
+    private long locationCacheHits() {
+        Cache<?, ?> locationCache = (Cache<?, ?>) cacheManager.getCache("location").getNativeCache();
+        return locationCache.stats().hitCount();
+    }
+
+    /**
+     * Given locations in the database
+     * When the caches are warmed up and then a location is looked up
+     * Then the location should come from the cache.
+     */
+    @Test
+    @Sql("/populate_db.sql")
+    void testWarmedUpLocationIsCacheHit() {
+        referenceCacheWarmUp.warmUp();
+        long hitsBefore = locationCacheHits();
+
+        Location location = locationController.getOrCreateLocation("T42E^T42E BY03^BY03-17");
+
+        assertEquals(105001, location.getLocationId());
+        assertEquals(hitsBefore + 1, locationCacheHits());
+    }
+
+    /**
+     * Given three visit observation types in the database, and a cache for them with a maximum size of two
+     * When the caches are warmed up
+     * Then only two should be loaded.
+     */
+    @Test
+    @Sql("/populate_db.sql")
+    void testWarmUpLimitedToCacheSize() {
+        referenceCacheWarmUp.warmUp();
+        assertEquals(2, referenceCacheWarmUp.getLoadedCount("visitObservationType"));
+    }
+}
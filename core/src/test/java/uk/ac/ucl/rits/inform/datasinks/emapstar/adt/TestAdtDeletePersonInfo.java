@@ -3,11 +3,14 @@ package uk.ac.ucl.rits.inform.datasinks.emapstar.adt;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.test.context.jdbc.Sql;
+import org.springframework.transaction.annotation.Transactional;
 import uk.ac.ucl.rits.inform.datasinks.emapstar.MessageProcessingBase;
 import uk.ac.ucl.rits.inform.datasinks.emapstar.repos.forms.FormAnswerAuditRepository;
 import uk.ac.ucl.rits.inform.datasinks.emapstar.repos.forms.FormAnswerRepository;
 import uk.ac.ucl.rits.inform.datasinks.emapstar.repos.forms.FormAuditRepository;
 import uk.ac.ucl.rits.inform.datasinks.emapstar.repos.forms.FormRepository;
+import uk.ac.ucl.rits.inform.datasinks.emapstar.repos.HospitalVisitAuditRepository;
+import uk.ac.ucl.rits.inform.datasinks.emapstar.repos.HospitalVisitRepository;
 import uk.ac.ucl.rits.inform.datasinks.emapstar.repos.LocationVisitAuditRepository;
 import uk.ac.ucl.rits.inform.datasinks.emapstar.repos.LocationVisitRepository;
 import uk.ac.ucl.rits.inform.datasinks.emapstar.repos.PlannedMovementAuditRepository;
@@ -16,6 +19,11 @@ import uk.ac.ucl.rits.inform.datasinks.emapstar.repos.labs.LabOrderAuditReposito
 import uk.ac.ucl.rits.inform.datasinks.emapstar.repos.labs.LabOrderRepository;
 import uk.ac.ucl.rits.inform.datasinks.emapstar.repos.labs.LabResultAuditRepository;
 import uk.ac.ucl.rits.inform.datasinks.emapstar.repos.labs.LabResultRepository;
+import uk.ac.ucl.rits.inform.informdb.forms.FormAudit;
+import uk.ac.ucl.rits.inform.informdb.identity.HospitalVisit;
+import uk.ac.ucl.rits.inform.informdb.identity.HospitalVisitAudit;
+import uk.ac.ucl.rits.inform.informdb.identity.Mrn;
+import uk.ac.ucl.rits.inform.informdb.labs.LabOrderAudit;
 import uk.ac.ucl.rits.inform.informdb.labs.LabResultAudit;
 import uk.ac.ucl.rits.inform.informdb.movement.LocationVisit;
 import uk.ac.ucl.rits.inform.informdb.movement.LocationVisitAudit;
@@ -24,7 +32,10 @@ import uk.ac.ucl.rits.inform.interchange.adt.DeletePersonInformation;
 import uk.ac.ucl.rits.inform.interchange.adt.PendingTransfer;
 import uk.ac.ucl.rits.inform.interchange.lab.LabOrderMsg;
 
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
 import java.time.Instant;
+import java.time.temporal.ChronoUnit;
 import java.util.List;
 import java.util.Optional;
 
@@ -65,6 +76,12 @@ class TestAdtDeletePersonInfo extends MessageProcessingBase {
     private PlannedMovementRepository plannedMovementRepo;
     @Autowired
     private PlannedMovementAuditRepository plannedMovementAuditRepo;
+    @Autowired
+    private HospitalVisitAuditRepository hospitalVisitAuditRepo;
+    @Autowired
+    private HospitalVisitRepository hospitalVisitRepository;
+    @PersistenceContext
+    private EntityManager entityManager;
 
 
     private static final String ORIGINAL_LOCATION = "T42E^T42E BY03^BY03-17";
@@ -133,6 +150,61 @@ class TestAdtDeletePersonInfo extends MessageProcessingBase {
         }
     }
 
+    /**
+     * Given lab orders and forms on encounter `123412341234`
+     * When a "delete patient information" message is received for the patient in the encounter
+     * Then the audit rows for the deleted rows should be valid until the message time, including the audited visit
+     * @throws Exception shouldn't happen
+     */
+    @Test
+    @Sql("/populate_db.sql")
+    void testDeletedRowsAuditedUntilMessageTime() throws Exception {
+        for (var loMsg : messageFactory.getLabOrders("winpath/ORU_R01.yaml", "0000040")) {
+            dbOps.processMessage(loMsg);
+        }
+        DeletePersonInformation msg = messageFactory.getAdtMessage("generic/A29.yaml");
+        Instant messageTime = Instant.now().truncatedTo(ChronoUnit.SECONDS);
+        msg.setEventOccurredDateTime(messageTime);
+
+        dbOps.processMessage(msg);
+
+        List<LabOrderAudit> labOrderAudits = labOrderAuditRepository.findAllByHospitalVisitIdIn(List.of(DEFAULT_HOSPITAL_VISIT_ID));
+        assertFalse(labOrderAudits.isEmpty());
+        for (LabOrderAudit audit : labOrderAudits) {
+            assertEquals(messageTime, audit.getValidUntil());
+            assertNotNull(audit.getStoredUntil());
+        }
+        List<FormAudit> formAudits = getAllEntities(formAuditRepository);
+        assertFalse(formAudits.isEmpty());
+        for (FormAudit audit : formAudits) {
+            assertEquals(messageTime, audit.getValidUntil());
+        }
+        HospitalVisitAudit visitAudit = hospitalVisitAuditRepo.findByEncounter(defaultEncounter);
+        assertEquals(DEFAULT_HOSPITAL_VISIT_ID, visitAudit.getHospitalVisitId());
+        assertEquals(messageTime, visitAudit.getValidUntil());
+    }
+
+    /**
+     * Given a patient's MRN and visit loaded in the current transaction
+     * When a "delete patient information" message is processed in the same transaction
+     * Then only the deleted visit should be detached, the MRN should still be managed
+     * @throws Exception shouldn't happen
+     */
+    @Test
+    @Transactional
+    @Sql("/populate_db.sql")
+    void testDeletionOnlyDetachesDeletedRows() throws Exception {
+        Mrn mrn = mrnRepo.findByMrnEquals(defaultMrn).orElseThrow();
+        HospitalVisit visit = hospitalVisitRepository.findByEncounter(defaultEncounter).orElseThrow();
+        DeletePersonInformation msg = messageFactory.getAdtMessage("generic/A29.yaml");
+
+        dbOps.processMessage(msg);
+
+        assertTrue(entityManager.contains(mrn));
+        assertFalse(entityManager.contains(visit));
+        assertTrue(hospitalVisitRepository.findByEncounter(defaultEncounter).isEmpty());
+    }
+
     /**
      * @throws Exception shouldn't happen
      */
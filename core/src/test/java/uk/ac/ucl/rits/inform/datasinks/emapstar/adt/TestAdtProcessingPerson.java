@@ -4,11 +4,14 @@ import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.test.context.jdbc.Sql;
 import uk.ac.ucl.rits.inform.datasinks.emapstar.MessageProcessingBase;
+import uk.ac.ucl.rits.inform.datasinks.emapstar.controllers.IdentityCache;
 import uk.ac.ucl.rits.inform.datasinks.emapstar.repos.CoreDemographicAuditRepository;
 import uk.ac.ucl.rits.inform.datasinks.emapstar.repos.CoreDemographicRepository;
+import uk.ac.ucl.rits.inform.datasinks.emapstar.repos.HospitalVisitRepository;
 import uk.ac.ucl.rits.inform.datasinks.emapstar.repos.MrnToLiveAuditRepository;
 import uk.ac.ucl.rits.inform.informdb.demographics.CoreDemographic;
 import uk.ac.ucl.rits.inform.informdb.demographics.CoreDemographicAudit;
+import uk.ac.ucl.rits.inform.informdb.identity.HospitalVisit;
 import uk.ac.ucl.rits.inform.informdb.identity.Mrn;
 import uk.ac.ucl.rits.inform.informdb.identity.MrnToLive;
 import uk.ac.ucl.rits.inform.informdb.identity.MrnToLiveAudit;
@@ -42,6 +45,12 @@ class TestAdtProcessingPerson extends MessageProcessingBase {
     @Autowired
     private MrnToLiveAuditRepository mrnToLiveAuditRepository;
 
+    @Autowired
+    private HospitalVisitRepository hospitalVisitRepository;
+
+    @Autowired
+    private IdentityCache identityCache;
+
     private List<CoreDemographicAudit> getAllAuditCoreDemographics() {
         return StreamSupport.stream(coreDemographicAuditRepository.findAll().spliterator(), false).collect(Collectors.toList());
     }
@@ -475,4 +484,29 @@ class TestAdtProcessingPerson extends MessageProcessingBase {
         assertEquals(2, mrns.size());
     }
 
+    /**
+     * Live MRNs are cached between messages, so after a merge the retired MRN's cached live MRN shouldn't be used.
+     * @throws Exception shouldn't happen
+     */
+    @Test
+    void testIdentityCacheInvalidatedByMerge() throws Exception {
+        AdmitPatient admit = messageFactory.getAdtMessage("generic/A01.yaml");
+        dbOps.processMessage(admit);
+        dbOps.processMessage(admit);
+        assertTrue(identityCache.getMrnStats().hitCount() > 0);
+        assertTrue(identityCache.getVisitStats().hitCount() > 0);
+
+        MergePatient merge = messageFactory.getAdtMessage("generic/A40.yaml");
+        merge.setNhsNumber(null);
+        merge.setRecordedDateTime(admit.getRecordedDateTime().plus(1, ChronoUnit.HOURS));
+        dbOps.processMessage(merge);
+
+        String newEncounter = "9876543210";
+        admit.setVisitNumber(newEncounter);
+        dbOps.processMessage(admit);
+        Mrn survivingMrn = mrnRepo.getByMrnEquals("40800001").orElseThrow();
+        HospitalVisit visit = hospitalVisitRepository.findByEncounter(newEncounter).orElseThrow();
+        assertEquals(survivingMrn.getMrnId(), visit.getMrnId().getMrnId());
+    }
+
 }
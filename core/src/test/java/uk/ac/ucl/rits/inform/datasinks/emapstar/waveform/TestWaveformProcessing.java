@@ -12,6 +12,8 @@ import uk.ac.ucl.rits.inform.datasinks.emapstar.repos.visit_observations.Wavefor
 import uk.ac.ucl.rits.inform.informdb.visit_recordings.VisitObservationType;
 import uk.ac.ucl.rits.inform.informdb.visit_recordings.Waveform;
 import uk.ac.ucl.rits.inform.interchange.EmapOperationMessageProcessingException;
+import uk.ac.ucl.rits.inform.interchange.InterchangeValue;
+import uk.ac.ucl.rits.inform.interchange.adt.DischargePatient;
 import uk.ac.ucl.rits.inform.interchange.visit_observations.WaveformMessage;
 
 import java.io.IOException;
@@ -28,9 +30,11 @@ import java.util.Set;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 class TestWaveformProcessing extends MessageProcessingBase {
@@ -139,7 +143,7 @@ class TestWaveformProcessing extends MessageProcessingBase {
             for (var row: waveformRows) {
                 assertTrue(row.getValuesArray().length <= test.maxSamplesPerMessage);
                 assertEquals(test.unit, row.getUnit());
-                actualDataPointsAtLocation.addAll(Arrays.asList(row.getValuesArray()));
+                Arrays.stream(row.getValuesArray()).forEach(actualDataPointsAtLocation::add);
             }
             checkLooksLikeSineWave(actualDataPointsAtLocation);
 
@@ -175,6 +179,64 @@ class TestWaveformProcessing extends MessageProcessingBase {
         }
     }
 
+    /**
+     * Given a waveform type which declares that its values are stored as quantised differences
+     * When waveform messages for that type are processed
+     * Then the values should be stored as bytes instead of an array, and decode to within the quantisation step.
+     */
+    @Test
+    void testWaveformTypeDeclaresEncoding() throws EmapOperationMessageProcessingException {
+        List<WaveformMessage> messages = messageFactory.getWaveformMsgs("23", "stream 23", 300, 600, 300,
+                "source1", "T11E^T11E BY02^BY02-25", Instant.parse("2010-09-10T12:00:00Z"), "stream23unit", null);
+        processSingleMessage(messages.get(0));
+        VisitObservationType type = visitObservationTypeRepository.findAllBySourceObservationType("waveform").get(0);
+        type.setWaveformEncoding("DELTA_QUANTISED");
+        type.setWaveformQuantisationStep(0.001);
+        visitObservationTypeRepository.save(type);
+
+        processSingleMessage(messages.get(1));
+
+        List<Waveform> rows = new ArrayList<>();
+        waveformRepository.findAllBySourceLocationOrderByObservationDatetime("source1").forEach(rows::add);
+        assertEquals(2, rows.size());
+        assertNull(rows.get(0).getValuesBytes());
+        assertNull(rows.get(1).getValuesArray());
+        double[] expected = messages.get(1).getNumericValues().get();
+        double[] actual = rows.get(1).decodeValues();
+        assertArrayEquals(expected, actual, 0.0005);
+    }
+
+    /**
+     * Given waveform data has been linked to an open location visit (so the location is in the index)
+     * When the patient is discharged from that location
+     * Then later waveform data at the location should not be linked to the visit, but earlier data still should be.
+     */
+    @Test
+    @Sql("/populate_db.sql")
+    void testWaveformVisitAfterDischarge() throws EmapOperationMessageProcessingException, IOException {
+        String location = "T42E^T42E BY03^BY03-17";
+        Instant dischargeTime = Instant.parse("2010-09-21T12:00:00Z");
+        processSingleMessage(messageFactory.getWaveformMsgs("24", "stream 24", 50, 50, 50,
+                "source1", location, dischargeTime.minus(1, ChronoUnit.DAYS), "stream24unit", null).get(0));
+
+        DischargePatient discharge = messageFactory.getAdtMessage("generic/A03.yaml");
+        discharge.setFullLocationString(InterchangeValue.buildFromHl7(location));
+        discharge.setDischargeDateTime(dischargeTime);
+        processSingleMessage(discharge);
+
+        processSingleMessage(messageFactory.getWaveformMsgs("24", "stream 24", 50, 50, 50,
+                "source2", location, dischargeTime.plus(1, ChronoUnit.HOURS), "stream24unit", null).get(0));
+        processSingleMessage(messageFactory.getWaveformMsgs("24", "stream 24", 50, 50, 50,
+                "source3", location, dischargeTime.minus(1, ChronoUnit.HOURS), "stream24unit", null).get(0));
+
+        Waveform beforeDischarge = waveformRepository.findAllBySourceLocationOrderByObservationDatetime("source1").iterator().next();
+        Waveform afterDischarge = waveformRepository.findAllBySourceLocationOrderByObservationDatetime("source2").iterator().next();
+        Waveform lateBeforeDischarge = waveformRepository.findAllBySourceLocationOrderByObservationDatetime("source3").iterator().next();
+        assertEquals(106002L, beforeDischarge.getLocationVisitId().getLocationVisitId());
+        assertNull(afterDischarge.getLocationVisitId());
+        assertEquals(106002L, lateBeforeDischarge.getLocationVisitId().getLocationVisitId());
+    }
+
     /**
      * Does the list of points look roughly like a sine wave?
      * A triangular wave would probably pass too, but the most likely error is that
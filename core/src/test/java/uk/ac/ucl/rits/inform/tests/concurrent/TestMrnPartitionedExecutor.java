@@ -0,0 +1,120 @@
+package uk.ac.ucl.rits.inform.tests.concurrent;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.platform.commons.annotation.Testable;
+
+import uk.ac.ucl.rits.inform.datasinks.emapstar.concurrent.MrnPartitionedExecutor;
+
+/**
+ * Tests for the MRN partitioned executor.
+ */
+@Testable
+public class TestMrnPartitionedExecutor {
+    private MrnPartitionedExecutor executor;
+
+    @BeforeEach
+    public void setUp() {
+        executor = new MrnPartitionedExecutor(4);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Tasks for the same MRN should run in the order they were submitted.
+     * @throws InterruptedException shouldn't happen
+     */
+    @Test
+    public void testSameMrnRunsInOrder() throws InterruptedException {
+        List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+        for (int i = 0; i < 20; i++) {
+            int taskNumber = i;
+            executor.execute(List.of("1"), () -> {
+                try {
+                    // later tasks would overtake earlier ones if they weren't waiting for the lock
+                    Thread.sleep(taskNumber % 2 == 0 ? 5 : 0);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                order.add(taskNumber);
+            });
+        }
+        executor.awaitIdle();
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            expected.add(i);
+        }
+        assertEquals(expected, order);
+    }
+
+    /**
+     * Tasks for different MRNs should run at the same time.
+     * @throws InterruptedException shouldn't happen
+     */
+    @Test
+    public void testDifferentMrnsRunInParallel() throws InterruptedException {
+        CountDownLatch bothStarted = new CountDownLatch(2);
+        CountDownLatch finished = new CountDownLatch(2);
+        Runnable waitForOther = () -> {
+            bothStarted.countDown();
+            try {
+                if (bothStarted.await(5, TimeUnit.SECONDS)) {
+                    finished.countDown();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        };
+        executor.execute(List.of("1"), waitForOther);
+        executor.execute(List.of("2"), waitForOther);
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * A task with no MRNs should wait for all running tasks to finish, and block further tasks until it has run.
+     * @throws InterruptedException shouldn't happen
+     */
+    @Test
+    public void testExclusiveWaitsForRunningTasks() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+        executor.execute(List.of("1"), () -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        CountDownLatch exclusiveRun = new CountDownLatch(1);
+        Thread submitter = new Thread(() -> {
+            try {
+                executor.execute(null, exclusiveRun::countDown);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        submitter.start();
+        assertFalse(exclusiveRun.await(200, TimeUnit.MILLISECONDS));
+
+        release.countDown();
+        assertTrue(exclusiveRun.await(5, TimeUnit.SECONDS));
+        submitter.join();
+    }
+}
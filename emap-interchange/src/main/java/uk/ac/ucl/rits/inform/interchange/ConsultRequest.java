@@ -1,5 +1,6 @@
 package uk.ac.ucl.rits.inform.interchange;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonTypeInfo;
 import lombok.Data;
 import lombok.EqualsAndHashCode;
@@ -7,6 +8,7 @@ import lombok.NoArgsConstructor;
 
 import java.io.Serializable;
 import java.time.Instant;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -87,4 +89,14 @@ public class ConsultRequest extends EmapOperationMessage implements Serializable
             throws EmapOperationMessageProcessingException {
         processor.processMessage(this);
     }
+
+    /**
+     * Patient data for the message MRN can be changed.
+     * @return {@inheritDoc}
+     */
+    @Override
+    @JsonIgnore
+    public Collection<String> getAffectedMrns() {
+        return uniqueMrnsOrExclusive(getMrn());
+    }
 }
@@ -4,7 +4,10 @@ import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonTypeInfo;
 
 import java.io.Serializable;
+import java.util.Collection;
+import java.util.List;
 import java.util.Objects;
+import java.util.TreeSet;
 
 /**
  * Emap interchange message classes must implement this interface.
@@ -35,6 +38,36 @@ public abstract class EmapOperationMessage implements Serializable {
         return this.getClass().getName();
     }
 
+    /**
+     * MRNs of the patients whose data could be changed by processing this message.
+     * <p>
+     * Used so that messages for different patients can be processed concurrently, while messages for the same patient
+     * are processed in order. Messages which change shared data (e.g. metadata) should keep the default so that they are
+     * processed on their own.
+     * @return unique MRNs, an empty collection if no patient data can be changed, or null if the message must be processed
+     * exclusively of all other messages
+     */
+    @JsonIgnore
+    public Collection<String> getAffectedMrns() {
+        return null;
+    }
+
+    /**
+     * Helper for {@link EmapOperationMessage#getAffectedMrns()} implementations.
+     * @param mrns MRNs that the message refers to
+     * @return unique MRNs in sorted order, or null if any MRN is missing, as the patient can't be identified without the database
+     */
+    protected static Collection<String> uniqueMrnsOrExclusive(String... mrns) {
+        TreeSet<String> uniqueMrns = new TreeSet<>();
+        for (String mrn : mrns) {
+            if (mrn == null || mrn.isEmpty()) {
+                return null;
+            }
+            uniqueMrns.add(mrn);
+        }
+        return List.copyOf(uniqueMrns);
+    }
+
     /**
      * A unique message ID that makes sense to the source system (eg, the IDS unid).
      * @return the message ID
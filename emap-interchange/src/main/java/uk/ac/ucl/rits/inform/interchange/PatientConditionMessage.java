@@ -1,5 +1,6 @@
 package uk.ac.ucl.rits.inform.interchange;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonTypeInfo;
 import lombok.Data;
 import lombok.EqualsAndHashCode;
@@ -7,6 +8,7 @@ import lombok.ToString;
 
 import java.time.Instant;
 import java.time.LocalDate;
+import java.util.Collection;
 
 /**
  * Interface defining a patient condition message, either a 'problem' (aka. problem list) or an infection
@@ -88,4 +90,14 @@ public abstract class PatientConditionMessage extends EmapOperationMessage {
      */
     public abstract void processMessage(EmapOperationMessageProcessor processor)
             throws EmapOperationMessageProcessingException;
+
+    /**
+     * Patient data for the message MRN can be changed.
+     * @return {@inheritDoc}
+     */
+    @Override
+    @JsonIgnore
+    public Collection<String> getAffectedMrns() {
+        return uniqueMrnsOrExclusive(getMrn());
+    }
 }
@@ -1,5 +1,6 @@
 package uk.ac.ucl.rits.inform.interchange;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonTypeInfo;
 import lombok.AllArgsConstructor;
 import lombok.Data;
@@ -8,6 +9,7 @@ import lombok.NoArgsConstructor;
 import lombok.ToString;
 
 import java.time.Instant;
+import java.util.Collection;
 
 @Data
 @EqualsAndHashCode(callSuper = true)
@@ -45,4 +47,14 @@ public class ResearchOptOut extends EmapOperationMessage {
     public void processMessage(EmapOperationMessageProcessor processor) throws EmapOperationMessageProcessingException {
         processor.processMessage(this);
     }
+
+    /**
+     * Patient data for the message MRN can be changed.
+     * @return {@inheritDoc}
+     */
+    @Override
+    @JsonIgnore
+    public Collection<String> getAffectedMrns() {
+        return uniqueMrnsOrExclusive(mrn);
+    }
 }
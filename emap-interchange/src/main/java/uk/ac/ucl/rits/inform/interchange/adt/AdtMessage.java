@@ -1,5 +1,6 @@
 package uk.ac.ucl.rits.inform.interchange.adt;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonTypeInfo;
 import lombok.Data;
 import lombok.EqualsAndHashCode;
@@ -9,6 +10,7 @@ import uk.ac.ucl.rits.inform.interchange.InterchangeValue;
 
 import java.time.Instant;
 import java.time.LocalDate;
+import java.util.Collection;
 
 /**
  * An interchange message describing patient movements or info. Closely corresponds
@@ -53,4 +55,14 @@ public abstract class AdtMessage extends EmapOperationMessage {
     public Instant bestGuessAtValidFrom() {
         return (eventOccurredDateTime == null) ? recordedDateTime : eventOccurredDateTime;
     }
+
+    /**
+     * Patient data for the message MRN can be changed.
+     * @return {@inheritDoc}
+     */
+    @Override
+    @JsonIgnore
+    public Collection<String> getAffectedMrns() {
+        return uniqueMrnsOrExclusive(getMrn());
+    }
 }
@@ -1,11 +1,14 @@
 package uk.ac.ucl.rits.inform.interchange.adt;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import lombok.Data;
 import lombok.EqualsAndHashCode;
 import lombok.ToString;
 import uk.ac.ucl.rits.inform.interchange.EmapOperationMessageProcessingException;
 import uk.ac.ucl.rits.inform.interchange.EmapOperationMessageProcessor;
 
+import java.util.Collection;
+
 /**
  * Change patient identifiers
  * HL7 messages: A47
@@ -22,4 +25,14 @@ public class ChangePatientIdentifiers extends AdtMessage implements PreviousIden
     public void processMessage(EmapOperationMessageProcessor processor) throws EmapOperationMessageProcessingException {
         processor.processMessage(this);
     }
+
+    /**
+     * Both the previous and the new MRN are changed.
+     * @return {@inheritDoc}
+     */
+    @Override
+    @JsonIgnore
+    public Collection<String> getAffectedMrns() {
+        return uniqueMrnsOrExclusive(getMrn(), previousMrn);
+    }
 }
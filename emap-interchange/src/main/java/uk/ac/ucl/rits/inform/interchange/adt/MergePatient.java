@@ -1,11 +1,14 @@
 package uk.ac.ucl.rits.inform.interchange.adt;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import lombok.Data;
 import lombok.EqualsAndHashCode;
 import lombok.ToString;
 import uk.ac.ucl.rits.inform.interchange.EmapOperationMessageProcessingException;
 import uk.ac.ucl.rits.inform.interchange.EmapOperationMessageProcessor;
 
+import java.util.Collection;
+
 /**
  * Merge the entire record of two patients.
  * HL7 messages: A40
@@ -24,4 +27,14 @@ public class MergePatient extends AdtMessage implements PreviousIdentifiers {
     public void processMessage(EmapOperationMessageProcessor processor) throws EmapOperationMessageProcessingException {
         processor.processMessage(this);
     }
+
+    /**
+     * Both the surviving and the retired MRN are changed by a merge.
+     * @return {@inheritDoc}
+     */
+    @Override
+    @JsonIgnore
+    public Collection<String> getAffectedMrns() {
+        return uniqueMrnsOrExclusive(getMrn(), previousMrn);
+    }
 }
@@ -1,11 +1,14 @@
 package uk.ac.ucl.rits.inform.interchange.adt;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import lombok.Data;
 import lombok.EqualsAndHashCode;
 import lombok.ToString;
 import uk.ac.ucl.rits.inform.interchange.EmapOperationMessageProcessingException;
 import uk.ac.ucl.rits.inform.interchange.EmapOperationMessageProcessor;
 
+import java.util.Collection;
+
 /**
  * Move visit from previous MRN and visit number to current.
  * HL7 messages: A45
@@ -23,4 +26,14 @@ public class MoveVisitInformation extends AdtMessage implements PreviousIdentifi
     public void processMessage(EmapOperationMessageProcessor processor) throws EmapOperationMessageProcessingException {
         processor.processMessage(this);
     }
+
+    /**
+     * The visit is moved between the previous and the new MRN, so both are changed.
+     * @return {@inheritDoc}
+     */
+    @Override
+    @JsonIgnore
+    public Collection<String> getAffectedMrns() {
+        return uniqueMrnsOrExclusive(getMrn(), previousMrn);
+    }
 }
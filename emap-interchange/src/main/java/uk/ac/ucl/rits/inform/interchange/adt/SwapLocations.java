@@ -1,5 +1,6 @@
 package uk.ac.ucl.rits.inform.interchange.adt;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import lombok.Data;
 import lombok.EqualsAndHashCode;
 import lombok.ToString;
@@ -7,6 +8,8 @@ import uk.ac.ucl.rits.inform.interchange.EmapOperationMessageProcessingException
 import uk.ac.ucl.rits.inform.interchange.EmapOperationMessageProcessor;
 import uk.ac.ucl.rits.inform.interchange.InterchangeValue;
 
+import java.util.Collection;
+
 /**
  * Swap two patients' locations.
  * Contains information about two patients locations that should be swapped.
@@ -27,4 +30,14 @@ public class SwapLocations extends AdtMessage {
     public void processMessage(EmapOperationMessageProcessor processor) throws EmapOperationMessageProcessingException {
         processor.processMessage(this);
     }
+
+    /**
+     * Both patients whose locations are swapped are changed.
+     * @return {@inheritDoc}
+     */
+    @Override
+    @JsonIgnore
+    public Collection<String> getAffectedMrns() {
+        return uniqueMrnsOrExclusive(getMrn(), otherMrn);
+    }
 }
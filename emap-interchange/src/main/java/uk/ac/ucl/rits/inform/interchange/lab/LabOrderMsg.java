@@ -12,6 +12,7 @@ import uk.ac.ucl.rits.inform.interchange.InterchangeValue;
 import java.io.Serializable;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -105,4 +106,14 @@ public class LabOrderMsg extends EmapOperationMessage implements Serializable {
             throws EmapOperationMessageProcessingException {
         processor.processMessage(this);
     }
+
+    /**
+     * Patient data for the message MRN can be changed.
+     * @return {@inheritDoc}
+     */
+    @Override
+    @JsonIgnore
+    public Collection<String> getAffectedMrns() {
+        return uniqueMrnsOrExclusive(getMrn());
+    }
 }
@@ -0,0 +1,176 @@
+package uk.ac.ucl.rits.inform.interchange.messaging;
+
+import com.fasterxml.jackson.annotation.JsonTypeInfo;
+import com.fasterxml.jackson.databind.DatabindContext;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.cfg.MapperConfig;
+import com.fasterxml.jackson.databind.introspect.AnnotatedClass;
+import com.fasterxml.jackson.databind.introspect.NopAnnotationIntrospector;
+import com.fasterxml.jackson.databind.jsontype.PolymorphicTypeValidator;
+import com.fasterxml.jackson.databind.jsontype.TypeResolverBuilder;
+import com.fasterxml.jackson.databind.jsontype.impl.ClassNameIdResolver;
+import com.fasterxml.jackson.databind.jsontype.impl.StdTypeResolverBuilder;
+import com.fasterxml.jackson.databind.type.TypeFactory;
+import uk.ac.ucl.rits.inform.interchange.AdvanceDecisionMessage;
+import uk.ac.ucl.rits.inform.interchange.ConsultMetadata;
+import uk.ac.ucl.rits.inform.interchange.ConsultRequest;
+import uk.ac.ucl.rits.inform.interchange.InterchangeValue;
+import uk.ac.ucl.rits.inform.interchange.PatientAllergy;
+import uk.ac.ucl.rits.inform.interchange.PatientInfection;
+import uk.ac.ucl.rits.inform.interchange.PatientProblem;
+import uk.ac.ucl.rits.inform.interchange.ResearchOptOut;
+import uk.ac.ucl.rits.inform.interchange.adt.AdmitPatient;
+import uk.ac.ucl.rits.inform.interchange.adt.CancelAdmitPatient;
+import uk.ac.ucl.rits.inform.interchange.adt.CancelDischargePatient;
+import uk.ac.ucl.rits.inform.interchange.adt.CancelPendingTransfer;
+import uk.ac.ucl.rits.inform.interchange.adt.CancelTransferPatient;
+import uk.ac.ucl.rits.inform.interchange.adt.ChangePatientIdentifiers;
+import uk.ac.ucl.rits.inform.interchange.adt.DeletePersonInformation;
+import uk.ac.ucl.rits.inform.interchange.adt.DischargePatient;
+import uk.ac.ucl.rits.inform.interchange.adt.ImpliedAdtMessage;
+import uk.ac.ucl.rits.inform.interchange.adt.MergePatient;
+import uk.ac.ucl.rits.inform.interchange.adt.MoveVisitInformation;
+import uk.ac.ucl.rits.inform.interchange.adt.PendingTransfer;
+import uk.ac.ucl.rits.inform.interchange.adt.RegisterPatient;
+import uk.ac.ucl.rits.inform.interchange.adt.SwapLocations;
+import uk.ac.ucl.rits.inform.interchange.adt.TransferPatient;
+import uk.ac.ucl.rits.inform.interchange.adt.UpdatePatientInfo;
+import uk.ac.ucl.rits.inform.interchange.form.FormAnswerMsg;
+import uk.ac.ucl.rits.inform.interchange.form.FormMetadataMsg;
+import uk.ac.ucl.rits.inform.interchange.form.FormMsg;
+import uk.ac.ucl.rits.inform.interchange.form.FormQuestionMetadataMsg;
+import uk.ac.ucl.rits.inform.interchange.lab.LabIsolateMsg;
+import uk.ac.ucl.rits.inform.interchange.lab.LabMetadataMsg;
+import uk.ac.ucl.rits.inform.interchange.lab.LabOrderMsg;
+import uk.ac.ucl.rits.inform.interchange.lab.LabResultMsg;
+import uk.ac.ucl.rits.inform.interchange.location.BedMetadata;
+import uk.ac.ucl.rits.inform.interchange.location.DepartmentMetadata;
+import uk.ac.ucl.rits.inform.interchange.location.LocationMetadata;
+import uk.ac.ucl.rits.inform.interchange.location.RoomMetadata;
+import uk.ac.ucl.rits.inform.interchange.visit_observations.Flowsheet;
+import uk.ac.ucl.rits.inform.interchange.visit_observations.FlowsheetMetadata;
+import uk.ac.ucl.rits.inform.interchange.visit_observations.WaveformMessage;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Replaces the full class names that interchange classes use as type IDs (from their
+ * {@code @JsonTypeInfo(use = CLASS)} annotations) with short registered names, in an {@code @type} property.
+ * <p>
+ * Every message and every {@link InterchangeValue} in it carries a type ID, so for small values the class names can
+ * be most of the message. Classes that aren't registered here still work, using their full class name.
+ * Registered names must never be changed or reused, as messages using them may still be on the queue.
+ * <p>
+ * Use as the primary introspector, paired with the mapper's existing one, which it defers to for everything else.
+ */
+public class CompactTypeIdIntrospector extends NopAnnotationIntrospector {
+    /**
+     * Property holding the type ID, different to the one used in JSON so the two can't be confused.
+     */
+    public static final String TYPE_PROPERTY = "@type";
+    private static final List<Class<?>> REGISTERED_TYPES = List.of(
+            InterchangeValue.class,
+            AdvanceDecisionMessage.class,
+            ConsultMetadata.class,
+            ConsultRequest.class,
+            PatientAllergy.class,
+            PatientInfection.class,
+            PatientProblem.class,
+            ResearchOptOut.class,
+            AdmitPatient.class,
+            CancelAdmitPatient.class,
+            CancelDischargePatient.class,
+            CancelPendingTransfer.class,
+            CancelTransferPatient.class,
+            ChangePatientIdentifiers.class,
+            DeletePersonInformation.class,
+            DischargePatient.class,
+            ImpliedAdtMessage.class,
+            MergePatient.class,
+            MoveVisitInformation.class,
+            PendingTransfer.class,
+            RegisterPatient.class,
+            SwapLocations.class,
+            TransferPatient.class,
+            UpdatePatientInfo.class,
+            FormAnswerMsg.class,
+            FormMetadataMsg.class,
+            FormMsg.class,
+            FormQuestionMetadataMsg.class,
+            LabIsolateMsg.class,
+            LabMetadataMsg.class,
+            LabOrderMsg.class,
+            LabResultMsg.class,
+            BedMetadata.class,
+            DepartmentMetadata.class,
+            LocationMetadata.class,
+            RoomMetadata.class,
+            Flowsheet.class,
+            FlowsheetMetadata.class,
+            WaveformMessage.class
+    );
+    private static final Map<Class<?>, String> IDS_BY_TYPE = new HashMap<>();
+    private static final Map<String, Class<?>> TYPES_BY_ID = new HashMap<>();
+
+    static {
+        for (Class<?> type : REGISTERED_TYPES) {
+            String id = type.getSimpleName();
+            if (TYPES_BY_ID.put(id, type) != null) {
+                throw new IllegalStateException(String.format("Type ID %s registered twice", id));
+            }
+            IDS_BY_TYPE.put(type, id);
+        }
+    }
+
+    @Override
+    public TypeResolverBuilder<?> findTypeResolver(MapperConfig<?> config, AnnotatedClass ac, JavaType baseType) {
+        JsonTypeInfo typeInfo = ac.getAnnotation(JsonTypeInfo.class);
+        if (typeInfo == null || typeInfo.use() != JsonTypeInfo.Id.CLASS) {
+            return null;
+        }
+        CompactTypeIdResolver idResolver = new CompactTypeIdResolver(
+                baseType, config.getTypeFactory(), config.getPolymorphicTypeValidator());
+        return new StdTypeResolverBuilder()
+                .init(JsonTypeInfo.Id.CUSTOM, idResolver)
+                .inclusion(JsonTypeInfo.As.PROPERTY)
+                .typeProperty(TYPE_PROPERTY);
+    }
+
+    /**
+     * Uses the registered name if there is one, otherwise the full class name.
+     */
+    private static final class CompactTypeIdResolver extends ClassNameIdResolver {
+        CompactTypeIdResolver(JavaType baseType, TypeFactory typeFactory, PolymorphicTypeValidator validator) {
+            super(baseType, typeFactory, validator);
+        }
+
+        @Override
+        public String idFromValue(Object value) {
+            String id = IDS_BY_TYPE.get(value.getClass());
+            return id == null ? super.idFromValue(value) : id;
+        }
+
+        @Override
+        public String idFromValueAndType(Object value, Class<?> type) {
+            String id = IDS_BY_TYPE.get(type);
+            return id == null ? super.idFromValueAndType(value, type) : id;
+        }
+
+        @Override
+        public JavaType typeFromId(DatabindContext context, String id) throws IOException {
+            Class<?> type = TYPES_BY_ID.get(id);
+            if (type == null) {
+                return super.typeFromId(context, id);
+            }
+            return context.getTypeFactory().constructSpecializedType(_baseType, type);
+        }
+
+        @Override
+        public JsonTypeInfo.Id getMechanism() {
+            return JsonTypeInfo.Id.CUSTOM;
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package uk.ac.ucl.rits.inform.interchange.messaging;
+
+/**
+ * Serialisation formats for interchange messages on the queue. Only the sender needs to choose, as the receiver
+ * recognises each one by its AMQP content type.
+ */
+public enum InterchangeFormat {
+    /**
+     * JSON, with full class names as type IDs.
+     */
+    JSON("application/json"),
+    /**
+     * Jackson's binary JSON, with compact type IDs (see {@link CompactTypeIdIntrospector}).
+     */
+    SMILE("application/x-jackson-smile"),
+    /**
+     * CBOR (RFC 8949), with compact type IDs (see {@link CompactTypeIdIntrospector}).
+     */
+    CBOR("application/cbor");
+
+    private final String contentType;
+
+    InterchangeFormat(String contentType) {
+        this.contentType = contentType;
+    }
+
+    /**
+     * @return AMQP content type of messages in this format
+     */
+    public String getContentType() {
+        return contentType;
+    }
+}
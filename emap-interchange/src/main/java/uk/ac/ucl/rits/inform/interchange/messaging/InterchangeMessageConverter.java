@@ -0,0 +1,84 @@
+package uk.ac.ucl.rits.inform.interchange.messaging;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.AnnotationIntrospector;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.support.converter.Jackson2JsonMessageConverter;
+import org.springframework.amqp.support.converter.MessageConversionException;
+import org.springframework.amqp.support.converter.MessageConverter;
+import uk.ac.ucl.rits.inform.interchange.EmapOperationMessage;
+
+import java.io.IOException;
+
+/**
+ * Converts interchange messages to and from JSON, Smile or CBOR.
+ * <p>
+ * Messages are sent in one configured format, but received in whichever format their AMQP content type says,
+ * so a queue can hold a mixture while senders are switched over. Messages with no content type are assumed to be
+ * JSON. The binary formats use compact type IDs (see {@link CompactTypeIdIntrospector}) rather than class names.
+ */
+public class InterchangeMessageConverter implements MessageConverter {
+    private final InterchangeFormat sendFormat;
+    private final MessageConverter jsonConverter;
+    private final ObjectMapper smileMapper;
+    private final ObjectMapper cborMapper;
+
+    /**
+     * @param sendFormat format to send messages in
+     */
+    public InterchangeMessageConverter(InterchangeFormat sendFormat) {
+        this.sendFormat = sendFormat;
+        jsonConverter = new Jackson2JsonMessageConverter(new ObjectMapper().findAndRegisterModules());
+        smileMapper = binaryMapper(new SmileFactory());
+        cborMapper = binaryMapper(new CBORFactory());
+    }
+
+    /**
+     * @param factory factory for the binary format
+     * @return a mapper that finds the same modules as for JSON, but uses compact type IDs
+     */
+    private static ObjectMapper binaryMapper(JsonFactory factory) {
+        ObjectMapper mapper = new ObjectMapper(factory).findAndRegisterModules();
+        AnnotationIntrospector introspector = mapper.getSerializationConfig().getAnnotationIntrospector();
+        return mapper.setAnnotationIntrospector(AnnotationIntrospector.pair(new CompactTypeIdIntrospector(), introspector));
+    }
+
+    @Override
+    public Message toMessage(Object object, MessageProperties messageProperties) throws MessageConversionException {
+        if (sendFormat == InterchangeFormat.JSON) {
+            return jsonConverter.toMessage(object, messageProperties);
+        }
+        ObjectMapper mapper = sendFormat == InterchangeFormat.SMILE ? smileMapper : cborMapper;
+        byte[] body;
+        try {
+            body = mapper.writeValueAsBytes(object);
+        } catch (IOException e) {
+            throw new MessageConversionException(String.format("Failed to convert %s to %s", object.getClass(), sendFormat), e);
+        }
+        messageProperties.setContentType(sendFormat.getContentType());
+        messageProperties.setContentLength(body.length);
+        return new Message(body, messageProperties);
+    }
+
+    @Override
+    public Object fromMessage(Message message) throws MessageConversionException {
+        String contentType = message.getMessageProperties().getContentType();
+        ObjectMapper mapper;
+        if (InterchangeFormat.SMILE.getContentType().equals(contentType)) {
+            mapper = smileMapper;
+        } else if (InterchangeFormat.CBOR.getContentType().equals(contentType)) {
+            mapper = cborMapper;
+        } else {
+            return jsonConverter.fromMessage(message);
+        }
+        try {
+            return mapper.readValue(message.getBody(), EmapOperationMessage.class);
+        } catch (IOException e) {
+            throw new MessageConversionException(String.format("Failed to convert message with content type %s", contentType), e);
+        }
+    }
+}
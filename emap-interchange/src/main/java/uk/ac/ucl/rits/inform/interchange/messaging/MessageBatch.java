@@ -39,18 +39,15 @@ public class MessageBatch<T extends EmapOperationMessage> {
      * @param callback To be run on receipt of a successful acknowledgement of publishing from rabbitmq.
      *                 Most likely to update the state of progress.
      * @throws NullPointerException     callback or batch is null
-     * @throws IllegalArgumentException empty batch or batchId contains a colon character, or duplicate correlationIds in the batch
+     * @throws IllegalArgumentException batchId contains a colon character, or duplicate correlationIds in the batch
      */
-    MessageBatch(String batchId, List<ImmutablePair<T, String>> batch, Runnable callback) {
+    public MessageBatch(String batchId, List<ImmutablePair<T, String>> batch, Runnable callback) {
         if (callback == null) {
             throw new NullPointerException("Runnable is null");
         }
         if (batch == null) {
             throw new NullPointerException("Batch is null");
         }
-        if (batch.isEmpty()) {
-            throw new IllegalArgumentException("Batch is empty");
-        }
         if (batchId.contains(":")) {
             throw new IllegalArgumentException("batchId contains a colon character");
         }
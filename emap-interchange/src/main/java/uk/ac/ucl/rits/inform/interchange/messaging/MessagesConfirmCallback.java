@@ -25,10 +25,10 @@ public class MessagesConfirmCallback implements RabbitTemplate.ConfirmCallback {
     @Override
     public void confirm(CorrelationData correlationData, boolean ack, String cause) {
         if (ack) {
-            releasable.finishedSending(correlationData.getId());
+            releasable.finishedSending(correlationData);
         } else {
             logger.debug("Message nack received cause: {}, {}", correlationData, cause);
-            releasable.failedSending(correlationData.getId());
+            releasable.failedSending(correlationData);
         }
     }
 }
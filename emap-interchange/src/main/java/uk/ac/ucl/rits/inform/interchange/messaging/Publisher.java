@@ -4,6 +4,8 @@ import org.apache.commons.lang3.tuple.ImmutablePair;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
 import org.springframework.amqp.rabbit.connection.CorrelationData;
 import org.springframework.amqp.rabbit.core.RabbitTemplate;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -15,37 +17,54 @@ import uk.ac.ucl.rits.inform.interchange.springconfig.EmapDataSource;
 import javax.annotation.PreDestroy;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 /**
  * Publishes messages to rabbitmq, resending messages that receive a nack messaged.
+ * <p>
+ * Batches are published by one or more threads, all sending through the shared RabbitTemplate, which takes a channel
+ * from the connection factory's cache for each send and returns it afterwards. Threads aren't tied to a channel, so
+ * with more than one thread the messages from different batches can arrive on the queue interleaved.
+ * Each message carries its batch's state in its correlation data, which the channel matches back to rabbitmq's
+ * confirm by delivery tag, so handling a confirm only needs atomic counters.
  * @author Stef Piatek
  */
 @Component
-public class Publisher implements Runnable, Releasable {
+public class Publisher implements Releasable {
     private final RabbitTemplate rabbitTemplate;
-    private final Semaphore semaphore;
-    private final BlockingQueue<MessageBatch<? extends EmapOperationMessage>> blockingQueue;
-    private final Map<String, EmapOperationMessage> waitingMap;
-    private final Map<String, ImmutablePair<Integer, Runnable>> batchWaitingMap;
+    private final Semaphore messagePermits;
+    private final Semaphore bytePermits;
+    private final int maxInTransitBytes;
+    private final BlockingQueue<BatchState> blockingQueue;
+    private final Set<String> activeBatchIds;
+    private final AtomicInteger inFlightMessageCount = new AtomicInteger();
+    private final AtomicInteger waitingBatchCount = new AtomicInteger();
     private final ScheduledThreadPoolExecutor executorService;
     private final int maxInTransit;
-    private volatile boolean failedSend = false;
+    private final AtomicBoolean failedSend = new AtomicBoolean(false);
+    private final Object resumeLock = new Object();
     private final int initialDelay;
     private int currentDelay;
     private int countMessagesAtCurrentDelay = 0;
     private final int delayMultiplier = 2;
     private @Value("${rabbitmq.retry.delay.maximum:600}")
     int maximumDelay;
-    private final Thread mainThread;
+    private final int publishChannels;
+    private final List<Thread> publishingThreads;
     private volatile boolean isFinished;
+    private final AtomicLong submittedBatchCount = new AtomicLong();
+    private final AtomicLong confirmedBatchCount = new AtomicLong();
+    private final Object confirmedBatchLock = new Object();
 
 
     private final Logger logger = LoggerFactory.getLogger(Publisher.class);
@@ -53,34 +72,51 @@ public class Publisher implements Runnable, Releasable {
     private final EmapDataSource getEmapDataSource;
 
     /**
-     * @param rabbitTemplate rabbitTemplate bean
-     * @param emapDataSource emapDataSource bean
-     * @param maxBatches     Application properties value rabbitmq.max.batches
-     *                       Sets the maximum number of batches allowed before blocking
-     * @param maxInTransit   Application properties value rabbitmq.max.batches
-     *                       Sets the maximum number of messages that can be awaiting an acknowledgement by rabbitmq
-     * @param initialDelay   Initial delay for a failed message to be resent in seconds
+     * @param rabbitTemplate    rabbitTemplate bean
+     * @param emapDataSource    emapDataSource bean
+     * @param maxBatches        Application properties value rabbitmq.max.batches
+     *                          Sets the maximum number of batches allowed before blocking
+     * @param maxInTransit      Application properties value rabbitmq.max.intransit
+     *                          Sets the maximum number of messages that can be awaiting an acknowledgement by rabbitmq
+     * @param maxInTransitBytes Application properties value rabbitmq.max.intransit_bytes
+     *                          Sets the maximum total size of the messages awaiting an acknowledgement, 0 for no limit
+     * @param publishChannels   Application properties value rabbitmq.publish_channels
+     *                          Number of threads publishing batches in parallel. The connection factory's channel
+     *                          cache (25 by default) should be at least this big, or channels are opened and closed per send
+     * @param initialDelay      Initial delay for a failed message to be resent in seconds
+     * @throws IllegalArgumentException if publishChannels is less than 1
      */
     @Autowired
     public Publisher(RabbitTemplate rabbitTemplate,
                      EmapDataSource emapDataSource,
                      @Value("${rabbitmq.max.batches:1}") int maxBatches,
                      @Value("${rabbitmq.max.intransit:1}") int maxInTransit,
+                     @Value("${rabbitmq.max.intransit_bytes:0}") int maxInTransitBytes,
+                     @Value("${rabbitmq.publish_channels:1}") int publishChannels,
                      @Value("${rabbitmq.retry.delay.initial:1}") int initialDelay) {
-        semaphore = new Semaphore(maxInTransit, true);
+        if (publishChannels < 1) {
+            throw new IllegalArgumentException("rabbitmq.publish_channels must be at least 1");
+        }
+        messagePermits = new Semaphore(maxInTransit, true);
+        bytePermits = maxInTransitBytes > 0 ? new Semaphore(maxInTransitBytes, true) : null;
         rabbitTemplate.setConfirmCallback(new MessagesConfirmCallback(this));
         this.rabbitTemplate = rabbitTemplate;
         this.getEmapDataSource = emapDataSource;
         blockingQueue = new ArrayBlockingQueue<>(maxBatches);
-        waitingMap = new ConcurrentHashMap<>();
-        batchWaitingMap = new ConcurrentHashMap<>();
+        activeBatchIds = ConcurrentHashMap.newKeySet();
         executorService = new ScheduledThreadPoolExecutor(2);
         this.maxInTransit = maxInTransit;
+        this.maxInTransitBytes = maxInTransitBytes;
+        this.publishChannels = publishChannels;
         this.initialDelay = initialDelay;
         currentDelay = initialDelay;
         isFinished = false;
-        mainThread = new Thread(this);
-        mainThread.start();
+        publishingThreads = new ArrayList<>(publishChannels);
+        for (int i = 0; i < publishChannels; i++) {
+            Thread thread = new Thread(this::publishBatches, "publisher-" + i);
+            publishingThreads.add(thread);
+            thread.start();
+        }
     }
 
     /**
@@ -119,21 +155,100 @@ public class Publisher implements Runnable, Releasable {
         if (isFinished) {
             throw new IllegalStateException("Publisher has been shut down");
         }
-        MessageBatch<T> submitBatch = new MessageBatch<>(batchId, batch, callback);
+        submitBatch(new MessageBatch<>(batchId, batch, callback));
+        logger.trace("BatchId {} with {} messages was submitted to Publisher batches", batchId, batch.size());
+    }
 
+    /**
+     * Submit several batches for publication at once, each with its own callback.
+     * Cheaper than submitting the batches one at a time, as the publishing threads pick them all up in one go.
+     * Batches with a batchId which is already in progress are logged and skipped.
+     * @param batches batches to publish, in order
+     * @param <T>     Any child of EmapOperationMessage so that you can pass in child class directly.
+     * @throws InterruptedException  if thread gets interrupted during queue put wait
+     * @throws IllegalStateException if publisher has been shut down
+     */
+    public <T extends EmapOperationMessage> void submitAll(List<MessageBatch<T>> batches)
+            throws InterruptedException, IllegalStateException {
+        if (isFinished) {
+            throw new IllegalStateException("Publisher has been shut down");
+        }
+        for (MessageBatch<T> submitBatch : batches) {
+            submitBatch(submitBatch);
+        }
+        logger.trace("{} batches were submitted to Publisher batches", batches.size());
+    }
+
+    /**
+     * Add a batch to the queue, unless a batch with the same batchId is queued or waiting for acknowledgements.
+     * A batch with no messages will never be acknowledged, so it is completed straight away instead.
+     * @param submitBatch batch to publish
+     * @throws InterruptedException if thread gets interrupted during queue put wait
+     */
+    private void submitBatch(MessageBatch<? extends EmapOperationMessage> submitBatch) throws InterruptedException {
+        if (submitBatch.getNumberOfMessages() == 0) {
+            logger.debug("BatchId {} has no messages, so is already published", submitBatch.getBatchId());
+            submittedBatchCount.incrementAndGet();
+            batchConfirmed(submitBatch);
+            return;
+        }
         // If queue is full for longer than the scan for new messages, then the progress would not have been updated
         // so check ensure that we're not adding a duplicate batchId of one in progress or a waiting batch
-        if (batchWaitingMap.containsKey(batchId) || blockingQueue.contains(submitBatch)) {
-            logger.error("Queue with a batchId of {} already exists", batchId);
+        if (!activeBatchIds.add(submitBatch.getBatchId())) {
+            logger.error("Queue with a batchId of {} already exists", submitBatch.getBatchId());
             return;
         }
         try {
-            blockingQueue.put(submitBatch);
+            blockingQueue.put(new BatchState(submitBatch));
         } catch (InterruptedException e) {
+            activeBatchIds.remove(submitBatch.getBatchId());
             logger.error("Waiting to submit a batch was interrupted", e);
             throw e;
         }
-        logger.trace("BatchId {} with {} messages was submitted to Publisher batches", batchId, batch.size());
+        submittedBatchCount.incrementAndGet();
+    }
+
+    /**
+     * Wait until every batch submitted so far has had all its messages acknowledged by rabbitmq.
+     * The batch callbacks may still be running.
+     * @param timeout how long to wait
+     * @param unit    unit of the timeout
+     * @return true if everything was acknowledged, false if timed out
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitAllPublished(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (confirmedBatchLock) {
+            while (confirmedBatchCount.get() < submittedBatchCount.get()) {
+                long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remainingMillis <= 0) {
+                    return false;
+                }
+                confirmedBatchLock.wait(remainingMillis);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return number of batches submitted but not yet taken for publishing
+     */
+    public int getQueuedBatchCount() {
+        return blockingQueue.size();
+    }
+
+    /**
+     * @return number of batches being published, which are waiting for some of their messages to be acknowledged
+     */
+    public int getWaitingBatchCount() {
+        return waitingBatchCount.get();
+    }
+
+    /**
+     * @return number of messages published but not yet acknowledged by rabbitmq
+     */
+    public int getInFlightMessageCount() {
+        return inFlightMessageCount.get();
     }
 
     /**
@@ -143,44 +258,80 @@ public class Publisher implements Runnable, Releasable {
     public void shutdown() {
         executorService.shutdownNow();
         isFinished = true;
-        mainThread.interrupt();
+        for (Thread thread : publishingThreads) {
+            thread.interrupt();
+        }
     }
 
     /**
-     * If the number of messages published to rabbitmq queue is less than the maximum number of elements in flight,
-     * then the message will be added to the waitingMap and published to rabbitmq.
-     * Otherwise the it will block here and keep on retrying until an acknowledgement of reciept from rabbitmq is received.
+     * If the number of messages (and bytes) published to rabbitmq queue is less than the maximum in flight,
+     * then the message will be published to rabbitmq.
+     * Otherwise the it will block here until an acknowledgement of reciept from rabbitmq is received.
+     * After a nack it also blocks until every message in flight has been acknowledged, so that only retries are sent.
      * @param message       Emap message to be sent.
-     * @param correlationId Unique Id for the message. Must not contain a colon character.
-     * @param batchId       Unique Id for the batch, in most cases this can be the correlationId.
-     *                      Must not contain a colon character.
+     * @param correlationId Unique Id for the message within the batch.
+     * @param batch         State of the batch the message is in
      * @throws InterruptedException if thread is interrupted while waiting to acquire semaphore
      */
-    private void publish(EmapOperationMessage message, String correlationId, String batchId) throws InterruptedException {
+    private void publish(EmapOperationMessage message, String correlationId, BatchState batch) throws InterruptedException {
         logger.trace("Sending message to RabbitMQ");
-
-        CorrelationData correlationData = new CorrelationData(correlationId + ":" + batchId);
+        // convert here rather than in convertAndSend, so that the size is known and a resend doesn't convert it again
+        Message amqpMessage = rabbitTemplate.getMessageConverter().toMessage(message, new MessageProperties());
+        // a message bigger than the whole budget takes all of it, rather than blocking forever
+        int bytes = bytePermits == null ? 0 : Math.min(amqpMessage.getBody().length, maxInTransitBytes);
         try {
-            semaphore.acquire();
+            messagePermits.acquire();
+            if (bytes > 0) {
+                try {
+                    bytePermits.acquire(bytes);
+                } catch (InterruptedException e) {
+                    messagePermits.release();
+                    throw e;
+                }
+            }
+            awaitResume();
         } catch (InterruptedException e) {
             logger.error("Waiting to send message to rabbitmq was interrupted", e);
             throw e;
         }
-        waitingMap.put(correlationId, message);
-        rabbitTemplate.convertAndSend(getEmapDataSource.getQueueName(), message, correlationData);
+        PublishedMessage correlationData = new PublishedMessage(correlationId, batch, amqpMessage, bytes);
+        inFlightMessageCount.incrementAndGet();
+        rabbitTemplate.convertAndSend(getEmapDataSource.getQueueName(), amqpMessage, correlationData);
+    }
+
+    /**
+     * Block while there are failed messages waiting to be resent.
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private void awaitResume() throws InterruptedException {
+        if (!failedSend.get()) {
+            return;
+        }
+        synchronized (resumeLock) {
+            while (failedSend.get()) {
+                resumeLock.wait();
+            }
+        }
     }
 
     /**
      * Takes batches of submitted messages from the blockingQueue, tracks the batch as waiting
-     * and attempts to sequentially publish the messages in the queue to rabbitmq.
+     * and attempts to sequentially publish the messages in the batch to rabbitmq.
+     * Batches already waiting in the queue are taken together (shared between the publishing threads), which frees up
+     * the queue for submitters while the earlier batches are still being published.
      */
-    public void run() {
+    private void publishBatches() {
+        List<BatchState> batches = new ArrayList<>();
         while (!isFinished) {
             try {
-                MessageBatch<? extends EmapOperationMessage> messageBatch = blockingQueue.take();
-                batchWaitingMap.put(messageBatch.getBatchId(), new ImmutablePair<>(messageBatch.getNumberOfMessages(), messageBatch.getCallback()));
-                for (ImmutablePair<? extends EmapOperationMessage, String> pair : messageBatch.getBatch()) {
-                    publish(pair.getLeft(), pair.getRight(), messageBatch.getBatchId());
+                batches.clear();
+                batches.add(blockingQueue.take());
+                blockingQueue.drainTo(batches, blockingQueue.size() / publishChannels);
+                waitingBatchCount.addAndGet(batches.size());
+                for (BatchState batch : batches) {
+                    for (ImmutablePair<? extends EmapOperationMessage, String> pair : batch.getMessageBatch().getBatch()) {
+                        publish(pair.getLeft(), pair.getRight(), batch);
+                    }
                 }
             } catch (AmqpException e) {
                 logger.error("AMQP Exception encountered, shutting down the publisher", e);
@@ -197,45 +348,46 @@ public class Publisher implements Runnable, Releasable {
      * (most likely to update the progress). If the entire batch has been successfully finished, then allow space
      * for another batch to be added to the Publisher.
      * <p>
-     * There are two possible states that this is called from:
-     * - If there have been no nacks received: Free up a single space for a new message to be sent
-     * - If there has been a nack and this is the first ack: Free up all spaces for new messages to be published again.
-     * @param correlationId correlationId + ":" + batchId (within the correlationData sent to rabbitmq).
+     * If there has been a nack, then once every message in flight (including the resent ones) has been acknowledged,
+     * the publishing threads are allowed to send new messages again.
+     * @param correlationData the {@link PublishedMessage} sent to rabbitmq
      */
     @Override
-    public void finishedSending(String correlationId) {
-        String[] ids = correlationId.split(":");
-        if (ids.length != 2) {
-            logger.error("Colon was present in correlationId or batchId provided");
-            throw new IllegalStateException("Colon was present in correlationId or batchId provided");
+    public void finishedSending(CorrelationData correlationData) {
+        PublishedMessage published = (PublishedMessage) correlationData;
+        messagePermits.release();
+        if (published.getBytes() > 0) {
+            bytePermits.release(published.getBytes());
         }
-
-        // Synchronised to make sure that only one thread is releasing semaphores if there was a previous nack
-        synchronized (waitingMap) {
-            waitingMap.remove(ids[0]);
-            if (failedSend) {
-                currentDelay = initialDelay;
-                if (waitingMap.isEmpty()) {
-                    failedSend = false;
-                    semaphore.release(maxInTransit);
-                }
-            } else {
-                semaphore.release();
-            }
+        if (failedSend.get()) {
+            resetRetryDelay();
         }
-        synchronized (batchWaitingMap) {
-            ImmutablePair<Integer, Runnable> batchState = batchWaitingMap.get(ids[1]);
-            int countOfWaitingMessages = batchState.getLeft() - 1;
-            if (countOfWaitingMessages == 0) {
-                batchWaitingMap.remove(ids[1]);
-                // Real work done in a separate thread so that it doesn't block the event thread
-                executorService.execute(batchState.getRight());
-            } else {
-                batchWaitingMap.put(ids[1], new ImmutablePair<>(countOfWaitingMessages, batchState.getRight()));
+        if (inFlightMessageCount.decrementAndGet() == 0 && failedSend.compareAndSet(true, false)) {
+            synchronized (resumeLock) {
+                resumeLock.notifyAll();
             }
         }
-        logger.trace("Sent message with correlationId: {}", correlationId);
 
+        BatchState batch = published.getBatch();
+        if (batch.getRemainingMessages().decrementAndGet() == 0) {
+            activeBatchIds.remove(batch.getMessageBatch().getBatchId());
+            waitingBatchCount.decrementAndGet();
+            batchConfirmed(batch.getMessageBatch());
+        }
+        logger.trace("Sent message with correlationId: {}", published.getId());
+    }
+
+    /**
+     * Run the callback of a batch that has had all its messages acknowledged, and wake anything waiting for it.
+     * @param messageBatch batch which has been published
+     */
+    private void batchConfirmed(MessageBatch<? extends EmapOperationMessage> messageBatch) {
+        // Real work done in a separate thread so that it doesn't block the event thread
+        executorService.execute(messageBatch.getCallback());
+        confirmedBatchCount.incrementAndGet();
+        synchronized (confirmedBatchLock) {
+            confirmedBatchLock.notifyAll();
+        }
     }
 
     /**
@@ -244,35 +396,33 @@ public class Publisher implements Runnable, Releasable {
      * Failed messages will be sent with an exponential backoff, using the 'rabbitmq.retry.delay.initial'
      * and the 'rabbitmq.retry.delay.maximum' from application.properties as the seconds delay. The exponential backoff
      * will double after every message in transit has received a nack.
-     * @param correlationId correlationId + ":" + batchId (within the correlationData sent to rabbitmq).
+     * The resent message keeps its place in the in flight limits until it is acknowledged.
+     * @param correlationData the {@link PublishedMessage} sent to rabbitmq
      */
     @Override
-    public void failedSending(final String correlationId) {
-        // On first Nack, drain all permits so only retries will be republished
-        semaphore.drainPermits();
-        failedSend = true;
-
-        String[] ids = correlationId.split(":");
-        if (ids.length != 2) {
-            logger.error("Colon was present in correlationId or batchId provided");
-            throw new IllegalStateException("Colon was present in correlationId or batchId provided");
-        }
-        final EmapOperationMessage message = waitingMap.get(ids[0]);
-        final CorrelationData correlationData = new CorrelationData(correlationId);
-
-        executorService.schedule(new Runnable() {
-            @Override
-            public void run() {
-                rabbitTemplate.convertAndSend(getEmapDataSource.getQueueName(), message, correlationData);
-                String queueFull = "Failed to deliver message (correlationData {}) was resent after a delay of {} seconds";
-                if (currentDelayIsFirstThreeRounds()) {
-                    logger.trace(queueFull, correlationData, currentDelay);
-                } else {
-                    logger.info(queueFull, correlationData, currentDelay);
-                }
+    public void failedSending(CorrelationData correlationData) {
+        // On first Nack, stop publishing new messages so only retries will be republished
+        failedSend.set(true);
+        final PublishedMessage published = (PublishedMessage) correlationData;
+        final int delay = nextRetryDelay();
+
+        executorService.schedule(() -> {
+            rabbitTemplate.convertAndSend(getEmapDataSource.getQueueName(), published.getAmqpMessage(), published);
+            String queueFull = "Failed to deliver message (correlationData {}) was resent after a delay of {} seconds";
+            if (delayIsFirstThreeRounds(delay)) {
+                logger.trace(queueFull, published, delay);
+            } else {
+                logger.info(queueFull, published, delay);
             }
-        }, currentDelay, TimeUnit.SECONDS);
+        }, delay, TimeUnit.SECONDS);
+    }
 
+    /**
+     * Nacks can arrive on several channels' threads at once, so the backoff is updated under a lock.
+     * @return delay before resending the current failed message, in seconds
+     */
+    private synchronized int nextRetryDelay() {
+        int delay = currentDelay;
         if (currentDelay < maximumDelay && countMessagesAtCurrentDelay == maxInTransit) {
             currentDelay *= delayMultiplier;
             countMessagesAtCurrentDelay = 1;
@@ -281,12 +431,71 @@ public class Publisher implements Runnable, Releasable {
         } else {
             currentDelay = maximumDelay;
         }
+        return delay;
     }
 
     /**
-     * @return true if the current delay has been multiplied less than 3 times.
+     * A message has been acknowledged since a nack, so resend any further failures after the initial delay.
      */
-    private boolean currentDelayIsFirstThreeRounds() {
-        return currentDelay <= initialDelay * delayMultiplier * delayMultiplier;
+    private synchronized void resetRetryDelay() {
+        currentDelay = initialDelay;
+    }
+
+    /**
+     * @param delay delay in seconds
+     * @return true if the delay has been multiplied less than 3 times.
+     */
+    private boolean delayIsFirstThreeRounds(int delay) {
+        return delay <= initialDelay * delayMultiplier * delayMultiplier;
+    }
+
+    /**
+     * A submitted batch, with the count of its messages still to be acknowledged.
+     */
+    private static final class BatchState {
+        private final MessageBatch<? extends EmapOperationMessage> messageBatch;
+        private final AtomicInteger remainingMessages;
+
+        BatchState(MessageBatch<? extends EmapOperationMessage> messageBatch) {
+            this.messageBatch = messageBatch;
+            remainingMessages = new AtomicInteger(messageBatch.getNumberOfMessages());
+        }
+
+        MessageBatch<? extends EmapOperationMessage> getMessageBatch() {
+            return messageBatch;
+        }
+
+        AtomicInteger getRemainingMessages() {
+            return remainingMessages;
+        }
+    }
+
+    /**
+     * Correlation data for a published message, carrying everything needed to handle its confirm or resend it.
+     * The id is correlationId + ":" + batchId, for logging.
+     */
+    private static final class PublishedMessage extends CorrelationData {
+        private final BatchState batch;
+        private final Message amqpMessage;
+        private final int bytes;
+
+        PublishedMessage(String correlationId, BatchState batch, Message amqpMessage, int bytes) {
+            super(correlationId + ":" + batch.getMessageBatch().getBatchId());
+            this.batch = batch;
+            this.amqpMessage = amqpMessage;
+            this.bytes = bytes;
+        }
+
+        BatchState getBatch() {
+            return batch;
+        }
+
+        Message getAmqpMessage() {
+            return amqpMessage;
+        }
+
+        int getBytes() {
+            return bytes;
+        }
     }
 }
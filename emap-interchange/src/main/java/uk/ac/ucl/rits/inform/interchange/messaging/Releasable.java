@@ -1,5 +1,7 @@
 package uk.ac.ucl.rits.inform.interchange.messaging;
 
+import org.springframework.amqp.rabbit.connection.CorrelationData;
+
 /**
  * Define methods to be run on receipt of a publisher confirmation message back from rabbitmq.
  *
@@ -8,13 +10,13 @@ package uk.ac.ucl.rits.inform.interchange.messaging;
 public interface Releasable {
     /**
      * To be run on ack message receipt.
-     * @param correlationId  correlationId + ":" + batchId (within the correlationData sent to rabbitmq).
+     * @param correlationData the correlationData sent to rabbitmq with the message.
      */
-     void finishedSending(String correlationId);
+     void finishedSending(CorrelationData correlationData);
 
     /**
      * To be run on nack message receipt.
-     * @param correlationId  correlationId + ":" + batchId (within the correlationData sent to rabbitmq).
+     * @param correlationData the correlationData sent to rabbitmq with the message.
      */
-     void failedSending(String correlationId);
+     void failedSending(CorrelationData correlationData);
 }
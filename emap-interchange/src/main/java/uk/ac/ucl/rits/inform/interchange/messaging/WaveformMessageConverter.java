@@ -0,0 +1,268 @@
+package uk.ac.ucl.rits.inform.interchange.messaging;
+
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.support.converter.MessageConversionException;
+import org.springframework.amqp.support.converter.MessageConverter;
+import uk.ac.ucl.rits.inform.interchange.InterchangeValue;
+import uk.ac.ucl.rits.inform.interchange.visit_observations.WaveformMessage;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.time.DateTimeException;
+import java.time.Instant;
+
+/**
+ * Converts {@link WaveformMessage}s to and from a compact binary form, and everything else with a delegate
+ * (normally JSON).
+ * <p>
+ * Which form a message is in is given by its AMQP content type, so a receiver using this converter accepts both,
+ * and senders can switch encoding without any change to the receiver.
+ * <p>
+ * The binary form is little-endian: a fixed header, the string fields (each as a length then UTF-8 bytes, with
+ * a length of -1 for null), then the block of samples.
+ */
+public class WaveformMessageConverter implements MessageConverter {
+    /**
+     * AMQP content type of binary encoded waveform messages.
+     */
+    public static final String CONTENT_TYPE = "application/x-emap-waveform";
+    private static final byte FORMAT_VERSION = 1;
+    private static final byte FLAG_HAS_OBSERVATION_TIME = 1;
+    private static final byte VALUES_SAVE = 0;
+    private static final byte VALUES_DELETE = 1;
+    private static final byte VALUES_UNKNOWN = 2;
+    private static final byte VALUES_NULL = 3;
+    /**
+     * Version, sample encoding, flags, values status, sampling rate, observation time (seconds and nanos),
+     * sample count.
+     */
+    private static final int FIXED_HEADER_BYTES = 4 * Byte.BYTES + Integer.BYTES + Long.BYTES + 2 * Integer.BYTES;
+
+    private final MessageConverter delegate;
+    private final WaveformWireEncoding encoding;
+
+    /**
+     * @param delegate converter for everything that isn't binary waveform data
+     * @param encoding how to send waveform messages, {@link WaveformWireEncoding#JSON} to use the delegate for them too
+     */
+    public WaveformMessageConverter(MessageConverter delegate, WaveformWireEncoding encoding) {
+        this.delegate = delegate;
+        this.encoding = encoding;
+    }
+
+    @Override
+    public Message toMessage(Object object, MessageProperties messageProperties) throws MessageConversionException {
+        if (encoding == WaveformWireEncoding.JSON || !(object instanceof WaveformMessage)) {
+            return delegate.toMessage(object, messageProperties);
+        }
+        byte[] body = encode((WaveformMessage) object, encoding);
+        messageProperties.setContentType(CONTENT_TYPE);
+        messageProperties.setContentLength(body.length);
+        return new Message(body, messageProperties);
+    }
+
+    @Override
+    public Object fromMessage(Message message) throws MessageConversionException {
+        if (CONTENT_TYPE.equals(message.getMessageProperties().getContentType())) {
+            return decode(message.getBody());
+        }
+        return delegate.fromMessage(message);
+    }
+
+    /**
+     * @param msg      message to encode
+     * @param encoding how to encode the samples, must not be {@link WaveformWireEncoding#JSON}
+     * @return the binary form of the message
+     * @throws IllegalArgumentException if the encoding isn't a binary one
+     */
+    public static byte[] encode(WaveformMessage msg, WaveformWireEncoding encoding) {
+        if (encoding == WaveformWireEncoding.JSON) {
+            throw new IllegalArgumentException("JSON is not a binary encoding");
+        }
+        InterchangeValue<double[]> numericValues = msg.getNumericValues();
+        byte valuesStatus;
+        double[] values = null;
+        if (numericValues == null) {
+            valuesStatus = VALUES_NULL;
+        } else if (numericValues.isUnknown()) {
+            valuesStatus = VALUES_UNKNOWN;
+        } else {
+            valuesStatus = numericValues.isDelete() ? VALUES_DELETE : VALUES_SAVE;
+            values = numericValues.get();
+        }
+        if (encoding == WaveformWireEncoding.FLOAT32_DELTA && values != null && !allFinite(values)) {
+            // a NaN or infinity would make every difference after it meaningless
+            encoding = WaveformWireEncoding.FLOAT32;
+        }
+
+        byte[][] strings = {
+                utf8(msg.getSourceMessageId()),
+                utf8(msg.getSourceSystem()),
+                utf8(msg.getSourceObservationType()),
+                utf8(msg.getSourceLocationString()),
+                utf8(msg.getMappedLocationString()),
+                utf8(msg.getSourceStreamId()),
+                utf8(msg.getMappedStreamDescription()),
+                utf8(msg.getUnit()),
+        };
+        int size = FIXED_HEADER_BYTES;
+        for (byte[] string : strings) {
+            size += Integer.BYTES + (string == null ? 0 : string.length);
+        }
+        int bytesPerSample = encoding == WaveformWireEncoding.FLOAT64 ? Double.BYTES : Float.BYTES;
+        if (values != null) {
+            size += values.length * bytesPerSample;
+        }
+
+        ByteBuffer buf = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        Instant observationTime = msg.getObservationTime();
+        buf.put(FORMAT_VERSION);
+        buf.put(encoding.getCode());
+        buf.put(observationTime == null ? 0 : FLAG_HAS_OBSERVATION_TIME);
+        buf.put(valuesStatus);
+        buf.putInt(msg.getSamplingRate());
+        buf.putLong(observationTime == null ? 0 : observationTime.getEpochSecond());
+        buf.putInt(observationTime == null ? 0 : observationTime.getNano());
+        buf.putInt(values == null ? -1 : values.length);
+        for (byte[] string : strings) {
+            if (string == null) {
+                buf.putInt(-1);
+            } else {
+                buf.putInt(string.length);
+                buf.put(string);
+            }
+        }
+        if (values != null) {
+            putSamples(buf, values, encoding);
+        }
+        return buf.array();
+    }
+
+    private static void putSamples(ByteBuffer buf, double[] values, WaveformWireEncoding encoding) {
+        switch (encoding) {
+            case FLOAT64 -> buf.asDoubleBuffer().put(values);
+            case FLOAT32 -> {
+                for (double value : values) {
+                    buf.putFloat((float) value);
+                }
+            }
+            case FLOAT32_DELTA -> {
+                double previous = 0;
+                for (double value : values) {
+                    float delta = (float) (value - previous);
+                    buf.putFloat(delta);
+                    // same sum as the receiver will do, so that rounding errors aren't carried forward
+                    previous += delta;
+                }
+            }
+            default -> throw new IllegalArgumentException(String.format("Can't encode samples as %s", encoding));
+        }
+    }
+
+    /**
+     * @param body binary form of a message
+     * @return the decoded message
+     * @throws MessageConversionException if the body isn't a valid binary waveform message
+     */
+    public static WaveformMessage decode(byte[] body) {
+        ByteBuffer buf = ByteBuffer.wrap(body).order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            byte version = buf.get();
+            if (version != FORMAT_VERSION) {
+                throw new MessageConversionException(String.format("Unsupported binary waveform format version %d", version));
+            }
+            WaveformWireEncoding encoding = WaveformWireEncoding.fromCode(buf.get());
+            byte flags = buf.get();
+            byte valuesStatus = buf.get();
+            WaveformMessage msg = new WaveformMessage();
+            msg.setSamplingRate(buf.getInt());
+            long epochSecond = buf.getLong();
+            int nanos = buf.getInt();
+            if ((flags & FLAG_HAS_OBSERVATION_TIME) != 0) {
+                msg.setObservationTime(Instant.ofEpochSecond(epochSecond, nanos));
+            }
+            int numSamples = buf.getInt();
+            msg.setSourceMessageId(getString(buf));
+            msg.setSourceSystem(getString(buf));
+            msg.setSourceObservationType(getString(buf));
+            msg.setSourceLocationString(getString(buf));
+            msg.setMappedLocationString(getString(buf));
+            msg.setSourceStreamId(getString(buf));
+            msg.setMappedStreamDescription(getString(buf));
+            msg.setUnit(getString(buf));
+            double[] values = numSamples < 0 ? null : getSamples(buf, numSamples, encoding);
+            if (buf.hasRemaining()) {
+                throw new MessageConversionException(
+                        String.format("%d unexpected bytes after binary waveform message", buf.remaining()));
+            }
+            InterchangeValue<double[]> numericValues = switch (valuesStatus) {
+                case VALUES_SAVE -> new InterchangeValue<>(values);
+                case VALUES_DELETE -> values == null ? InterchangeValue.delete() : InterchangeValue.deleteFromValue(values);
+                case VALUES_UNKNOWN -> InterchangeValue.unknown();
+                case VALUES_NULL -> null;
+                default -> throw new MessageConversionException(String.format("Unknown values status %d", valuesStatus));
+            };
+            msg.setNumericValues(numericValues);
+            return msg;
+        } catch (BufferUnderflowException | IllegalArgumentException | IllegalStateException | DateTimeException e) {
+            throw new MessageConversionException("Invalid binary waveform message", e);
+        }
+    }
+
+    private static double[] getSamples(ByteBuffer buf, int numSamples, WaveformWireEncoding encoding) {
+        int bytesPerSample = encoding == WaveformWireEncoding.FLOAT64 ? Double.BYTES : Float.BYTES;
+        if ((long) numSamples * bytesPerSample > buf.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        double[] values = new double[numSamples];
+        switch (encoding) {
+            case FLOAT64 -> {
+                buf.asDoubleBuffer().get(values);
+                buf.position(buf.position() + numSamples * Double.BYTES);
+            }
+            case FLOAT32 -> {
+                for (int i = 0; i < numSamples; i++) {
+                    values[i] = buf.getFloat();
+                }
+            }
+            case FLOAT32_DELTA -> {
+                double previous = 0;
+                for (int i = 0; i < numSamples; i++) {
+                    previous += buf.getFloat();
+                    values[i] = previous;
+                }
+            }
+            default -> throw new IllegalArgumentException(String.format("Can't decode samples as %s", encoding));
+        }
+        return values;
+    }
+
+    private static byte[] utf8(String string) {
+        return string == null ? null : string.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String getString(ByteBuffer buf) {
+        int length = buf.getInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > buf.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        String string = new String(buf.array(), buf.arrayOffset() + buf.position(), length, StandardCharsets.UTF_8);
+        buf.position(buf.position() + length);
+        return string;
+    }
+
+    private static boolean allFinite(double[] values) {
+        for (double value : values) {
+            if (!Double.isFinite(value)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
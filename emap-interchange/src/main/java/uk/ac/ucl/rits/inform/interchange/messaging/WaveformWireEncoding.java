@@ -0,0 +1,54 @@
+package uk.ac.ucl.rits.inform.interchange.messaging;
+
+/**
+ * How {@link uk.ac.ucl.rits.inform.interchange.visit_observations.WaveformMessage}s are written to the queue.
+ * Only the sender needs to choose, the receiver handles all of them.
+ */
+public enum WaveformWireEncoding {
+    /**
+     * As JSON, like every other interchange message.
+     */
+    JSON((byte) 0),
+    /**
+     * Binary, with each sample as a little-endian float64. Lossless.
+     */
+    FLOAT64((byte) 1),
+    /**
+     * Binary, with each sample as a little-endian float32, which keeps ~7 significant figures.
+     */
+    FLOAT32((byte) 2),
+    /**
+     * Binary, with the difference from the previous sample as a little-endian float32.
+     * For signals that vary around a large offset this keeps more precision than {@link #FLOAT32}, as the rounding
+     * error of each value is relative to the size of the difference. The rounding doesn't accumulate, as each
+     * difference is taken from the previous value as the receiver will decode it.
+     */
+    FLOAT32_DELTA((byte) 3);
+
+    private final byte code;
+
+    WaveformWireEncoding(byte code) {
+        this.code = code;
+    }
+
+    /**
+     * @return the code used for this encoding in the binary header
+     */
+    byte getCode() {
+        return code;
+    }
+
+    /**
+     * @param code code from the binary header
+     * @return the encoding with that code
+     * @throws IllegalArgumentException if the code isn't a binary encoding
+     */
+    static WaveformWireEncoding fromCode(byte code) {
+        for (WaveformWireEncoding encoding : values()) {
+            if (encoding.code == code && encoding != JSON) {
+                return encoding;
+            }
+        }
+        throw new IllegalArgumentException(String.format("Unknown waveform sample encoding %d", code));
+    }
+}
@@ -8,7 +8,6 @@ import org.springframework.amqp.rabbit.connection.CachingConnectionFactory;
 import org.springframework.amqp.rabbit.connection.ConnectionFactory;
 import org.springframework.amqp.rabbit.core.RabbitAdmin;
 import org.springframework.amqp.rabbit.core.RabbitTemplate;
-import org.springframework.amqp.support.converter.Jackson2JsonMessageConverter;
 import org.springframework.amqp.support.converter.MessageConverter;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
@@ -18,8 +17,10 @@ import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Profile;
 import org.springframework.retry.backoff.ExponentialBackOffPolicy;
 import org.springframework.retry.support.RetryTemplate;
-
-import com.fasterxml.jackson.databind.ObjectMapper;
+import uk.ac.ucl.rits.inform.interchange.messaging.InterchangeFormat;
+import uk.ac.ucl.rits.inform.interchange.messaging.InterchangeMessageConverter;
+import uk.ac.ucl.rits.inform.interchange.messaging.WaveformMessageConverter;
+import uk.ac.ucl.rits.inform.interchange.messaging.WaveformWireEncoding;
 
 import java.util.HashMap;
 import java.util.Map;
@@ -38,12 +39,15 @@ public class DataSourceConfiguration {
     }
 
     /**
+     * @param messageFormat    how to send interchange messages
+     * @param waveformEncoding how to send waveform messages, JSON unless the receiver is known to handle binary
      * @return a converter which ensures Instant objects are handled properly
      */
     @Bean
-    public MessageConverter jsonMessageConverter() {
-        ObjectMapper mapper = new ObjectMapper().findAndRegisterModules();
-        return new Jackson2JsonMessageConverter(mapper);
+    public MessageConverter jsonMessageConverter(
+            @Value("${rabbitmq.message_format:JSON}") InterchangeFormat messageFormat,
+            @Value("${rabbitmq.waveform_encoding:JSON}") WaveformWireEncoding waveformEncoding) {
+        return new WaveformMessageConverter(new InterchangeMessageConverter(messageFormat), waveformEncoding);
     }
 
     private final EmapDataSource emapDataSource;
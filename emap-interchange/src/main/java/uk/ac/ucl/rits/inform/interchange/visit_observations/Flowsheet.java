@@ -14,6 +14,7 @@ import uk.ac.ucl.rits.inform.interchange.ValueType;
 import java.time.Instant;
 import java.time.LocalDate;
 import java.time.LocalTime;
+import java.util.Collection;
 
 /**
  * Represent a flowsheet message.
@@ -111,4 +112,14 @@ public class Flowsheet extends EmapOperationMessage implements ObservationType {
     public Instant getLastUpdatedInstant() {
         return updatedTime;
     }
+
+    /**
+     * Patient data for the message MRN can be changed.
+     * @return {@inheritDoc}
+     */
+    @Override
+    @JsonIgnore
+    public Collection<String> getAffectedMrns() {
+        return uniqueMrnsOrExclusive(getMrn());
+    }
 }
@@ -12,6 +12,7 @@ import uk.ac.ucl.rits.inform.interchange.InterchangeValue;
 
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
+import java.util.Collection;
 import java.util.List;
 
 /**
@@ -63,9 +64,9 @@ public class WaveformMessage extends EmapOperationMessage {
     private String unit;
 
     /**
-     * Numeric value.
+     * Numeric values, held as primitives to avoid boxing every sample.
      */
-    private InterchangeValue<List<Double>> numericValues = InterchangeValue.unknown();
+    private InterchangeValue<double[]> numericValues = InterchangeValue.unknown();
 
     /**
      * @return expected observation datetime for the next message, if it exists and there are
@@ -73,7 +74,7 @@ public class WaveformMessage extends EmapOperationMessage {
      */
     @JsonIgnore
     public Instant getExpectedNextObservationDatetime() {
-        int numValues = numericValues.get().size();
+        int numValues = numericValues.get().length;
         long microsToAdd = 1_000_000L * numValues / samplingRate;
         return observationTime.plus(microsToAdd, ChronoUnit.MICROS);
     }
@@ -88,4 +89,13 @@ public class WaveformMessage extends EmapOperationMessage {
         processor.processMessage(this);
     }
 
+    /**
+     * Waveform data is only linked to a visit by location, so no patient data is changed.
+     * @return {@inheritDoc}
+     */
+    @Override
+    @JsonIgnore
+    public Collection<String> getAffectedMrns() {
+        return List.of();
+    }
 }
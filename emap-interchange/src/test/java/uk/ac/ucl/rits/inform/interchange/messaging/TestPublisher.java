@@ -0,0 +1,219 @@
+package uk.ac.ucl.rits.inform.interchange.messaging;
+
+import org.apache.commons.lang3.tuple.ImmutablePair;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.connection.CorrelationData;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+import uk.ac.ucl.rits.inform.interchange.InterchangeValue;
+import uk.ac.ucl.rits.inform.interchange.springconfig.EmapDataSource;
+import uk.ac.ucl.rits.inform.interchange.visit_observations.WaveformMessage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Test the Publisher without a broker, by recording what it sends and passing the confirms back by hand.
+ */
+class TestPublisher {
+    private static final long TIMEOUT_SECONDS = 10;
+    private final RecordingRabbitTemplate rabbitTemplate = new RecordingRabbitTemplate();
+    private Publisher publisher;
+
+    /**
+     * A message sent to rabbitmq.
+     * @param message         the converted message
+     * @param correlationData correlation data to confirm it with
+     * @param sentNanos       when it was sent
+     */
+    private record Sent(Message message, CorrelationData correlationData, long sentNanos) {
+    }
+
+    /**
+     * Records messages instead of sending them.
+     */
+    private static class RecordingRabbitTemplate extends RabbitTemplate {
+        private final BlockingQueue<Sent> sent = new LinkedBlockingQueue<>();
+
+        RecordingRabbitTemplate() {
+            setMessageConverter(new InterchangeMessageConverter(InterchangeFormat.JSON));
+        }
+
+        @Override
+        public void convertAndSend(String routingKey, Object object, CorrelationData correlationData) {
+            sent.add(new Sent((Message) object, correlationData, System.nanoTime()));
+        }
+
+        Sent awaitSent() throws InterruptedException {
+            Sent next = sent.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            assertNotNull(next, "Timed out waiting for a message to be sent");
+            return next;
+        }
+
+        Sent pollSent(long millis) throws InterruptedException {
+            return sent.poll(millis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @AfterEach
+    void shutdown() {
+        if (publisher != null) {
+            publisher.shutdown();
+        }
+    }
+
+    private void createPublisher(int maxInTransit, int maxInTransitBytes) {
+        publisher = new Publisher(rabbitTemplate, EmapDataSource.WAVEFORM_DATA, 10, maxInTransit, maxInTransitBytes, 1, 1);
+        ReflectionTestUtils.setField(publisher, "maximumDelay", 600);
+    }
+
+    private static WaveformMessage message(String id, int numSamples) {
+        WaveformMessage msg = new WaveformMessage();
+        msg.setSourceMessageId(id);
+        msg.setNumericValues(new InterchangeValue<>(new double[numSamples]));
+        return msg;
+    }
+
+    private static List<ImmutablePair<WaveformMessage, String>> batch(String... ids) {
+        List<ImmutablePair<WaveformMessage, String>> batch = new ArrayList<>();
+        for (String id : ids) {
+            batch.add(new ImmutablePair<>(message(id, 10), id));
+        }
+        return batch;
+    }
+
+    /**
+     * Given a batch of messages which have all been sent
+     * When rabbitmq acknowledges them
+     * Then the batch callback should be run only once the last one has been acknowledged.
+     */
+    @Test
+    void testAckRunsBatchCallback() throws Exception {
+        createPublisher(10, 0);
+        CountDownLatch callbackRun = new CountDownLatch(1);
+        publisher.submit(batch("1", "2", "3"), "1", callbackRun::countDown);
+        List<Sent> sent = List.of(rabbitTemplate.awaitSent(), rabbitTemplate.awaitSent(), rabbitTemplate.awaitSent());
+        assertEquals(1, publisher.getWaitingBatchCount());
+        assertEquals(3, publisher.getInFlightMessageCount());
+
+        publisher.finishedSending(sent.get(0).correlationData());
+        publisher.finishedSending(sent.get(1).correlationData());
+        assertEquals(1, callbackRun.getCount());
+        assertEquals(1, publisher.getInFlightMessageCount());
+
+        publisher.finishedSending(sent.get(2).correlationData());
+        assertTrue(callbackRun.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(0, publisher.getWaitingBatchCount());
+        assertEquals(0, publisher.getInFlightMessageCount());
+    }
+
+    /**
+     * Given a message which rabbitmq rejects
+     * When the nack arrives
+     * Then the same message should be resent after the retry delay, and no new messages sent until it is acknowledged.
+     */
+    @Test
+    void testNackResentAfterDelay() throws Exception {
+        createPublisher(1, 0);
+        CountDownLatch firstCallbackRun = new CountDownLatch(1);
+        publisher.submit(batch("1"), "1", firstCallbackRun::countDown);
+        publisher.submit(batch("2"), "2", () -> { });
+        Sent first = rabbitTemplate.awaitSent();
+
+        long nackNanos = System.nanoTime();
+        publisher.failedSending(first.correlationData());
+        Sent resent = rabbitTemplate.awaitSent();
+        assertSame(first.correlationData(), resent.correlationData());
+        assertArrayEquals(first.message().getBody(), resent.message().getBody());
+        assertTrue(resent.sentNanos() - nackNanos >= TimeUnit.MILLISECONDS.toNanos(900),
+                "Resent before the initial retry delay of 1 second");
+        assertEquals(1, firstCallbackRun.getCount());
+        assertNull(rabbitTemplate.pollSent(200));
+
+        publisher.finishedSending(resent.correlationData());
+        assertTrue(firstCallbackRun.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertNotNull(rabbitTemplate.awaitSent());
+    }
+
+    /**
+     * Given a limit on the bytes in flight which only leaves room for one message
+     * When two messages are submitted
+     * Then the second should only be sent once the first has been acknowledged.
+     */
+    @Test
+    void testByteBudgetBlocksUntilAck() throws Exception {
+        final int numSamples = 1000;
+        int messageBytes = new InterchangeMessageConverter(InterchangeFormat.JSON)
+                .toMessage(message("1", numSamples), new MessageProperties()).getBody().length;
+        createPublisher(10, messageBytes * 3 / 2);
+        publisher.submit(message("1", numSamples), "1", "1", () -> { });
+        publisher.submit(message("2", numSamples), "2", "2", () -> { });
+
+        Sent first = rabbitTemplate.awaitSent();
+        assertNull(rabbitTemplate.pollSent(300));
+        assertEquals(1, publisher.getInFlightMessageCount());
+
+        publisher.finishedSending(first.correlationData());
+        Sent second = rabbitTemplate.awaitSent();
+        assertEquals("2:2", second.correlationData().getId());
+    }
+
+    /**
+     * Given batches which have been submitted
+     * When waiting for them all to be published
+     * Then the wait should only succeed once every message has been acknowledged.
+     */
+    @Test
+    void testAwaitAllPublished() throws Exception {
+        createPublisher(10, 0);
+        publisher.submit(batch("1", "2"), "1", () -> { });
+        publisher.submit(batch("3"), "3", () -> { });
+        List<Sent> sent = List.of(rabbitTemplate.awaitSent(), rabbitTemplate.awaitSent(), rabbitTemplate.awaitSent());
+        assertFalse(publisher.awaitAllPublished(100, TimeUnit.MILLISECONDS));
+
+        publisher.finishedSending(sent.get(0).correlationData());
+        publisher.finishedSending(sent.get(2).correlationData());
+        assertFalse(publisher.awaitAllPublished(100, TimeUnit.MILLISECONDS));
+
+        publisher.finishedSending(sent.get(1).correlationData());
+        assertTrue(publisher.awaitAllPublished(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Given a batch with no messages
+     * When it is submitted
+     * Then its callback should run and it should count as published, without anything being sent.
+     */
+    @Test
+    void testEmptyBatchCompleted() throws Exception {
+        createPublisher(10, 0);
+        CountDownLatch callbackRun = new CountDownLatch(1);
+        publisher.submit(batch(), "1", callbackRun::countDown);
+
+        assertTrue(callbackRun.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertTrue(publisher.awaitAllPublished(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(0, publisher.getWaitingBatchCount());
+        assertNull(rabbitTemplate.pollSent(100));
+
+        // the batch ID can be used again
+        CountDownLatch secondCallbackRun = new CountDownLatch(1);
+        publisher.submit(batch("2"), "1", secondCallbackRun::countDown);
+        publisher.finishedSending(rabbitTemplate.awaitSent().correlationData());
+        assertTrue(secondCallbackRun.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+}
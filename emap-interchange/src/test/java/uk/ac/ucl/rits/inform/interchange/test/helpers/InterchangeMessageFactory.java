@@ -288,9 +288,9 @@ public class InterchangeMessageFactory {
             waveformMessage.setSamplingRate(samplingRate);
             waveformMessage.setSourceLocationString(sourceLocation);
             waveformMessage.setMappedLocationString(mappedLocation);
-            var values = new ArrayList<Double>();
+            double[] values = new double[samplesThisMessage];
             for (int i = 0; i < samplesThisMessage; i++) {
-                values.add(Math.sin((numSamples - samplesRemaining + i) * 0.01));
+                values[i] = Math.sin((numSamples - samplesRemaining + i) * 0.01);
             }
             waveformMessage.setUnit(unit);
             waveformMessage.setNumericValues(new InterchangeValue<>(values));
@@ -321,6 +321,8 @@ public class AuditTableProcessor extends AbstractProcessor {
                     TypeKind individualKind = individualType.getKind();
                     if (individualKind == TypeKind.BYTE) {
                         typeName = "byte[]";
+                    } else if (individualKind == TypeKind.DOUBLE) {
+                        typeName = "double[]";
                     } else if (individualKind == TypeKind.DECLARED) {
                         DeclaredType declaredType = (DeclaredType) individualType;
                         TypeElement elem = (TypeElement) declaredType.asElement();
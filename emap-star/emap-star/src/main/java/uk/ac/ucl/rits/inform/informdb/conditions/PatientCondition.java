@@ -33,7 +33,8 @@ import java.time.LocalDate;
 @EqualsAndHashCode(callSuper = true)
 @ToString(callSuper = true)
 @NoArgsConstructor
-@Table(indexes = {@Index(name = "pc_internal_id", columnList = "internalId")})
+@Table(indexes = {@Index(name = "pc_internal_id", columnList = "internalId"),
+        @Index(name = "pc_mrn_id_internal_id_valid_from", columnList = "mrnId, internalId, validFrom")})
 @AuditTable
 public class PatientCondition extends TemporalCore<PatientCondition, PatientConditionAudit> {
 
@@ -0,0 +1,29 @@
+package uk.ac.ucl.rits.inform.informdb.visit_recordings;
+
+import org.postgresql.PGConnection;
+
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Creates arrays through the postgres driver, which is only loaded if the driver is on the classpath
+ * (see {@link WaveformArray}), as emap-star doesn't depend on it at runtime.
+ */
+final class PostgresArrays {
+    private PostgresArrays() {
+    }
+
+    /**
+     * @param connection  connection to create the array with
+     * @param doubleArray values
+     * @return JDBC array of float8 created from the primitive values, or null if this isn't a postgres connection
+     * @throws SQLException if the array can't be created
+     */
+    static Array createFloat8Array(Connection connection, double[] doubleArray) throws SQLException {
+        if (!connection.isWrapperFor(PGConnection.class)) {
+            return null;
+        }
+        return connection.unwrap(PGConnection.class).createArrayOf("float8", doubleArray);
+    }
+}
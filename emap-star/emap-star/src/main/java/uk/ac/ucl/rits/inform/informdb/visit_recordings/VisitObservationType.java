@@ -120,6 +120,21 @@ public class VisitObservationType extends TemporalCore<VisitObservationType, Vis
     @Column(columnDefinition = "timestamp with time zone")
     private Instant creationDatetime;
 
+    /**
+     * \brief How values of this waveform type are stored in the waveform table.
+     *
+     * One of FLOAT8_ARRAY, FLOAT8, FLOAT4 or DELTA_QUANTISED. If null, the core processor's default is used.
+     * Only applies to waveform types.
+     */
+    private String waveformEncoding;
+
+    /**
+     * \brief Step that values of this waveform type are rounded to when using the DELTA_QUANTISED encoding.
+     *
+     * This should be the resolution of the source device, so that no information is lost.
+     */
+    private Double waveformQuantisationStep;
+
     /**
      * Minimal information constructor.
      * @param idInApplication       Hospital flowsheet identifier
@@ -158,6 +173,8 @@ public class VisitObservationType extends TemporalCore<VisitObservationType, Vis
         creationDatetime = other.creationDatetime;
         isRealTime = other.isRealTime;
         hasVisitObservation = other.hasVisitObservation;
+        waveformEncoding = other.waveformEncoding;
+        waveformQuantisationStep = other.waveformQuantisationStep;
     }
 
     @Override
@@ -105,10 +105,21 @@ public class Waveform extends TemporalCore<Waveform, WaveformAudit> {
 
     /**
      * \brief Value as a floating point array.
+     *
+     * Null if the values are stored in valuesBytes instead.
      */
     @Type(type = "uk.ac.ucl.rits.inform.informdb.visit_recordings.WaveformArray")
-    @Column(columnDefinition = "DOUBLE PRECISION ARRAY", nullable = false)
-    private Double[] valuesArray;
+    @Column(columnDefinition = "DOUBLE PRECISION ARRAY")
+    private double[] valuesArray;
+
+    /**
+     * \brief Values in a compact binary encoding, used instead of valuesArray if the waveform type declares one.
+     *
+     * The first byte identifies the encoding (1 = 8 byte doubles, 2 = 4 byte floats, 3 = quantised differences),
+     * followed by the number of values as a 4 byte integer. Null if the values are stored in valuesArray.
+     */
+    @Column(columnDefinition = "bytea")
+    private byte[] valuesBytes;
 
     /* unit goes in visit observation type (or equivalent table...) */
 
@@ -143,11 +154,22 @@ public class Waveform extends TemporalCore<Waveform, WaveformAudit> {
         this.locationVisitId = other.locationVisitId;
         this.unit = other.unit;
         this.valuesArray = other.valuesArray;
+        this.valuesBytes = other.valuesBytes;
         this.observationDatetime = other.observationDatetime;
         this.samplingRate = other.samplingRate;
         this.sourceLocation = other.sourceLocation;
     }
 
+    /**
+     * @return the values of this row, from whichever column they are stored in
+     */
+    public double[] decodeValues() {
+        if (valuesBytes != null) {
+            return WaveformValuesCodec.decode(valuesBytes);
+        }
+        return valuesArray;
+    }
+
     @Override
     public Waveform copy() {
         return new Waveform(this);
@@ -7,14 +7,32 @@ import org.hibernate.usertype.UserType;
 
 import java.io.Serializable;
 import java.sql.Array;
+import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Types;
 import java.util.Arrays;
-import java.util.Objects;
 
+/**
+ * Maps a primitive double array to a postgres double precision array, so that waveform samples are never boxed
+ * when using the postgres driver.
+ */
 public class WaveformArray implements UserType {
+    /**
+     * The postgres driver is only a provided dependency, so it's only used if the application has it.
+     */
+    private static final boolean POSTGRES_DRIVER_PRESENT = isPostgresDriverPresent();
+
+    private static boolean isPostgresDriverPresent() {
+        try {
+            Class.forName("org.postgresql.PGConnection", false, WaveformArray.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
     @Override
     public int[] sqlTypes() {
         return new int[]{Types.ARRAY};
@@ -22,17 +40,17 @@ public class WaveformArray implements UserType {
 
     @Override
     public Class returnedClass() {
-        return Double[].class;
+        return double[].class;
     }
 
     @Override
     public boolean equals(Object o, Object o1) throws HibernateException {
-        return Objects.equals(o, o1);
+        return Arrays.equals((double[]) o, (double[]) o1);
     }
 
     @Override
     public int hashCode(Object o) throws HibernateException {
-        return Objects.hashCode(o);
+        return Arrays.hashCode((double[]) o);
     }
 
     @Override
@@ -42,8 +60,20 @@ public class WaveformArray implements UserType {
                               Object o) throws HibernateException, SQLException {
         String columnName = strings[0];
         Array sqlArray = (Array) resultSet.getObject(columnName);
-        Object[] doubleArray = (Object[]) sqlArray.getArray();
-        return Arrays.copyOf(doubleArray, doubleArray.length, Double[].class);
+        if (sqlArray == null) {
+            return null;
+        }
+        Object array = sqlArray.getArray();
+        if (array instanceof double[]) {
+            return array;
+        }
+        // the postgres driver returns boxed values for float8[], so unbox them once here
+        Object[] boxedArray = (Object[]) array;
+        double[] doubleArray = new double[boxedArray.length];
+        for (int i = 0; i < boxedArray.length; i++) {
+            doubleArray[i] = ((Number) boxedArray[i]).doubleValue();
+        }
+        return doubleArray;
     }
 
     @Override
@@ -56,18 +86,41 @@ public class WaveformArray implements UserType {
         if (objToSet == null) {
             preparedStatement.setNull(psIdx, Types.ARRAY);
         } else {
-            Double[] asDoubleArray = (Double[]) objToSet;
-            Array sqlArray = preparedStatement.getConnection().createArrayOf("NUMERIC", asDoubleArray);
+            double[] doubleArray = (double[]) objToSet;
+            // bind as the column's type, so the driver doesn't send arbitrary precision numerics to be cast
+            Array sqlArray = createFloat8Array(preparedStatement.getConnection(), doubleArray);
             preparedStatement.setArray(psIdx, sqlArray);
         }
     }
 
+    /**
+     * The JDBC API only accepts arrays of objects, but the postgres driver can take primitive arrays directly.
+     * Other databases (eg. H2 in tests), or applications without the postgres driver, get boxed values.
+     * @param connection  connection to create the array with
+     * @param doubleArray values
+     * @return JDBC array of float8
+     * @throws SQLException if the array can't be created
+     */
+    private static Array createFloat8Array(Connection connection, double[] doubleArray) throws SQLException {
+        if (POSTGRES_DRIVER_PRESENT) {
+            Array postgresArray = PostgresArrays.createFloat8Array(connection, doubleArray);
+            if (postgresArray != null) {
+                return postgresArray;
+            }
+        }
+        Double[] boxedArray = new Double[doubleArray.length];
+        for (int i = 0; i < doubleArray.length; i++) {
+            boxedArray[i] = doubleArray[i];
+        }
+        return connection.createArrayOf("float8", boxedArray);
+    }
+
     @Override
     public Object deepCopy(Object o) throws HibernateException {
         if (o == null) {
             return null;
         }
-        Double[] doubleArray = (Double[]) o;
+        double[] doubleArray = (double[]) o;
         return doubleArray.clone();
     }
 
@@ -0,0 +1,54 @@
+package uk.ac.ucl.rits.inform.informdb.visit_recordings;
+
+/**
+ * How the values of a waveform row are stored.
+ * <p>
+ * Declared per waveform type in {@link VisitObservationType#getWaveformEncoding()}, so that lossy encodings
+ * are only used where the source data allows it.
+ */
+public enum WaveformEncoding {
+    /**
+     * A postgres double precision array in the valuesArray column.
+     */
+    FLOAT8_ARRAY((byte) 0),
+    /**
+     * 8 byte doubles in the valuesBytes column, lossless.
+     */
+    FLOAT8((byte) 1),
+    /**
+     * 4 byte floats in the valuesBytes column, loses precision beyond ~7 significant figures.
+     */
+    FLOAT4((byte) 2),
+    /**
+     * Values rounded to a multiple of the type's quantisation step, stored as variable length differences between
+     * consecutive values in the valuesBytes column. Smooth signals typically take 1-2 bytes per value.
+     */
+    DELTA_QUANTISED((byte) 3);
+
+    private final byte code;
+
+    WaveformEncoding(byte code) {
+        this.code = code;
+    }
+
+    /**
+     * @return identifier stored as the first byte of encoded values
+     */
+    public byte getCode() {
+        return code;
+    }
+
+    /**
+     * @param code identifier from the first byte of encoded values
+     * @return the encoding with that identifier
+     * @throws IllegalArgumentException if no encoding has that identifier
+     */
+    public static WaveformEncoding fromCode(byte code) {
+        for (WaveformEncoding encoding : values()) {
+            if (encoding.code == code) {
+                return encoding;
+            }
+        }
+        throw new IllegalArgumentException("Unknown waveform encoding code " + code);
+    }
+}
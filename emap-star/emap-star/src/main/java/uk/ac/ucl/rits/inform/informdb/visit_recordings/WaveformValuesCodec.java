@@ -0,0 +1,154 @@
+package uk.ac.ucl.rits.inform.informdb.visit_recordings;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Converts waveform values to and from the compact binary forms stored in {@link Waveform#getValuesBytes()}.
+ * <p>
+ * The first byte is the {@link WaveformEncoding} code, followed by the number of values as a 4 byte int.
+ * {@link WaveformEncoding#DELTA_QUANTISED} then has the 8 byte quantisation step, then the first quantised value and the
+ * difference between each consecutive quantised value as zigzag variable length integers.
+ * All multi-byte numbers are big endian.
+ */
+public final class WaveformValuesCodec {
+    private static final int HEADER_BYTES = 1 + Integer.BYTES;
+    private static final int MAX_VARLONG_BYTES = 10;
+
+    private WaveformValuesCodec() {
+    }
+
+    /**
+     * Encode values.
+     * <p>
+     * If the values can't be quantised (not finite, or too large for the step), they are stored losslessly as
+     * {@link WaveformEncoding#FLOAT8} instead. The decoder reads the actual encoding from the first byte.
+     * @param encoding         binary encoding to use
+     * @param values           values to encode
+     * @param quantisationStep step to round values to, only used for {@link WaveformEncoding#DELTA_QUANTISED}
+     * @return the encoded values
+     * @throws IllegalArgumentException if the encoding isn't a binary encoding, or a required step is missing
+     */
+    public static byte[] encode(WaveformEncoding encoding, double[] values, Double quantisationStep) {
+        switch (encoding) {
+            case FLOAT8:
+                return encodeFloat8(values);
+            case FLOAT4:
+                ByteBuffer float4Buffer = header(encoding, values.length, Float.BYTES * values.length);
+                for (double value : values) {
+                    float4Buffer.putFloat((float) value);
+                }
+                return float4Buffer.array();
+            case DELTA_QUANTISED:
+                if (quantisationStep == null || !(quantisationStep > 0)) {
+                    throw new IllegalArgumentException("Delta quantised encoding needs a positive quantisation step");
+                }
+                if (!canQuantise(values, quantisationStep)) {
+                    return encodeFloat8(values);
+                }
+                return encodeDeltaQuantised(values, quantisationStep);
+            default:
+                throw new IllegalArgumentException(encoding + " is not a binary waveform encoding");
+        }
+    }
+
+    /**
+     * Decode values.
+     * @param bytes encoded values
+     * @return the values, quantised values are returned as the nearest double to a multiple of the step
+     * @throws IllegalArgumentException if the bytes don't start with a binary encoding
+     */
+    public static double[] decode(byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        WaveformEncoding encoding = WaveformEncoding.fromCode(buffer.get());
+        double[] values = new double[buffer.getInt()];
+        switch (encoding) {
+            case FLOAT8:
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = buffer.getDouble();
+                }
+                return values;
+            case FLOAT4:
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = buffer.getFloat();
+                }
+                return values;
+            case DELTA_QUANTISED:
+                double step = buffer.getDouble();
+                long quantised = 0;
+                for (int i = 0; i < values.length; i++) {
+                    quantised += readZigzagVarLong(buffer);
+                    values[i] = quantised * step;
+                }
+                return values;
+            default:
+                throw new IllegalArgumentException(encoding + " is not a binary waveform encoding");
+        }
+    }
+
+    private static ByteBuffer header(WaveformEncoding encoding, int count, int dataBytes) {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + dataBytes);
+        buffer.put(encoding.getCode());
+        buffer.putInt(count);
+        return buffer;
+    }
+
+    private static byte[] encodeFloat8(double[] values) {
+        ByteBuffer buffer = header(WaveformEncoding.FLOAT8, values.length, Double.BYTES * values.length);
+        for (double value : values) {
+            buffer.putDouble(value);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * @param values values to check
+     * @param step   quantisation step
+     * @return true if every value can be rounded to a multiple of the step without overflowing, including the differences
+     */
+    private static boolean canQuantise(double[] values, double step) {
+        // differences between two quantised values must also fit in a long, so leave a bit of headroom
+        double limit = (double) (Long.MAX_VALUE / 2);
+        for (double value : values) {
+            double scaled = value / step;
+            if (!Double.isFinite(scaled) || Math.abs(scaled) >= limit) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] encodeDeltaQuantised(double[] values, double step) {
+        ByteBuffer buffer = header(WaveformEncoding.DELTA_QUANTISED, values.length,
+                Double.BYTES + MAX_VARLONG_BYTES * values.length);
+        buffer.putDouble(step);
+        long previous = 0;
+        for (double value : values) {
+            long quantised = Math.round(value / step);
+            writeZigzagVarLong(buffer, quantised - previous);
+            previous = quantised;
+        }
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    private static void writeZigzagVarLong(ByteBuffer buffer, long value) {
+        long zigzag = (value << 1) ^ (value >> 63);
+        while ((zigzag & ~0x7FL) != 0) {
+            buffer.put((byte) ((zigzag & 0x7F) | 0x80));
+            zigzag >>>= 7;
+        }
+        buffer.put((byte) zigzag);
+    }
+
+    private static long readZigzagVarLong(ByteBuffer buffer) {
+        long zigzag = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer.get();
+            zigzag |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return (zigzag >>> 1) ^ -(zigzag & 1);
+    }
+}
@@ -30,9 +30,10 @@ public class TestCopyConstructor {
     private static final List<Integer> INTEGERS = Arrays.asList(0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10);
     private static final List<String> BASE_CLASS_NAMES = Arrays.asList(
             "boolean",
+            "byte[]",
+            "double[]",
             "java.lang.Boolean",
             "java.lang.Double",
-            "java.lang.Double[]",
             "java.lang.Long",
             "java.lang.String",
             "java.time.Instant",
@@ -177,8 +178,10 @@ public class TestCopyConstructor {
                 return Instant.now();
             case "java.lang.Double":
                 return (double) INTEGERS.get(index);
-            case "java.lang.Double[]":
-                return new Double[]{(double) INTEGERS.get(index)};
+            case "byte[]":
+                return new byte[]{INTEGERS.get(index).byteValue()};
+            case "double[]":
+                return new double[]{INTEGERS.get(index)};
             case "long":
             case "java.lang.Long":
                 return (long) INTEGERS.get(index);
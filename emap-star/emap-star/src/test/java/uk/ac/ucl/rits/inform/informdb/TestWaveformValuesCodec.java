@@ -0,0 +1,80 @@
+package uk.ac.ucl.rits.inform.informdb;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+import uk.ac.ucl.rits.inform.informdb.visit_recordings.WaveformEncoding;
+import uk.ac.ucl.rits.inform.informdb.visit_recordings.WaveformValuesCodec;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Ensure that waveform values survive being encoded and decoded, within the precision of each encoding.
+ */
+public class TestWaveformValuesCodec {
+    private static final double STEP = 0.001;
+
+    private static double[] sineWave(int numValues) {
+        double[] values = new double[numValues];
+        for (int i = 0; i < numValues; i++) {
+            values[i] = Math.round(Math.sin(i / 10.0) / STEP) * STEP;
+        }
+        return values;
+    }
+
+    /**
+     * Given a sine wave rounded to the quantisation step
+     * When it is encoded and decoded with each binary encoding
+     * Then the values should be the same, to within the precision of the encoding.
+     */
+    @ParameterizedTest
+    @EnumSource(value = WaveformEncoding.class, names = {"FLOAT8", "FLOAT4", "DELTA_QUANTISED"})
+    void testRoundTrip(WaveformEncoding encoding) {
+        double[] values = sineWave(300);
+        double[] decoded = WaveformValuesCodec.decode(WaveformValuesCodec.encode(encoding, values, STEP));
+        assertEquals(values.length, decoded.length);
+        for (int i = 0; i < values.length; i++) {
+            assertEquals(values[i], decoded[i], encoding == WaveformEncoding.FLOAT8 ? 0 : STEP / 2);
+        }
+    }
+
+    /**
+     * Given a smooth signal
+     * When it is encoded with quantised differences
+     * Then it should take much less space than 4 byte floats.
+     */
+    @Test
+    void testDeltaQuantisedIsCompact() {
+        double[] values = sineWave(300);
+        byte[] float4 = WaveformValuesCodec.encode(WaveformEncoding.FLOAT4, values, null);
+        byte[] delta = WaveformValuesCodec.encode(WaveformEncoding.DELTA_QUANTISED, values, STEP);
+        assertTrue(delta.length * 2 < float4.length);
+    }
+
+    /**
+     * Given values which can't be quantised
+     * When they are encoded with quantised differences
+     * Then they should be stored losslessly instead.
+     */
+    @Test
+    void testUnquantisableValuesStoredLosslessly() {
+        double[] values = {1.0, Double.NaN, Double.POSITIVE_INFINITY, 1e300};
+        byte[] encoded = WaveformValuesCodec.encode(WaveformEncoding.DELTA_QUANTISED, values, STEP);
+        assertEquals(WaveformEncoding.FLOAT8.getCode(), encoded[0]);
+        assertArrayEquals(values, WaveformValuesCodec.decode(encoded));
+    }
+
+    /**
+     * Given no quantisation step
+     * When values are encoded with quantised differences
+     * Then an exception should be thrown.
+     */
+    @Test
+    void testDeltaQuantisedNeedsStep() {
+        assertThrows(IllegalArgumentException.class,
+                () -> WaveformValuesCodec.encode(WaveformEncoding.DELTA_QUANTISED, sineWave(10), null));
+    }
+}
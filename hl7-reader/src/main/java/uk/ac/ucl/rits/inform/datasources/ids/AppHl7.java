@@ -34,11 +34,12 @@ public class AppHl7 {
      * The entry point for processing HL7 messages and writing interchange messages to the queue.
      * @param publisher the local AMQP handling class
      * @param idsOps    Emap star operations object
+     * @param pipeline  pipelined reader, used instead of processing one message at a time if it has been enabled
      * @return The CommandLineRunner
      */
     @Bean
     @Profile("default")
-    public CommandLineRunner mainLoop(Publisher publisher, IdsOperations idsOps) {
+    public CommandLineRunner mainLoop(Publisher publisher, IdsOperations idsOps, IdsReaderPipeline pipeline) {
         return (args) -> {
             logger.info("Initialising HAPI...");
             long startTimeMillis = System.currentTimeMillis();
@@ -46,18 +47,11 @@ public class AppHl7 {
             PipeParser parser = context.getPipeParser();
             logger.info("Done initialising HAPI");
 
-            int exitCode = 1;
-            while (true) {
-                try {
-                    idsOps.parseAndSendNextHl7(publisher, parser);
-                } catch (ReachedEndException ree) {
-                    // last message has been processed, so stop
-                    exitCode = 0;
-                    break;
-                } catch (Exception e) {
-                    logger.error("Exiting because encountered exception: ", e);
-                    break;
-                }
+            int exitCode;
+            if (pipeline.isEnabled()) {
+                exitCode = runPipeline(publisher, pipeline, context);
+            } else {
+                exitCode = runSequentially(publisher, idsOps, parser);
             }
 
             long endCurrentTimeMillis = System.currentTimeMillis();
@@ -71,4 +65,44 @@ public class AppHl7 {
             System.exit(exitCode);
         };
     }
+
+    /**
+     * Process a window of IDS messages at a time until the end is reached or an exception is encountered.
+     * @param publisher the local AMQP handling class
+     * @param idsOps    Emap star operations object
+     * @param parser    the HAPI parser to be used
+     * @return exit code, 0 if the configured end was reached
+     */
+    private static int runSequentially(Publisher publisher, IdsOperations idsOps, PipeParser parser) {
+        while (true) {
+            try {
+                idsOps.parseAndSendNextHl7(publisher, parser);
+            } catch (ReachedEndException ree) {
+                // last message has been processed, so stop
+                return 0;
+            } catch (Exception e) {
+                logger.error("Exiting because encountered exception: ", e);
+                return 1;
+            }
+        }
+    }
+
+    /**
+     * Run the pipelined reader until the end is reached or an exception is encountered.
+     * @param publisher the local AMQP handling class
+     * @param pipeline  pipelined reader
+     * @param context   HAPI context to create parsers from
+     * @return exit code, 0 if the configured end was reached
+     */
+    private static int runPipeline(Publisher publisher, IdsReaderPipeline pipeline, HapiContext context) {
+        try {
+            pipeline.run(publisher, context);
+        } catch (ReachedEndException ree) {
+            // last message has been processed, so stop
+            return 0;
+        } catch (Exception e) {
+            logger.error("Exiting because encountered exception: ", e);
+        }
+        return 1;
+    }
 }
@@ -22,6 +22,10 @@ public class IdsConfiguration {
     private Instant serviceStartDatetime;
     private Instant endDatetime;
     private boolean startFromLastId;
+    private int fetchBatchSize;
+    private int publishBatchSize;
+    private int pipelineParseThreads;
+    private int pipelineQueueSize;
     private IdsProgressRepository idsProgressRepository;
     private SessionFactory sessionFactory;
 
@@ -76,6 +80,60 @@ public class IdsConfiguration {
         this.startFromLastId = startFromLastId;
     }
 
+    /**
+     * @return maximum number of IDS rows to read in a single query
+     */
+    int getFetchBatchSize() {
+        return fetchBatchSize;
+    }
+
+    @Value("${ids.cfg.fetch-batch-size:1000}")
+    void setFetchBatchSize(int fetchBatchSize) {
+        if (fetchBatchSize < 1) {
+            throw new IllegalArgumentException("ids.cfg.fetch-batch-size must be at least 1");
+        }
+        this.fetchBatchSize = fetchBatchSize;
+    }
+
+    /**
+     * @return number of interchange messages at which a batch is submitted to the publisher
+     */
+    int getPublishBatchSize() {
+        return publishBatchSize;
+    }
+
+    @Value("${ids.cfg.publish-batch-size:100}")
+    void setPublishBatchSize(int publishBatchSize) {
+        if (publishBatchSize < 1) {
+            throw new IllegalArgumentException("ids.cfg.publish-batch-size must be at least 1");
+        }
+        this.publishBatchSize = publishBatchSize;
+    }
+
+    /**
+     * @return number of threads parsing HL7 messages in the pipelined reader, 0 if the pipeline is disabled
+     */
+    int getPipelineParseThreads() {
+        return pipelineParseThreads;
+    }
+
+    @Value("${ids.pipeline.parse-threads:0}")
+    void setPipelineParseThreads(int pipelineParseThreads) {
+        this.pipelineParseThreads = pipelineParseThreads;
+    }
+
+    /**
+     * @return maximum number of HL7 messages waiting between the stages of the pipelined reader
+     */
+    int getPipelineQueueSize() {
+        return pipelineQueueSize;
+    }
+
+    @Value("${ids.pipeline.queue-size:1000}")
+    void setPipelineQueueSize(int pipelineQueueSize) {
+        this.pipelineQueueSize = pipelineQueueSize;
+    }
+
 
     SessionFactory getSessionFactory() {
         return sessionFactory;
@@ -12,8 +12,11 @@ import ca.uhn.hl7v2.model.v26.message.PPR_PC1;
 import ca.uhn.hl7v2.model.v26.segment.MSH;
 import ca.uhn.hl7v2.parser.PipeParser;
 import ca.uhn.hl7v2.util.Hl7InputStreamMessageIterator;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
+import org.hibernate.StatelessSession;
 import org.hibernate.Transaction;
 import org.hibernate.query.Query;
 import org.slf4j.Logger;
@@ -46,7 +49,7 @@ import java.io.InputStream;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.Semaphore;
+import java.util.function.Predicate;
 
 
 /**
@@ -60,6 +63,10 @@ import java.util.concurrent.Semaphore;
 public class IdsOperations implements AutoCloseable {
     private static final Logger logger = LoggerFactory.getLogger(IdsOperations.class);
     private static final String ALLOWED_ADT_SENDER = "EPIC";
+    /**
+     * Upper bound on the number of rows the JDBC driver buffers from the cursor at a time.
+     */
+    private static final int MAX_CURSOR_FETCH_SIZE = 500;
 
     private SessionFactory idsFactory;
     private final AdtMessageFactory adtMessageFactory;
@@ -71,6 +78,12 @@ public class IdsOperations implements AutoCloseable {
     private final boolean idsEmptyOnInit;
     private final Integer defaultStartUnid;
     private final Integer endUnid;
+    private final int fetchBatchSize;
+    private final int publishBatchSize;
+    /**
+     * Batches messages for the publisher across calls to parseAndSendNextHl7, created on the first call.
+     */
+    private IdsPublishBatcher publishBatcher;
 
     /**
      * @param idsConfiguration      configuration of interaction with IDS
@@ -100,12 +113,15 @@ public class IdsOperations implements AutoCloseable {
         logger.info("IdsOperations() idsEmptyOnInit = {}", idsEmptyOnInit);
         defaultStartUnid = getFirstMessageUnidFromDate(idsConfiguration.getStartDateTime());
         endUnid = getFirstMessageUnidFromDate(idsConfiguration.getEndDatetime());
+        fetchBatchSize = idsConfiguration.getFetchBatchSize();
+        publishBatchSize = idsConfiguration.getPublishBatchSize();
 
         // Progress is stored as the unid (the date info is purely for human convenience),
         logger.info(
                 "IDS message processing boundaries: Start date = {}, start unid = {} -->  End date = {}, end unid = {}",
                 idsConfiguration.getStartDateTime(), defaultStartUnid, idsConfiguration.getEndDatetime(), endUnid
         );
+        logger.info("Reading up to {} IDS messages per query", fetchBatchSize);
     }
 
 
@@ -282,121 +298,167 @@ public class IdsOperations implements AutoCloseable {
     }
 
     /**
-     * Get next entry in the IDS, if it exists.
-     *
+     * Stream the next window of entries in the IDS, in unid order, to a consumer.
+     * <p>
+     * Rows are read through a forward-only, read-only cursor in a stateless session so that
+     * only one row is held in memory at a time, no matter how large the window is.
      * @param lastProcessedId the last one we have successfully processed
-     * @return the first message that comes after lastProcessedId, or null if there isn't one
-     * @throws InternalError if something has gone wrong with batching of HL7 messages
+     * @param maxRecords      the maximum number of rows to read
+     * @param recordConsumer  called for each row, in unid order, returns false to stop reading any further rows
+     * @return the number of rows that were passed to the consumer
      */
-    public IdsMaster getNextHL7IdsRecord(int lastProcessedId) {
-        // consider changing to "get next N messages" for more efficient database
-        // performance
-        // when doing large "catch-up" operations
-        // (handle the batching in the caller)
-        try (Session idsSession = idsFactory.openSession()) {
-            idsSession.setDefaultReadOnly(true);
-            Query<IdsMaster> qnext =
-                    idsSession.createQuery("SELECT i FROM IdsMaster i where i.unid > :lastProcessedId order by i.unid", IdsMaster.class);
-            qnext.setParameter("lastProcessedId", lastProcessedId);
-            qnext.setMaxResults(1);
-            List<IdsMaster> nextMsgOrEmpty = qnext.list();
-            if (nextMsgOrEmpty.isEmpty()) {
-                return null;
-            } else if (nextMsgOrEmpty.size() == 1) {
-                return nextMsgOrEmpty.get(0);
-            } else {
-                throw new InternalError();
+    int streamNextHL7IdsRecords(int lastProcessedId, int maxRecords, Predicate<IdsMaster> recordConsumer) {
+        int recordCount = 0;
+        try (StatelessSession idsSession = idsFactory.openStatelessSession()) {
+            // a transaction is required for the postgres driver to use a cursor rather than fetching every row
+            Transaction tx = idsSession.beginTransaction();
+            try {
+                Query<IdsMaster> qnext = idsSession.createQuery(
+                        "SELECT i FROM IdsMaster i where i.unid > :lastProcessedId order by i.unid", IdsMaster.class);
+                qnext.setParameter("lastProcessedId", lastProcessedId);
+                qnext.setMaxResults(maxRecords);
+                qnext.setFetchSize(Math.min(maxRecords, MAX_CURSOR_FETCH_SIZE));
+                qnext.setReadOnly(true);
+                try (ScrollableResults results = qnext.scroll(ScrollMode.FORWARD_ONLY)) {
+                    while (results.next()) {
+                        recordCount++;
+                        if (!recordConsumer.test((IdsMaster) results.get(0))) {
+                            break;
+                        }
+                    }
+                }
+            } finally {
+                // nothing has been written to the IDS
+                tx.rollback();
             }
         }
+        return recordCount;
     }
 
     /**
-     * Return the next HL7 message in the IDS. If there are no more, block until
-     * there are.
+     * Wrapper for the entire process that performs: - read latest processed ID
+     * from EMAP star (ETL metadata) on the first call - read the next window of messages from the IDS - parse each
+     * message and submit the resulting interchange messages to the publisher in batches.
+     * Progress is written as rabbitmq confirms each batch, up to the highest unid where it and all earlier messages
+     * have been confirmed. Blocks until there are new messages.
      *
-     * @param lastProcessedId the latest unique ID that has already been processed
-     * @return the next HL7 message record
+     * @param publisher the local AMQP handling class
+     * @param parser    the HAPI parser to be used
+     * @throws AmqpException        if rabbitmq write fails
+     * @throws ReachedEndException  if we have reached the pre-configured last message and all messages have been published
+     * @throws InterruptedException if interrupted while waiting to submit to or be confirmed by the publisher
      */
-    public IdsMaster getNextHL7IdsRecordBlocking(int lastProcessedId) {
+    public void parseAndSendNextHl7(Publisher publisher, PipeParser parser) throws AmqpException, ReachedEndException, InterruptedException {
+        if (publishBatcher == null) {
+            IdsProgressTracker progressTracker = new IdsProgressTracker(getLatestProcessedId(), idsProgressRepository);
+            publishBatcher = new IdsPublishBatcher(publisher, progressTracker, publishBatchSize);
+        }
+        int lastSubmittedId = publishBatcher.getLastAddedUnid();
+        logger.debug("parseAndSendNextHl7, lastSubmittedId = " + lastSubmittedId);
+        if (this.endUnid != null && lastSubmittedId >= this.endUnid) {
+            logger.info("lastSubmittedId = {} >= endUnid = {}, waiting for publishing to finish", lastSubmittedId, this.endUnid);
+            publishBatcher.flushAndAwaitAllPublished();
+            throw new ReachedEndException();
+        }
+
         long secondsSleep = 10;
-        IdsMaster idsMsg = null;
         while (true) {
-            idsMsg = getNextHL7IdsRecord(lastProcessedId);
-            if (idsMsg == null) {
-                logger.debug("No more messages in IDS, retrying in {} seconds", secondsSleep);
+            int recordCount = streamNextHL7IdsRecords(lastSubmittedId, fetchBatchSize, idsMsg -> {
                 try {
-                    Thread.sleep(secondsSleep * 1000);
-                } catch (InterruptedException ie) {
-                    logger.trace("Sleep was interrupted");
+                    parseAndSubmitHl7(idsMsg, parser);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
                 }
-            } else {
-                break;
+                // stop at the configured end, the next call will then throw the ReachedEndException
+                return this.endUnid == null || idsMsg.getUnid() < this.endUnid;
+            });
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedException("Interrupted while submitting messages to the publisher");
+            }
+            if (recordCount > 0) {
+                // don't hold back the end of the window while waiting for the next one
+                publishBatcher.flush();
+                logger.debug("Submitted {} messages from the IDS", recordCount);
+                return;
+            }
+            logger.debug("No more messages in IDS, retrying in {} seconds", secondsSleep);
+            try {
+                Thread.sleep(secondsSleep * 1000);
+            } catch (InterruptedException ie) {
+                logger.trace("Sleep was interrupted");
             }
         }
-        return idsMsg;
     }
 
     /**
-     * Wrapper for the entire transaction that performs: - read latest processed ID
-     * from EMAP star (ETL metadata) - process the message and write to EMAP star -
-     * write the latest processed ID to reflect the above message. Blocks until
-     * there are new messages.
+     * Parse a single IDS message and add the resulting interchange messages to the current publisher batch.
      *
-     * @param publisher the local AMQP handling class
-     * @param parser    the HAPI parser to be used
-     * @throws AmqpException       if rabbitmq write fails
-     * @throws ReachedEndException if we have reached the pre-configured last message
+     * @param idsMsg the IDS row to process
+     * @param parser the HAPI parser to be used
+     * @throws InterruptedException if interrupted while waiting to submit to the publisher
      */
-    @Transactional
-    public void parseAndSendNextHl7(Publisher publisher, PipeParser parser) throws AmqpException, ReachedEndException {
-        IdsProgress progress = getLatestProcessedId();
-        int lastProcessedId = progress.getLastProcessedIdsUnid();
-        logger.debug("parseAndSendNextHl7, lastProcessedId = " + lastProcessedId);
-        if (this.endUnid != null && lastProcessedId >= this.endUnid) {
-            logger.info("lastProcessedId = {} >= endUnid = {}, exiting", lastProcessedId, this.endUnid);
-            throw new ReachedEndException();
-        }
-        IdsMaster idsMsg = getNextHL7IdsRecordBlocking(lastProcessedId);
+    private void parseAndSubmitHl7(IdsMaster idsMsg, PipeParser parser) throws InterruptedException {
+        Message msgFromIds = parseIdsHl7(idsMsg, parser);
+        List<? extends EmapOperationMessage> messagesFromHl7Message = msgFromIds == null
+                ? List.of() : buildMessagesOrSkip(msgFromIds, idsMsg.getUnid());
+        logger.trace("[{}] adding {} messages to publisher batch", idsMsg.getUnid(), messagesFromHl7Message.size());
+        publishBatcher.add(idsMsg.getUnid(), idsMsg.getMessagedatetime(), messagesFromHl7Message);
+    }
 
-        Instant messageDatetime = idsMsg.getMessagedatetime();
+    /**
+     * Parse the HL7 message text from an IDS row.
+     * @param idsMsg the IDS row
+     * @param parser the HAPI parser to be used, each thread should use its own parser
+     * @return the parsed HL7 message, or null if it could not be parsed
+     */
+    Message parseIdsHl7(IdsMaster idsMsg, PipeParser parser) {
+        String hl7msg = idsMsg.getHl7message();
+        // HL7 is supposed to use \r for line endings, but
+        // the IDS uses \n
+        hl7msg = hl7msg.replace("\n", "\r");
         try {
-            String hl7msg = idsMsg.getHl7message();
-            // HL7 is supposed to use \r for line endings, but
-            // the IDS uses \n
-            hl7msg = hl7msg.replace("\n", "\r");
-            Message msgFromIds;
-            try {
-                msgFromIds = parser.parse(hl7msg);
-            } catch (HL7Exception hl7e) {
-                logger.error("[{}] HL7 parsing error", idsMsg.getUnid(), hl7e);
-                return;
-            }
+            return parser.parse(hl7msg);
+        } catch (HL7Exception hl7e) {
+            logger.error("[{}] HL7 parsing error", idsMsg.getUnid(), hl7e);
+            return null;
+        }
+    }
 
-            // One HL7 message can give rise to multiple interchange messages (lab orders),
-            // but failure is only expressed on a per-HL7 message basis.
-            try {
-                List<? extends EmapOperationMessage> messagesFromHl7Message = messageFromHl7Message(msgFromIds, idsMsg.getUnid());
-                int subMessageCount = 0;
-                for (EmapOperationMessage msg : messagesFromHl7Message) {
-                    subMessageCount++;
-                    logger.trace("[{}] sending message ({}/{}) to RabbitMQ",
-                            idsMsg.getUnid(), subMessageCount, messagesFromHl7Message.size());
-                    Semaphore semaphore = new Semaphore(0);
-                    publisher.submit(msg, msg.getSourceMessageId(), String.format("%s_1", msg.getSourceMessageId()), () -> {
-                        logger.trace("callback for {}", msg.getSourceMessageId());
-                        semaphore.release();
-                    });
-                    semaphore.acquire();
-                }
-            } catch (Hl7MessageIgnoredException ignoredException) {
-                logger.warn("Skipping unid {} (class {}) {}", idsMsg.getUnid(), msgFromIds.getClass(), ignoredException.getMessage());
-            } catch (HL7Exception | Hl7InconsistencyException | InterruptedException e) {
-                logger.error("Skipping unid {} (class {})", idsMsg.getUnid(), msgFromIds.getClass(), e);
-            }
-        } finally {
-            Instant processingEnd = Instant.now();
-            progress.updateAndSave(idsMsg.getUnid(), messageDatetime, processingEnd, idsProgressRepository);
+    /**
+     * Build the interchange messages for a parsed HL7 message, logging and skipping HL7 messages that can't be converted.
+     * <p>
+     * Some factories keep track of progress (e.g. patient infections), so this must be called in unid order.
+     * @param msgFromIds the HL7 message
+     * @param idsUnid    the sequential ID number from the IDS (unid)
+     * @return list of Emap interchange messages, empty if no messages should result or the HL7 message was skipped
+     */
+    List<? extends EmapOperationMessage> buildMessagesOrSkip(Message msgFromIds, int idsUnid) {
+        // One HL7 message can give rise to multiple interchange messages (lab orders),
+        // but failure is only expressed on a per-HL7 message basis.
+        try {
+            return messageFromHl7Message(msgFromIds, idsUnid);
+        } catch (Hl7MessageIgnoredException ignoredException) {
+            logger.warn("Skipping unid {} (class {}) {}", idsUnid, msgFromIds.getClass(), ignoredException.getMessage());
+        } catch (HL7Exception | Hl7InconsistencyException e) {
+            logger.error("Skipping unid {} (class {})", idsUnid, msgFromIds.getClass(), e);
         }
+        return List.of();
+    }
+
+    /**
+     * @return the unid of the last message to process, or null if there is no configured end
+     */
+    Integer getEndUnid() {
+        return endUnid;
+    }
+
+    /**
+     * @param idsUnid the sequential ID number from the IDS (unid)
+     * @return source message ID for all interchange messages built from the IDS message
+     */
+    static String sourceIdFromUnid(int idsUnid) {
+        return String.format("%010d", idsUnid);
     }
 
     /**
@@ -417,7 +479,7 @@ public class IdsOperations implements AutoCloseable {
         String triggerEvent = msh.getMessageType().getTriggerEvent().getValueOrEmpty();
         String sendingApplication = msh.getMsh3_SendingApplication().getHd1_NamespaceID().getValueOrEmpty();
         logger.debug("{}^{}", messageType, triggerEvent);
-        String sourceId = String.format("%010d", idsUnid);
+        String sourceId = sourceIdFromUnid(idsUnid);
 
         List<EmapOperationMessage> messages = new ArrayList<>();
 
@@ -1,7 +1,11 @@
 package uk.ac.ucl.rits.inform.datasources.ids;
 
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.CrudRepository;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.Instant;
 
 /**
  * Track the progress of parsing of messages from the IDS.
@@ -13,4 +17,19 @@ public interface IdsProgressRepository extends CrudRepository<IdsProgress, Integ
      */
     @Query("select p from IdsProgress p where p.id=0")
     IdsProgress findOnlyRow();
+
+    /**
+     * Save progress to the only row, which must already exist.
+     * The entity always has the same ID, so saving it outside of the transaction it was loaded in would insert another row.
+     * @param lastProcessedIdsUnid         the last processed message
+     * @param lastProcessedMessageDatetime the timestamp in the last processed message
+     * @param lastProcessingDatetime       when the last processed message was processed
+     * @return number of rows updated
+     */
+    @Modifying
+    @Transactional
+    @Query("update IdsProgress p set p.lastProcessedIdsUnid = :lastProcessedIdsUnid,"
+            + " p.lastProcessedMessageDatetime = :lastProcessedMessageDatetime,"
+            + " p.lastProcessingDatetime = :lastProcessingDatetime where p.id=0")
+    int updateOnlyRow(int lastProcessedIdsUnid, Instant lastProcessedMessageDatetime, Instant lastProcessingDatetime);
 }
@@ -0,0 +1,124 @@
+package uk.ac.ucl.rits.inform.datasources.ids;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Instant;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Saves IDS progress in unid order when messages are published out of step with their confirmation.
+ * <p>
+ * Each IDS message is registered in unid order before it is submitted to the publisher, and marked as published
+ * from the publisher's callback. Progress is only moved on to the highest unid for which it and every earlier
+ * registered message have been published, so a restart never skips a message that was not confirmed by rabbitmq.
+ */
+class IdsProgressTracker {
+    private static final Logger logger = LoggerFactory.getLogger(IdsProgressTracker.class);
+
+    private final IdsProgress progress;
+    private final IdsProgressRepository idsProgressRepository;
+    /**
+     * Messages that have been registered but where progress has not been saved, keyed by unid.
+     */
+    private final TreeMap<Integer, PendingMessage> pendingMessages = new TreeMap<>();
+    private int lastRegisteredUnid;
+
+    /**
+     * @param progress              current progress, will be updated and saved as messages are published
+     * @param idsProgressRepository repository to save the progress
+     */
+    IdsProgressTracker(IdsProgress progress, IdsProgressRepository idsProgressRepository) {
+        this.progress = progress;
+        this.idsProgressRepository = idsProgressRepository;
+        lastRegisteredUnid = progress.getLastProcessedIdsUnid();
+    }
+
+    /**
+     * Register a message that is about to be submitted for publishing.
+     * @param unid            IDS unid of the message, must be greater than any previously registered unid
+     * @param messageDatetime the timestamp of the message
+     * @throws IllegalArgumentException if the unid is not in ascending order
+     */
+    synchronized void register(int unid, Instant messageDatetime) {
+        if (unid <= lastRegisteredUnid) {
+            throw new IllegalArgumentException(
+                    String.format("unid %d registered after unid %d, messages must be registered in order", unid, lastRegisteredUnid));
+        }
+        lastRegisteredUnid = unid;
+        pendingMessages.put(unid, new PendingMessage(messageDatetime));
+    }
+
+    /**
+     * Mark a registered message as published, saving progress if this and all earlier messages have been published.
+     * @param unid IDS unid of the message
+     * @throws IllegalStateException if the unid was never registered
+     */
+    synchronized void markPublished(int unid) {
+        PendingMessage pendingMessage = pendingMessages.get(unid);
+        if (pendingMessage == null) {
+            throw new IllegalStateException(String.format("unid %d was marked as published but was not registered", unid));
+        }
+        pendingMessage.published = true;
+
+        Map.Entry<Integer, PendingMessage> lastContiguous = null;
+        while (!pendingMessages.isEmpty() && pendingMessages.firstEntry().getValue().published) {
+            lastContiguous = pendingMessages.pollFirstEntry();
+        }
+        if (lastContiguous != null) {
+            logger.trace("Saving progress at unid {}", lastContiguous.getKey());
+            saveProgress(lastContiguous.getKey(), lastContiguous.getValue().messageDatetime);
+            notifyAll();
+        }
+    }
+
+    /**
+     * Progress is saved from the publisher's confirm threads, outside of the transaction that loaded it.
+     * @param unid            IDS unid of the last contiguous published message
+     * @param messageDatetime the timestamp of the message
+     */
+    private void saveProgress(int unid, Instant messageDatetime) {
+        Instant processingEnd = Instant.now();
+        progress.setLastProcessedIdsUnid(unid);
+        progress.setLastProcessedMessageDatetime(messageDatetime);
+        progress.setLastProcessingDatetime(processingEnd);
+        idsProgressRepository.updateOnlyRow(unid, messageDatetime, processingEnd);
+    }
+
+    /**
+     * @return number of registered messages where progress has not yet been saved
+     */
+    synchronized int getPendingCount() {
+        return pendingMessages.size();
+    }
+
+    /**
+     * @return the last unid that progress has been saved for
+     */
+    synchronized int getLastSavedUnid() {
+        return progress.getLastProcessedIdsUnid();
+    }
+
+    /**
+     * Block until every registered message has been published and progress saved.
+     * @throws InterruptedException if interrupted while waiting
+     */
+    synchronized void awaitAllPublished() throws InterruptedException {
+        while (!pendingMessages.isEmpty()) {
+            wait();
+        }
+    }
+
+    /**
+     * State of a message that has been registered.
+     */
+    private static final class PendingMessage {
+        private final Instant messageDatetime;
+        private boolean published = false;
+
+        private PendingMessage(Instant messageDatetime) {
+            this.messageDatetime = messageDatetime;
+        }
+    }
+}
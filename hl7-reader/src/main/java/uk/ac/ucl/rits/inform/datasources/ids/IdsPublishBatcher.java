@@ -0,0 +1,98 @@
+package uk.ac.ucl.rits.inform.datasources.ids;
+
+import org.apache.commons.lang3.tuple.ImmutablePair;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.ac.ucl.rits.inform.interchange.EmapOperationMessage;
+import uk.ac.ucl.rits.inform.interchange.messaging.Publisher;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Groups the interchange messages from consecutive IDS messages into publisher batches.
+ * <p>
+ * Batches are submitted without waiting for rabbitmq to confirm them, the batch callback marks every IDS message
+ * in the batch as published so that progress is saved up to the highest contiguous confirmed unid.
+ * Must only be used from a single thread, callbacks may run on any thread.
+ */
+class IdsPublishBatcher {
+    private static final Logger logger = LoggerFactory.getLogger(IdsPublishBatcher.class);
+
+    private final Publisher publisher;
+    private final IdsProgressTracker progressTracker;
+    private final int maxBatchMessages;
+    private final List<ImmutablePair<EmapOperationMessage, String>> batch = new ArrayList<>();
+    private final List<Integer> batchUnids = new ArrayList<>();
+    private int lastAddedUnid;
+
+    /**
+     * @param publisher        the local AMQP handling class
+     * @param progressTracker  saves progress in unid order
+     * @param maxBatchMessages number of interchange messages at which a batch is submitted
+     */
+    IdsPublishBatcher(Publisher publisher, IdsProgressTracker progressTracker, int maxBatchMessages) {
+        this.publisher = publisher;
+        this.progressTracker = progressTracker;
+        this.maxBatchMessages = maxBatchMessages;
+        lastAddedUnid = progressTracker.getLastSavedUnid();
+    }
+
+    /**
+     * Add the interchange messages built from an IDS message, submitting the batch if it is full.
+     * @param unid            IDS unid, must be greater than any previously added
+     * @param messageDatetime the timestamp of the IDS message
+     * @param messages        interchange messages built from the IDS message, may be empty
+     * @throws InterruptedException if interrupted while waiting to submit to the publisher
+     */
+    void add(int unid, Instant messageDatetime, List<? extends EmapOperationMessage> messages) throws InterruptedException {
+        progressTracker.register(unid, messageDatetime);
+        lastAddedUnid = unid;
+        if (messages.isEmpty() && batchUnids.isEmpty()) {
+            // nothing to wait for
+            progressTracker.markPublished(unid);
+            return;
+        }
+        String sourceId = IdsOperations.sourceIdFromUnid(unid);
+        for (int i = 0; i < messages.size(); i++) {
+            batch.add(new ImmutablePair<>(messages.get(i), String.format("%s_%d", sourceId, i)));
+        }
+        batchUnids.add(unid);
+        if (batch.size() >= maxBatchMessages) {
+            flush();
+        }
+    }
+
+    /**
+     * Submit any messages that have not yet been submitted to the publisher.
+     * @throws InterruptedException if interrupted while waiting to submit to the publisher
+     */
+    void flush() throws InterruptedException {
+        if (batchUnids.isEmpty()) {
+            return;
+        }
+        List<Integer> unids = List.copyOf(batchUnids);
+        String batchId = IdsOperations.sourceIdFromUnid(unids.get(unids.size() - 1));
+        logger.trace("Submitting batch {} with {} messages from {} IDS messages", batchId, batch.size(), unids.size());
+        publisher.submit(new ArrayList<>(batch), batchId, () -> unids.forEach(progressTracker::markPublished));
+        batch.clear();
+        batchUnids.clear();
+    }
+
+    /**
+     * @return the last unid that was added, or the saved progress if nothing has been added
+     */
+    int getLastAddedUnid() {
+        return lastAddedUnid;
+    }
+
+    /**
+     * Submit any remaining messages and block until every message has been confirmed and progress saved.
+     * @throws InterruptedException if interrupted while waiting
+     */
+    void flushAndAwaitAllPublished() throws InterruptedException {
+        flush();
+        progressTracker.awaitAllPublished();
+    }
+}
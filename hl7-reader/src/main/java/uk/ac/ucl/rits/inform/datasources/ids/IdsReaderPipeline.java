@@ -0,0 +1,209 @@
+package uk.ac.ucl.rits.inform.datasources.ids;
+
+import ca.uhn.hl7v2.HapiContext;
+import ca.uhn.hl7v2.model.Message;
+import ca.uhn.hl7v2.parser.PipeParser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+import uk.ac.ucl.rits.inform.datasources.ids.exceptions.ReachedEndException;
+import uk.ac.ucl.rits.inform.datasources.idstables.IdsMaster;
+import uk.ac.ucl.rits.inform.interchange.EmapOperationMessage;
+import uk.ac.ucl.rits.inform.interchange.messaging.Publisher;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Reads, parses and publishes IDS messages as a pipeline of stages, so that each stage can be busy at the same time.
+ * <p>
+ * - Fetch: a single thread streams rows from the IDS in unid order and hands them to the parse workers.
+ * - Parse: a pool of threads parses the HL7 text with HAPI, each with its own parser.
+ * - Convert and publish: the calling thread takes parsed messages in unid order, builds the interchange messages
+ * and submits them to the publisher in batches without waiting for confirmation.
+ * <p>
+ * The stages are connected by a bounded queue of futures, so ordering is kept even though parsing happens in parallel,
+ * and a slow publish stage will block fetching. Progress is saved in unid order as rabbitmq confirms each batch.
+ */
+@Component
+public class IdsReaderPipeline {
+    private static final Logger logger = LoggerFactory.getLogger(IdsReaderPipeline.class);
+    private static final long SECONDS_SLEEP_WHEN_EMPTY = 10;
+
+    private final IdsOperations idsOperations;
+    private final IdsProgressRepository idsProgressRepository;
+    private final int fetchBatchSize;
+    private final int publishBatchSize;
+    private final int parseThreads;
+    private final int queueSize;
+
+    /**
+     * @param idsOperations         IDS operations to fetch and convert messages
+     * @param idsProgressRepository interaction with ids progress table (stored in the star database)
+     * @param idsConfiguration      configuration of interaction with IDS
+     */
+    public IdsReaderPipeline(IdsOperations idsOperations, IdsProgressRepository idsProgressRepository, IdsConfiguration idsConfiguration) {
+        this.idsOperations = idsOperations;
+        this.idsProgressRepository = idsProgressRepository;
+        fetchBatchSize = idsConfiguration.getFetchBatchSize();
+        publishBatchSize = idsConfiguration.getPublishBatchSize();
+        parseThreads = idsConfiguration.getPipelineParseThreads();
+        queueSize = idsConfiguration.getPipelineQueueSize();
+    }
+
+    /**
+     * @return true if the pipeline has been configured with parse threads
+     */
+    public boolean isEnabled() {
+        return parseThreads > 0;
+    }
+
+    /**
+     * Run the pipeline until the configured end of the IDS has been reached, or a stage fails.
+     * @param publisher the local AMQP handling class
+     * @param context   HAPI context to create a parser for each parse thread
+     * @throws ReachedEndException  once every message up to the configured end has been published
+     * @throws InterruptedException if the pipeline is interrupted
+     * @throws ExecutionException   if the fetch or parse stage fails
+     */
+    public void run(Publisher publisher, HapiContext context) throws ReachedEndException, InterruptedException, ExecutionException {
+        IdsProgress progress = idsOperations.getLatestProcessedId();
+        Integer endUnid = idsOperations.getEndUnid();
+        if (endUnid != null && progress.getLastProcessedIdsUnid() >= endUnid) {
+            logger.info("lastProcessedId = {} >= endUnid = {}, exiting", progress.getLastProcessedIdsUnid(), endUnid);
+            throw new ReachedEndException();
+        }
+        logger.info("Starting pipelined reader with {} parse threads from unid {}", parseThreads, progress.getLastProcessedIdsUnid());
+
+        IdsProgressTracker progressTracker = new IdsProgressTracker(progress, idsProgressRepository);
+        IdsPublishBatcher publishBatcher = new IdsPublishBatcher(publisher, progressTracker, publishBatchSize);
+        BlockingQueue<Future<ParsedIdsMessage>> parsedQueue = new ArrayBlockingQueue<>(queueSize);
+        ExecutorService parseExecutor = Executors.newFixedThreadPool(parseThreads);
+        ThreadLocal<PipeParser> parsers = ThreadLocal.withInitial(context::getPipeParser);
+        Thread fetchThread = new Thread(
+                () -> fetchAndParse(progress.getLastProcessedIdsUnid(), endUnid, parsedQueue, parseExecutor, parsers),
+                "ids-fetch");
+        fetchThread.start();
+        try {
+            convertAndPublish(parsedQueue, publishBatcher);
+            logger.info("All messages up to endUnid = {} parsed, waiting for publishing to finish", endUnid);
+            publishBatcher.flushAndAwaitAllPublished();
+            throw new ReachedEndException();
+        } finally {
+            fetchThread.interrupt();
+            parseExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * Fetch stage: stream IDS rows and submit them to the parse workers, blocking if the queue is full.
+     * Runs until the end unid has been fetched or the thread is interrupted.
+     * @param lastProcessedId unid to start fetching after
+     * @param endUnid         last unid to fetch, or null if there is no configured end
+     * @param parsedQueue     queue of parse results, in unid order
+     * @param parseExecutor   executor for the parse workers
+     * @param parsers         parser for each parse worker
+     */
+    private void fetchAndParse(int lastProcessedId, Integer endUnid, BlockingQueue<Future<ParsedIdsMessage>> parsedQueue,
+                               ExecutorService parseExecutor, ThreadLocal<PipeParser> parsers) {
+        int[] lastFetchedId = {lastProcessedId};
+        boolean[] reachedEnd = {false};
+        try {
+            while (!reachedEnd[0]) {
+                int recordCount = idsOperations.streamNextHL7IdsRecords(lastFetchedId[0], fetchBatchSize, idsMsg -> {
+                    Future<ParsedIdsMessage> parsed = parseExecutor.submit(
+                            () -> new ParsedIdsMessage(idsMsg, idsOperations.parseIdsHl7(idsMsg, parsers.get())));
+                    try {
+                        parsedQueue.put(parsed);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return false;
+                    }
+                    lastFetchedId[0] = idsMsg.getUnid();
+                    reachedEnd[0] = endUnid != null && idsMsg.getUnid() >= endUnid;
+                    return !reachedEnd[0];
+                });
+                if (Thread.currentThread().isInterrupted()) {
+                    logger.info("IDS fetch was interrupted, stopping");
+                    return;
+                }
+                if (recordCount == 0) {
+                    logger.debug("No more messages in IDS, retrying in {} seconds", SECONDS_SLEEP_WHEN_EMPTY);
+                    Thread.sleep(SECONDS_SLEEP_WHEN_EMPTY * 1000);
+                }
+            }
+            parsedQueue.put(CompletableFuture.completedFuture(ParsedIdsMessage.END));
+        } catch (InterruptedException e) {
+            logger.info("IDS fetch was interrupted, stopping");
+        } catch (RuntimeException e) {
+            logger.error("IDS fetch failed", e);
+            // make sure the failure is seen by the publish stage, even if the queue is full
+            parsedQueue.clear();
+            parsedQueue.offer(CompletableFuture.failedFuture(e));
+        }
+    }
+
+    /**
+     * Convert and publish stage: take parsed messages in unid order, build the interchange messages and submit them
+     * to the publisher in batches, saving progress as each batch is confirmed.
+     * <p>
+     * A partial batch is submitted whenever the next parsed message isn't ready yet, so that batching never holds up
+     * messages while the earlier stages are the bottleneck.
+     * @param parsedQueue    queue of parse results, in unid order
+     * @param publishBatcher batches messages for the publisher
+     * @throws InterruptedException if interrupted while waiting for a parsed message or to submit to the publisher
+     * @throws ExecutionException   if the fetch or parse stage failed
+     */
+    private void convertAndPublish(BlockingQueue<Future<ParsedIdsMessage>> parsedQueue, IdsPublishBatcher publishBatcher)
+            throws InterruptedException, ExecutionException {
+        while (true) {
+            Future<ParsedIdsMessage> next = parsedQueue.peek();
+            if (next == null || !next.isDone()) {
+                publishBatcher.flush();
+            }
+            ParsedIdsMessage parsed = parsedQueue.take().get();
+            if (parsed == ParsedIdsMessage.END) {
+                return;
+            }
+            List<? extends EmapOperationMessage> messages = parsed.message == null
+                    ? List.of() : idsOperations.buildMessagesOrSkip(parsed.message, parsed.unid);
+            logger.trace("[{}] adding {} messages to publisher batch", parsed.unid, messages.size());
+            publishBatcher.add(parsed.unid, parsed.messageDatetime, messages);
+        }
+    }
+
+    /**
+     * Result of the parse stage for a single IDS row.
+     */
+    private static final class ParsedIdsMessage {
+        /**
+         * Marks that the fetch stage has reached the configured end of the IDS.
+         */
+        static final ParsedIdsMessage END = new ParsedIdsMessage(-1, null, null);
+
+        private final int unid;
+        private final Instant messageDatetime;
+        private final Message message;
+
+        /**
+         * @param idsMsg  the IDS row
+         * @param message the parsed HL7 message, or null if parsing failed
+         */
+        ParsedIdsMessage(IdsMaster idsMsg, Message message) {
+            this(idsMsg.getUnid(), idsMsg.getMessagedatetime(), message);
+        }
+
+        private ParsedIdsMessage(int unid, Instant messageDatetime, Message message) {
+            this.unid = unid;
+            this.messageDatetime = messageDatetime;
+            this.message = message;
+        }
+    }
+}
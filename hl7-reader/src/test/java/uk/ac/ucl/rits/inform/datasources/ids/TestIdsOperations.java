@@ -0,0 +1,103 @@
+package uk.ac.ucl.rits.inform.datasources.ids;
+
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.ActiveProfiles;
+import uk.ac.ucl.rits.inform.datasources.idstables.IdsMaster;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+@ActiveProfiles("test")
+@SpringBootTest
+class TestIdsOperations {
+    @Autowired
+    private IdsOperations idsOperations;
+    @Autowired
+    private IdsConfiguration idsConfiguration;
+
+    private static final int FIRST_UNID = 101;
+    private static final int LAST_UNID = 105;
+
+    @BeforeEach
+    void populateIds() {
+        try (Session idsSession = idsConfiguration.getSessionFactory().openSession()) {
+            Transaction tx = idsSession.beginTransaction();
+            for (int unid = FIRST_UNID; unid <= LAST_UNID; unid++) {
+                IdsMaster idsMaster = new IdsMaster();
+                idsMaster.setUnid(unid);
+                idsMaster.setHl7message(String.format("MSH|^~\\&|EPIC|||||||%d", unid));
+                idsSession.save(idsMaster);
+            }
+            tx.commit();
+        }
+    }
+
+    @AfterEach
+    void clearIds() {
+        try (Session idsSession = idsConfiguration.getSessionFactory().openSession()) {
+            Transaction tx = idsSession.beginTransaction();
+            idsSession.createQuery("delete from IdsMaster").executeUpdate();
+            tx.commit();
+        }
+    }
+
+    private List<Integer> streamUnids(int lastProcessedId, int maxRecords) {
+        List<Integer> unids = new ArrayList<>();
+        idsOperations.streamNextHL7IdsRecords(lastProcessedId, maxRecords, idsMaster -> unids.add(idsMaster.getUnid()));
+        return unids;
+    }
+
+    /**
+     * Given that the IDS has 5 messages
+     * When a window of 3 messages is requested from before the first message
+     * Then the first 3 messages should be streamed in unid order
+     */
+    @Test
+    void testWindowIsLimitedAndOrdered() {
+        assertEquals(List.of(101, 102, 103), streamUnids(0, 3));
+    }
+
+    /**
+     * Given that the IDS has 5 messages
+     * When a window larger than the remaining messages is requested after the third message
+     * Then only the remaining messages should be streamed
+     */
+    @Test
+    void testWindowStartsAfterLastProcessed() {
+        assertEquals(List.of(104, 105), streamUnids(103, 1000));
+    }
+
+    /**
+     * Given that the IDS has 5 messages
+     * When the consumer asks to stop after the second message
+     * Then no further messages should be read
+     */
+    @Test
+    void testConsumerCanStopReading() {
+        List<Integer> unids = new ArrayList<>();
+        int recordCount = idsOperations.streamNextHL7IdsRecords(0, 1000, idsMaster -> {
+            unids.add(idsMaster.getUnid());
+            return idsMaster.getUnid() < 102;
+        });
+        assertEquals(2, recordCount);
+        assertEquals(List.of(101, 102), unids);
+    }
+
+    /**
+     * Given that the IDS has 5 messages
+     * When a window is requested after the last message
+     * Then nothing should be streamed
+     */
+    @Test
+    void testNoMessagesAfterEnd() {
+        assertEquals(List.of(), streamUnids(LAST_UNID, 1000));
+    }
+}
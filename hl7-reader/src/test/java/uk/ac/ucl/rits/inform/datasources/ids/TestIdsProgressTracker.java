@@ -0,0 +1,92 @@
+package uk.ac.ucl.rits.inform.datasources.ids;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.ActiveProfiles;
+
+import java.time.Instant;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+@ActiveProfiles("test")
+@SpringBootTest
+class TestIdsProgressTracker {
+    @Autowired
+    private IdsProgressRepository idsProgressRepository;
+
+    private IdsProgressTracker progressTracker;
+    private static final Instant MESSAGE_TIME = Instant.parse("2019-04-01T00:00:00Z");
+
+    @BeforeEach
+    void setUp() {
+        // there is only one row, with a fixed ID, which may have been created by another test
+        IdsProgress progress = idsProgressRepository.findOnlyRow();
+        if (progress == null) {
+            progress = idsProgressRepository.save(new IdsProgress());
+        }
+        progress.setLastProcessedIdsUnid(10);
+        idsProgressRepository.updateOnlyRow(10, null, null);
+        progressTracker = new IdsProgressTracker(progress, idsProgressRepository);
+        for (int unid = 11; unid <= 13; unid++) {
+            progressTracker.register(unid, MESSAGE_TIME.plusSeconds(unid));
+        }
+    }
+
+    private int savedUnid() {
+        return idsProgressRepository.findOnlyRow().getLastProcessedIdsUnid();
+    }
+
+    /**
+     * Given three messages have been registered
+     * When the last two messages are published before the first
+     * Then progress should not be saved until the first message has been published, and then move to the last message.
+     */
+    @Test
+    void testProgressOnlySavedWhenContiguous() {
+        progressTracker.markPublished(13);
+        progressTracker.markPublished(12);
+        assertEquals(10, savedUnid());
+        assertEquals(3, progressTracker.getPendingCount());
+
+        progressTracker.markPublished(11);
+        assertEquals(13, savedUnid());
+        assertEquals(MESSAGE_TIME.plusSeconds(13), idsProgressRepository.findOnlyRow().getLastProcessedMessageDatetime());
+        assertEquals(0, progressTracker.getPendingCount());
+    }
+
+    /**
+     * Given three messages have been registered
+     * When the first and third messages are published
+     * Then progress should be saved up to the first message only
+     */
+    @Test
+    void testProgressStopsAtGap() {
+        progressTracker.markPublished(11);
+        progressTracker.markPublished(13);
+        assertEquals(11, savedUnid());
+        assertEquals(11, progressTracker.getLastSavedUnid());
+    }
+
+    /**
+     * Given three messages have been registered
+     * When a message with an earlier unid is registered
+     * Then an exception should be thrown
+     */
+    @Test
+    void testRegisterOutOfOrderThrows() {
+        assertThrows(IllegalArgumentException.class, () -> progressTracker.register(12, MESSAGE_TIME));
+    }
+
+    /**
+     * Given three messages have been registered
+     * When a message which was not registered is published
+     * Then an exception should be thrown
+     */
+    @Test
+    void testUnregisteredMessageThrows() {
+        assertThrows(IllegalStateException.class, () -> progressTracker.markPublished(20));
+    }
+}
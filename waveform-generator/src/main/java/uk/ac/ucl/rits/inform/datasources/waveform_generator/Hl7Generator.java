@@ -133,10 +133,9 @@ public class Hl7Generator {
 //            Collections.shuffle(synthMsgs);
 
             /*
-             * It seems like Spring Integration on the waveform-reader side won't properly multithread handlers
-             * for messages that all come in on a single connection. So create multiple connections here.
-             * However, in production we won't have control over the TCP client,
-             * so we will have to fix the waveform-reader eventually.
+             * The waveform-reader spreads messages from a single connection over all its parse workers,
+             * as in production we won't have control over the TCP client. Multiple connections are
+             * still supported in case that's useful for testing.
              */
             try (Hl7TcpClientPool tcpClient = hl7TcpClientFactory.createTcpClientPool(tcpClientPoolSize)) {
                 for (var msgStr : synthMsgs) {
@@ -283,6 +282,11 @@ public class Hl7Generator {
             "UCHT03ICUBED31", "UCHT03ICUBED32", "UCHT03ICUBED33", "UCHT03ICUBED34", "UCHT03ICUBED35", "UCHT03ICUBED36"
             );
 
+    private static final List<SyntheticStream> DEFAULT_SYNTHETIC_STREAMS = List.of(
+            new SyntheticStream("52912", 50, 0.3, 5), // airway volume
+            new SyntheticStream("27", 300, 1.2, 10) // ECG
+    );
+
     /**
      * Generate synthetic waveform data for numPatients patients to cover a period of
      * numMillis milliseconds.
@@ -293,12 +297,22 @@ public class Hl7Generator {
      */
     public List<String> makeSyntheticWaveformMsgsAllPatients(
             Instant startTime, long numPatients, long numMillis) {
+        return makeSyntheticWaveformMsgsAllPatients(startTime, numPatients, numMillis, DEFAULT_SYNTHETIC_STREAMS);
+    }
+
+    /**
+     * Generate synthetic waveform data for numPatients patients to cover a period of
+     * numMillis milliseconds, with the given streams (eg. to vary the message size when benchmarking).
+     * @param startTime time to start observation period
+     * @param numPatients number of patients to generate for
+     * @param numMillis length of observation period to generate data for
+     * @param syntheticStreams streams that each patient may have
+     * @return list of HL7 messages
+     */
+    public List<String> makeSyntheticWaveformMsgsAllPatients(
+            Instant startTime, long numPatients, long numMillis, List<SyntheticStream> syntheticStreams) {
         List<String> waveformMsgs = new ArrayList<>();
         numPatients = Math.min(numPatients, possibleLocations.size());
-        List<SyntheticStream> syntheticStreams = List.of(
-                new SyntheticStream("52912", 50, 0.3, 5), // airway volume
-                new SyntheticStream("27", 300, 1.2, 10) // ECG
-        );
         for (int p = 0; p < numPatients; p++) {
             var location = possibleLocations.get(p);
             int sizeBefore = waveformMsgs.size();
@@ -323,7 +337,14 @@ public class Hl7Generator {
         return waveformMsgs;
     }
 
-    record SyntheticStream(String streamId, int samplingRate, double baselineSignalFrequency, int maxSamplesPerMessage) {
+    /**
+     * A synthetic stream of data.
+     * @param streamId identifier for the stream, should be in the waveform reader's metadata
+     * @param samplingRate in samples per second
+     * @param baselineSignalFrequency the signal baseline frequency (Hz)
+     * @param maxSamplesPerMessage max samples per HL7 message
+     */
+    public record SyntheticStream(String streamId, int samplingRate, double baselineSignalFrequency, int maxSamplesPerMessage) {
     }
 
     private class GeneratorContext {
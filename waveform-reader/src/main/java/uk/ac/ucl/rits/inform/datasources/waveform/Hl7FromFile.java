@@ -4,71 +4,249 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.scheduling.annotation.Scheduled;
-import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 import org.springframework.stereotype.Component;
+import uk.ac.ucl.rits.inform.datasources.waveform.hl7parse.Hl7Cursor;
 import uk.ac.ucl.rits.inform.datasources.waveform.hl7parse.Hl7ParseException;
+import uk.ac.ucl.rits.inform.interchange.messaging.Publisher;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Scanner;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.time.DateTimeException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Replay HL7 messages from a dump file (intended for validation), then exit.
+ * <p>
+ * The file is memory-mapped a window at a time and split on the 0x1c separator, so it's never all in memory
+ * however big it is. Messages are handed to the same {@link Hl7ParseWorkers} as messages received over the network,
+ * so they're parsed in parallel while keeping the order within each location, and if the workers fall behind
+ * we wait for them rather than reading further ahead.
+ */
 @Component
 public class Hl7FromFile {
     private final Logger logger = LoggerFactory.getLogger(Hl7FromFile.class);
+    private static final int WINDOW_BYTES = 256 * 1024 * 1024;
+    private static final long PROGRESS_LOG_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
 
-    private final ThreadPoolTaskExecutor listenTaskExecutor;
+    private final Hl7ParseWorkers hl7ParseWorkers;
     private final Hl7ParseAndQueue hl7ParseAndQueue;
+    private final WaveformOutbox waveformOutbox;
+    private final Publisher publisher;
     private final File hl7DumpFile;
-    static final String MESSAGE_DELIMITER = "\u001c";
+    private final double warpFactor;
+    private final long finishTimeoutSeconds;
+    /**
+     * Only used from the replay thread, to find message timestamps for pacing.
+     */
+    private final Hl7Cursor pacingCursor = new Hl7Cursor();
 
-    Hl7FromFile(ThreadPoolTaskExecutor listenTaskExecutor,
+    /**
+     * @param hl7ParseWorkers      workers to parse the messages
+     * @param hl7ParseAndQueue     to flush any remaining data at the end
+     * @param waveformOutbox       to wait for everything to be sent at the end
+     * @param publisher            to wait for everything to be confirmed at the end
+     * @param hl7DumpFile          file to replay, or null to do nothing
+     * @param warpFactor           how many times faster than real time (by the MSH-7 timestamps) to replay,
+     *                             or 0 to go as fast as possible
+     * @param finishTimeoutSeconds how long to wait for each stage to finish at the end of the file
+     */
+    Hl7FromFile(Hl7ParseWorkers hl7ParseWorkers,
                 Hl7ParseAndQueue hl7ParseAndQueue,
-                @Value("${waveform.hl7.test_dump_file:#{null}}") File hl7DumpFile
+                WaveformOutbox waveformOutbox,
+                Publisher publisher,
+                @Value("${waveform.hl7.test_dump_file:#{null}}") File hl7DumpFile,
+                @Value("${waveform.hl7.test_dump_warp_factor:0}") double warpFactor,
+                @Value("${waveform.hl7.test_dump_finish_timeout_seconds:600}") long finishTimeoutSeconds
                 ) {
-        this.listenTaskExecutor = listenTaskExecutor;
+        this.hl7ParseWorkers = hl7ParseWorkers;
         this.hl7ParseAndQueue = hl7ParseAndQueue;
+        this.waveformOutbox = waveformOutbox;
+        this.publisher = publisher;
         this.hl7DumpFile = hl7DumpFile;
+        this.warpFactor = warpFactor;
+        this.finishTimeoutSeconds = finishTimeoutSeconds;
     }
 
-    List<String> readFromFile(File hl7DumpFile) throws IOException {
-        logger.info("Reading test HL7 file {}", hl7DumpFile);
-        Scanner scanner = new Scanner(hl7DumpFile);
-        scanner.useDelimiter(MESSAGE_DELIMITER);
-        List<String> allMessages = new ArrayList<>();
-        while (scanner.hasNext()) {
-            String nextMessageStr = scanner.next();
-            allMessages.add(nextMessageStr);
+    /**
+     * Progress through one file.
+     */
+    private static final class Replay {
+        private final long startNanos = System.nanoTime();
+        private final long startHl7Count;
+        private final long startSampleCount;
+        private long lastProgressLogNanos = startNanos;
+        private long messagesRead;
+        private Instant firstMessageTime;
+        private long firstMessageNanos;
+
+        Replay(long startHl7Count, long startSampleCount) {
+            this.startHl7Count = startHl7Count;
+            this.startSampleCount = startSampleCount;
         }
-        return allMessages;
     }
 
     @Scheduled(fixedRate = Long.MAX_VALUE) // do once only
-    void readOnceAndQueueScheduled() throws Hl7ParseException, WaveformCollator.CollationException, IOException {
+    void readOnceAndQueueScheduled() throws IOException, InterruptedException {
         if (hl7DumpFile == null) {
             logger.info("No test HL7 file specified");
             return;
         }
+        long startNanos = System.nanoTime();
         readOnceAndQueue(hl7DumpFile);
-        // Not sure how to wait for Publisher to finish, so just sleep for a bit
-        try {
-            Thread.sleep(10_000);
-        } catch (InterruptedException e) {
-            logger.warn("Thread was interrupted", e);
+        hl7ParseAndQueue.collateAndSendAll();
+        boolean finished = waveformOutbox.awaitAllSent(finishTimeoutSeconds, TimeUnit.SECONDS)
+                && publisher.awaitAllPublished(finishTimeoutSeconds, TimeUnit.SECONDS);
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        if (finished) {
+            logger.info("All messages from test dump file published in {} seconds", String.format("%.1f", seconds));
+        } else {
+            logger.error("Gave up waiting for messages from test dump file to be published after {} seconds",
+                    String.format("%.1f", seconds));
         }
-        System.exit(0);
+        System.exit(finished ? 0 : 1);
+    }
+
+    /**
+     * Read all messages from the file and wait until they've been parsed and queued for collation.
+     * @param hl7DumpFile file of 0x1c separated HL7 messages
+     * @return number of messages read from the file
+     * @throws IOException          if the file can't be read, or contains a message bigger than the read window
+     * @throws InterruptedException if interrupted
+     */
+    long readOnceAndQueue(File hl7DumpFile) throws IOException, InterruptedException {
+        return readOnceAndQueue(hl7DumpFile, WINDOW_BYTES);
     }
 
-    void readOnceAndQueue(File hl7DumpFile) throws Hl7ParseException, WaveformCollator.CollationException, IOException {
-        List<String> messages = readFromFile(hl7DumpFile);
-        logger.info("Read {} HL7 messages from test dump file", messages.size());
-        for (int mi = 0; mi < messages.size(); mi++) {
-            hl7ParseAndQueue.parseAndQueue(messages.get(mi));
-            if (mi % 100 == 0) {
-                logger.info("handled {} messages out of {}", mi + 1, messages.size());
+    /**
+     * @param hl7DumpFile file of 0x1c separated HL7 messages
+     * @param windowBytes how much of the file to map at once, must be bigger than any message
+     * @return number of messages read from the file
+     * @throws IOException          if the file can't be read, or contains a message bigger than the read window
+     * @throws InterruptedException if interrupted
+     */
+    long readOnceAndQueue(File hl7DumpFile, int windowBytes) throws IOException, InterruptedException {
+        logger.info("Reading test HL7 file {}", hl7DumpFile);
+        Replay replay = new Replay(hl7ParseAndQueue.getParsedHl7Count(), hl7ParseAndQueue.getParsedSampleCount());
+        try (FileChannel channel = FileChannel.open(hl7DumpFile.toPath(), StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            long windowStart = 0;
+            while (windowStart < fileSize) {
+                int windowSize = (int) Math.min(windowBytes, fileSize - windowStart);
+                MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, windowSize);
+                int messageStart = 0;
+                for (int i = 0; i < windowSize; i++) {
+                    if (window.get(i) == Hl7MessageFramer.MESSAGE_SEPARATOR) {
+                        submit(replay, window, messageStart, i);
+                        messageStart = i + 1;
+                    }
+                }
+                if (windowStart + windowSize == fileSize) {
+                    // last message might not have a separator after it
+                    submit(replay, window, messageStart, windowSize);
+                    break;
+                }
+                if (messageStart == 0) {
+                    throw new IOException(String.format("Message at offset %d is bigger than %d bytes", windowStart, windowBytes));
+                }
+                // start the next window at the start of the message which was cut off
+                windowStart += messageStart;
             }
         }
-        logger.info("Queued {} HL7 messages from test dump file", messages.size());
+        logger.info("Read {} HL7 messages from test dump file, waiting for them to be parsed", replay.messagesRead);
+        if (!hl7ParseWorkers.awaitIdle(finishTimeoutSeconds, TimeUnit.SECONDS)) {
+            logger.error("Gave up waiting for messages from test dump file to be parsed");
+        }
+        logProgress(replay, "Queued");
+        return replay.messagesRead;
+    }
+
+    private void submit(Replay replay, MappedByteBuffer window, int start, int end) throws InterruptedException {
+        if (isBlank(window, start, end)) {
+            return;
+        }
+        byte[] message = new byte[end - start];
+        window.get(start, message);
+        pace(replay, message);
+        hl7ParseWorkers.submit(message);
+        replay.messagesRead++;
+        long now = System.nanoTime();
+        if (now - replay.lastProgressLogNanos > PROGRESS_LOG_INTERVAL_NANOS) {
+            replay.lastProgressLogNanos = now;
+            logProgress(replay, "Handled");
+        }
+    }
+
+    private void logProgress(Replay replay, String verb) {
+        double seconds = (System.nanoTime() - replay.startNanos) / 1e9;
+        long hl7Count = hl7ParseAndQueue.getParsedHl7Count() - replay.startHl7Count;
+        long sampleCount = hl7ParseAndQueue.getParsedSampleCount() - replay.startSampleCount;
+        logger.info("{} {} HL7 messages ({} samples) from test dump file in {} seconds: {} messages/s, {} samples/s",
+                verb, hl7Count, sampleCount, String.format("%.1f", seconds),
+                Math.round(hl7Count / seconds), Math.round(sampleCount / seconds));
+    }
+
+    /**
+     * Messages are separated by whitespace and vertical tabs as well as the separator, so there may be
+     * whitespace-only leftovers (eg. at the end of the file), which aren't worth parsing.
+     * @param window mapped part of the file
+     * @param start  index in the window of the first byte of the message
+     * @param end    index in the window after the last byte of the message
+     * @return true if the message has only whitespace and control characters
+     */
+    private static boolean isBlank(MappedByteBuffer window, int start, int end) {
+        for (int i = start; i < end; i++) {
+            byte b = window.get(i);
+            // same as the whitespace and control characters that Hl7Cursor strips
+            if (b < 0 || b > ' ') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * If a warp factor is set, wait until the message is due, according to its MSH-7 timestamp relative to
+     * the first message.
+     * @param replay  the replay in progress, holding the time of its first message
+     * @param message HL7 message about to be parsed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private void pace(Replay replay, byte[] message) throws InterruptedException {
+        if (warpFactor <= 0) {
+            return;
+        }
+        Instant messageTime = messageTime(message);
+        if (messageTime == null) {
+            return;
+        }
+        if (replay.firstMessageTime == null) {
+            replay.firstMessageTime = messageTime;
+            replay.firstMessageNanos = System.nanoTime();
+            return;
+        }
+        long offsetNanos = (long) (Duration.between(replay.firstMessageTime, messageTime).toNanos() / warpFactor);
+        long waitNanos = replay.firstMessageNanos + offsetNanos - System.nanoTime();
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+
+    /**
+     * @param message HL7 message
+     * @return the MSH-7 timestamp, or null if it can't be found (the parser will report the problem)
+     */
+    private Instant messageTime(byte[] message) {
+        try {
+            pacingCursor.reset(message, 0, message.length);
+            String datetime = pacingCursor.getField(pacingCursor.getSingleSegment("MSH"), 7);
+            return Instant.from(Hl7ParseAndQueue.OBS_DATETIME_FORMATTER.parse(datetime));
+        } catch (Hl7ParseException | DateTimeException e) {
+            return null;
+        }
     }
 }
@@ -0,0 +1,104 @@
+package uk.ac.ucl.rits.inform.datasources.waveform;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * Split the byte stream from one TCP connection into HL7 messages.
+ * <p>
+ * The message separator is actually "\r\x1c\r\x0b", but since the 0x1c (file separator) character is pretty
+ * unusual and only occurs here, use it as a single byte separator and leave the other junk for
+ * {@link uk.ac.ucl.rits.inform.datasources.waveform.hl7parse.Hl7Cursor} to strip off.
+ * <p>
+ * Bytes are read out of the (pooled) receive buffer straight away, so the buffer can be reused as soon as
+ * {@link #accept} returns. Only the tail of a message which is split across reads is kept between calls.
+ * Not thread safe, there should be one framer per connection.
+ */
+class Hl7MessageFramer {
+    private final Logger logger = LoggerFactory.getLogger(Hl7MessageFramer.class);
+    static final byte MESSAGE_SEPARATOR = 0x1c;
+
+    private final int maxMessageSize;
+    private final Consumer<byte[]> messageConsumer;
+    private byte[] partial = new byte[0];
+    private int partialLength;
+    private boolean discarding;
+
+    /**
+     * @param maxMessageSize  messages longer than this are logged and discarded
+     * @param messageConsumer receives each complete message, excluding the separator
+     */
+    Hl7MessageFramer(int maxMessageSize, Consumer<byte[]> messageConsumer) {
+        this.maxMessageSize = maxMessageSize;
+        this.messageConsumer = messageConsumer;
+    }
+
+    /**
+     * Consume all remaining bytes in the buffer, passing on any messages which are now complete.
+     * @param buffer buffer ready for reading, will be empty on return
+     */
+    void accept(ByteBuffer buffer) {
+        while (buffer.hasRemaining()) {
+            int start = buffer.position();
+            int end = start;
+            int limit = buffer.limit();
+            while (end < limit && buffer.get(end) != MESSAGE_SEPARATOR) {
+                end++;
+            }
+            append(buffer, end - start);
+            if (end < limit) {
+                // skip the separator
+                buffer.get();
+                completeMessage();
+            }
+        }
+    }
+
+    private void append(ByteBuffer buffer, int length) {
+        if (discarding || partialLength + length > maxMessageSize) {
+            if (!discarding) {
+                logger.error("HL7 message exceeds {} bytes, discarding it", maxMessageSize);
+                discarding = true;
+                partialLength = 0;
+            }
+            buffer.position(buffer.position() + length);
+            return;
+        }
+        if (partialLength + length > partial.length) {
+            partial = Arrays.copyOf(partial, Math.max(partialLength + length, partial.length * 2));
+        }
+        buffer.get(partial, partialLength, length);
+        partialLength += length;
+    }
+
+    private void completeMessage() {
+        if (!discarding && !isAllWhitespace()) {
+            messageConsumer.accept(Arrays.copyOf(partial, partialLength));
+        }
+        discarding = false;
+        partialLength = 0;
+    }
+
+    /**
+     * @return true if the bytes since the last separator are only framing bytes and whitespace
+     */
+    private boolean isAllWhitespace() {
+        for (int i = 0; i < partialLength; i++) {
+            if (partial[i] < 0 || partial[i] > ' ') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return number of bytes received since the last complete message, ignoring any trailing whitespace
+     */
+    int getIncompleteLength() {
+        return isAllWhitespace() ? 0 : partialLength;
+    }
+}
@@ -0,0 +1,300 @@
+package uk.ac.ucl.rits.inform.datasources.waveform;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Listen on a TCP port for incoming HL7 messages, using a single non-blocking network thread for all connections.
+ * <p>
+ * The network thread only reads and frames the messages (see {@link Hl7MessageFramer}), and the parsing is done by
+ * {@link Hl7ParseWorkers}, so a single connection can keep every parse worker busy. Smartlinx only opens a few
+ * connections, so a thread per connection would leave most cores idle.
+ * <p>
+ * The network thread never waits for the parse workers. If a message's worker is full, the connection keeps its
+ * framed messages and we stop reading from it until they have all been handed over, which pushes back on that sender
+ * while other connections carry on. Connections which send nothing for the idle timeout are closed.
+ */
+class Hl7NioListener {
+    private final Logger logger = LoggerFactory.getLogger(Hl7NioListener.class);
+    private static final int RECEIVE_BUFFER_SIZE = 10 * 1024 * 1024;
+    private static final int READ_BUFFER_SIZE = 256 * 1024;
+    /**
+     * How often to retry handing over messages to full parse workers.
+     */
+    private static final long BLOCKED_RETRY_MS = 10;
+
+    private final int listenPort;
+    private final List<String> sourceAddressAllowList;
+    private final int maxMessageSize;
+    private final Hl7ParseWorkers parseWorkers;
+    private final long idleTimeoutNanos;
+    /**
+     * Connections with messages waiting for space in their parse worker, which we have stopped reading from.
+     */
+    private final Set<SelectionKey> blockedKeys = new HashSet<>();
+    /**
+     * All reads happen on the network thread and the framer copies the bytes out before returning,
+     * so the one direct buffer can be reused for every read.
+     */
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+    private ServerSocketChannel serverChannel;
+    private Selector selector;
+    private Thread networkThread;
+    private volatile boolean running;
+
+    /**
+     * @param listenPort             port to listen on (inside container), or 0 for any free port
+     * @param sourceAddressAllowList list of source addresses that are allowed to connect to us, "ALL" to allow any
+     * @param maxMessageSize         longest HL7 message we will accept, in bytes
+     * @param parseWorkers           workers to pass the framed messages to
+     * @param idleTimeoutMs          close connections which send nothing for this long, or 0 to never close them
+     */
+    Hl7NioListener(int listenPort, List<String> sourceAddressAllowList, int maxMessageSize, Hl7ParseWorkers parseWorkers,
+                   long idleTimeoutMs) {
+        this.listenPort = listenPort;
+        this.sourceAddressAllowList = sourceAddressAllowList;
+        this.maxMessageSize = maxMessageSize;
+        this.parseWorkers = parseWorkers;
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMs);
+    }
+
+    /**
+     * Start listening and start the parse workers.
+     * @throws IOException if the port can't be opened
+     */
+    @PostConstruct
+    void start() throws IOException {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_SIZE);
+        serverChannel.bind(new InetSocketAddress(listenPort));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        parseWorkers.start();
+        running = true;
+        networkThread = new Thread(this::selectUntilStopped, "TcpListen");
+        networkThread.setDaemon(true);
+        networkThread.start();
+        logger.info("Listening for HL7 on port {}", getLocalPort());
+    }
+
+    /**
+     * Stop accepting data, then let the parse workers finish the messages they already have.
+     */
+    @PreDestroy
+    void stop() {
+        running = false;
+        selector.wakeup();
+        try {
+            networkThread.join(TimeUnit.SECONDS.toMillis(10));
+            parseWorkers.stop(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return the port actually being listened on, useful if it was started on port 0
+     */
+    int getLocalPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    private void selectUntilStopped() {
+        try {
+            while (running && !Thread.currentThread().isInterrupted()) {
+                selector.select(selectTimeoutMs());
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else if (key.isReadable()) {
+                        read(key);
+                    }
+                }
+                retryBlocked();
+                closeIdle();
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            logger.error("HL7 listener failed, no more messages will be received", e);
+        } finally {
+            closeAll();
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        InetSocketAddress remote = (InetSocketAddress) channel.getRemoteAddress();
+        String sourceAddress = remote.getAddress().getHostAddress();
+        if (!sourceAddressAllowList.contains(sourceAddress) && !sourceAddressAllowList.contains("ALL")) {
+            logger.warn("CONNECTION REFUSED from {}:{}, allowlist = {}", sourceAddress, remote.getPort(), sourceAddressAllowList);
+            channel.close();
+            return;
+        }
+        logger.info("connection accepted from {}:{}", sourceAddress, remote.getPort());
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+        channel.register(selector, SelectionKey.OP_READ, new Connection(maxMessageSize));
+    }
+
+    private void read(SelectionKey key) {
+        SocketChannel channel = (SocketChannel) key.channel();
+        Connection connection = (Connection) key.attachment();
+        readBuffer.clear();
+        int bytesRead;
+        try {
+            bytesRead = channel.read(readBuffer);
+        } catch (IOException e) {
+            logger.warn("Error reading from {}, closing connection", channel, e);
+            close(key);
+            return;
+        }
+        if (bytesRead < 0) {
+            close(key);
+            return;
+        }
+        connection.lastReadNanos = System.nanoTime();
+        readBuffer.flip();
+        connection.framer.accept(readBuffer);
+        if (!submitPending(connection)) {
+            key.interestOps(0);
+            blockedKeys.add(key);
+        }
+    }
+
+    /**
+     * Hand over as many of the connection's framed messages as the parse workers have space for.
+     * @param connection the connection
+     * @return true if all messages were handed over
+     */
+    private boolean submitPending(Connection connection) {
+        while (!connection.pending.isEmpty()) {
+            if (!parseWorkers.offer(connection.pending.peek())) {
+                return false;
+            }
+            connection.pending.remove();
+        }
+        return true;
+    }
+
+    /**
+     * Start reading again from any blocked connections whose messages now all fit in the parse workers.
+     */
+    private void retryBlocked() {
+        Iterator<SelectionKey> keys = blockedKeys.iterator();
+        while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            Connection connection = (Connection) key.attachment();
+            if (!key.isValid() || submitPending(connection)) {
+                keys.remove();
+                if (key.isValid()) {
+                    // we weren't reading, so don't count the wait towards the idle timeout
+                    connection.lastReadNanos = System.nanoTime();
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+            }
+        }
+    }
+
+    private void closeIdle() {
+        if (idleTimeoutNanos == 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof Connection connection && !blockedKeys.contains(key)
+                    && now - connection.lastReadNanos > idleTimeoutNanos) {
+                logger.warn("No data from {} for {} ms, closing connection",
+                        key.channel(), TimeUnit.NANOSECONDS.toMillis(idleTimeoutNanos));
+                close(key);
+            }
+        }
+    }
+
+    /**
+     * @return how long to wait for network events before retrying blocked connections or checking for idle ones,
+     * 0 to wait indefinitely
+     */
+    private long selectTimeoutMs() {
+        if (!blockedKeys.isEmpty()) {
+            return BLOCKED_RETRY_MS;
+        }
+        return TimeUnit.NANOSECONDS.toMillis(idleTimeoutNanos);
+    }
+
+    private void close(SelectionKey key) {
+        if (key.attachment() instanceof Connection connection) {
+            if (connection.framer.getIncompleteLength() > 0) {
+                logger.warn("Connection {} closed part way through a message, discarding {} bytes",
+                        key.channel(), connection.framer.getIncompleteLength());
+            }
+            if (!connection.pending.isEmpty()) {
+                logger.warn("Connection {} closed with {} messages not yet parsed, discarding them",
+                        key.channel(), connection.pending.size());
+            }
+        }
+        blockedKeys.remove(key);
+        logger.info("Closing connection {}", key.channel());
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            logger.warn("Error closing connection", e);
+        }
+    }
+
+    private void closeAll() {
+        try {
+            for (SelectionKey key : selector.keys()) {
+                close(key);
+            }
+            selector.close();
+        } catch (IOException | ClosedSelectorException e) {
+            logger.warn("Error closing HL7 listener", e);
+        }
+    }
+
+    /**
+     * State for one TCP connection, attached to its selection key.
+     */
+    private static final class Connection {
+        /**
+         * Messages framed but not yet handed to the parse workers, in the order they were received.
+         */
+        private final Queue<byte[]> pending = new ArrayDeque<>();
+        private final Hl7MessageFramer framer;
+        private long lastReadNanos = System.nanoTime();
+
+        Connection(int maxMessageSize) {
+            framer = new Hl7MessageFramer(maxMessageSize, pending::add);
+        }
+    }
+}
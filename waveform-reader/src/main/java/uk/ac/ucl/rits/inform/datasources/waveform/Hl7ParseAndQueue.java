@@ -1,27 +1,29 @@
 package uk.ac.ucl.rits.inform.datasources.waveform;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import lombok.Getter;
 import lombok.Setter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
-import uk.ac.ucl.rits.inform.datasources.waveform.hl7parse.Hl7Message;
+import uk.ac.ucl.rits.inform.datasources.waveform.hl7parse.Hl7Cursor;
 import uk.ac.ucl.rits.inform.datasources.waveform.hl7parse.Hl7ParseException;
-import uk.ac.ucl.rits.inform.datasources.waveform.hl7parse.Hl7Segment;
 import uk.ac.ucl.rits.inform.interchange.InterchangeValue;
 import uk.ac.ucl.rits.inform.interchange.visit_observations.WaveformMessage;
 
+import java.nio.charset.StandardCharsets;
 import java.time.DateTimeException;
+import java.time.Duration;
 import java.time.Instant;
 import java.time.format.DateTimeFormatter;
 import java.time.temporal.ChronoUnit;
 import java.time.temporal.TemporalAccessor;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
-import java.util.Optional;
-import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Receive HL7 messages, transform each to an interchange message, and
@@ -31,123 +33,155 @@ import java.util.Set;
 @Component
 public class Hl7ParseAndQueue {
     private final Logger logger = LoggerFactory.getLogger(Hl7ParseAndQueue.class);
-    private final WaveformOperations waveformOperations;
+    private final WaveformOutbox waveformOutbox;
     private final WaveformCollator waveformCollator;
-    private final SourceMetadata sourceMetadata;
-    private final LocationMapping locationMapping;
-    private long numHl7 = 0;
+    private final StreamDescriptorCache streamDescriptorCache;
+    /**
+     * Counts of parsed HL7 messages and the waveform samples in them, updated from all the parser threads.
+     */
+    private final LongAdder numHl7 = new LongAdder();
+    private final LongAdder numSamples = new LongAdder();
+    private final Timer parseTimer;
+    static final DateTimeFormatter OBS_DATETIME_FORMATTER = DateTimeFormatter.ofPattern("yyyyMMddHHmmss.SSSZZ");
+    /**
+     * Messages are parsed on several handler threads, each of which reuses its own cursor.
+     */
+    private final ThreadLocal<Hl7Cursor> cursors = ThreadLocal.withInitial(Hl7Cursor::new);
 
-    Hl7ParseAndQueue(WaveformOperations waveformOperations,
+    /**
+     * @param waveformOutbox        where collated messages are queued for sending
+     * @param waveformCollator      collates the parsed messages
+     * @param streamDescriptorCache per location+stream metadata
+     * @param meterRegistry         where to record parse timings
+     */
+    Hl7ParseAndQueue(WaveformOutbox waveformOutbox,
                      WaveformCollator waveformCollator,
-                     SourceMetadata sourceMetadata, LocationMapping locationMapping) {
-        this.waveformOperations = waveformOperations;
+                     StreamDescriptorCache streamDescriptorCache,
+                     MeterRegistry meterRegistry) {
+        this.waveformOutbox = waveformOutbox;
         this.waveformCollator = waveformCollator;
-        this.sourceMetadata = sourceMetadata;
-        this.locationMapping = locationMapping;
+        this.streamDescriptorCache = streamDescriptorCache;
+        parseTimer = Timer.builder("waveform.hl7.parse")
+                .description("Time to parse one HL7 message")
+                .publishPercentileHistogram()
+                .maximumExpectedValue(Duration.ofSeconds(1))
+                .register(meterRegistry);
     }
 
+    /**
+     * Parse an HL7 message into (uncollated) interchange messages.
+     * @param messageAsStr One HL7 message as a string
+     * @return one interchange message per OBX segment that we can use
+     * @throws Hl7ParseException if HL7 is invalid or in a form that the ad hoc parser can't handle
+     */
     List<WaveformMessage> parseHl7(String messageAsStr) throws Hl7ParseException {
+        return parseHl7(messageAsStr.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Parse an HL7 message into (uncollated) interchange messages, directly from the bytes received.
+     * @param messageBytes One HL7 message, (CR line ending), may have surrounding whitespace and framing bytes
+     * @return one interchange message per OBX segment that we can use
+     * @throws Hl7ParseException if HL7 is invalid or in a form that the ad hoc parser can't handle
+     */
+    List<WaveformMessage> parseHl7(byte[] messageBytes) throws Hl7ParseException {
         List<WaveformMessage> allWaveformMessages = new ArrayList<>();
-        int origSize = messageAsStr.length();
-        // messages are separated with vertical tabs and extra carriage returns, so remove
-        messageAsStr = messageAsStr.strip();
-        if (messageAsStr.isEmpty()) {
+        // messages are separated with vertical tabs and extra carriage returns, which the cursor ignores
+        Hl7Cursor message = cursors.get();
+        message.reset(messageBytes, 0, messageBytes.length);
+        if (message.getSegmentCount() == 0) {
             // message was all whitespace, ignore
-            logger.info("Ignoring empty or all-whitespace message");
+            logger.debug("Ignoring empty or all-whitespace message");
             return allWaveformMessages;
         }
-        logger.debug("Parsing message of size {} ({} including stray whitespace)", messageAsStr.length(), origSize);
-        Hl7Message message = new Hl7Message(messageAsStr);
-        String messageIdBase = message.getField("MSH", 10);
-        String pv1LocationId = message.getField("PV1", 3);
-        String messageType = message.getField("MSH", 9);
-        if (!messageType.equals("ORU^R01")) {
-            throw new Hl7ParseException("Was expecting ORU^R01, got " + messageType);
+        logger.debug("Parsing message of size {} ({} including stray whitespace)", message.getLength(), messageBytes.length);
+        int msh = message.getSingleSegment("MSH");
+        int pv1 = message.getSingleSegment("PV1");
+        String messageIdBase = message.getField(msh, 10);
+        String pv1LocationId = message.getField(pv1, 3);
+        if (!message.fieldEquals(msh, 9, "ORU^R01")) {
+            throw new Hl7ParseException("Was expecting ORU^R01, got " + message.getField(msh, 9));
         }
-        List<Hl7Segment> allObr = message.getSegments("OBR");
+        // OBX segments belong to the most recent OBR
         int obrI = 0;
-        for (var obr: allObr) {
-            obrI++;
-            String locationId = obr.getField(10);
-            List<Hl7Segment> allObx = obr.getChildSegments("OBX");
-            int obxI = 0;
-            for (var obx: allObx) {
-                obxI++;
-                String obsDatetimeStr = obx.getField(14);
-
-                if (!pv1LocationId.equals(locationId)) {
-                    throw new Hl7ParseException("Unexpected location " + locationId + "|" + pv1LocationId);
-                }
+        int obxI = 0;
+        String locationId = null;
+        // all the OBX segments in an OBR usually have the same timestamp, so don't parse it again
+        String lastObsDatetimeStr = null;
+        Instant obsDatetime = null;
+        for (int seg = 0; seg < message.getSegmentCount(); seg++) {
+            if (message.isSegment(seg, "OBR")) {
+                obrI++;
+                obxI = 0;
+                locationId = message.getField(seg, 10);
+                continue;
+            }
+            if (!message.isSegment(seg, "OBX")) {
+                continue;
+            }
+            if (obrI == 0) {
+                throw new Hl7ParseException("Required parent OBR for segment OBX not found");
+            }
+            obxI++;
+            String obsDatetimeStr = message.getField(seg, 14);
+
+            if (!pv1LocationId.equals(locationId)) {
+                throw new Hl7ParseException("Unexpected location " + locationId + "|" + pv1LocationId);
+            }
 
+            if (!obsDatetimeStr.equals(lastObsDatetimeStr)) {
                 logger.trace("Parsing datetime {}", obsDatetimeStr);
-                DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyyMMddHHmmss.SSSZZ");
-                Instant obsDatetime;
                 try {
-                    TemporalAccessor ta = formatter.parse(obsDatetimeStr);
+                    TemporalAccessor ta = OBS_DATETIME_FORMATTER.parse(obsDatetimeStr);
                     obsDatetime = Instant.from(ta);
                 } catch (DateTimeException e) {
                     throw (Hl7ParseException) new Hl7ParseException("Datetime parsing failed").initCause(e);
                 }
+                lastObsDatetimeStr = obsDatetimeStr;
+            }
 
-                String streamId = obx.getField(3);
+            String streamId = message.getField(seg, 3);
+            StreamDescriptor stream = streamDescriptorCache.get(locationId, streamId);
+            if (!stream.usable()) {
+                // reason has already been logged when the stream was first seen
+                logger.trace("Skipping stream {}", streamId);
+                continue;
+            }
 
-                Optional<SourceMetadataItem> metadataOpt = sourceMetadata.getStreamMetadata(streamId);
-                if (metadataOpt.isEmpty()) {
-                    logger.warn("Skipping stream {}, unrecognised streamID", streamId);
-                    continue;
-                }
-                SourceMetadataItem metadata = metadataOpt.get();
-                if (!metadata.isUsable()) {
-                    logger.warn("Skipping stream {}, insufficient metadata", streamId);
-                    continue;
-                }
-                // Sampling rate and stream description is not in the message, so use the metadata
-                int samplingRate = metadata.samplingRate();
-                String mappedLocation = locationMapping.hl7AdtLocationFromCapsuleLocation(locationId);
-                String mappedStreamDescription = metadata.mappedStreamDescription();
-                String unit = metadata.unit();
-
-                // non-numerical types won't be able to go in the waveform table, but it's possible
-                // we might need them as a VisitObservation
-                String hl7Type = obx.getField(2);
-                if (!Set.of("NM", "NA").contains(hl7Type)) {
-                    logger.warn("Skipping stream {} with type {}, not numerical", streamId, hl7Type);
-                    continue;
-                }
-                String allPointsStr = obx.getField(5);
-                if (allPointsStr.contains("~")) {
-                    throw new Hl7ParseException("must only be 1 repeat in OBX-5");
-                }
+            // non-numerical types won't be able to go in the waveform table, but it's possible
+            // we might need them as a VisitObservation
+            if (!message.fieldEquals(seg, 2, "NM") && !message.fieldEquals(seg, 2, "NA")) {
+                logger.warn("Skipping stream {} with type {}, not numerical", streamId, message.getField(seg, 2));
+                continue;
+            }
+            if (message.fieldContains(seg, 5, '~')) {
+                throw new Hl7ParseException("must only be 1 repeat in OBX-5");
+            }
 
-                List<Double> points = Arrays.stream(allPointsStr.split("\\^")).map(Double::parseDouble).toList();
+            double[] points = message.getFieldAsDoubles(seg, 5);
 
-                String messageIdSpecific = String.format("%s_%d_%d", messageIdBase, obrI, obxI);
-                logger.debug("location {}, time {}, messageId {}, value count = {}",
-                        locationId, obsDatetime, messageIdSpecific, points.size());
-                WaveformMessage waveformMessage = waveformMessageFromValues(
-                        samplingRate, locationId, mappedLocation, obsDatetime, messageIdSpecific,
-                        streamId, mappedStreamDescription, unit, points);
+            String messageIdSpecific = messageIdBase + "_" + obrI + "_" + obxI;
+            logger.debug("location {}, time {}, messageId {}, value count = {}",
+                    locationId, obsDatetime, messageIdSpecific, points.length);
+            WaveformMessage waveformMessage = waveformMessageFromValues(stream, obsDatetime, messageIdSpecific, points);
 
-                allWaveformMessages.add(waveformMessage);
-            }
+            allWaveformMessages.add(waveformMessage);
         }
 
         return allWaveformMessages;
     }
 
-    @SuppressWarnings("checkstyle:ParameterNumber")
     private WaveformMessage waveformMessageFromValues(
-            int samplingRate, String locationId, String mappedLocation, Instant messageStartTime, String messageId,
-            String sourceStreamId, String mappedStreamDescription, String unit, List<Double> arrayValues) {
+            StreamDescriptor stream, Instant messageStartTime, String messageId, double[] arrayValues) {
         WaveformMessage waveformMessage = new WaveformMessage();
-        waveformMessage.setSamplingRate(samplingRate);
-        waveformMessage.setSourceLocationString(locationId);
-        waveformMessage.setMappedLocationString(mappedLocation);
-        waveformMessage.setMappedStreamDescription(mappedStreamDescription);
+        waveformMessage.setSamplingRate(stream.samplingRate());
+        waveformMessage.setSourceLocationString(stream.sourceLocation());
+        waveformMessage.setMappedLocationString(stream.mappedLocation());
+        waveformMessage.setMappedStreamDescription(stream.mappedStreamDescription());
         waveformMessage.setObservationTime(messageStartTime);
         waveformMessage.setSourceMessageId(messageId);
-        waveformMessage.setSourceStreamId(sourceStreamId);
-        waveformMessage.setUnit(unit);
+        waveformMessage.setSourceStreamId(stream.sourceStreamId());
+        waveformMessage.setUnit(stream.unit());
         waveformMessage.setNumericValues(new InterchangeValue<>(arrayValues));
         logger.trace("output interchange waveform message = {}", waveformMessage);
         return waveformMessage;
@@ -160,23 +194,41 @@ public class Hl7ParseAndQueue {
      * @throws WaveformCollator.CollationException if the data has a logical error that prevents collation
      */
     public void parseAndQueue(String messageAsStr) throws WaveformCollator.CollationException {
+        parseAndQueue(messageAsStr.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Parse an HL7 message and store the resulting WaveformMessage in the queue awaiting collation.
+     * Any streams which now have enough data are collated and queued for sending straight away, rather than waiting
+     * for {@link #collateAndSend}. Never blocks waiting for the Publisher.
+     * If HL7 is invalid or in a form that the ad hoc parser can't handle, log error and skip.
+     * @param messageBytes One HL7 message, as received
+     * @throws WaveformCollator.CollationException if the data has a logical error that prevents collation
+     */
+    public void parseAndQueue(byte[] messageBytes) throws WaveformCollator.CollationException {
         List<WaveformMessage> msgs;
+        long parseStart = System.nanoTime();
         try {
-            msgs = parseHl7(messageAsStr);
+            msgs = parseHl7(messageBytes);
         } catch (Hl7ParseException e) {
             logger.error("HL7 parsing failed, first 100 chars: {}\nstacktrace {}",
-                    messageAsStr.substring(0, Math.min(100, messageAsStr.length())),
+                    cursors.get().preview(100),
                     e.getStackTrace());
             return;
+        } finally {
+            parseTimer.record(System.nanoTime() - parseStart, TimeUnit.NANOSECONDS);
         }
 
         logger.trace("HL7 message generated {} Waveform messages, sending for collation", msgs.size());
-        waveformCollator.addMessages(msgs);
-        numHl7++;
-        if (numHl7 % 5000 == 0) {
+        for (WaveformMessage msg : msgs) {
+            numSamples.add(msg.getNumericValues().get().length);
+        }
+        waveformOutbox.add(waveformCollator.addMessagesAndCollate(msgs, maxCollatedMessageSamples, assumedRounding));
+        numHl7.increment();
+        if (logger.isDebugEnabled() && numHl7.sum() % 5000 == 0) {
             logger.debug("Have parsed and queued {} HL7 messages in total, {} pending messages, "
                             + " {} pending samples",
-                    numHl7,
+                    numHl7.sum(),
                     waveformCollator.getPendingMessageCount(),
                     waveformCollator.getPendingSampleCount());
         }
@@ -193,21 +245,42 @@ public class Hl7ParseAndQueue {
     private int waitForDataLimitMillis = 15000;
 
     /**
-     * Get collated messages, if any, and send them to the Publisher.
-     * @throws InterruptedException If the Publisher thread is interrupted
+     * Get collated messages which have waited long enough for more data, if any, and queue them for sending.
+     * Streams which reach the sample target are collated as the data arrives, so this only needs to
+     * handle the streams which haven't.
      * @throws WaveformCollator.CollationException if the data has a logical error that prevents collation
      */
     @Scheduled(fixedDelay = 10 * 1000)
-    public void collateAndSend() throws InterruptedException, WaveformCollator.CollationException {
-        logger.debug("{} uncollated waveform messages pending", waveformCollator.pendingMessages.size());
+    public void collateAndSend() throws WaveformCollator.CollationException {
+        logger.debug("{} uncollated waveform messages pending", waveformCollator.getPendingMessageCount());
         List<WaveformMessage> msgs = waveformCollator.getReadyMessages(
                 Instant.now(), maxCollatedMessageSamples, waitForDataLimitMillis, assumedRounding);
-        logger.info("{} collated waveform messages ready for sending", msgs.size());
-        for (var m: msgs) {
-            // consider sending to publisher in batches?
-            waveformOperations.sendMessage(m);
-        }
-        logger.info("collateAndSend end");
+        logger.debug("{} collated waveform messages ready for sending", msgs.size());
+        waveformOutbox.add(msgs);
+        logger.debug("collateAndSend end");
+    }
+
+    /**
+     * Collate everything still pending, whether or not it has waited long enough, and queue it for sending.
+     * For when no more data is coming.
+     */
+    public void collateAndSendAll() {
+        List<WaveformMessage> msgs = waveformCollator.getAllMessages(maxCollatedMessageSamples, assumedRounding);
+        logger.info("{} collated waveform messages flushed for sending", msgs.size());
+        waveformOutbox.add(msgs);
+    }
+
+    /**
+     * @return number of HL7 messages parsed and queued for collation since startup
+     */
+    public long getParsedHl7Count() {
+        return numHl7.sum();
     }
 
+    /**
+     * @return number of waveform samples parsed and queued for collation since startup
+     */
+    public long getParsedSampleCount() {
+        return numSamples.sum();
+    }
 }
@@ -0,0 +1,195 @@
+package uk.ac.ucl.rits.inform.datasources.waveform;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of threads which parse HL7 messages and queue them for collation.
+ * <p>
+ * Each message is sent to a worker chosen by its location (PV1-3), and each worker handles its messages
+ * one at a time, so messages for the same location (and hence the same stream) are parsed in the order they
+ * were received, while different locations are parsed in parallel. This doesn't depend on how many TCP
+ * connections the messages arrived on.
+ */
+class Hl7ParseWorkers {
+    private final Logger logger = LoggerFactory.getLogger(Hl7ParseWorkers.class);
+    /**
+     * Tells a worker to stop once it has handled everything queued before it.
+     */
+    private static final byte[] STOP = new byte[0];
+    private static final byte[] PV1_SEGMENT = {'P', 'V', '1', '|'};
+    private static final int LOCATION_FIELD = 3;
+
+    private final Hl7ParseAndQueue hl7ParseAndQueue;
+    private final List<BlockingQueue<byte[]>> queues = new ArrayList<>();
+    private final List<Thread> threads = new ArrayList<>();
+    private final AtomicLong submittedCount = new AtomicLong();
+    private final AtomicLong handledCount = new AtomicLong();
+
+    /**
+     * @param hl7ParseAndQueue parser to pass the messages to
+     * @param numWorkers       number of parser threads
+     * @param queueCapacity    number of messages each worker can have waiting before it is full
+     */
+    Hl7ParseWorkers(Hl7ParseAndQueue hl7ParseAndQueue, int numWorkers, int queueCapacity) {
+        this.hl7ParseAndQueue = hl7ParseAndQueue;
+        for (int i = 0; i < numWorkers; i++) {
+            BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(queueCapacity);
+            queues.add(queue);
+            Thread thread = new Thread(() -> parseUntilStopped(queue), "HL7Parse-" + i);
+            thread.setDaemon(true);
+            threads.add(thread);
+        }
+    }
+
+    /**
+     * Start the worker threads.
+     */
+    void start() {
+        threads.forEach(Thread::start);
+    }
+
+    /**
+     * Queue a message for parsing, blocking if its worker is full.
+     * @param message one complete HL7 message, must not be modified afterwards
+     * @throws InterruptedException if interrupted while waiting for space
+     */
+    void submit(byte[] message) throws InterruptedException {
+        queues.get(workerFor(message, queues.size())).put(message);
+        submittedCount.incrementAndGet();
+    }
+
+    /**
+     * Queue a message for parsing if its worker has space, without blocking.
+     * @param message one complete HL7 message, must not be modified afterwards if accepted
+     * @return true if the message was queued, false if its worker is full
+     */
+    boolean offer(byte[] message) {
+        if (!queues.get(workerFor(message, queues.size())).offer(message)) {
+            return false;
+        }
+        submittedCount.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Wait until every message submitted so far has been parsed and queued for collation (or has failed to parse).
+     * The workers keep running.
+     * @param timeout how long to wait
+     * @param unit    unit of the timeout
+     * @return true if all messages were handled, false if timed out
+     * @throws InterruptedException if interrupted while waiting
+     */
+    boolean awaitIdle(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (handledCount.get() < submittedCount.get()) {
+            if (System.nanoTime() > deadline) {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    /**
+     * Let the workers finish any messages already submitted, then stop them.
+     * @param timeout how long to wait for each worker
+     * @param unit    unit of the timeout
+     * @throws InterruptedException if interrupted while waiting
+     */
+    void stop(long timeout, TimeUnit unit) throws InterruptedException {
+        for (BlockingQueue<byte[]> queue : queues) {
+            queue.put(STOP);
+        }
+        for (Thread thread : threads) {
+            thread.join(unit.toMillis(timeout));
+        }
+    }
+
+    /**
+     * @return total number of messages waiting to be parsed
+     */
+    int getQueuedMessageCount() {
+        return queues.stream().mapToInt(BlockingQueue::size).sum();
+    }
+
+    private void parseUntilStopped(BlockingQueue<byte[]> queue) {
+        while (true) {
+            byte[] message;
+            try {
+                message = queue.take();
+            } catch (InterruptedException e) {
+                logger.warn("HL7 parse worker interrupted with {} messages queued", queue.size());
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (message == STOP) {
+                return;
+            }
+            try {
+                hl7ParseAndQueue.parseAndQueue(message);
+            } catch (WaveformCollator.CollationException | RuntimeException e) {
+                logger.error("Failed to queue HL7 message for collation", e);
+            } finally {
+                handledCount.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Choose a worker by hashing the PV1-3 (location) field, without parsing the rest of the message.
+     * Messages with no PV1 segment will fail to parse anyway, so it doesn't matter which worker gets them.
+     * @param message    the HL7 message
+     * @param numWorkers number of workers to choose from
+     * @return index of the worker
+     */
+    static int workerFor(byte[] message, int numWorkers) {
+        int fieldStart = findLocationField(message);
+        if (fieldStart < 0) {
+            return 0;
+        }
+        int hash = 1;
+        for (int i = fieldStart; i < message.length && message[i] != '|' && message[i] != '\r'; i++) {
+            hash = 31 * hash + message[i];
+        }
+        return Math.floorMod(hash, numWorkers);
+    }
+
+    /**
+     * @param message the HL7 message
+     * @return offset of the start of PV1-3, or -1 if not found
+     */
+    private static int findLocationField(byte[] message) {
+        for (int i = 0; i <= message.length - PV1_SEGMENT.length; i++) {
+            if ((i == 0 || message[i - 1] == '\r') && startsWith(message, i, PV1_SEGMENT)) {
+                int fieldsToSkip = LOCATION_FIELD;
+                for (int j = i + PV1_SEGMENT.length - 1; j < message.length && message[j] != '\r'; j++) {
+                    if (message[j] == '|') {
+                        fieldsToSkip--;
+                        if (fieldsToSkip == 0) {
+                            return j + 1;
+                        }
+                    }
+                }
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean startsWith(byte[] message, int offset, byte[] prefix) {
+        for (int i = 0; i < prefix.length; i++) {
+            if (message[offset + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
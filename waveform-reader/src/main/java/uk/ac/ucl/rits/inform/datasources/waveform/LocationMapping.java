@@ -17,6 +17,8 @@ import java.util.regex.Pattern;
 @Component
 public class LocationMapping {
     private final Logger logger = LoggerFactory.getLogger(LocationMapping.class);
+    private static final Pattern SIDEROOM_PATTERN = Pattern.compile("UCHT03ICURM(\\d+)");
+    private static final Pattern BED_PATTERN = Pattern.compile("UCHT03ICUBED(\\d+)");
     private final Map<Integer, List<Integer>> bayToBeds = Map.of(
             // derived from real data
             1, List.of(11, 12, 14, 15, 16),
@@ -43,15 +45,13 @@ public class LocationMapping {
     }
 
     String hl7AdtLocationFromCapsuleLocation(String capsuleLocation) {
-        final Pattern sideroomPattern = Pattern.compile("UCHT03ICURM(\\d+)");
-        Matcher sideroomMatcher = sideroomPattern.matcher(capsuleLocation);
+        Matcher sideroomMatcher = SIDEROOM_PATTERN.matcher(capsuleLocation);
         if (sideroomMatcher.find()) {
             // side room schema
             int sideroomNumber = Integer.parseInt(sideroomMatcher.group(1));
             return String.format("T03^T03 SR%02d^SR%02d-%02d", sideroomNumber, sideroomNumber, sideroomNumber);
         } else {
-            final Pattern bedPattern = Pattern.compile("UCHT03ICUBED(\\d+)");
-            Matcher bedMatcher = bedPattern.matcher(capsuleLocation);
+            Matcher bedMatcher = BED_PATTERN.matcher(capsuleLocation);
             if (bedMatcher.find()) {
                 // bay+bed schema
                 int bedNumber = Integer.parseInt(bedMatcher.group(1));
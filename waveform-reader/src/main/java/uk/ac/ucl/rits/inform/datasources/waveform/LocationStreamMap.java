@@ -0,0 +1,86 @@
+package uk.ac.ucl.rits.inform.datasources.waveform;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Thread safe map with a value for each location+stream.
+ * <p>
+ * Keyed by source location then source stream ID, so no key object needs to be created to look up a stream,
+ * and looking up an existing value takes no lock.
+ * @param <V> value type
+ */
+class LocationStreamMap<V> {
+    private final ConcurrentMap<String, ConcurrentMap<String, V>> byLocation = new ConcurrentHashMap<>();
+
+    /**
+     * @param sourceLocation source location string
+     * @param sourceStreamId source stream ID
+     * @return the value, or null if there isn't one
+     */
+    V get(String sourceLocation, String sourceStreamId) {
+        Map<String, V> locationStreams = byLocation.get(sourceLocation);
+        return locationStreams == null ? null : locationStreams.get(sourceStreamId);
+    }
+
+    /**
+     * Get the value for a location+stream, creating it the first time it's seen.
+     * @param sourceLocation source location string
+     * @param sourceStreamId source stream ID
+     * @param create         creates the value from the location and stream ID, called at most once per location+stream
+     * @return the existing or newly created value
+     */
+    V computeIfAbsent(String sourceLocation, String sourceStreamId, BiFunction<String, String, V> create) {
+        ConcurrentMap<String, V> locationStreams = byLocation.get(sourceLocation);
+        if (locationStreams == null) {
+            locationStreams = byLocation.computeIfAbsent(sourceLocation, k -> new ConcurrentHashMap<>());
+        }
+        V value = locationStreams.get(sourceStreamId);
+        if (value == null) {
+            value = locationStreams.computeIfAbsent(sourceStreamId, k -> create.apply(sourceLocation, k));
+        }
+        return value;
+    }
+
+    /**
+     * Visit every value without locking. Values added during the iteration may or may not be seen.
+     * @param action called for each value
+     */
+    void forEach(Consumer<V> action) {
+        for (Map<String, V> locationStreams : byLocation.values()) {
+            locationStreams.values().forEach(action);
+        }
+    }
+
+    /**
+     * @return all values, with the same consistency as {@link #forEach}
+     */
+    Stream<V> values() {
+        return byLocation.values().stream().flatMap(locationStreams -> locationStreams.values().stream());
+    }
+
+    /**
+     * @return number of location+stream combinations
+     */
+    int size() {
+        return byLocation.values().stream().mapToInt(Map::size).sum();
+    }
+
+    /**
+     * @return number of locations
+     */
+    int locationCount() {
+        return byLocation.size();
+    }
+
+    /**
+     * Remove all values.
+     */
+    void clear() {
+        byLocation.clear();
+    }
+}
@@ -6,10 +6,15 @@ import com.fasterxml.jackson.dataformat.csv.CsvParser;
 import com.fasterxml.jackson.dataformat.csv.CsvSchema;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.io.ClassPathResource;
+import org.springframework.core.io.FileSystemResource;
 import org.springframework.core.io.Resource;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.HashMap;
@@ -19,44 +24,100 @@ import java.util.Optional;
 /**
  * The source data (from HL7 messages) is not fully self-describing.
  * We need external metadata to tell us certain things about each data stream.
+ * <p>
+ * If the metadata is loaded from an external file, it's reloaded whenever the file changes, so that new streams
+ * can be added without restarting. Each load replaces the whole map, so readers never see a partial update.
  */
 @Component
 public class SourceMetadata {
-    private final Logger logger = LoggerFactory.getLogger(Hl7ParseAndQueue.class);
-    private static final Resource CSV_RESOURCE = new ClassPathResource("source-metadata/Device_Values_formatted.csv");
-    private Map<String, SourceMetadataItem> metadataByStreamId = new HashMap<>();
+    private final Logger logger = LoggerFactory.getLogger(SourceMetadata.class);
+    private static final Resource DEFAULT_CSV_RESOURCE = new ClassPathResource("source-metadata/Device_Values_formatted.csv");
+    private final Resource csvResource;
+    private final File csvFile;
+    private volatile Map<String, SourceMetadataItem> metadataByStreamId = Map.of();
+    private volatile int version;
+    private long loadedLastModified;
 
+    /**
+     * Load the metadata that's built in to the application.
+     * @throws IOException if it can't be loaded
+     */
     SourceMetadata() throws IOException {
-        logger.info("Loading metadata from {}", CSV_RESOURCE);
+        this(null);
+    }
+
+    /**
+     * @param csvFile external metadata file, or null to use the metadata that's built in to the application
+     * @throws IOException if the metadata can't be loaded
+     */
+    @Autowired
+    SourceMetadata(@Value("${waveform.source_metadata_file:#{null}}") File csvFile) throws IOException {
+        this.csvFile = csvFile;
+        this.csvResource = csvFile == null ? DEFAULT_CSV_RESOURCE : new FileSystemResource(csvFile);
+        reload();
+    }
+
+    /**
+     * Load the metadata again, replacing what was loaded before.
+     * @throws IOException if the metadata can't be loaded, in which case the previous metadata is kept
+     */
+    synchronized void reload() throws IOException {
+        logger.info("Loading metadata from {}", csvResource);
+        long lastModified = csvFile == null ? 0 : csvFile.lastModified();
+        Map<String, SourceMetadataItem> newMetadata = new HashMap<>();
         CsvMapper mapper = new CsvMapper();
         mapper.enable(CsvParser.Feature.WRAP_AS_ARRAY)
                 .enable(CsvParser.Feature.TRIM_SPACES);
         CsvSchema schema = CsvSchema.emptySchema().withUseHeader(true);
-        InputStreamReader inputStreamReader = new InputStreamReader(CSV_RESOURCE.getInputStream());
-        MappingIterator<Map<String, String>> mappingIterator =
-                mapper.readerFor(Map.class).with(schema).readValues(inputStreamReader);
-        while (mappingIterator.hasNext()) {
-            Map<String, String> row = mappingIterator.next();
-            String key = row.get("value_hl7_id");
-            Integer samplingRate;
-            try {
-                samplingRate = Integer.parseInt(row.get("frequency"));
-            } catch (NumberFormatException e) {
-                samplingRate = null;
-            }
-            String unit = row.get("value_unit_name");
-            String description = row.get("value_name");
-            SourceMetadataItem metadataItem = new SourceMetadataItem(key, description, unit, samplingRate);
-            logger.debug("Metadata item: {}", metadataItem);
-            if (!metadataItem.isUsable()) {
-                logger.warn("Metadata item cannot be used for mapping: {}", metadataItem);
+        InputStreamReader inputStreamReader = new InputStreamReader(csvResource.getInputStream());
+        try (MappingIterator<Map<String, String>> mappingIterator =
+                mapper.readerFor(Map.class).with(schema).readValues(inputStreamReader)) {
+            while (mappingIterator.hasNext()) {
+                Map<String, String> row = mappingIterator.next();
+                String key = row.get("value_hl7_id");
+                Integer samplingRate;
+                try {
+                    samplingRate = Integer.parseInt(row.get("frequency"));
+                } catch (NumberFormatException e) {
+                    samplingRate = null;
+                }
+                String unit = row.get("value_unit_name");
+                String description = row.get("value_name");
+                SourceMetadataItem metadataItem = new SourceMetadataItem(key, description, unit, samplingRate);
+                logger.debug("Metadata item: {}", metadataItem);
+                if (!metadataItem.isUsable()) {
+                    logger.warn("Metadata item cannot be used for mapping: {}", metadataItem);
+                }
+                newMetadata.put(key, metadataItem);
             }
-            metadataByStreamId.put(key, metadataItem);
         }
-        mappingIterator.close();
-        logger.info("Loaded {} metadata items from {}", metadataByStreamId.size(), CSV_RESOURCE);
+        metadataByStreamId = newMetadata;
+        loadedLastModified = lastModified;
+        version++;
+        logger.info("Loaded {} metadata items from {}", newMetadata.size(), csvResource);
     }
 
+    /**
+     * Reload the metadata if it's from an external file which has changed since it was last loaded.
+     */
+    @Scheduled(fixedDelay = 60 * 1000)
+    public synchronized void reloadIfChanged() {
+        if (csvFile == null || csvFile.lastModified() == loadedLastModified) {
+            return;
+        }
+        try {
+            reload();
+        } catch (IOException | RuntimeException e) {
+            logger.error("Could not reload metadata from {}, keeping the previous metadata", csvResource, e);
+        }
+    }
+
+    /**
+     * @return a number which changes every time the metadata is reloaded
+     */
+    public int getVersion() {
+        return version;
+    }
 
     /**
      * Get metadata for the stream ID, if we know it (hence Optional).
@@ -64,12 +125,7 @@ public class SourceMetadata {
      * @return metadata record wrapped in Optional
      */
     public Optional<SourceMetadataItem> getStreamMetadata(String streamId) {
-        SourceMetadataItem metadata = metadataByStreamId.get(streamId);
-        if (metadata == null) {
-            return Optional.empty();
-        }
-        return Optional.of(new SourceMetadataItem(streamId, metadata.mappedStreamDescription(),
-                metadata.unit(), metadata.samplingRate()));
+        return Optional.ofNullable(metadataByStreamId.get(streamId));
     }
 }
 
@@ -0,0 +1,102 @@
+package uk.ac.ucl.rits.inform.datasources.waveform;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import java.util.Optional;
+
+/**
+ * Everything about a location+stream that doesn't change from message to message, worked out once
+ * from {@link SourceMetadata} and {@link LocationMapping}.
+ * <p>
+ * There are a few thousand location+stream combinations at most, so they're kept forever, until the source
+ * metadata is reloaded. The strings in the descriptor are shared by every message for the stream, rather than each
+ * message having its own copy.
+ */
+@Component
+public class StreamDescriptorCache {
+    private final Logger logger = LoggerFactory.getLogger(StreamDescriptorCache.class);
+    private final SourceMetadata sourceMetadata;
+    private final LocationMapping locationMapping;
+    private final LocationStreamMap<StreamDescriptor> descriptors = new LocationStreamMap<>();
+    private volatile int metadataVersion;
+
+    /**
+     * @param sourceMetadata  per stream metadata
+     * @param locationMapping maps source locations to ADT locations
+     */
+    StreamDescriptorCache(SourceMetadata sourceMetadata, LocationMapping locationMapping) {
+        this.sourceMetadata = sourceMetadata;
+        this.locationMapping = locationMapping;
+        metadataVersion = sourceMetadata.getVersion();
+    }
+
+    /**
+     * Get the descriptor for a location+stream, creating it the first time it's seen.
+     * @param sourceLocation source location string (OBR-10)
+     * @param sourceStreamId source stream ID (OBX-3)
+     * @return the descriptor, which may say that the stream can't be used
+     */
+    StreamDescriptor get(String sourceLocation, String sourceStreamId) {
+        int currentVersion = sourceMetadata.getVersion();
+        if (currentVersion != metadataVersion) {
+            clearForVersion(currentVersion);
+        }
+        return descriptors.computeIfAbsent(sourceLocation, sourceStreamId, this::describe);
+    }
+
+    private synchronized void clearForVersion(int newVersion) {
+        if (newVersion != metadataVersion) {
+            logger.info("Source metadata has been reloaded, forgetting {} stream locations", descriptors.locationCount());
+            descriptors.clear();
+            metadataVersion = newVersion;
+        }
+    }
+
+    private StreamDescriptor describe(String sourceLocation, String sourceStreamId) {
+        Optional<SourceMetadataItem> metadataOpt = sourceMetadata.getStreamMetadata(sourceStreamId);
+        if (metadataOpt.isEmpty()) {
+            logger.warn("Will skip stream {} at {}, unrecognised streamID", sourceStreamId, sourceLocation);
+            return StreamDescriptor.unusable(sourceLocation, sourceStreamId);
+        }
+        SourceMetadataItem metadata = metadataOpt.get();
+        if (!metadata.isUsable()) {
+            logger.warn("Will skip stream {} at {}, insufficient metadata", sourceStreamId, sourceLocation);
+            return StreamDescriptor.unusable(sourceLocation, sourceStreamId);
+        }
+        // Sampling rate and stream description is not in the message, so use the metadata
+        String mappedLocation = locationMapping.hl7AdtLocationFromCapsuleLocation(sourceLocation);
+        return new StreamDescriptor(sourceLocation, mappedLocation, sourceStreamId,
+                metadata.mappedStreamDescription(), metadata.unit(), metadata.samplingRate(), true);
+    }
+
+    /**
+     * @return number of location+stream combinations known
+     */
+    int size() {
+        return descriptors.size();
+    }
+}
+
+/**
+ * Describes a location+stream.
+ * @param sourceLocation          source location string, eg. "UCHT03ICURM08"
+ * @param mappedLocation          location string as found on the ADT feed, or null if it can't be mapped
+ * @param sourceStreamId          the source stream unique Id, Eg. "52912"
+ * @param mappedStreamDescription Description of the stream eg. "Airway Volume Waveform"
+ * @param unit                    The unit relating to the value, eg. "mL"
+ * @param samplingRate            number of samples per second, eg. 50
+ * @param usable                  false if there isn't enough metadata to use the stream
+ */
+record StreamDescriptor(String sourceLocation, String mappedLocation, String sourceStreamId,
+                        String mappedStreamDescription, String unit, int samplingRate, boolean usable) {
+    /**
+     * @param sourceLocation source location string
+     * @param sourceStreamId source stream ID
+     * @return descriptor for a stream which should be skipped
+     */
+    static StreamDescriptor unusable(String sourceLocation, String sourceStreamId) {
+        return new StreamDescriptor(sourceLocation, null, sourceStreamId, null, null, 0, false);
+    }
+}
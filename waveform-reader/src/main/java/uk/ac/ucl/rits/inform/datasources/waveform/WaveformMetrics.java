@@ -0,0 +1,106 @@
+package uk.ac.ucl.rits.inform.datasources.waveform;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.stereotype.Component;
+import uk.ac.ucl.rits.inform.interchange.messaging.Publisher;
+
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Metrics for the stages between receiving HL7 and publishing to rabbitmq, so a backlog can be seen building
+ * up at whichever stage is falling behind.
+ * <p>
+ * These are read from counters the components already keep, when the registry is scraped. The per-stream
+ * metrics are registered by {@link WaveformCollator} as new streams appear.
+ * <p>
+ * The components are only looked up when scraped, as the meter registry is needed to create the rabbitmq connection
+ * that the publisher, and so the other components, depend on.
+ */
+@Component
+public class WaveformMetrics implements MeterBinder {
+    private final ObjectProvider<Hl7ParseAndQueue> hl7ParseAndQueue;
+    private final ObjectProvider<Hl7ParseWorkers> hl7ParseWorkers;
+    private final ObjectProvider<WaveformOutbox> waveformOutbox;
+    private final ObjectProvider<Publisher> publisher;
+
+    /**
+     * @param hl7ParseAndQueue parser, for the parse rate
+     * @param hl7ParseWorkers  parse workers, for the messages waiting to be parsed
+     * @param waveformOutbox   outbox, for the collated messages waiting to be published
+     * @param publisher        publisher, for the batches waiting for rabbitmq
+     */
+    WaveformMetrics(ObjectProvider<Hl7ParseAndQueue> hl7ParseAndQueue, ObjectProvider<Hl7ParseWorkers> hl7ParseWorkers,
+                    ObjectProvider<WaveformOutbox> waveformOutbox, ObjectProvider<Publisher> publisher) {
+        this.hl7ParseAndQueue = hl7ParseAndQueue;
+        this.hl7ParseWorkers = hl7ParseWorkers;
+        this.waveformOutbox = waveformOutbox;
+        this.publisher = publisher;
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        FunctionCounter.builder("waveform.hl7.messages", hl7ParseAndQueue, resolved(Hl7ParseAndQueue::getParsedHl7Count))
+                .description("HL7 messages parsed")
+                .register(registry);
+        FunctionCounter.builder("waveform.hl7.samples", hl7ParseAndQueue, resolved(Hl7ParseAndQueue::getParsedSampleCount))
+                .description("Waveform samples parsed")
+                .register(registry);
+        Gauge.builder("waveform.hl7.parse.queued", hl7ParseWorkers, resolved(Hl7ParseWorkers::getQueuedMessageCount))
+                .description("HL7 messages waiting to be parsed")
+                .register(registry);
+
+        Gauge.builder("waveform.outbox.messages", waveformOutbox, resolved(WaveformOutbox::getInMemoryMessageCount))
+                .description("Collated messages waiting in memory to be published")
+                .register(registry);
+        Gauge.builder("waveform.outbox.samples", waveformOutbox, resolved(WaveformOutbox::getInMemorySampleCount))
+                .description("Samples in the collated messages waiting in memory to be published")
+                .register(registry);
+        Gauge.builder("waveform.outbox.spilled.bytes", waveformOutbox, resolved(WaveformOutbox::getSpilledBytes))
+                .description("Bytes spilled to disk and not yet published")
+                .baseUnit("bytes")
+                .register(registry);
+        FunctionCounter.builder("waveform.outbox.spilled.messages", waveformOutbox, resolved(WaveformOutbox::getMessagesSpilled))
+                .description("Collated messages spilled to disk")
+                .register(registry);
+        FunctionCounter.builder("waveform.outbox.drained.messages", waveformOutbox, resolved(WaveformOutbox::getMessagesDrained))
+                .description("Spilled messages read back for publishing")
+                .register(registry);
+        FunctionCounter.builder("waveform.outbox.respilled.messages", waveformOutbox, resolved(WaveformOutbox::getMessagesRespilled))
+                .description("Messages spilled again because they failed to send or weren't confirmed before stopping")
+                .register(registry);
+        FunctionCounter.builder("waveform.outbox.spill.written", waveformOutbox, resolved(WaveformOutbox::getTotalBytesSpilled))
+                .description("Bytes written to the spill log")
+                .baseUnit("bytes")
+                .register(registry);
+        FunctionCounter.builder("waveform.outbox.spill.read", waveformOutbox, resolved(WaveformOutbox::getTotalBytesDrained))
+                .description("Bytes read back from the spill log for publishing")
+                .baseUnit("bytes")
+                .register(registry);
+        Gauge.builder("waveform.outbox.unconfirmed.batches", waveformOutbox, resolved(WaveformOutbox::getUnconfirmedBatchCount))
+                .description("Batches passed to the publisher which rabbitmq hasn't confirmed yet")
+                .register(registry);
+
+        Gauge.builder("waveform.publisher.queued.batches", publisher, resolved(Publisher::getQueuedBatchCount))
+                .description("Batches submitted to the publisher but not yet being published")
+                .register(registry);
+        Gauge.builder("waveform.publisher.waiting.batches", publisher, resolved(Publisher::getWaitingBatchCount))
+                .description("Batches being published, waiting for acknowledgement")
+                .register(registry);
+        Gauge.builder("waveform.publisher.inflight.messages", publisher, resolved(Publisher::getInFlightMessageCount))
+                .description("Messages published but not yet acknowledged by rabbitmq")
+                .register(registry);
+    }
+
+    /**
+     * @param value reads the value from the component
+     * @param <T>   component type
+     * @return function reading the value from the component when scraped
+     */
+    private static <T> ToDoubleFunction<ObjectProvider<T>> resolved(ToDoubleFunction<T> value) {
+        return provider -> value.applyAsDouble(provider.getObject());
+    }
+}
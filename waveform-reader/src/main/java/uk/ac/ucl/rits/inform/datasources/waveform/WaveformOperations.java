@@ -1,11 +1,20 @@
 package uk.ac.ucl.rits.inform.datasources.waveform;
 
+import org.apache.commons.lang3.tuple.ImmutablePair;
+import org.apache.commons.lang3.tuple.Pair;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Component;
+import uk.ac.ucl.rits.inform.interchange.messaging.MessageBatch;
 import uk.ac.ucl.rits.inform.interchange.messaging.Publisher;
 import uk.ac.ucl.rits.inform.interchange.visit_observations.WaveformMessage;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
 @Component
 public class WaveformOperations {
     private final Logger logger = LoggerFactory.getLogger(getClass());
@@ -33,4 +42,36 @@ public class WaveformOperations {
             logger.debug("Successful ACK for message with ID {}", messageId);
         });
     }
+
+    /**
+     * Send several messages to rabbitmq, as one Publisher batch per stream so that the Publisher
+     * isn't handling a batch (and a callback) for every message.
+     * @param msgs     the (collated) waveform messages, in the order they should be sent
+     * @param callback run once rabbitmq has acknowledged every message
+     * @throws InterruptedException If the Publisher thread is interrupted
+     */
+    public void sendMessages(List<WaveformMessage> msgs, Runnable callback) throws InterruptedException {
+        Map<Pair<String, String>, List<ImmutablePair<WaveformMessage, String>>> byStream = new LinkedHashMap<>();
+        for (WaveformMessage msg : msgs) {
+            if (msg.getSourceMessageId() == null || msg.getSourceMessageId().isEmpty()) {
+                logger.error("ERROR: About to publish message with bad message ID {}", msg.getSourceMessageId());
+            }
+            Pair<String, String> streamKey = new ImmutablePair<>(msg.getSourceLocationString(), msg.getSourceStreamId());
+            byStream.computeIfAbsent(streamKey, k -> new ArrayList<>())
+                    .add(new ImmutablePair<>(msg, msg.getSourceMessageId()));
+        }
+        AtomicInteger remainingBatches = new AtomicInteger(byStream.size());
+        List<MessageBatch<WaveformMessage>> batches = new ArrayList<>(byStream.size());
+        for (List<ImmutablePair<WaveformMessage, String>> streamMsgs : byStream.values()) {
+            String batchId = streamMsgs.get(0).getRight();
+            int batchSize = streamMsgs.size();
+            batches.add(new MessageBatch<>(batchId, streamMsgs, () -> {
+                logger.debug("Successful ACK for batch with ID {} ({} messages)", batchId, batchSize);
+                if (remainingBatches.decrementAndGet() == 0) {
+                    callback.run();
+                }
+            }));
+        }
+        publisher.submitAll(batches);
+    }
 }
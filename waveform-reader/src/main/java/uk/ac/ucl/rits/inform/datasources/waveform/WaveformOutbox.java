@@ -0,0 +1,442 @@
+package uk.ac.ucl.rits.inform.datasources.waveform;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import uk.ac.ucl.rits.inform.interchange.visit_observations.WaveformMessage;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collated messages waiting to be published.
+ * <p>
+ * The waveform source can't replay data or wait for us, so collated messages are handed over here without ever
+ * blocking, and a single sender thread publishes them at whatever rate the Publisher can manage. Pending samples,
+ * both here and still being collated, are held within a memory budget. Once it is exceeded, the oldest collated
+ * messages are written to a {@link WaveformSpillLog} on local disk, which the sender drains (before anything still
+ * in memory, to keep messages roughly in order) once the Publisher catches up. Spilling is done outside the lock, so
+ * the threads adding messages don't hold each other (or the sender) up while writing to disk.
+ * <p>
+ * Nothing is forgotten until rabbitmq has confirmed it. Spilled messages stay in the spill log until every batch read
+ * from it up to that point has been confirmed, batches which fail to send are spilled again to be retried, and
+ * batches from memory which are still waiting for confirmation when we stop are spilled so they're sent after a restart.
+ */
+@Component
+public class WaveformOutbox {
+    private final Logger logger = LoggerFactory.getLogger(WaveformOutbox.class);
+    private static final long SEND_RETRY_DELAY_MS = 1000;
+    private final ObjectMapper objectMapper = new ObjectMapper().findAndRegisterModules();
+
+    private final WaveformOperations waveformOperations;
+    private final WaveformCollator waveformCollator;
+    private final long pendingSampleBudget;
+    private final int maxSendMessages;
+    private final WaveformSpillLog spillLog;
+
+    private final Deque<WaveformMessage> inMemory = new ArrayDeque<>();
+    private long inMemorySamples;
+    /**
+     * Messages taken out of memory which are being written to the spill log.
+     */
+    private int spillingMessages;
+    private long messagesSpilled;
+    private long messagesDrained;
+    private long messagesRespilled;
+    /**
+     * Batches read from the spill log and passed to the Publisher, in the order they were read.
+     */
+    private final Deque<SentBatch> unconfirmedSpilled = new ArrayDeque<>();
+    /**
+     * Batches from memory passed to the Publisher, in the order they were sent.
+     */
+    private final Set<SentBatch> unconfirmedInMemory = new LinkedHashSet<>();
+    /**
+     * True while the sender is passing a batch to the Publisher.
+     */
+    private boolean sending;
+    private Thread senderThread;
+
+    private long lastStatsBytesRead;
+    private long lastStatsNanos = System.nanoTime();
+
+    /**
+     * @param waveformOperations  for sending messages
+     * @param waveformCollator    to include the samples still being collated in the budget
+     * @param pendingSampleBudget max samples to hold in memory, across the collator and this outbox
+     * @param spillDirectory      local directory for spilled messages
+     * @param spillSegmentBytes   size of each spill file
+     * @param maxSendMessages     max number of messages to pass to the Publisher at once
+     * @throws IOException if the spill directory can't be used
+     */
+    public WaveformOutbox(WaveformOperations waveformOperations,
+                          WaveformCollator waveformCollator,
+                          @Value("${waveform.pending_sample_budget:20000000}") long pendingSampleBudget,
+                          @Value("${waveform.spill.directory:#{systemProperties['java.io.tmpdir']}/waveform-spill}") Path spillDirectory,
+                          @Value("${waveform.spill.segment_bytes:67108864}") int spillSegmentBytes,
+                          @Value("${waveform.publish_batch_messages:500}") int maxSendMessages) throws IOException {
+        this.waveformOperations = waveformOperations;
+        this.waveformCollator = waveformCollator;
+        this.pendingSampleBudget = pendingSampleBudget;
+        this.maxSendMessages = maxSendMessages;
+        this.spillLog = new WaveformSpillLog(spillDirectory, spillSegmentBytes);
+    }
+
+    /**
+     * Start the sender thread.
+     */
+    @PostConstruct
+    void start() {
+        senderThread = new Thread(this::sendUntilInterrupted, "WaveformSender");
+        senderThread.setDaemon(true);
+        senderThread.start();
+    }
+
+    /**
+     * Stop sending, and spill anything still in memory or waiting for confirmation so that it's sent after a restart.
+     */
+    @PreDestroy
+    void stop() {
+        senderThread.interrupt();
+        try {
+            senderThread.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        List<WaveformMessage> remaining = new ArrayList<>();
+        synchronized (this) {
+            for (SentBatch sent : unconfirmedInMemory) {
+                remaining.addAll(sent.messages);
+            }
+            unconfirmedInMemory.clear();
+            remaining.addAll(inMemory);
+            inMemory.clear();
+            inMemorySamples = 0;
+            spillingMessages += remaining.size();
+        }
+        spill(remaining);
+        spillLog.close();
+    }
+
+    /**
+     * Queue collated messages for sending. Never blocks, although it may write to disk if over the budget.
+     * @param messages collated messages
+     */
+    public void add(List<WaveformMessage> messages) {
+        if (messages.isEmpty()) {
+            return;
+        }
+        List<WaveformMessage> overBudget = new ArrayList<>();
+        synchronized (this) {
+            for (WaveformMessage msg : messages) {
+                inMemory.addLast(msg);
+                inMemorySamples += msg.getNumericValues().get().length;
+            }
+            long budgetForOutbox = pendingSampleBudget - waveformCollator.getPendingSampleCount();
+            while (inMemorySamples > budgetForOutbox && !inMemory.isEmpty()) {
+                WaveformMessage msg = inMemory.pollFirst();
+                inMemorySamples -= msg.getNumericValues().get().length;
+                overBudget.add(msg);
+            }
+            spillingMessages += overBudget.size();
+            notifyAll();
+        }
+        if (!overBudget.isEmpty()) {
+            int spilledCount = spill(overBudget);
+            logger.warn("Over the pending sample budget, spilled {} collated messages to disk ({} bytes now on disk)",
+                    spilledCount, spillLog.getBytesOnDisk());
+        }
+    }
+
+    /**
+     * Write messages to the spill log without holding the lock on this. Any that can't be written are put back at
+     * the front of the in-memory queue.
+     * @param messages messages to spill, oldest first, which must have been added to {@link #spillingMessages}
+     * @return number of messages spilled
+     */
+    private int spill(List<WaveformMessage> messages) {
+        int spilledCount = 0;
+        try {
+            for (WaveformMessage msg : messages) {
+                spillLog.append(objectMapper.writeValueAsBytes(msg));
+                spilledCount++;
+            }
+        } catch (IOException e) {
+            logger.error("Could not spill waveform data to disk, keeping it in memory", e);
+        }
+        synchronized (this) {
+            for (int i = messages.size() - 1; i >= spilledCount; i--) {
+                WaveformMessage msg = messages.get(i);
+                inMemory.addFirst(msg);
+                inMemorySamples += msg.getNumericValues().get().length;
+            }
+            spillingMessages -= messages.size();
+            messagesSpilled += spilledCount;
+            notifyAll();
+        }
+        return spilledCount;
+    }
+
+    private void sendUntilInterrupted() {
+        List<WaveformMessage> batch = new ArrayList<>(maxSendMessages);
+        while (!Thread.currentThread().isInterrupted()) {
+            SentBatch sent = null;
+            try {
+                batch.clear();
+                sent = takeBatch(batch);
+                if (batch.isEmpty()) {
+                    // none of the spilled messages could be read, so there's nothing to wait for
+                    finished(sent);
+                } else {
+                    SentBatch confirmedBatch = sent;
+                    waveformOperations.sendMessages(batch, () -> finished(confirmedBatch));
+                }
+            } catch (InterruptedException e) {
+                if (sent != null) {
+                    // some of the batch may not have reached the Publisher
+                    respill(sent, batch);
+                }
+                logger.info("Waveform sender stopping, {} messages in memory, {} bytes on disk",
+                        getInMemoryMessageCount(), spillLog.getBytesOnDisk());
+                return;
+            } catch (RuntimeException e) {
+                logger.error("Failed to send {} waveform messages, spilling them to retry later", batch.size(), e);
+                if (sent != null) {
+                    respill(sent, batch);
+                }
+                pauseAfterFailure();
+            } finally {
+                synchronized (this) {
+                    sending = false;
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Spill a batch which couldn't be sent to the end of the spill log, so it's retried after everything already queued.
+     * @param sent     the batch
+     * @param messages the messages in the batch
+     */
+    private void respill(SentBatch sent, List<WaveformMessage> messages) {
+        synchronized (this) {
+            spillingMessages += messages.size();
+        }
+        int spilledCount = spill(new ArrayList<>(messages));
+        synchronized (this) {
+            messagesRespilled += spilledCount;
+        }
+        finished(sent);
+    }
+
+    private static void pauseAfterFailure() {
+        try {
+            Thread.sleep(SEND_RETRY_DELAY_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * A batch has been confirmed by rabbitmq or spilled again, so it no longer needs to be kept.
+     * Once every batch read from the spill log up to a point has finished, the spill log is committed up to there.
+     * Called from the Publisher's threads.
+     * @param sent the batch
+     */
+    private void finished(SentBatch sent) {
+        long commitOffset = -1;
+        synchronized (this) {
+            sent.finished = true;
+            if (sent.messages != null) {
+                unconfirmedInMemory.remove(sent);
+            }
+            while (!unconfirmedSpilled.isEmpty() && unconfirmedSpilled.peekFirst().finished) {
+                commitOffset = unconfirmedSpilled.pollFirst().spillReadOffset;
+            }
+        }
+        if (commitOffset >= 0) {
+            spillLog.commit(commitOffset);
+        }
+    }
+
+    /**
+     * Wait until everything added so far has been passed to the Publisher (which doesn't mean it has been
+     * confirmed yet).
+     * @param timeout how long to wait
+     * @param unit    unit of the timeout
+     * @return true if everything was passed on, false if timed out
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public synchronized boolean awaitAllSent(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (sending || spillingMessages > 0 || !inMemory.isEmpty() || !spillLog.isEmpty()) {
+            long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remainingMillis <= 0) {
+                return false;
+            }
+            wait(remainingMillis);
+        }
+        return true;
+    }
+
+    /**
+     * Wait for messages to send, taking spilled messages first because they are older.
+     * Spilled and in-memory messages aren't mixed in one batch, so that they're always sent in order.
+     * @param batch list to add up to {@link #maxSendMessages} messages to. Can be left empty if the spilled
+     *              messages couldn't be read.
+     * @return the batch, to be passed to {@link #finished} once it has been confirmed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private SentBatch takeBatch(List<WaveformMessage> batch) throws InterruptedException {
+        synchronized (this) {
+            while (inMemory.isEmpty() && spillLog.isEmpty()) {
+                wait();
+            }
+            sending = true;
+        }
+        // only this thread polls, so the spill log can be read without holding up add()
+        List<byte[]> spilled = new ArrayList<>();
+        byte[] record;
+        while (spilled.size() < maxSendMessages && (record = spillLog.poll()) != null) {
+            spilled.add(record);
+        }
+        SentBatch sent;
+        synchronized (this) {
+            if (spilled.isEmpty()) {
+                while (batch.size() < maxSendMessages && !inMemory.isEmpty()) {
+                    WaveformMessage msg = inMemory.pollFirst();
+                    inMemorySamples -= msg.getNumericValues().get().length;
+                    batch.add(msg);
+                }
+                sent = new SentBatch(List.copyOf(batch), -1);
+                unconfirmedInMemory.add(sent);
+                return sent;
+            }
+            messagesDrained += spilled.size();
+            sent = new SentBatch(null, spillLog.getTotalBytesRead());
+            unconfirmedSpilled.addLast(sent);
+        }
+        for (byte[] spilledRecord : spilled) {
+            try {
+                batch.add(objectMapper.readValue(spilledRecord, WaveformMessage.class));
+            } catch (IOException e) {
+                logger.error("Could not read spilled waveform message, skipping it", e);
+            }
+        }
+        return sent;
+    }
+
+    /**
+     * Log how much has been spilled and how quickly it's being drained.
+     */
+    @Scheduled(fixedDelay = 60 * 1000)
+    public void logStats() {
+        long now = System.nanoTime();
+        long bytesRead = spillLog.getTotalBytesRead();
+        double drainBytesPerSecond = (bytesRead - lastStatsBytesRead) / ((now - lastStatsNanos) / 1e9);
+        lastStatsBytesRead = bytesRead;
+        lastStatsNanos = now;
+        if (spillLog.getTotalBytesWritten() > 0 || bytesRead > 0) {
+            logger.info("Waveform outbox: {} messages ({} samples) in memory, {} bytes on disk, "
+                            + "{} messages spilled and {} drained in total, draining {} bytes/s",
+                    getInMemoryMessageCount(), getInMemorySampleCount(), getSpilledBytes(),
+                    getMessagesSpilled(), getMessagesDrained(), Math.round(drainBytesPerSecond));
+        }
+    }
+
+    /**
+     * @return number of collated messages waiting in memory
+     */
+    public synchronized int getInMemoryMessageCount() {
+        return inMemory.size();
+    }
+
+    /**
+     * @return number of samples in the collated messages waiting in memory
+     */
+    public synchronized long getInMemorySampleCount() {
+        return inMemorySamples;
+    }
+
+    /**
+     * @return bytes spilled to disk and not yet confirmed as published
+     */
+    public long getSpilledBytes() {
+        return spillLog.getBytesOnDisk();
+    }
+
+    /**
+     * @return bytes spilled to disk since startup
+     */
+    public long getTotalBytesSpilled() {
+        return spillLog.getTotalBytesWritten();
+    }
+
+    /**
+     * @return spilled bytes read back for sending since startup
+     */
+    public long getTotalBytesDrained() {
+        return spillLog.getTotalBytesRead();
+    }
+
+    /**
+     * @return messages spilled to disk since startup
+     */
+    public synchronized long getMessagesSpilled() {
+        return messagesSpilled;
+    }
+
+    /**
+     * @return spilled messages read back for sending since startup
+     */
+    public synchronized long getMessagesDrained() {
+        return messagesDrained;
+    }
+
+    /**
+     * @return messages spilled again since startup, because they failed to send or weren't confirmed before stopping
+     */
+    public synchronized long getMessagesRespilled() {
+        return messagesRespilled;
+    }
+
+    /**
+     * @return batches passed to the Publisher and not yet confirmed
+     */
+    public synchronized int getUnconfirmedBatchCount() {
+        return unconfirmedSpilled.size() + unconfirmedInMemory.size();
+    }
+
+    /**
+     * A batch passed to the Publisher.
+     */
+    private static final class SentBatch {
+        /**
+         * Messages to spill if they aren't confirmed before we stop, or null if they were read from the spill log.
+         */
+        private final List<WaveformMessage> messages;
+        /**
+         * Spill log offset to commit up to once confirmed, if read from the spill log.
+         */
+        private final long spillReadOffset;
+        private boolean finished;
+
+        SentBatch(List<WaveformMessage> messages, long spillReadOffset) {
+            this.messages = messages;
+            this.spillReadOffset = spillReadOffset;
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package uk.ac.ucl.rits.inform.datasources.waveform;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * An append-only log of records on local disk, read back in the order they were written.
+ * <p>
+ * The log is a series of segment files, each memory-mapped, so appending a record is just a copy into memory
+ * and the OS writes it out in the background. A segment starts with the read position (so a restart carries on
+ * where it left off), followed by records each prefixed with their length. A zero length marks the end of the
+ * written data, which works because new segments are zero-filled.
+ * <p>
+ * Polling a record doesn't move the stored read position, so a record that has been polled but not yet dealt with
+ * is read again after a restart. The read position only moves on {@link #commit}, and segments are deleted once
+ * everything in them has been committed.
+ * <p>
+ * Records survive the process dying, but not the machine dying, because the mapped pages are never forced
+ * to disk. This is intended to ride out a slow downstream, not to be a durable store.
+ * All methods are thread safe.
+ */
+class WaveformSpillLog implements AutoCloseable {
+    private final Logger logger = LoggerFactory.getLogger(WaveformSpillLog.class);
+    private static final String SEGMENT_PREFIX = "waveform-spill-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final int HEADER_BYTES = Integer.BYTES;
+    private static final int LENGTH_BYTES = Integer.BYTES;
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final Deque<Segment> segments = new ArrayDeque<>();
+    private long nextSegmentNumber;
+    private long bytesOnDisk;
+    private long unpolledBytes;
+    private long totalBytesWritten;
+    private long totalBytesRead;
+    private long totalBytesCommitted;
+
+    private static final class Segment {
+        private final Path path;
+        private final MappedByteBuffer buffer;
+        private int writePosition;
+        /**
+         * Start of the records not yet committed, as stored in the header.
+         */
+        private int readPosition;
+        /**
+         * Start of the records not yet polled, at or after the read position.
+         */
+        private int pollPosition;
+
+        Segment(Path path, MappedByteBuffer buffer, int writePosition, int readPosition) {
+            this.path = path;
+            this.buffer = buffer;
+            this.writePosition = writePosition;
+            this.readPosition = readPosition;
+            this.pollPosition = readPosition;
+        }
+    }
+
+    /**
+     * Open the log, picking up any segments left over from a previous run.
+     * @param directory    directory for the segment files, created if it doesn't exist
+     * @param segmentBytes size of each segment file (bigger if needed for a single large record)
+     * @throws IOException if the directory or existing segments can't be opened
+     */
+    WaveformSpillLog(Path directory, int segmentBytes) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        Files.createDirectories(directory);
+        for (Path path : existingSegments()) {
+            Segment segment = recover(path);
+            segments.addLast(segment);
+            bytesOnDisk += segment.writePosition - segment.readPosition;
+            unpolledBytes += segment.writePosition - segment.readPosition;
+            nextSegmentNumber = segmentNumber(path) + 1;
+        }
+        if (bytesOnDisk > 0) {
+            logger.warn("Recovered {} bytes of spilled waveform data in {} segments from {}",
+                    bytesOnDisk, segments.size(), directory);
+        }
+    }
+
+    private List<Path> existingSegments() throws IOException {
+        List<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> dir = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            dir.forEach(paths::add);
+        }
+        // segment numbers are zero padded so sort in the order they were written
+        paths.sort(null);
+        return paths;
+    }
+
+    private static long segmentNumber(Path path) {
+        String name = path.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    private Segment recover(Path path) throws IOException {
+        MappedByteBuffer buffer = map(path, Files.size(path));
+        int readPosition = Math.max(HEADER_BYTES, buffer.getInt(0));
+        int writePosition = HEADER_BYTES;
+        while (writePosition + LENGTH_BYTES <= buffer.capacity()) {
+            int length = buffer.getInt(writePosition);
+            if (length <= 0 || writePosition + LENGTH_BYTES + length > buffer.capacity()) {
+                break;
+            }
+            writePosition += LENGTH_BYTES + length;
+        }
+        return new Segment(path, buffer, writePosition, Math.min(readPosition, writePosition));
+    }
+
+    private static MappedByteBuffer map(Path path, long size) throws IOException {
+        try (FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // the mapping stays valid after the channel is closed
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    /**
+     * Append a record to the end of the log.
+     * @param record bytes to store
+     * @throws IOException if a new segment can't be created
+     */
+    synchronized void append(byte[] record) throws IOException {
+        int recordBytes = LENGTH_BYTES + record.length;
+        Segment segment = segments.peekLast();
+        if (segment == null || segment.writePosition + recordBytes > segment.buffer.capacity()) {
+            segment = newSegment(Math.max(segmentBytes, HEADER_BYTES + recordBytes));
+        }
+        segment.buffer.put(segment.writePosition + LENGTH_BYTES, record);
+        // write the length last, so a half-written record is never seen as complete
+        segment.buffer.putInt(segment.writePosition, record.length);
+        segment.writePosition += recordBytes;
+        bytesOnDisk += recordBytes;
+        unpolledBytes += recordBytes;
+        totalBytesWritten += recordBytes;
+    }
+
+    private Segment newSegment(int size) throws IOException {
+        Path path = directory.resolve(String.format("%s%019d%s", SEGMENT_PREFIX, nextSegmentNumber++, SEGMENT_SUFFIX));
+        MappedByteBuffer buffer = map(path, size);
+        buffer.putInt(0, HEADER_BYTES);
+        Segment segment = new Segment(path, buffer, HEADER_BYTES, HEADER_BYTES);
+        segments.addLast(segment);
+        logger.debug("Created spill segment {} of {} bytes", path, size);
+        return segment;
+    }
+
+    /**
+     * Take the oldest record that hasn't been polled yet. It stays in the log until it is committed.
+     * @return the record, or null if every record has been polled
+     */
+    synchronized byte[] poll() {
+        for (Segment segment : segments) {
+            if (segment.pollPosition < segment.writePosition) {
+                int length = segment.buffer.getInt(segment.pollPosition);
+                byte[] record = new byte[length];
+                segment.buffer.get(segment.pollPosition + LENGTH_BYTES, record);
+                segment.pollPosition += LENGTH_BYTES + length;
+                unpolledBytes -= LENGTH_BYTES + length;
+                totalBytesRead += LENGTH_BYTES + length;
+                return record;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Move the stored read position past records that have been dealt with, so they aren't read again after a
+     * restart, deleting any segments that have been completely committed.
+     * @param readOffset a value of {@link #getTotalBytesRead()}, everything polled before it was returned is committed.
+     *                   Offsets that have already been committed are ignored.
+     */
+    synchronized void commit(long readOffset) {
+        long remaining = readOffset - totalBytesCommitted;
+        while (remaining > 0 && !segments.isEmpty()) {
+            Segment segment = segments.peekFirst();
+            int bytes = (int) Math.min(remaining, segment.pollPosition - segment.readPosition);
+            segment.readPosition += bytes;
+            segment.buffer.putInt(0, segment.readPosition);
+            bytesOnDisk -= bytes;
+            totalBytesCommitted += bytes;
+            remaining -= bytes;
+            if (segment.readPosition < segment.writePosition || segments.size() == 1) {
+                // keep the last segment for appending to
+                break;
+            }
+            segments.pollFirst();
+            delete(segment);
+        }
+    }
+
+    private void delete(Segment segment) {
+        try {
+            Files.deleteIfExists(segment.path);
+        } catch (IOException e) {
+            logger.warn("Could not delete spill segment {}", segment.path, e);
+        }
+    }
+
+    /**
+     * @return true if there are no records waiting to be polled
+     */
+    synchronized boolean isEmpty() {
+        return unpolledBytes == 0;
+    }
+
+    /**
+     * @return bytes of records written but not yet committed
+     */
+    synchronized long getBytesOnDisk() {
+        return bytesOnDisk;
+    }
+
+    /**
+     * @return bytes written since the log was opened
+     */
+    synchronized long getTotalBytesWritten() {
+        return totalBytesWritten;
+    }
+
+    /**
+     * @return bytes polled since the log was opened
+     */
+    synchronized long getTotalBytesRead() {
+        return totalBytesRead;
+    }
+
+    /**
+     * Delete the segments if everything has been committed, otherwise leave them to be picked up next time.
+     */
+    @Override
+    public synchronized void close() {
+        if (bytesOnDisk == 0) {
+            segments.forEach(this::delete);
+        } else {
+            segments.forEach(s -> s.buffer.force());
+        }
+        segments.clear();
+    }
+}
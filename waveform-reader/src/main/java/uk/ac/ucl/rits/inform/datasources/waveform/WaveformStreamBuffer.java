@@ -0,0 +1,323 @@
+package uk.ac.ucl.rits.inform.datasources.waveform;
+
+import io.micrometer.core.instrument.Counter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.ac.ucl.rits.inform.interchange.InterchangeValue;
+import uk.ac.ucl.rits.inform.interchange.visit_observations.WaveformMessage;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Uncollated data for a single location+stream.
+ * <p>
+ * The samples of each message are copied into a ring buffer in the order they arrive, and the message is only
+ * kept as a small "chunk" header saying where its samples are. Chunks are indexed by observation time, because
+ * messages can arrive out of order but must be collated in time order. Space in the ring is reclaimed once
+ * every chunk written before it has been collated, and the ring grows if it fills up before that happens.
+ * <p>
+ * All methods except the counts must be called with the lock on this object held. The counts can be read at any
+ * time without locking, but may be very slightly out of date.
+ */
+class WaveformStreamBuffer {
+    private final Logger logger = LoggerFactory.getLogger(WaveformStreamBuffer.class);
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final String sourceLocation;
+    private final String sourceStreamId;
+    private final Counter gapCounter;
+    private final Counter overlapCounter;
+
+    private double[] ring = new double[INITIAL_CAPACITY];
+    /**
+     * Position (not index, which wraps around) of the oldest sample that might still be needed.
+     */
+    private long readPosition;
+    /**
+     * Position after the newest sample.
+     */
+    private long writePosition;
+    private final TreeMap<Instant, Chunk> chunksByTime = new TreeMap<>();
+    private final ArrayDeque<Chunk> chunksByArrival = new ArrayDeque<>();
+
+    private volatile int pendingSampleCount;
+    private volatile int pendingMessageCount;
+
+    /**
+     * The samples of one uncollated message.
+     */
+    private static final class Chunk {
+        /**
+         * The original message, without its values, which becomes the header of the collated message if this
+         * is the first chunk.
+         */
+        private final WaveformMessage message;
+        private final Instant expectedNextDatetime;
+        /**
+         * Where in the ring the samples start.
+         */
+        private final long position;
+        private final int length;
+        private boolean collated;
+
+        Chunk(WaveformMessage message, Instant expectedNextDatetime, long position, int length) {
+            this.message = message;
+            this.expectedNextDatetime = expectedNextDatetime;
+            this.position = position;
+            this.length = length;
+        }
+    }
+
+    /**
+     * @param sourceLocation source location string
+     * @param sourceStreamId source stream ID
+     * @param gapCounter     counts collated messages which were ended by a gap in the data
+     * @param overlapCounter counts collated messages which were ended by overlapping data
+     */
+    WaveformStreamBuffer(String sourceLocation, String sourceStreamId, Counter gapCounter, Counter overlapCounter) {
+        this.sourceLocation = sourceLocation;
+        this.sourceStreamId = sourceStreamId;
+        this.gapCounter = gapCounter;
+        this.overlapCounter = overlapCounter;
+    }
+
+    /**
+     * Move the message's samples into the ring buffer. The message object is kept (minus its values) for use
+     * as the header of a collated message, so must not be modified by the caller afterwards.
+     * @param msg message for this location+stream
+     * @return false if there is already a message with the same observation time, in which case nothing is added
+     */
+    boolean add(WaveformMessage msg) {
+        Instant observationTime = msg.getObservationTime();
+        if (chunksByTime.containsKey(observationTime)) {
+            return false;
+        }
+        double[] values = msg.getNumericValues().get();
+        Chunk chunk = new Chunk(msg, msg.getExpectedNextObservationDatetime(), writePosition, values.length);
+        ensureCapacity(values.length);
+        copyIn(writePosition, values);
+        writePosition += values.length;
+        // let the (probably small) array be garbage collected straight away
+        msg.setNumericValues(InterchangeValue.unknown());
+        chunksByTime.put(observationTime, chunk);
+        chunksByArrival.addLast(chunk);
+        pendingSampleCount += values.length;
+        pendingMessageCount++;
+        return true;
+    }
+
+    /**
+     * Squash as much as possible into a single message, respecting the target number of samples. If a time gap is
+     * detected in the sequence of chunks, stop. Ie. do not straddle the gap within the same message.
+     * Returns only one message, must be called repeatedly to see if more collating can be done.
+     * @param nowTime                      see {@link WaveformCollator#getReadyMessages}, or null to treat all data
+     *                                     as having waited long enough (ie. no more data is coming)
+     * @param targetCollatedMessageSamples see {@link WaveformCollator#getReadyMessages}
+     * @param waitForDataLimitMillis       see {@link WaveformCollator#getReadyMessages}, or null to only collate
+     *                                     if the sample target has been reached
+     * @param assumedRounding              see {@link WaveformCollator#getReadyMessages}
+     * @return the collated message, or null if the chunks cannot be collated yet
+     */
+    WaveformMessage collate(Instant nowTime, int targetCollatedMessageSamples, Integer waitForDataLimitMillis,
+                            ChronoUnit assumedRounding) {
+        if (chunksByTime.isEmpty()) {
+            // buffers are not removed after being emptied, so this situation can exist and is harmless
+            return null;
+        }
+        Chunk firstChunk = chunksByTime.firstEntry().getValue();
+        WaveformMessage firstMsg = firstChunk.message;
+        long sampleCount = 0;
+        // unlike sampleCount, only counts the samples that will be collated
+        int collatedSampleCount = 0;
+        Chunk previousChunk = null;
+        // keep track of incoming message sizes for general interest (does not affect collation algorithm)
+        Map<Integer, Integer> uncollatedMessageSizes = new HashMap<>();
+        int chunksToCollate = 0;
+        // counted only if a message is collated, otherwise the same gap would be counted on every attempt
+        Counter stoppedBy = null;
+        for (Chunk chunk : chunksByTime.values()) {
+            uncollatedMessageSizes.merge(chunk.length, 1, Integer::sum);
+
+            // It's important for sampleCount to meet or exceed targetCollatedMessageSamples even if we break out
+            // here (and thus don't include the current chunk), so that the check below realises that the target
+            // has been "met" even if we're slightly short of it, because the next chunk would take us over.
+            sampleCount += chunk.length;
+            // A single message bigger than the target can't be split, so it becomes a message on its own.
+            if (sampleCount > targetCollatedMessageSamples && chunksToCollate > 0) {
+                logger.debug("Reached sample target ({} > {}), collated message size {}, collated message span: {} -> {}",
+                        sampleCount, targetCollatedMessageSamples, sampleCount - chunk.length,
+                        firstMsg.getObservationTime(), chunk.message.getObservationTime());
+                break;
+            }
+
+            if (previousChunk != null) {
+                Instant expectedNextDatetime = previousChunk.expectedNextDatetime;
+                long gapSizeMicros = expectedNextDatetime.until(chunk.message.getObservationTime(), ChronoUnit.MICROS);
+                if (isGapTooBig(gapSizeMicros, assumedRounding)) {
+                    logger.debug("Key {}|{} ({}Hz), collated message span: {} -> {} ({} milliseconds, {} messages, {} samples)",
+                            sourceLocation, sourceStreamId,
+                            firstMsg.getSamplingRate(),
+                            firstMsg.getObservationTime(),
+                            expectedNextDatetime,
+                            firstMsg.getObservationTime().until(expectedNextDatetime, ChronoUnit.MILLIS),
+                            chunksToCollate,
+                            sampleCount);
+                    // Found a gap, stop here, excluding this chunk.
+                    // Collation may still happen if data is old enough that we don't want to wait for more.
+                    stoppedBy = gapCounter;
+                    break;
+                }
+                if (isOverlapTooBig(gapSizeMicros, assumedRounding)) {
+                    logger.warn("""
+                                    Key {}|{} ({}Hz), OVERLAP of {} µs, between:
+                                     previous message ({} -> {}) {} samples
+                                     this message     ({} -> {}) {} samples
+                                     """,
+                            sourceLocation, sourceStreamId,
+                            firstMsg.getSamplingRate(),
+                            gapSizeMicros,
+                            previousChunk.message.getObservationTime(), expectedNextDatetime, previousChunk.length,
+                            chunk.message.getObservationTime(), chunk.expectedNextDatetime, chunk.length);
+                    // The data can't be corrected, but we can at least stop collating at this point.
+                    // The overlapping message will be the first message of the next collation run,
+                    // which at least exposes the overlap in the database rather than trying to obscure it.
+                    stoppedBy = overlapCounter;
+                    break;
+                }
+            }
+            previousChunk = chunk;
+
+            // don't modify yet, because we don't yet know if we will reach criteria to collate (num samples, time passed)
+            chunksToCollate++;
+            collatedSampleCount += chunk.length;
+        }
+
+        // If we have not reached the message size threshold, whether because there aren't enough samples
+        // or we reached a gap, then do not collate yet; give the data a bit more time to appear.
+        // UNLESS enough time has already passed, then prioritise timeliness and collate anyway.
+        // (If the data does subsequently arrive, then it'll be collated into a different message)
+        // In other words, if not enough samples and not enough time has passed, then do not collate.
+        if (sampleCount < targetCollatedMessageSamples
+                && (waitForDataLimitMillis == null
+                    || nowTime != null
+                        && previousChunk.expectedNextDatetime.until(nowTime, ChronoUnit.MILLIS) <= waitForDataLimitMillis)) {
+            return null;
+        }
+
+        logger.debug("Collating {} messages into one. Total samples {}. Source messages contained sample counts: {}",
+                chunksToCollate, sampleCount, uncollatedMessageSizes);
+        if (stoppedBy != null) {
+            stoppedBy.increment();
+        }
+
+        // Do the actual collation now that we know how far to go.
+        double[] newNumericValues = new double[collatedSampleCount];
+        int copiedSampleCount = 0;
+        Iterator<Chunk> secondPassIter = chunksByTime.values().iterator();
+        for (int i = 0; i < chunksToCollate; i++) {
+            Chunk chunk = secondPassIter.next();
+            copyOut(chunk.position, newNumericValues, copiedSampleCount, chunk.length);
+            copiedSampleCount += chunk.length;
+            chunk.collated = true;
+            // Remove all chunks that are used as source data, even the first one.
+            // The message object of the first chunk becomes the collated message.
+            secondPassIter.remove();
+        }
+        pendingSampleCount -= collatedSampleCount;
+        pendingMessageCount -= chunksToCollate;
+        reclaimSpace();
+        firstMsg.setNumericValues(new InterchangeValue<>(newNumericValues));
+        logger.debug("Key {}|{}, Collated {} messages into one, ({} data points)",
+                sourceLocation, sourceStreamId, chunksToCollate, collatedSampleCount);
+        return firstMsg;
+    }
+
+    /**
+     * The timestamps in the messages will be rounded. Not sure if they round down or round to nearest.
+     * Take 3.33 ms as an example, a common sampling period (300Hz): rounding to the nearest ms
+     * can produce a large relative error, but never more than a millisecond.
+     * So, if it has been rounded to the millisecond, allow it to be one millisecond out, and so on.
+     * @param gapSizeMicros   gap between the expected and actual start of a message
+     * @param assumedRounding rounding applied to the timestamps
+     * @return true if there is a real gap in the data. We expect this to happen occasionally - it's not an error.
+     */
+    private static boolean isGapTooBig(long gapSizeMicros, ChronoUnit assumedRounding) {
+        return gapSizeMicros > assumedRounding.getDuration().toNanos() / 1000;
+    }
+
+    /**
+     * Overlap is a sign that the actual sampling rate is inconsistent with the metadata, and is an error that
+     * can't really be recovered from.
+     * @param gapSizeMicros   gap between the expected and actual start of a message
+     * @param assumedRounding rounding applied to the timestamps
+     * @return true if the messages overlap by more than rounding can explain
+     */
+    private static boolean isOverlapTooBig(long gapSizeMicros, ChronoUnit assumedRounding) {
+        return gapSizeMicros < -assumedRounding.getDuration().toNanos() / 1000;
+    }
+
+    /**
+     * Samples can only be reused once everything written before them has been collated,
+     * so move the read position up to the oldest chunk still waiting.
+     */
+    private void reclaimSpace() {
+        while (!chunksByArrival.isEmpty() && chunksByArrival.peekFirst().collated) {
+            chunksByArrival.pollFirst();
+        }
+        readPosition = chunksByArrival.isEmpty() ? writePosition : chunksByArrival.peekFirst().position;
+    }
+
+    private void ensureCapacity(int extraSamples) {
+        long needed = writePosition - readPosition + extraSamples;
+        if (needed <= ring.length) {
+            return;
+        }
+        int newCapacity = ring.length;
+        while (newCapacity < needed) {
+            newCapacity *= 2;
+        }
+        double[] live = new double[(int) (writePosition - readPosition)];
+        copyOut(readPosition, live, 0, live.length);
+        ring = new double[newCapacity];
+        copyIn(readPosition, live);
+    }
+
+    private int index(long position) {
+        // capacity is always a power of two
+        return (int) (position & (ring.length - 1));
+    }
+
+    private void copyIn(long position, double[] values) {
+        int start = index(position);
+        int firstPart = Math.min(values.length, ring.length - start);
+        System.arraycopy(values, 0, ring, start, firstPart);
+        System.arraycopy(values, firstPart, ring, 0, values.length - firstPart);
+    }
+
+    private void copyOut(long position, double[] dest, int destPos, int length) {
+        int start = index(position);
+        int firstPart = Math.min(length, ring.length - start);
+        System.arraycopy(ring, start, dest, destPos, firstPart);
+        System.arraycopy(ring, 0, dest, destPos + firstPart, length - firstPart);
+    }
+
+    /**
+     * @return number of samples waiting to be collated, can be called without holding the lock
+     */
+    int getPendingSampleCount() {
+        return pendingSampleCount;
+    }
+
+    /**
+     * @return number of uncollated messages, can be called without holding the lock
+     */
+    int getPendingMessageCount() {
+        return pendingMessageCount;
+    }
+}
@@ -0,0 +1,313 @@
+package uk.ac.ucl.rits.inform.datasources.waveform.hl7parse;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * An HL7 parser which works directly on the received bytes, for the waveform hot path.
+ * Unlike {@link Hl7Message}, it does not split the message into strings up front. It only records where each
+ * segment starts and ends, then finds fields by scanning for separators when asked. Strings are only created for
+ * the fields that are requested, and numeric fields can be parsed straight into a primitive array.
+ * <p>
+ * A cursor can be reused for many messages with {@link #reset}, but is not thread safe.
+ * Like {@link Hl7Message}, it assumes the default HL7 separators and that the message is ASCII compatible.
+ */
+public class Hl7Cursor {
+    private static final byte SEGMENT_SEPARATOR = '\r';
+    private static final byte FIELD_SEPARATOR = '|';
+    private static final byte COMPONENT_SEPARATOR = '^';
+    /**
+     * 10^0 to 10^22 are exactly representable as doubles.
+     */
+    private static final double[] EXACT_POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+    private byte[] bytes;
+    private int messageStart;
+    private int messageEnd;
+    private int[] segmentStarts = new int[16];
+    private int[] segmentEnds = new int[16];
+    private int segmentCount;
+
+    /**
+     * Bounds of the field found by the last call to {@link #locateField}.
+     */
+    private int fieldStart;
+    private int fieldEnd;
+
+    /**
+     * Point the cursor at a new message, which is split into segments but not otherwise parsed.
+     * Leading and trailing whitespace and control characters (eg. the MLLP framing bytes) are ignored.
+     * @param messageBytes buffer containing the message, (CR line ending), not copied so must not be modified while in use
+     * @param offset       start of the message in the buffer
+     * @param length       length of the message in bytes
+     */
+    public void reset(byte[] messageBytes, int offset, int length) {
+        bytes = messageBytes;
+        messageStart = offset;
+        messageEnd = offset + length;
+        while (messageStart < messageEnd && isStrippable(bytes[messageStart])) {
+            messageStart++;
+        }
+        while (messageEnd > messageStart && isStrippable(bytes[messageEnd - 1])) {
+            messageEnd--;
+        }
+        segmentCount = 0;
+        int segmentStart = messageStart;
+        for (int i = messageStart; i <= messageEnd; i++) {
+            if (i == messageEnd || bytes[i] == SEGMENT_SEPARATOR) {
+                if (i > segmentStart) {
+                    addSegment(segmentStart, i);
+                }
+                segmentStart = i + 1;
+            }
+        }
+    }
+
+    private static boolean isStrippable(byte b) {
+        return b >= 0 && b <= ' ';
+    }
+
+    private void addSegment(int start, int end) {
+        if (segmentCount == segmentStarts.length) {
+            segmentStarts = Arrays.copyOf(segmentStarts, segmentCount * 2);
+            segmentEnds = Arrays.copyOf(segmentEnds, segmentCount * 2);
+        }
+        segmentStarts[segmentCount] = start;
+        segmentEnds[segmentCount] = end;
+        segmentCount++;
+    }
+
+    /**
+     * @return number of segments in the message, zero if the message was empty or all whitespace
+     */
+    public int getSegmentCount() {
+        return segmentCount;
+    }
+
+    /**
+     * @return length of the message in bytes, excluding the ignored whitespace
+     */
+    public int getLength() {
+        return messageEnd - messageStart;
+    }
+
+    /**
+     * @param segmentIndex 0-indexed segment within the message
+     * @param segmentName  name to compare to, eg. "OBX"
+     * @return true if the segment has the given name
+     */
+    public boolean isSegment(int segmentIndex, String segmentName) {
+        int start = segmentStarts[segmentIndex];
+        int nameEnd = start + segmentName.length();
+        if (nameEnd > segmentEnds[segmentIndex]) {
+            return false;
+        }
+        if (nameEnd < segmentEnds[segmentIndex] && bytes[nameEnd] != FIELD_SEPARATOR) {
+            return false;
+        }
+        return regionEquals(start, segmentName);
+    }
+
+    /**
+     * Find a segment which must occur exactly once in the message.
+     * @param segmentName name of the segment, eg. "MSH"
+     * @return 0-indexed segment within the message
+     * @throws Hl7ParseException if there are != 1 of this segment in the message
+     */
+    public int getSingleSegment(String segmentName) throws Hl7ParseException {
+        int found = -1;
+        int count = 0;
+        for (int i = 0; i < segmentCount; i++) {
+            if (isSegment(i, segmentName)) {
+                found = i;
+                count++;
+            }
+        }
+        if (count != 1) {
+            throw new Hl7ParseException(
+                    String.format("Segment %s can only be used as a single segment, got size %d", segmentName, count));
+        }
+        return found;
+    }
+
+    /**
+     * Get unparsed contents of an HL7 field.
+     * @param segmentIndex 0-indexed segment within the message
+     * @param field1Index  The HL7 field index within the segment, starting at 1
+     * @return unparsed string contents of the field
+     * @throws Hl7ParseException if field does not exist
+     */
+    public String getField(int segmentIndex, int field1Index) throws Hl7ParseException {
+        locateField(segmentIndex, field1Index);
+        return new String(bytes, fieldStart, fieldEnd - fieldStart, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Compare a field to a value without creating a string.
+     * @param segmentIndex 0-indexed segment within the message
+     * @param field1Index  The HL7 field index within the segment, starting at 1
+     * @param expected     value to compare to, must be ASCII
+     * @return true if the whole field is equal to the expected value
+     * @throws Hl7ParseException if field does not exist
+     */
+    public boolean fieldEquals(int segmentIndex, int field1Index, String expected) throws Hl7ParseException {
+        locateField(segmentIndex, field1Index);
+        return fieldEnd - fieldStart == expected.length() && regionEquals(fieldStart, expected);
+    }
+
+    /**
+     * @param segmentIndex 0-indexed segment within the message
+     * @param field1Index  The HL7 field index within the segment, starting at 1
+     * @param c            ASCII character to look for
+     * @return true if the field contains the character
+     * @throws Hl7ParseException if field does not exist
+     */
+    public boolean fieldContains(int segmentIndex, int field1Index, char c) throws Hl7ParseException {
+        locateField(segmentIndex, field1Index);
+        for (int i = fieldStart; i < fieldEnd; i++) {
+            if (bytes[i] == c) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Parse a field of caret separated numbers (eg. OBX-5 of a waveform message) straight into a primitive array,
+     * without creating a string or boxed value for each number. Like String.split, trailing empty components are
+     * ignored.
+     * @param segmentIndex 0-indexed segment within the message
+     * @param field1Index  The HL7 field index within the segment, starting at 1
+     * @return the values in order
+     * @throws Hl7ParseException if field does not exist or any component is not a number
+     */
+    public double[] getFieldAsDoubles(int segmentIndex, int field1Index) throws Hl7ParseException {
+        locateField(segmentIndex, field1Index);
+        int end = fieldEnd;
+        while (end > fieldStart && bytes[end - 1] == COMPONENT_SEPARATOR) {
+            end--;
+        }
+        int numValues = 1;
+        for (int i = fieldStart; i < end; i++) {
+            if (bytes[i] == COMPONENT_SEPARATOR) {
+                numValues++;
+            }
+        }
+        double[] values = new double[numValues];
+        int componentStart = fieldStart;
+        int valueIndex = 0;
+        for (int i = fieldStart; i <= end; i++) {
+            if (i == end || bytes[i] == COMPONENT_SEPARATOR) {
+                values[valueIndex++] = parseDouble(componentStart, i);
+                componentStart = i + 1;
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Parse a decimal number. Plain decimals whose digits fit in a double's 53 bit mantissa (about 15 significant
+     * figures, which covers everything we expect from the waveform source) take a fast path which gives the same,
+     * correctly rounded, result as {@link Double#parseDouble}. Anything else is passed to {@link Double#parseDouble}.
+     * @param start start of the number in the buffer
+     * @param end   end of the number (exclusive)
+     * @return the parsed value
+     * @throws Hl7ParseException if it's not a number
+     */
+    private double parseDouble(int start, int end) throws Hl7ParseException {
+        int i = start;
+        boolean negative = false;
+        if (i < end && (bytes[i] == '-' || bytes[i] == '+')) {
+            negative = bytes[i] == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int fractionDigits = 0;
+        boolean seenPoint = false;
+        boolean fastPath = i < end;
+        for (; i < end && fastPath; i++) {
+            byte b = bytes[i];
+            if (b >= '0' && b <= '9') {
+                mantissa = mantissa * 10 + (b - '0');
+                digits++;
+                if (seenPoint) {
+                    fractionDigits++;
+                }
+                fastPath = mantissa <= MAX_EXACT_MANTISSA && fractionDigits < EXACT_POWERS_OF_TEN.length;
+            } else if (b == '.' && !seenPoint) {
+                seenPoint = true;
+            } else {
+                fastPath = false;
+            }
+        }
+        if (fastPath && digits > 0) {
+            // both are exact, so a single division is correctly rounded
+            double value = mantissa / EXACT_POWERS_OF_TEN[fractionDigits];
+            return negative ? -value : value;
+        }
+        String number = new String(bytes, start, end - start, StandardCharsets.UTF_8);
+        try {
+            return Double.parseDouble(number);
+        } catch (NumberFormatException e) {
+            throw (Hl7ParseException) new Hl7ParseException("Not a number: " + number).initCause(e);
+        }
+    }
+
+    /**
+     * Set {@link #fieldStart} and {@link #fieldEnd} to the bounds of a field.
+     * @param segmentIndex 0-indexed segment within the message
+     * @param field1Index  The HL7 field index within the segment, starting at 1
+     * @throws Hl7ParseException if field does not exist
+     */
+    private void locateField(int segmentIndex, int field1Index) throws Hl7ParseException {
+        int segmentStart = segmentStarts[segmentIndex];
+        int segmentEnd = segmentEnds[segmentIndex];
+        int separatorsToSkip = field1Index;
+        if (isSegment(segmentIndex, "MSH")) {
+            // MSH-1 is the field separator itself
+            if (field1Index == 1) {
+                fieldStart = segmentStart + "MSH".length();
+                fieldEnd = fieldStart + 1;
+                return;
+            }
+            separatorsToSkip--;
+        }
+        int i = segmentStart;
+        while (separatorsToSkip > 0) {
+            while (i < segmentEnd && bytes[i] != FIELD_SEPARATOR) {
+                i++;
+            }
+            if (i == segmentEnd) {
+                throw new Hl7ParseException("non existent field");
+            }
+            i++;
+            separatorsToSkip--;
+        }
+        fieldStart = i;
+        while (i < segmentEnd && bytes[i] != FIELD_SEPARATOR) {
+            i++;
+        }
+        fieldEnd = i;
+    }
+
+    private boolean regionEquals(int start, String ascii) {
+        for (int i = 0; i < ascii.length(); i++) {
+            if (bytes[start + i] != ascii.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param maxBytes maximum number of bytes to include
+     * @return the start of the message, for logging
+     */
+    public String preview(int maxBytes) {
+        return new String(bytes, messageStart, Math.min(maxBytes, getLength()), StandardCharsets.UTF_8);
+    }
+}
@@ -18,6 +18,8 @@ import java.util.TreeMap;
  * whereas this parser doesn't attempt to process the contents of any fields, allowing
  * the calling code to do as it wishes.
  * It's about 100-1000x faster.
+ * The waveform listener now uses {@link Hl7Cursor}, which goes further by not creating a string per field.
+ * This parser is kept as the simpler reference implementation, and as the baseline for benchmarking.
  */
 public class Hl7Message {
     private final Logger logger = LoggerFactory.getLogger(Hl7Message.class);
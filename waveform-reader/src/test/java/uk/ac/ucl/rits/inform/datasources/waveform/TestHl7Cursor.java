@@ -0,0 +1,146 @@
+package uk.ac.ucl.rits.inform.datasources.waveform;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import uk.ac.ucl.rits.inform.datasources.waveform.hl7parse.Hl7Cursor;
+import uk.ac.ucl.rits.inform.datasources.waveform.hl7parse.Hl7Message;
+import uk.ac.ucl.rits.inform.datasources.waveform.hl7parse.Hl7ParseException;
+import uk.ac.ucl.rits.inform.datasources.waveform.hl7parse.Hl7Segment;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static uk.ac.ucl.rits.inform.datasources.waveform.Utils.readHl7FromResource;
+
+class TestHl7Cursor {
+    private final Hl7Cursor cursor = new Hl7Cursor();
+
+    private void reset(String message) {
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        cursor.reset(bytes, 0, bytes.length);
+    }
+
+    private int findSegments(String segmentName, List<Integer> found) {
+        for (int seg = 0; seg < cursor.getSegmentCount(); seg++) {
+            if (cursor.isSegment(seg, segmentName)) {
+                found.add(seg);
+            }
+        }
+        return found.size();
+    }
+
+    /**
+     * Given a message surrounded by framing bytes
+     * When it is parsed by both parsers
+     * Then the fields should match.
+     */
+    @Test
+    void testSameFieldsAsHl7Message() throws IOException, URISyntaxException, Hl7ParseException {
+        String hl7String = readHl7FromResource("hl7/test1.hl7");
+        Hl7Message expected = new Hl7Message(hl7String.strip());
+        reset("\u000b" + hl7String + "\u001c\r");
+
+        int msh = cursor.getSingleSegment("MSH");
+        assertEquals("|", cursor.getField(msh, 1));
+        for (int field : List.of(2, 9, 10)) {
+            assertEquals(expected.getField("MSH", field), cursor.getField(msh, field));
+        }
+        assertEquals(expected.getField("PV1", 3), cursor.getField(cursor.getSingleSegment("PV1"), 3));
+
+        List<Integer> obxSegments = new ArrayList<>();
+        List<Hl7Segment> expectedObx = expected.getSegments("OBX");
+        assertEquals(expectedObx.size(), findSegments("OBX", obxSegments));
+        for (int i = 0; i < expectedObx.size(); i++) {
+            for (int field : List.of(2, 3, 5, 14)) {
+                assertEquals(expectedObx.get(i).getField(field), cursor.getField(obxSegments.get(i), field));
+            }
+        }
+    }
+
+    /**
+     * Given a message with a segment missing some fields
+     * When a field beyond the end of the segment is requested
+     * Then an exception should be thrown.
+     */
+    @Test
+    void testNonExistentField() {
+        reset("MSH|^~\\&|DATACAPTOR\rPV1||I");
+        assertThrows(Hl7ParseException.class, () -> cursor.getField(1, 3));
+        assertThrows(Hl7ParseException.class, () -> cursor.getSingleSegment("OBR"));
+    }
+
+    /**
+     * Given numbers in various formats
+     * When they are parsed from an OBX-5 field
+     * Then they should be exactly the same as Double.parseDouble's result.
+     */
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "42.10", "-0.5", "+7", "0", "-0.0", "1.", "0.30000000000000004", "123456789012345678901",
+            "9007199254740993", "1e3", "-4.9E-324", "999.999", "0.0000000000000000000001", " 2.5"})
+    void testNumbersMatchParseDouble(String number) throws Hl7ParseException {
+        reset(String.format("OBX|1|NA|27||%s^%s|", number, number));
+        double[] values = cursor.getFieldAsDoubles(0, 5);
+        double expected = Double.parseDouble(number);
+        assertArrayEquals(new double[]{expected, expected}, values);
+        assertEquals(Double.doubleToRawLongBits(expected), Double.doubleToRawLongBits(values[0]));
+    }
+
+    /**
+     * Given an OBX-5 field with trailing carets
+     * When it is parsed
+     * Then the trailing empty values should be ignored, like String.split.
+     */
+    @Test
+    void testTrailingEmptyValuesIgnored() throws Hl7ParseException {
+        reset("OBX|1|NA|27||1.5^2^^|");
+        assertArrayEquals(new double[]{1.5, 2}, cursor.getFieldAsDoubles(0, 5));
+    }
+
+    /**
+     * Given an OBX-5 field with a non-numeric value
+     * When it is parsed
+     * Then a parse exception should be thrown.
+     */
+    @ParameterizedTest
+    @ValueSource(strings = {"1^^2", "abc", "-", ".", "1.2.3"})
+    void testNotANumber(String values) {
+        reset(String.format("OBX|1|NA|27||%s|", values));
+        assertThrows(Hl7ParseException.class, () -> cursor.getFieldAsDoubles(0, 5));
+    }
+
+    /**
+     * Given a field
+     * When it is compared without creating a string
+     * Then only the whole field should match.
+     */
+    @Test
+    void testFieldComparisons() throws Hl7ParseException {
+        reset("OBX|1|NA|27||1~2|");
+        assertTrue(cursor.fieldEquals(0, 2, "NA"));
+        assertFalse(cursor.fieldEquals(0, 2, "N"));
+        assertFalse(cursor.fieldEquals(0, 3, "2"));
+        assertTrue(cursor.fieldContains(0, 5, '~'));
+        assertFalse(cursor.fieldContains(0, 3, '~'));
+    }
+
+    /**
+     * Given a message which is only whitespace
+     * When it is parsed
+     * Then there should be no segments.
+     */
+    @Test
+    void testEmptyMessage() {
+        reset("\u000b\r\r\u001c\r");
+        assertEquals(0, cursor.getSegmentCount());
+    }
+}
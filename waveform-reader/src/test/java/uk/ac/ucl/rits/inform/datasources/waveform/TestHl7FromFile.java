@@ -1,6 +1,7 @@
 package uk.ac.ucl.rits.inform.datasources.waveform;
 
 import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.MethodSource;
@@ -8,7 +9,6 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.context.junit.jupiter.SpringJUnitConfig;
-import uk.ac.ucl.rits.inform.datasources.waveform.hl7parse.Hl7ParseException;
 
 import java.io.BufferedOutputStream;
 import java.io.FileOutputStream;
@@ -23,6 +23,7 @@ import java.util.Random;
 import java.util.stream.IntStream;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static uk.ac.ucl.rits.inform.datasources.waveform.Utils.readHl7FromResource;
 
 @SpringJUnitConfig
@@ -38,7 +39,7 @@ class TestHl7FromFile {
 
     @BeforeEach
     void clearMessages() {
-        waveformCollator.pendingMessages.clear();
+        waveformCollator.clear();
     }
 
     static IntStream ints() {
@@ -51,15 +52,40 @@ class TestHl7FromFile {
      */
     @ParameterizedTest
     @MethodSource({"ints"})
-    void readAllFromFile(int seed, @TempDir Path tempDir) throws IOException, Hl7ParseException, WaveformCollator.CollationException, URISyntaxException {
+    void readAllFromFile(int seed, @TempDir Path tempDir) throws IOException, InterruptedException, URISyntaxException {
         Path tempHl7DumpFile = tempDir.resolve("test_hl7.txt");
         final int numHl7Messages = 10;
         makeTestFile(tempHl7DumpFile, numHl7Messages, new Random(seed));
-        hl7FromFile.readOnceAndQueue(tempHl7DumpFile.toFile());
+        assertEquals(numHl7Messages, hl7FromFile.readOnceAndQueue(tempHl7DumpFile.toFile()));
         final int messagesPerHl7 = 5;
         assertEquals(numHl7Messages * messagesPerHl7, waveformCollator.getPendingMessageCount());
     }
 
+    /**
+     * Read a file a small window at a time, so that most messages are split across windows.
+     */
+    @ParameterizedTest
+    @MethodSource({"ints"})
+    void readAllFromFileInSmallWindows(int seed, @TempDir Path tempDir) throws IOException, InterruptedException, URISyntaxException {
+        Path tempHl7DumpFile = tempDir.resolve("test_hl7.txt");
+        final int numHl7Messages = 10;
+        makeTestFile(tempHl7DumpFile, numHl7Messages, new Random(seed));
+        final int windowBytes = 1500;
+        assertEquals(numHl7Messages, hl7FromFile.readOnceAndQueue(tempHl7DumpFile.toFile(), windowBytes));
+        final int messagesPerHl7 = 5;
+        assertEquals(numHl7Messages * messagesPerHl7, waveformCollator.getPendingMessageCount());
+    }
+
+    /**
+     * A message bigger than the window can't be read.
+     */
+    @Test
+    void messageBiggerThanWindow(@TempDir Path tempDir) throws IOException, URISyntaxException {
+        Path tempHl7DumpFile = tempDir.resolve("test_hl7.txt");
+        makeTestFile(tempHl7DumpFile, 2, new Random(0));
+        assertThrows(IOException.class, () -> hl7FromFile.readOnceAndQueue(tempHl7DumpFile.toFile(), 100));
+    }
+
     private List<Byte> randomWhitespaceSurrounding(byte surrounded, Random random) {
         int numCRs = random.nextInt(0, 3);
         List<Byte> allBytes = new ArrayList<>();
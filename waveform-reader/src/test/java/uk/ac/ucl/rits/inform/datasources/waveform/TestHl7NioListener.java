@@ -0,0 +1,173 @@
+package uk.ac.ucl.rits.inform.datasources.waveform;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit.jupiter.SpringJUnitConfig;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static uk.ac.ucl.rits.inform.datasources.waveform.Utils.readHl7FromResource;
+
+@SpringJUnitConfig
+@SpringBootTest
+@ActiveProfiles("test")
+class TestHl7NioListener {
+    @Autowired
+    private Hl7NioListener hl7NioListener;
+    @Autowired
+    private WaveformCollator waveformCollator;
+    @Autowired
+    private Hl7ParseAndQueue hl7ParseAndQueue;
+
+    private final List<byte[]> framedMessages = new ArrayList<>();
+
+    @BeforeEach
+    void clearMessages() {
+        waveformCollator.clear();
+    }
+
+    private static String hl7Message(int i) throws IOException, URISyntaxException {
+        // space timestamps one second apart (they can't be the same or the collator will complain)
+        Long cludgyDate = 20240731142108L;
+        return readHl7FromResource("hl7/test1.hl7").replaceAll(cludgyDate.toString(), Long.valueOf(cludgyDate + i).toString());
+    }
+
+    private static void sendMessages(Socket socket, int from, int to) throws IOException, URISyntaxException {
+        OutputStream out = socket.getOutputStream();
+        for (int i = from; i < to; i++) {
+            out.write(("\u000b" + hl7Message(i) + "\u001c\r").getBytes(StandardCharsets.UTF_8));
+        }
+        out.flush();
+    }
+
+    private void awaitPendingMessages(int expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (waveformCollator.getPendingMessageCount() < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+    }
+
+    /**
+     * Given several HL7 messages sent down a single connection
+     * When the listener receives them
+     * Then they should all be parsed and queued for collation.
+     */
+    @Test
+    void testMessagesOnOneConnection() throws Exception {
+        final int numHl7Messages = 20;
+        try (Socket socket = new Socket("127.0.0.1", hl7NioListener.getLocalPort())) {
+            sendMessages(socket, 0, numHl7Messages);
+        }
+        final int messagesPerHl7 = 5;
+        awaitPendingMessages(numHl7Messages * messagesPerHl7);
+        assertEquals(numHl7Messages * messagesPerHl7, waveformCollator.getPendingMessageCount());
+    }
+
+    /**
+     * Given a parse worker which only has space for one message at a time
+     * When many messages are sent down a connection faster than they can be parsed
+     * Then the listener should hold them back rather than dropping any, while still reading other connections.
+     */
+    @Test
+    void testMessagesHeldBackWhenWorkerFull() throws Exception {
+        Hl7NioListener listener = new Hl7NioListener(0, List.of("ALL"), 5_000_000,
+                new Hl7ParseWorkers(hl7ParseAndQueue, 1, 1), 0);
+        listener.start();
+        final int messagesPerHl7 = 5;
+        try (Socket first = new Socket("127.0.0.1", listener.getLocalPort());
+             Socket second = new Socket("127.0.0.1", listener.getLocalPort())) {
+            sendMessages(first, 0, 20);
+            sendMessages(second, 20, 21);
+            awaitPendingMessages(21 * messagesPerHl7);
+        } finally {
+            listener.stop();
+        }
+        assertEquals(21 * messagesPerHl7, waveformCollator.getPendingMessageCount());
+    }
+
+    /**
+     * Given a connection which sends nothing
+     * When the idle timeout passes
+     * Then the listener should close it.
+     */
+    @Test
+    void testIdleConnectionClosed() throws Exception {
+        Hl7NioListener listener = new Hl7NioListener(0, List.of("ALL"), 5_000_000,
+                new Hl7ParseWorkers(hl7ParseAndQueue, 1, 1), 200);
+        listener.start();
+        try (Socket socket = new Socket("127.0.0.1", listener.getLocalPort())) {
+            socket.setSoTimeout(10_000);
+            InputStream in = socket.getInputStream();
+            assertEquals(-1, in.read());
+        } finally {
+            listener.stop();
+        }
+    }
+
+    /**
+     * Given messages which are split across reads at every possible point
+     * When they are framed
+     * Then the same messages should come out, without the separators or whitespace-only messages.
+     */
+    @Test
+    void testFramingAcrossReads() {
+        byte[] stream = "\u000bMSH|1\r\u001c\r\u000bMSH|2\r\u001c\r".getBytes(StandardCharsets.UTF_8);
+        for (int split = 0; split <= stream.length; split++) {
+            framedMessages.clear();
+            Hl7MessageFramer framer = new Hl7MessageFramer(1000, framedMessages::add);
+            framer.accept(ByteBuffer.wrap(stream, 0, split));
+            framer.accept(ByteBuffer.wrap(stream, split, stream.length - split));
+            assertEquals(2, framedMessages.size());
+            assertArrayEquals("\u000bMSH|1\r".getBytes(StandardCharsets.UTF_8), framedMessages.get(0));
+            assertArrayEquals("\r\u000bMSH|2\r".getBytes(StandardCharsets.UTF_8), framedMessages.get(1));
+            assertEquals(0, framer.getIncompleteLength());
+        }
+    }
+
+    /**
+     * Given a message which is too big
+     * When it is framed
+     * Then it should be discarded without affecting the following message.
+     */
+    @Test
+    void testOversizedMessageDiscarded() {
+        Hl7MessageFramer framer = new Hl7MessageFramer(10, framedMessages::add);
+        framer.accept(ByteBuffer.wrap("MSH|123456".getBytes(StandardCharsets.UTF_8)));
+        framer.accept(ByteBuffer.wrap("7890\u001cMSH|2\u001cMSH".getBytes(StandardCharsets.UTF_8)));
+        assertEquals(1, framedMessages.size());
+        assertArrayEquals("MSH|2".getBytes(StandardCharsets.UTF_8), framedMessages.get(0));
+        assertEquals(3, framer.getIncompleteLength());
+    }
+
+    /**
+     * Given messages for the same location but different streams and times
+     * When they are assigned to workers
+     * Then they should all go to the same worker, so their order is preserved.
+     */
+    @Test
+    void testSameLocationSameWorker() throws IOException, URISyntaxException {
+        final int numWorkers = 7;
+        int worker = Hl7ParseWorkers.workerFor(hl7Message(0).getBytes(StandardCharsets.UTF_8), numWorkers);
+        for (int i = 1; i < 10; i++) {
+            assertEquals(worker, Hl7ParseWorkers.workerFor(hl7Message(i).getBytes(StandardCharsets.UTF_8), numWorkers));
+        }
+        byte[] withTrailingSeparator = "MSH|^~\\&|\rPV1||I|UCHT03ICURM08|\r".getBytes(StandardCharsets.UTF_8);
+        byte[] withOtherSegments = "MSH|^~\\&|\rPID|\rPV1||I|UCHT03ICURM08\r".getBytes(StandardCharsets.UTF_8);
+        assertEquals(Hl7ParseWorkers.workerFor(withTrailingSeparator, numWorkers),
+                Hl7ParseWorkers.workerFor(withOtherSegments, numWorkers));
+        assertEquals(0, Hl7ParseWorkers.workerFor("no PV1".getBytes(StandardCharsets.UTF_8), numWorkers));
+    }
+}
@@ -13,6 +13,7 @@ import java.io.IOException;
 import java.net.URISyntaxException;
 import java.util.List;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
@@ -72,18 +73,18 @@ class TestHl7ParseAndQueue {
         List<String> actualUnits = msgs.stream().map(WaveformMessage::getUnit).toList();
         assertEquals(List.of("mL", "cmH2O", "uV", "%", "%"), actualUnits);
         var expectedValues = List.of(
-                List.of(42.10),
-                List.of(42.20),
-                List.of(42.30, 43.30, 44.30),
-                List.of(42.40, 43.40, 44.40, 45.40),
-                List.of(42.50, 43.50, 44.5, 45.5, 46.5));
+                new double[]{42.10},
+                new double[]{42.20},
+                new double[]{42.30, 43.30, 44.30},
+                new double[]{42.40, 43.40, 44.40, 45.40},
+                new double[]{42.50, 43.50, 44.5, 45.5, 46.5});
 
         for (int i = 0; i < msgs.size(); i++) {
             WaveformMessage m = msgs.get(i);
-            InterchangeValue<List<Double>> numericValues = m.getNumericValues();
+            InterchangeValue<double[]> numericValues = m.getNumericValues();
             assertTrue(numericValues.isSave());
-            List<Double> expected = expectedValues.get(i);
-            assertEquals(expected, numericValues.get());
+            double[] expected = expectedValues.get(i);
+            assertArrayEquals(expected, numericValues.get());
         }
     }
 
@@ -0,0 +1,67 @@
+package uk.ac.ucl.rits.inform.datasources.waveform;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TestStreamDescriptorCache {
+    private static final String CSV_HEADER = "value_hl7_id,value_name,value_unit_name,value_type,device,required,frequency\n";
+
+    /**
+     * Given the metadata built in to the application
+     * When the same location+stream is looked up twice
+     * Then the same descriptor should be returned, with the location mapped.
+     */
+    @Test
+    void descriptorIsReused() throws IOException {
+        StreamDescriptorCache cache = new StreamDescriptorCache(new SourceMetadata(), new LocationMapping());
+        StreamDescriptor descriptor = cache.get("UCHT03ICURM08", "52912");
+        assertTrue(descriptor.usable());
+        assertEquals("T03^T03 SR08^SR08-08", descriptor.mappedLocation());
+        assertEquals(50, descriptor.samplingRate());
+        assertEquals("mL", descriptor.unit());
+        assertSame(descriptor, cache.get(new String("UCHT03ICURM08"), new String("52912")));
+        assertFalse(cache.get("UCHT03ICURM08", "no such stream").usable());
+        assertEquals(2, cache.size());
+    }
+
+    /**
+     * Given metadata from an external file
+     * When the file changes
+     * Then the metadata should be reloaded and the descriptors worked out again.
+     */
+    @Test
+    void reloadChangedMetadata(@TempDir Path tempDir) throws IOException {
+        File csvFile = tempDir.resolve("metadata.csv").toFile();
+        Files.writeString(csvFile.toPath(), CSV_HEADER + "52912,Airway Volume Waveform,mL,Numeric,Servo-U,,50\n");
+        SourceMetadata sourceMetadata = new SourceMetadata(csvFile);
+        StreamDescriptorCache cache = new StreamDescriptorCache(sourceMetadata, new LocationMapping());
+        StreamDescriptor before = cache.get("UCHT03ICURM08", "52912");
+        assertEquals(50, before.samplingRate());
+        assertFalse(cache.get("UCHT03ICURM08", "27").usable());
+
+        // unchanged file is not reloaded
+        sourceMetadata.reloadIfChanged();
+        assertSame(before, cache.get("UCHT03ICURM08", "52912"));
+
+        Files.writeString(csvFile.toPath(), CSV_HEADER
+                + "52912,Airway Volume Waveform,mL,Numeric,Servo-U,,100\n"
+                + "27,Generic ECG Waveform,uV,Numeric,Philips,,300\n");
+        assertTrue(csvFile.setLastModified(csvFile.lastModified() + 10_000));
+        sourceMetadata.reloadIfChanged();
+        StreamDescriptor after = cache.get("UCHT03ICURM08", "52912");
+        assertNotSame(before, after);
+        assertEquals(100, after.samplingRate());
+        assertEquals(300, cache.get("UCHT03ICURM08", "27").samplingRate());
+    }
+}
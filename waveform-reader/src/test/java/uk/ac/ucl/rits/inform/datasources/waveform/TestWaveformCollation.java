@@ -1,8 +1,11 @@
 package uk.ac.ucl.rits.inform.datasources.waveform;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.apache.commons.lang3.tuple.ImmutablePair;
 import org.apache.commons.lang3.tuple.Pair;
 import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.Arguments;
 import org.junit.jupiter.params.provider.MethodSource;
@@ -15,11 +18,16 @@ import uk.ac.ucl.rits.inform.interchange.visit_observations.WaveformMessage;
 
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.stream.Stream;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 
 @SpringJUnitConfig
@@ -37,7 +45,7 @@ public class TestWaveformCollation {
 
     @BeforeEach
     void clearMessages() {
-        waveformCollator.pendingMessages.clear();
+        waveformCollator.clear();
     }
 
     List<WaveformMessage> makeTestMessages() {
@@ -119,8 +127,8 @@ public class TestWaveformCollation {
         // GIVEN some uncollated messages (straight from HL7)
         makeAndAddTestMessages();
         Pair<String, String> keyOfInterest = new ImmutablePair<>("UCHT03TEST", "59912");
-        assertEquals(2, waveformCollator.pendingMessages.size());
-        assertEquals(600, waveformCollator.pendingMessages.get(keyOfInterest).size());
+        assertEquals(2, waveformCollator.getStreamCount());
+        assertEquals(600, waveformCollator.getPendingMessageCount("UCHT03TEST", "59912"));
 
         // WHEN I collate the messages (which may be comfortably in the past, or have only just happened)
         Instant now = messageStartDatetime.plus(nowAfterFirstMessageMillis, assumedRounding);
@@ -132,9 +140,9 @@ public class TestWaveformCollation {
 
         // THEN the messages have been combined into much fewer messages and the pending list is smaller or empty
         assertEquals(expectedNewMessageSampleCounts.size(), collatedMsgs.size());
-        List<Integer> actualSampleCounts = collatedMsgs.stream().map(m -> m.getNumericValues().get().size()).toList();
+        List<Integer> actualSampleCounts = collatedMsgs.stream().map(m -> m.getNumericValues().get().length).toList();
         assertEquals(expectedNewMessageSampleCounts, actualSampleCounts);
-        assertEquals(expectedRemainingMessages, waveformCollator.pendingMessages.get(keyOfInterest).size());
+        assertEquals(expectedRemainingMessages, waveformCollator.getPendingMessageCount("UCHT03TEST", "59912"));
 
         // getting again doesn't get any more messages
         List<WaveformMessage> collatedMsgsRepeat = waveformCollator.getReadyMessages(
@@ -184,7 +192,7 @@ public class TestWaveformCollation {
          * one of 1500 if only a moderate amount of time has passed.
          */
         assertEquals(expectedSampleSizes.size(), collatedMsgs.size());
-        List<Integer> actualSampleSizes = collatedMsgs.stream().map(m -> m.getNumericValues().get().size()).toList();
+        List<Integer> actualSampleSizes = collatedMsgs.stream().map(m -> m.getNumericValues().get().length).toList();
         assertEquals(expectedSampleSizes, actualSampleSizes);
 
         // The missing message has now turned up!
@@ -194,10 +202,117 @@ public class TestWaveformCollation {
         Instant now2 = now.plus(waitForDataLimitMillis, ChronoUnit.MILLIS);
         List<WaveformMessage> secondBatchMessages = waveformCollator.getReadyMessages(
                 now2, targetCollatedMessageSamples, waitForDataLimitMillis, ChronoUnit.MILLIS);
-        List<Integer> actualSampleSizes2 = secondBatchMessages.stream().map(m -> m.getNumericValues().get().size()).toList();
+        List<Integer> actualSampleSizes2 = secondBatchMessages.stream().map(m -> m.getNumericValues().get().length).toList();
         assertEquals(expectedSampleSizesAfterLateMessage.size(), secondBatchMessages.size());
         assertEquals(expectedSampleSizesAfterLateMessage, actualSampleSizes2);
-        assertEquals(0, waveformCollator.pendingMessages.get(keyOfInterest).size());
+        assertEquals(0, waveformCollator.getPendingMessageCount("UCHT03TEST", "59912"));
     }
 
+    /**
+     * Given a stream with a gap in its data
+     * When it has waited long enough to be collated either side of the gap
+     * Then the gap should be counted once, and nothing left pending.
+     */
+    @Test
+    void gapIsCounted() throws WaveformCollator.CollationException {
+        MeterRegistry meterRegistry = new SimpleMeterRegistry();
+        WaveformCollator collator = new WaveformCollator(meterRegistry);
+        List<WaveformMessage> inputMessages = makeTestMessages();
+        inputMessages.remove(300);
+        collator.addMessages(inputMessages);
+        assertEquals(2995, meterRegistry.get("waveform.pending.samples")
+                .tags("location", "UCHT03TEST", "stream", "59912").gauge().value());
+
+        List<WaveformMessage> collatedMsgs = collator.getReadyMessages(
+                messageStartDatetime.plus(25001, ChronoUnit.MILLIS), 3000, 15000, ChronoUnit.MILLIS);
+        assertEquals(3, collatedMsgs.size());
+        assertEquals(1, meterRegistry.get("waveform.collation.gaps")
+                .tags("location", "UCHT03TEST", "stream", "59912").counter().count());
+        assertEquals(0, meterRegistry.get("waveform.collation.gaps")
+                .tags("location", "UCHT03TEST", "stream", "59913").counter().count());
+        assertEquals(0, meterRegistry.get("waveform.pending.samples")
+                .tags("location", "UCHT03TEST", "stream", "59912").gauge().value());
+        assertEquals(3, meterRegistry.get("waveform.collation.delay").timer().count());
+    }
+
+    /**
+     * Given messages arriving in time order
+     * When they are added with collation on arrival
+     * Then a collated message should be produced as soon as a stream reaches the sample target, without waiting.
+     */
+    @Test
+    void collateOnArrival() throws WaveformCollator.CollationException {
+        List<WaveformMessage> inputMessages = makeTestMessages();
+        int targetNumSamples = 1000;
+        List<WaveformMessage> collatedMsgs = new ArrayList<>();
+        for (WaveformMessage msg : inputMessages) {
+            collatedMsgs.addAll(waveformCollator.addMessagesAndCollate(List.of(msg), targetNumSamples, ChronoUnit.MILLIS));
+        }
+        // each stream has 3000 samples, so exactly three messages each without any timer-based flushing
+        assertEquals(6, collatedMsgs.size());
+        for (WaveformMessage msg : collatedMsgs) {
+            assertEquals(targetNumSamples, msg.getNumericValues().get().length);
+        }
+        assertEquals(0, waveformCollator.getPendingSampleCount());
+        assertEquals(0, waveformCollator.getPendingMessageCount());
+    }
+
+    /**
+     * Given streams which haven't reached the sample target
+     * When all messages are requested (no more data is coming)
+     * Then everything should be collated straight away, regardless of how recent it is.
+     */
+    @Test
+    void getAllMessagesFlushesEverything() throws WaveformCollator.CollationException {
+        List<WaveformMessage> inputMessages = makeTestMessages();
+        int targetNumSamples = 4000;
+        assertEquals(0, waveformCollator.addMessagesAndCollate(inputMessages, targetNumSamples, ChronoUnit.MILLIS).size());
+        List<WaveformMessage> collatedMsgs = waveformCollator.getAllMessages(targetNumSamples, ChronoUnit.MILLIS);
+        // one message for each of the two streams of 3000 samples
+        assertEquals(2, collatedMsgs.size());
+        for (WaveformMessage msg : collatedMsgs) {
+            assertEquals(3000, msg.getNumericValues().get().length);
+        }
+        assertEquals(0, waveformCollator.getPendingMessageCount());
+    }
+
+    /**
+     * Given messages arriving in a random order
+     * When they are added with collation on arrival
+     * Then the values should come out in time order, and each stream should be collated
+     * once all of its data has arrived.
+     */
+    @Test
+    void collateOnArrivalOutOfOrder() throws WaveformCollator.CollationException {
+        List<WaveformMessage> inputMessages = makeTestMessages();
+        Map<Instant, double[]> expectedValues = new HashMap<>();
+        inputMessages.stream().filter(m -> m.getSourceStreamId().equals("59912"))
+                .forEach(m -> expectedValues.put(m.getObservationTime(), m.getNumericValues().get().clone()));
+        Collections.shuffle(inputMessages, new Random(42));
+        List<WaveformMessage> collatedMsgs = new ArrayList<>();
+        for (WaveformMessage msg : inputMessages) {
+            collatedMsgs.addAll(waveformCollator.addMessagesAndCollate(List.of(msg), 3000, ChronoUnit.MILLIS));
+        }
+        assertEquals(2, collatedMsgs.size());
+        WaveformMessage collated = collatedMsgs.stream()
+                .filter(m -> m.getSourceStreamId().equals("59912")).findFirst().orElseThrow();
+        assertEquals(messageStartDatetime, collated.getObservationTime());
+        double[] expected = expectedValues.keySet().stream().sorted()
+                .flatMapToDouble(t -> Arrays.stream(expectedValues.get(t))).toArray();
+        assertArrayEquals(expected, collated.getNumericValues().get());
+    }
+
+    /**
+     * Given a single message with more samples than the target
+     * When it is collated
+     * Then it should be sent on its own rather than being stuck.
+     */
+    @Test
+    void messageBiggerThanTarget() throws WaveformCollator.CollationException {
+        makeAndAddTestMessages();
+        List<WaveformMessage> collatedMsgs = waveformCollator.getReadyMessages(
+                messageStartDatetime.plus(25, ChronoUnit.SECONDS), 3, 15000, ChronoUnit.MILLIS);
+        assertEquals(1200, collatedMsgs.size());
+        assertEquals(0, waveformCollator.getPendingSampleCount());
+    }
 }
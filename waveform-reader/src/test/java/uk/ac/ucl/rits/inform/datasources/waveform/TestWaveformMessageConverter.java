@@ -0,0 +1,123 @@
+package uk.ac.ucl.rits.inform.datasources.waveform;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.support.converter.Jackson2JsonMessageConverter;
+import org.springframework.amqp.support.converter.MessageConversionException;
+import org.springframework.amqp.support.converter.MessageConverter;
+import uk.ac.ucl.rits.inform.interchange.InterchangeValue;
+import uk.ac.ucl.rits.inform.interchange.messaging.WaveformMessageConverter;
+import uk.ac.ucl.rits.inform.interchange.messaging.WaveformWireEncoding;
+import uk.ac.ucl.rits.inform.interchange.visit_observations.WaveformMessage;
+
+import java.time.Instant;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TestWaveformMessageConverter {
+    private final MessageConverter jsonConverter = new Jackson2JsonMessageConverter(new ObjectMapper().findAndRegisterModules());
+    /**
+     * What the receiver uses, so must handle any encoding.
+     */
+    private final MessageConverter receiver = new WaveformMessageConverter(jsonConverter, WaveformWireEncoding.JSON);
+
+    private static WaveformMessage message() {
+        WaveformMessage msg = new WaveformMessage();
+        msg.setSourceMessageId("UCHT03ICURM08_52912_1722435668123456");
+        msg.setSourceSystem("waveform");
+        msg.setSourceLocationString("UCHT03ICURM08");
+        msg.setMappedLocationString("T03^T03 SR08^SR08-08");
+        msg.setSourceStreamId("52912");
+        msg.setMappedStreamDescription("Airway Volume Waveform");
+        msg.setUnit("mL");
+        msg.setSamplingRate(50);
+        msg.setObservationTime(Instant.parse("2024-07-31T14:21:08.123456Z"));
+        double[] values = new double[3000];
+        for (int i = 0; i < values.length; i++) {
+            // vary around a large offset, which is where delta encoding helps
+            values[i] = 1000 + 3.3 * Math.sin(i / 10.0);
+        }
+        msg.setNumericValues(new InterchangeValue<>(values));
+        return msg;
+    }
+
+    private static double maxError(double[] expected, double[] actual) {
+        assertEquals(expected.length, actual.length);
+        double maxError = 0;
+        for (int i = 0; i < expected.length; i++) {
+            maxError = Math.max(maxError, Math.abs(expected[i] - actual[i]));
+        }
+        return maxError;
+    }
+
+    /**
+     * Given a waveform message
+     * When it is sent with each encoding
+     * Then the receiver should decode it, exactly for the lossless encodings and to within float32 precision otherwise.
+     */
+    @ParameterizedTest
+    @EnumSource(WaveformWireEncoding.class)
+    void roundTrip(WaveformWireEncoding encoding) {
+        WaveformMessage msg = message();
+        Message sent = new WaveformMessageConverter(jsonConverter, encoding).toMessage(msg, new MessageProperties());
+        WaveformMessage received = (WaveformMessage) receiver.fromMessage(sent);
+
+        double[] expectedValues = msg.getNumericValues().get();
+        double[] actualValues = received.getNumericValues().get();
+        switch (encoding) {
+            case JSON, FLOAT64 -> assertEquals(msg, received);
+            case FLOAT32 -> assertTrue(maxError(expectedValues, actualValues) < 1e-4);
+            case FLOAT32_DELTA -> assertTrue(maxError(expectedValues, actualValues) < 1e-6);
+            default -> throw new IllegalArgumentException(encoding.toString());
+        }
+        msg.setNumericValues(received.getNumericValues());
+        assertEquals(msg, received);
+        if (encoding != WaveformWireEncoding.JSON) {
+            assertEquals(WaveformMessageConverter.CONTENT_TYPE, sent.getMessageProperties().getContentType());
+            assertTrue(sent.getBody().length < 8 * expectedValues.length + 200);
+        }
+    }
+
+    /**
+     * Given a message with missing fields and a NaN sample
+     * When it is delta encoded
+     * Then the missing fields stay missing and the samples either side of the NaN are unaffected.
+     */
+    @Test
+    void nullFieldsAndNaN() {
+        WaveformMessage msg = message();
+        msg.setObservationTime(null);
+        msg.setMappedLocationString(null);
+        msg.setNumericValues(new InterchangeValue<>(new double[]{1, Double.NaN, 3}));
+        WaveformMessage received = WaveformMessageConverter.decode(
+                WaveformMessageConverter.encode(msg, WaveformWireEncoding.FLOAT32_DELTA));
+        assertNull(received.getObservationTime());
+        assertNull(received.getMappedLocationString());
+        assertArrayEquals(new double[]{1, Double.NaN, 3}, received.getNumericValues().get());
+
+        msg.setNumericValues(InterchangeValue.unknown());
+        received = WaveformMessageConverter.decode(WaveformMessageConverter.encode(msg, WaveformWireEncoding.FLOAT64));
+        assertTrue(received.getNumericValues().isUnknown());
+    }
+
+    /**
+     * Given a truncated binary message
+     * When it is decoded
+     * Then it should be rejected rather than producing a partial message.
+     */
+    @Test
+    void truncatedMessageRejected() {
+        byte[] body = WaveformMessageConverter.encode(message(), WaveformWireEncoding.FLOAT64);
+        assertThrows(MessageConversionException.class,
+                () -> WaveformMessageConverter.decode(Arrays.copyOf(body, body.length - 1)));
+    }
+}
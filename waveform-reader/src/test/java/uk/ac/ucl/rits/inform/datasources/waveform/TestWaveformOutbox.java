@@ -0,0 +1,273 @@
+package uk.ac.ucl.rits.inform.datasources.waveform;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import uk.ac.ucl.rits.inform.interchange.InterchangeValue;
+import uk.ac.ucl.rits.inform.interchange.visit_observations.WaveformMessage;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TestWaveformOutbox {
+    @TempDir
+    Path spillDirectory;
+
+    private static byte[] record(int i) {
+        return ("record " + i).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private long segmentFileCount() throws Exception {
+        try (Stream<Path> files = Files.list(spillDirectory)) {
+            return files.count();
+        }
+    }
+
+    /**
+     * Given more records than fit in one segment
+     * When they are read back
+     * Then they come out in the order they were written, and used segments are deleted.
+     */
+    @Test
+    void testSpillLogOrderAcrossSegments() throws Exception {
+        final int numRecords = 100;
+        try (WaveformSpillLog log = new WaveformSpillLog(spillDirectory, 64)) {
+            for (int i = 0; i < numRecords; i++) {
+                log.append(record(i));
+            }
+            assertTrue(segmentFileCount() > 1);
+            for (int i = 0; i < numRecords; i++) {
+                assertEquals(new String(record(i), StandardCharsets.UTF_8), new String(log.poll(), StandardCharsets.UTF_8));
+            }
+            assertNull(log.poll());
+            assertTrue(log.isEmpty());
+            assertTrue(segmentFileCount() > 1);
+            log.commit(log.getTotalBytesRead());
+            assertEquals(0, log.getBytesOnDisk());
+            assertEquals(1, segmentFileCount());
+        }
+        assertEquals(0, segmentFileCount());
+    }
+
+    /**
+     * Given a log where some records were read and committed, and more were read but not committed, before being closed
+     * When it is reopened
+     * Then the uncommitted records are still there, in order.
+     */
+    @Test
+    void testSpillLogRecoveredAfterRestart() throws Exception {
+        try (WaveformSpillLog log = new WaveformSpillLog(spillDirectory, 64)) {
+            for (int i = 0; i < 10; i++) {
+                log.append(record(i));
+            }
+            for (int i = 0; i < 4; i++) {
+                log.poll();
+            }
+            log.commit(log.getTotalBytesRead());
+            log.poll();
+        }
+        try (WaveformSpillLog log = new WaveformSpillLog(spillDirectory, 64)) {
+            assertEquals(6 * (Integer.BYTES + record(0).length), log.getBytesOnDisk());
+            log.append(record(10));
+            for (int i = 4; i <= 10; i++) {
+                assertEquals(new String(record(i), StandardCharsets.UTF_8), new String(log.poll(), StandardCharsets.UTF_8));
+            }
+            assertNull(log.poll());
+        }
+    }
+
+    /**
+     * Waveform operations that record what was sent, and holds up the first send until released.
+     * Sends are confirmed straight away, unless confirmations are held back.
+     */
+    private static class BlockingWaveformOperations extends WaveformOperations {
+        private final List<WaveformMessage> sent = new ArrayList<>();
+        private final List<Runnable> heldConfirmations = new ArrayList<>();
+        private final CountDownLatch firstSendStarted = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+        private boolean holdConfirmations;
+        private int failuresToThrow;
+
+        BlockingWaveformOperations() {
+            super(null);
+        }
+
+        @Override
+        public void sendMessages(List<WaveformMessage> msgs, Runnable callback) throws InterruptedException {
+            firstSendStarted.countDown();
+            release.await();
+            synchronized (sent) {
+                if (failuresToThrow > 0) {
+                    failuresToThrow--;
+                    throw new IllegalStateException("Publisher has been shut down");
+                }
+                if (holdConfirmations) {
+                    heldConfirmations.add(callback);
+                } else {
+                    callback.run();
+                }
+                sent.addAll(msgs);
+            }
+        }
+
+        void confirmHeld() {
+            synchronized (sent) {
+                heldConfirmations.forEach(Runnable::run);
+                heldConfirmations.clear();
+            }
+        }
+
+        int sentCount() {
+            synchronized (sent) {
+                return sent.size();
+            }
+        }
+    }
+
+    private static WaveformMessage message(int i, int numSamples) {
+        WaveformMessage msg = new WaveformMessage();
+        msg.setSourceMessageId("msg" + i);
+        msg.setSourceSystem("waveform");
+        msg.setSourceLocationString("UCHT03ICURM08");
+        msg.setSourceStreamId("52912");
+        msg.setSamplingRate(50);
+        msg.setObservationTime(Instant.parse("2024-07-31T14:21:08Z").plusSeconds(i));
+        msg.setNumericValues(new InterchangeValue<>(new double[numSamples]));
+        return msg;
+    }
+
+    private static void awaitSent(BlockingWaveformOperations operations, int numMessages) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (operations.sentCount() < numMessages && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals(numMessages, operations.sentCount());
+    }
+
+    /**
+     * Given a Publisher that can't keep up
+     * When more collated samples arrive than the budget allows
+     * Then the oldest are spilled to disk without blocking, and everything is still sent in order once it catches up.
+     */
+    @Test
+    void testSpillWhenOverBudget() throws Exception {
+        final int samplesPerMessage = 5;
+        final int numMessages = 10;
+        BlockingWaveformOperations operations = new BlockingWaveformOperations();
+        WaveformOutbox outbox = new WaveformOutbox(operations, new WaveformCollator(new SimpleMeterRegistry()), 20, spillDirectory, 4096, 3);
+        outbox.start();
+        try {
+            outbox.add(List.of(message(0, samplesPerMessage)));
+            assertTrue(operations.firstSendStarted.await(10, TimeUnit.SECONDS));
+
+            List<WaveformMessage> backlog = new ArrayList<>();
+            for (int i = 1; i < numMessages; i++) {
+                backlog.add(message(i, samplesPerMessage));
+            }
+            outbox.add(backlog);
+            assertEquals(5, outbox.getMessagesSpilled());
+            assertEquals(20, outbox.getInMemorySampleCount());
+            assertTrue(outbox.getSpilledBytes() > 0);
+
+            operations.release.countDown();
+            awaitSent(operations, numMessages);
+            for (int i = 0; i < numMessages; i++) {
+                assertEquals(message(i, samplesPerMessage), operations.sent.get(i));
+            }
+            assertEquals(0, outbox.getSpilledBytes());
+            assertEquals(5, outbox.getMessagesDrained());
+        } finally {
+            outbox.stop();
+        }
+    }
+
+    /**
+     * Given spilled messages which have been sent but not yet confirmed
+     * When the outbox is stopped
+     * Then they are still in the spill log, and are only removed from it once confirmed.
+     */
+    @Test
+    void testSpillOnlyCommittedOnConfirm() throws Exception {
+        final int samplesPerMessage = 5;
+        BlockingWaveformOperations operations = new BlockingWaveformOperations();
+        operations.holdConfirmations = true;
+        WaveformOutbox outbox = new WaveformOutbox(operations, new WaveformCollator(new SimpleMeterRegistry()), 0, spillDirectory, 4096, 10);
+        outbox.start();
+        try {
+            outbox.add(List.of(message(0, samplesPerMessage), message(1, samplesPerMessage)));
+            assertEquals(2, outbox.getMessagesSpilled());
+            operations.release.countDown();
+            awaitSent(operations, 2);
+            assertEquals(2, outbox.getMessagesDrained());
+            assertTrue(outbox.getSpilledBytes() > 0);
+            assertTrue(outbox.getUnconfirmedBatchCount() > 0);
+
+            operations.confirmHeld();
+            assertEquals(0, outbox.getSpilledBytes());
+            assertEquals(0, outbox.getUnconfirmedBatchCount());
+        } finally {
+            outbox.stop();
+        }
+        assertEquals(0, segmentFileCount());
+    }
+
+    /**
+     * Given a batch from memory which has been sent but not confirmed
+     * When the outbox is stopped
+     * Then the batch is spilled, so it's sent again after a restart.
+     */
+    @Test
+    void testUnconfirmedBatchSpilledOnStop() throws Exception {
+        BlockingWaveformOperations operations = new BlockingWaveformOperations();
+        operations.holdConfirmations = true;
+        operations.release.countDown();
+        WaveformOutbox outbox = new WaveformOutbox(operations, new WaveformCollator(new SimpleMeterRegistry()), 1000, spillDirectory, 4096, 10);
+        outbox.start();
+        outbox.add(List.of(message(0, 5)));
+        awaitSent(operations, 1);
+        assertEquals(0, outbox.getMessagesSpilled());
+        outbox.stop();
+
+        try (WaveformSpillLog log = new WaveformSpillLog(spillDirectory, 4096)) {
+            assertNotNull(log.poll());
+            assertNull(log.poll());
+        }
+    }
+
+    /**
+     * Given a Publisher which fails to take a batch
+     * When the outbox sends it
+     * Then the batch is spilled and sent again, rather than being dropped.
+     */
+    @Test
+    void testFailedBatchRespilled() throws Exception {
+        BlockingWaveformOperations operations = new BlockingWaveformOperations();
+        operations.failuresToThrow = 1;
+        operations.release.countDown();
+        WaveformOutbox outbox = new WaveformOutbox(operations, new WaveformCollator(new SimpleMeterRegistry()), 1000, spillDirectory, 4096, 10);
+        outbox.start();
+        try {
+            outbox.add(List.of(message(0, 5), message(1, 5)));
+            awaitSent(operations, 2);
+            assertEquals(message(0, 5), operations.sent.get(0));
+            assertEquals(message(1, 5), operations.sent.get(1));
+            assertEquals(2, outbox.getMessagesRespilled());
+            assertTrue(outbox.awaitAllSent(10, TimeUnit.SECONDS));
+            assertEquals(0, outbox.getSpilledBytes());
+        } finally {
+            outbox.stop();
+        }
+    }
+}